@@ -0,0 +1,76 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaMessageException;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaBinaryFrame;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessageInterface;
+import net.sharksystem.asap.android.lora.messages.DeviceDiscoveredASAPLoRaMessage;
+import net.sharksystem.asap.android.lora.messages.DiscoverASAPLoRaMessage;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ASAPLoRaBinaryFrameTest {
+
+    @Test
+    public void ASAPLoRaMessageRoundTrip() throws IOException, ASAPLoRaMessageException {
+        byte[] payload = new byte[ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) i;
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ASAPLoRaBinaryFrame.write(new ASAPLoRaMessage("1001", payload), os);
+        assertEquals(ASAPLoRaBinaryFrame.MAX_FRAME_LENGTH, os.size());
+
+        ASAPLoRaMessageInterface frameMessage = ASAPLoRaBinaryFrame.read(new ByteArrayInputStream(os.toByteArray()));
+        assertTrue(frameMessage instanceof ASAPLoRaMessage);
+        assertEquals("1001", frameMessage.getAddress());
+        assertArrayEquals(payload, ((ASAPLoRaMessage) frameMessage).getMessage());
+    }
+
+    @Test
+    public void DiscoverFrameHasNoPayload() throws IOException, ASAPLoRaMessageException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ASAPLoRaBinaryFrame.write(new DiscoverASAPLoRaMessage(), os);
+        assertEquals(ASAPLoRaBinaryFrame.HEADER_LENGTH + ASAPLoRaBinaryFrame.CRC_LENGTH, os.size());
+    }
+
+    @Test
+    public void CorruptedFrameIsSkipped() throws IOException, ASAPLoRaMessageException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ASAPLoRaBinaryFrame.write(new ASAPLoRaMessage("1001", "broken".getBytes()), os);
+        byte[] corrupted = os.toByteArray();
+        corrupted[ASAPLoRaBinaryFrame.HEADER_LENGTH] ^= 0x01; //flip a payload bit
+
+        os = new ByteArrayOutputStream();
+        os.write(corrupted);
+        byte[] discovered = {(byte) ASAPLoRaBinaryFrame.SYNC, ASAPLoRaBinaryFrame.TYPE_DVDCR, 0x10, 0x02, 0x00, 0, 0};
+        int crc = ASAPLoRaBinaryFrame.crc16(discovered, 1, 4);
+        discovered[5] = (byte) (crc >> 8);
+        discovered[6] = (byte) crc;
+        os.write(discovered);
+
+        ASAPLoRaMessageInterface frameMessage = ASAPLoRaBinaryFrame.read(new ByteArrayInputStream(os.toByteArray()));
+        assertTrue(frameMessage instanceof DeviceDiscoveredASAPLoRaMessage);
+        assertEquals("1002", frameMessage.getAddress());
+    }
+
+    @Test(expected = ASAPLoRaMessageException.class)
+    public void TooLongTextPayloadTest() throws ASAPLoRaMessageException {
+        new ASAPLoRaMessage("1001", new byte[ASAPLoRaMessage.MAX_TEXT_PAYLOAD_LENGTH + 1]).getPayload();
+    }
+}
@@ -0,0 +1,173 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaException;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaBinaryFrame;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessageInterface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the ARQ of two LoRaBTInputOutputStreams over piped streams instead of ASAPLoRaBTModules.
+ * A relay thread per direction plays the LoRa link and drops segments on demand.
+ */
+@RunWith(AndroidJUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class LoRaARQTest {
+    private static final double TIMER_SCALE = 0.1;
+    private LoRaBTInputOutputStream alice;
+    private LoRaBTInputOutputStream bob;
+    private ScheduledExecutorService scheduler;
+    private LoRaTimerWheel timerWheel;
+    private Relay aliceToBob;
+    private Relay bobToAlice;
+
+    /**
+     * Reads what one side writes to its board and hands it to the other side, as if it came
+     * from the sending peer.
+     */
+    private static class Relay extends Thread {
+        private final InputStream from;
+        private final LoRaBTInputOutputStream to;
+        private final String sourceAddress;
+        volatile int dropEveryNth = 0;
+        private int relayed = 0;
+
+        Relay(InputStream from, LoRaBTInputOutputStream to, String sourceAddress) {
+            this.from = from;
+            this.to = to;
+            this.sourceAddress = sourceAddress;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!this.isInterrupted()) {
+                    ASAPLoRaMessageInterface msg = ASAPLoRaBinaryFrame.read(this.from);
+                    if (this.dropEveryNth > 0 && ++this.relayed % this.dropEveryNth == 0)
+                        continue; //lost on air
+                    byte[] segment = ((ASAPLoRaMessage) msg).getMessage();
+                    this.to.receiveSegment(this.sourceAddress, segment, segment.length);
+                }
+            } catch (IOException | ASAPLoRaException e) {
+                //pipe closed, test is over
+            }
+        }
+    }
+
+    @Before
+    public void setup() throws IOException {
+        PipedInputStream aliceBoardIn = new PipedInputStream(64 * 1024);
+        PipedInputStream bobBoardIn = new PipedInputStream(64 * 1024);
+        this.alice = new LoRaBTInputOutputStream(new PipedInputStream(), new PipedOutputStream(aliceBoardIn));
+        this.bob = new LoRaBTInputOutputStream(new PipedInputStream(), new PipedOutputStream(bobBoardIn));
+        this.alice.setBinaryFrameMode(true);
+        this.bob.setBinaryFrameMode(true);
+        this.alice.getTransmitScheduler().setDutyCycle(LoRaTransmitScheduler.NO_DUTY_CYCLE_LIMIT);
+        this.bob.getTransmitScheduler().setDutyCycle(LoRaTransmitScheduler.NO_DUTY_CYCLE_LIMIT);
+        //the pipes are no shared channel, holding back would only pace every frame to its time on air
+        this.alice.getTransmitScheduler().setListenBeforeTalk(false);
+        this.bob.getTransmitScheduler().setListenBeforeTalk(false);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.alice.setScheduler(this.scheduler);
+        this.bob.setScheduler(this.scheduler);
+        //retransmission and delayed ack timers as the LoRaCommunicationManager sets them up,
+        //the pipes deliver right away so the timeouts of the air are scaled down
+        this.alice.setTimerScale(TIMER_SCALE);
+        this.bob.setTimerScale(TIMER_SCALE);
+        this.timerWheel = new LoRaTimerWheel(this.scheduler,
+                (long) (LoRaCommunicationManager.TIMER_TICK * TIMER_SCALE));
+        this.alice.setTimerWheel(this.timerWheel);
+        this.bob.setTimerWheel(this.timerWheel);
+
+        this.aliceToBob = new Relay(aliceBoardIn, this.bob, "1000");
+        this.bobToAlice = new Relay(bobBoardIn, this.alice, "1001");
+        this.aliceToBob.start();
+        this.bobToAlice.start();
+    }
+
+    @After
+    public void teardown() {
+        this.aliceToBob.interrupt();
+        this.bobToAlice.interrupt();
+        this.timerWheel.stop();
+        this.scheduler.shutdownNow();
+        this.alice.close();
+        this.bob.close();
+    }
+
+    private byte[] transfer(int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+
+        this.alice.getASAPOutputStream("1001").write(data);
+        this.alice.flushASAPOutputStreams();
+
+        byte[] received = new byte[length];
+        InputStream is = this.bob.getASAPInputStream("1000");
+        int off = 0;
+        while (off < length) {
+            int read = is.read(received, off, length - off);
+            if (read < 0)
+                break;
+            off += read;
+        }
+        assertEquals(length, off);
+        assertArrayEquals(data, received);
+        return data;
+    }
+
+    @Test(timeout = 10000)
+    public void testInOrderDelivery() throws IOException {
+        this.transfer(4096);
+    }
+
+    @Test(timeout = 60000)
+    public void testLostSegmentsAreRetransmitted() throws IOException {
+        this.aliceToBob.dropEveryNth = 5;
+        this.bobToAlice.dropEveryNth = 3;
+        this.transfer(8192);
+    }
+
+    @Test(timeout = 30000)
+    public void testAcknowledgedSegmentsLeaveTheWindow() throws IOException, InterruptedException {
+        this.transfer(2048);
+        LoRaBTInputOutputStream.LoRaASAPOutputStream os = this.alice.getASAPOutputStream("1001");
+        while (os.getQueueDepth() > 0)
+            Thread.sleep(100); //delayed ack
+        assertEquals(0, os.getQueueDepth());
+    }
+
+    @Test
+    public void testSegmentHeader() {
+        byte[] segment = new byte[LoRaStreamSegment.ACK_LENGTH];
+        LoRaStreamSegment.writeAck(segment, 0xFFFE, 0x80000001);
+        assertEquals(LoRaStreamSegment.TYPE_ACK, segment[0]);
+        assertEquals(0xFFFE, LoRaStreamSegment.readShort(segment, 1));
+        assertEquals(0x80000001, LoRaStreamSegment.readInt(segment, 3));
+        assertEquals(2, LoRaStreamSegment.distance(0xFFFF, LoRaStreamSegment.next(0xFFFF, 2)));
+        assertEquals(-1, LoRaStreamSegment.distance(0, 0xFFFF));
+        assertArrayEquals(new byte[]{LoRaStreamSegment.TYPE_ACK, (byte) 0xFF, (byte) 0xFE},
+                Arrays.copyOf(segment, 3));
+    }
+}
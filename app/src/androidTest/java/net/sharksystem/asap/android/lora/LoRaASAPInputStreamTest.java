@@ -57,4 +57,51 @@ public class LoRaASAPInputStreamTest {
         assertEquals(0, loRaASAPInputStream.available());
 
     }
+
+    @Test
+    public void testBulkReadWrapsAround() throws IOException {
+        LoRaBTInputOutputStream.LoRaASAPInputStream is = new LoRaBTInputOutputStream.LoRaASAPInputStream("1000", 8);
+        is.appendData("ABCDEF".getBytes());
+        byte[] b = new byte[4];
+        assertEquals(4, is.read(b, 0, 4));
+        assertEquals("ABCD", new String(b));
+
+        //this append wraps around the end of the ring buffer
+        is.appendData("GHIJKL".getBytes());
+        assertEquals(8, is.available());
+        b = new byte[16];
+        assertEquals(8, is.read(b, 0, b.length));
+        assertEquals("EFGHIJKL", new String(b, 0, 8));
+        assertEquals(0, is.available());
+    }
+
+    @Test(timeout = 10000)
+    public void testAppendBlocksWhileFull() throws IOException, InterruptedException {
+        final LoRaBTInputOutputStream.LoRaASAPInputStream is = new LoRaBTInputOutputStream.LoRaASAPInputStream("1000", 4);
+        Thread appender = new Thread() {
+            @Override
+            public void run() {
+                is.appendData("0123456789".getBytes());
+            }
+        };
+        appender.start();
+
+        StringBuilder result = new StringBuilder();
+        byte[] b = new byte[3];
+        while (result.length() < 10) {
+            int read = is.read(b, 0, b.length);
+            result.append(new String(b, 0, read));
+        }
+        appender.join();
+        assertEquals("0123456789", result.toString());
+    }
+
+    @Test
+    public void testReadAfterCloseIsEOF() throws IOException {
+        LoRaBTInputOutputStream.LoRaASAPInputStream is = new LoRaBTInputOutputStream.LoRaASAPInputStream("1000");
+        is.appendData("A".getBytes());
+        is.close();
+        assertEquals(-1, is.read());
+        assertEquals(true, is.closed());
+    }
 }
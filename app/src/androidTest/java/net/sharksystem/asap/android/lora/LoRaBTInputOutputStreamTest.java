@@ -74,6 +74,16 @@ public class LoRaBTInputOutputStreamTest {
         Thread.sleep(2000); //wait for teardown to finish...
     }
 
+    /**
+     * ASAP data is sent as DATA segments of the ARQ, strip the segment header
+     */
+    private static String segmentData(ASAPLoRaMessage asapMsg) {
+        byte[] segment = asapMsg.getMessage();
+        assertEquals(LoRaStreamSegment.TYPE_DATA, LoRaStreamSegment.typeOf(segment[0]));
+        return new String(segment, LoRaStreamSegment.DATA_HEADER_LENGTH,
+                segment.length - LoRaStreamSegment.DATA_HEADER_LENGTH);
+    }
+
     @Test
     public void usesAppContext() {
         // Test if we are running in App Context
@@ -93,12 +103,10 @@ public class LoRaBTInputOutputStreamTest {
                 System.out.print("Test Device Response: ");
                 System.out.println(deviceResponse);
                 ASAPLoRaMessage asapMsg = (ASAPLoRaMessage) AbstractASAPLoRaMessage.createASAPLoRaMessage(deviceResponse);
-                ASAPLoRaMessage expectedMessage = new ASAPLoRaMessage("1000", "Test".getBytes());
                 System.out.print("Received Message: ");
                 System.out.println(asapMsg);
-                System.out.print("Expected Message: ");
-                System.out.println(expectedMessage);
-                assertEquals(expectedMessage.toString(), asapMsg.toString());
+                assertEquals("1000", asapMsg.getAddress());
+                assertEquals("Test", segmentData(asapMsg));
                 break;
             }
         }
@@ -117,7 +125,7 @@ public class LoRaBTInputOutputStreamTest {
                 System.out.print("Test Device Response: ");
                 System.out.println(deviceResponse);
                 ASAPLoRaMessage asapMsg = (ASAPLoRaMessage) AbstractASAPLoRaMessage.createASAPLoRaMessage(deviceResponse);
-                result += new String(asapMsg.getMessage());
+                result += segmentData(asapMsg);
             }
         }
         assertEquals(longString, result);
@@ -136,7 +144,7 @@ public class LoRaBTInputOutputStreamTest {
                 System.out.print("Test Device Response: ");
                 System.out.println(deviceResponse);
                 ASAPLoRaMessage asapMsg = (ASAPLoRaMessage) AbstractASAPLoRaMessage.createASAPLoRaMessage(deviceResponse);
-                result += new String(asapMsg.getMessage());
+                result += segmentData(asapMsg);
             }
         }
         assertEquals(veryLongString, result);
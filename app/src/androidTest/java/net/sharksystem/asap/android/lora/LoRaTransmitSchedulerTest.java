@@ -0,0 +1,151 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaException;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+import net.sharksystem.asap.android.lora.messages.DiscoverASAPLoRaMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class LoRaTransmitSchedulerTest {
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    private LoRaTransmitScheduler scheduler;
+
+    /**
+     * Records the frames in the order they reach the board, which may be several per write: a
+     * control message as "C", a frame of a {@link TestSource} as its name
+     */
+    private class RecordingOutputStream extends OutputStream {
+        private final StringBuilder line = new StringBuilder();
+
+        @Override
+        public void write(int b) {
+            if (b != '\n') {
+                this.line.append((char) b);
+                return;
+            }
+            String frame = this.line.toString();
+            this.line.setLength(0);
+            //MSSGE:SRC<name>:<base64 payload>
+            LoRaTransmitSchedulerTest.this.sent.add(frame.startsWith("MSSGE:") ? frame.substring(9, 10) : "C");
+        }
+    }
+
+    /**
+     * Writes a frame to the address SRC&lt;name&gt; for every frame it is asked to send
+     */
+    private class TestSource implements LoRaTransmitScheduler.Source {
+        private final String name;
+        private final int frameLength;
+        private int frames;
+
+        TestSource(String name, int frames, int frameLength) {
+            this.name = name;
+            this.frames = frames;
+            this.frameLength = frameLength;
+        }
+
+        @Override
+        public synchronized int nextFrameLength() {
+            return this.frames > 0 ? this.frameLength : -1;
+        }
+
+        @Override
+        public synchronized int transmitNext(LoRaBTInputOutputStream.LoRaBTOutputStream os)
+                throws IOException, ASAPLoRaException {
+            if (this.frames == 0)
+                return -1;
+            this.frames--;
+            os.write(new ASAPLoRaMessage(this.getAddress(), new byte[1]));
+            return this.frameLength;
+        }
+
+        @Override
+        public String getAddress() {
+            return "SRC" + this.name;
+        }
+    }
+
+    @Before
+    public void setup() {
+        this.scheduler = new LoRaTransmitScheduler(
+                new LoRaBTInputOutputStream.LoRaBTOutputStream(new RecordingOutputStream()));
+        //nothing is on the air here, see LoRaListenBeforeTalkTest for holding back
+        this.scheduler.setListenBeforeTalk(false);
+    }
+
+    @After
+    public void teardown() {
+        this.scheduler.interrupt();
+    }
+
+    private void awaitSent(int count) throws InterruptedException {
+        while (this.sent.size() < count)
+            Thread.sleep(10);
+    }
+
+    @Test
+    public void testTimeOnAir() {
+        //compare to the Semtech LoRa calculator
+        assertEquals(42, LoRaTransmitScheduler.timeOnAir(10, 7, 125000));
+        assertEquals(2466, LoRaTransmitScheduler.timeOnAir(51, 12, 125000));
+    }
+
+    @Test(timeout = 5000)
+    public void testRoundRobinAcrossPeers() throws InterruptedException {
+        this.scheduler.setDutyCycle(LoRaTransmitScheduler.NO_DUTY_CYCLE_LIMIT);
+        this.scheduler.ready(new TestSource("A", 4, 250), false);
+        this.scheduler.ready(new TestSource("B", 2, 250), false);
+        this.scheduler.start();
+
+        this.awaitSent(6);
+        assertEquals("[A, B, A, B, A, A]", this.sent.toString());
+        assertEquals(0, this.scheduler.getQueueDepth());
+    }
+
+    @Test(timeout = 5000)
+    public void testControlAndPriorityGoFirst() throws Exception {
+        this.scheduler.setDutyCycle(LoRaTransmitScheduler.NO_DUTY_CYCLE_LIMIT);
+        this.scheduler.ready(new TestSource("D", 2, 250), false);
+        this.scheduler.ready(new TestSource("P", 1, LoRaStreamSegment.ACK_LENGTH), true);
+        this.scheduler.sendControlMessage(new DiscoverASAPLoRaMessage());
+        assertEquals(3, this.scheduler.getQueueDepth());
+        this.scheduler.start();
+
+        this.awaitSent(4);
+        assertEquals("[C, P, D, D]", this.sent.toString());
+    }
+
+    @Test(timeout = 5000)
+    public void testDutyCycleLimitsAirtime() throws InterruptedException {
+        //0.1% of an hour are 3.6 seconds of airtime, about 9 frames of 250 bytes at SF7
+        this.scheduler.setDutyCycle(0.001);
+        long frameAirtime = LoRaTransmitScheduler.timeOnAir(
+                250 + LoRaTransmitScheduler.LORA_FRAME_OVERHEAD, 7, 125000);
+        this.scheduler.ready(new TestSource("A", 20, 250), false);
+        this.scheduler.start();
+
+        Thread.sleep(1000);
+        int framesSent = this.sent.size();
+        assertEquals(3600 / frameAirtime, framesSent);
+        assertTrue(this.scheduler.getAirtimeBudget() < frameAirtime);
+        assertEquals(1, this.scheduler.getQueueDepth());
+    }
+}
@@ -39,6 +39,11 @@ public class ASAPServiceMethods {
     ///////////// asap tcp encounter
     public static final int START_TCP_ENCOUNTER = 400;
     public static final int STOP_TCP_ENCOUNTER = 401;
+    /** mandatory: port */
+    public static final int START_TCP_ENCOUNTER_SERVER = 402;
+    public static final int STOP_TCP_ENCOUNTER_SERVER = 403;
+    /** mandatory: endpoints (host:port), deadline per host in ms */
+    public static final int START_TCP_ENCOUNTER_SWEEP = 404;
 
     // tags for putting extra data to messages or broadcasts
     public static final String URI_TAG = "ASAP_MESSAGE_URI";
@@ -52,5 +57,6 @@ public class ASAPServiceMethods {
     public static final String BOOLEAN_PARAMETER = "ASAP_BOOLEAN_VALUE";
     public static final String STRING_PARAMETER = "ASAP_STRING_VALUE";
     public static final String INT_PARAMETER = "ASAP_INT_VALUE";
+    public static final String STRING_ARRAY_PARAMETER = "ASAP_STRING_ARRAY_VALUE";
 
 }
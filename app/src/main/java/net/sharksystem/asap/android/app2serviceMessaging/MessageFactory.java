@@ -39,4 +39,27 @@ public class MessageFactory {
         msg.setData(bundle);
         return msg;
     }
+
+    // Accept encounters from other ASAPPeers on a server socket
+    public static Message createStartTCPEncounterServerMessage(int port) {
+        Message msg = Message.obtain(null, ASAPServiceMethods.START_TCP_ENCOUNTER_SERVER, 0, 0);
+        Bundle bundle = new Bundle();
+        bundle.putInt(ASAPServiceMethods.INT_PARAMETER, port);
+        msg.setData(bundle);
+        return msg;
+    }
+
+    public static Message createStopTCPEncounterServerMessage() {
+        return Message.obtain(null, ASAPServiceMethods.STOP_TCP_ENCOUNTER_SERVER, 0, 0);
+    }
+
+    // Encounter a list of ASAPPeers (host:port) a few at a time, with a deadline in ms for each
+    public static Message createTCPEncounterSweepMessage(String[] endpoints, int hostDeadline) {
+        Message msg = Message.obtain(null, ASAPServiceMethods.START_TCP_ENCOUNTER_SWEEP, 0, 0);
+        Bundle bundle = new Bundle();
+        bundle.putStringArray(ASAPServiceMethods.STRING_ARRAY_PARAMETER, endpoints);
+        bundle.putInt(ASAPServiceMethods.INT_PARAMETER, hostDeadline);
+        msg.setData(bundle);
+        return msg;
+    }
 }
@@ -31,6 +31,7 @@ import net.sharksystem.asap.android.service2AppMessaging.ASAPServiceNotification
 import net.sharksystem.asap.android.service2AppMessaging.ASAPServiceRequestListener;
 import net.sharksystem.asap.android.service2AppMessaging.ASAPServiceRequestNotifyBroadcastReceiver;
 import net.sharksystem.asap.android.service2AppMessaging.ASAPServiceRequestNotifyIntent;
+import net.sharksystem.asap.android.service2AppMessaging.TCPEncounterSweepNotificationListener;
 import net.sharksystem.asap.android.tcpEncounter.TCPEncounterManagerApplicationSide;
 import net.sharksystem.hub.HubConnectionManager;
 import net.sharksystem.hub.peerside.HubConnectorDescription;
@@ -42,7 +43,7 @@ import java.util.List;
 import java.util.Set;
 
 public class ASAPActivity extends AppCompatActivity implements
-        ASAPServiceRequestListener, ASAPServiceNotificationListener {
+        ASAPServiceRequestListener, ASAPServiceNotificationListener, TCPEncounterSweepNotificationListener {
 
     private static final int MY_REQUEST_2ENABLE_BT = 1;
     private static final int MY_REQUEST_SET_BT_DISCOVERABLE = 2;
@@ -693,6 +694,14 @@ public class ASAPActivity extends AppCompatActivity implements
         this.getTCPEncounterManager().notifyTCPEncounterSuccess();
     }
 
+    /**
+     * Notifies that a sweep of TCP encounters is done, with the outcome of each peer.
+     */
+    @Override
+    public void asapNotifyTCPEncounterSweepDone(String[] endpoints, boolean[] success, long[] durations) {
+        this.getTCPEncounterManager().notifyTCPEncounterSweepDone(endpoints, success, durations);
+    }
+
     /**
      * Application developers can use this method like life-cycle methods in Android
      * (onStart() etc.). Overwrite this method to get informed about changes in environment.
@@ -0,0 +1,364 @@
+package net.sharksystem.asap.android.lora;
+
+import android.util.Log;
+
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaException;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receiving half of the selective-repeat ARQ between us and one LoRa peer.
+ *
+ * DATA segments are delivered to the {@link LoRaBTInputOutputStream.LoRaASAPInputStream} of the
+ * peer in sequence. Segments arriving ahead of a gap are kept until the gap is filled. We only
+ * take segments that fit into the free space of the stream, so that delivering them does not
+ * block, and only acknowledge what the stream took; our peer retransmits what we dropped. Segments
+ * asking for an ack (see {@link LoRaStreamSegment#FLAG_ACK_REQUEST}) and duplicates are acked
+ * right away. Once our peer asked, we send no other acks, as it can only hear them while it keeps
+ * the channel free for them. Until then, ACKs are delayed a little to cover several segments, but
+ * sent right away for every {@link #ACK_EVERY_SEGMENTS}th segment and for out of order segments.
+ * Acks go out with priority through the {@link LoRaTransmitScheduler} and always carry our state
+ * at the time they are actually sent, so several acks waiting for their turn collapse into one.
+ *
+ * DATA segments our {@link LoRaFECDecoder} rebuilds from PARITY segments are handled as if they
+ * had been received.
+ *
+ * DEFLATED segments are inflated with our compression dictionary before they are delivered.
+ * Our acks carry its id, so that our peer knows it may compress, see {@link LoRaASAPDictionary}.
+ */
+class LoRaARQReceiver implements LoRaTransmitScheduler.Source {
+    private static final String CLASS_LOG_TAG = "ASAPLoRaARQReceiver";
+    static final long DELAYED_ACK_TIMEOUT = 1000; //1 second in ms
+    static final int ACK_EVERY_SEGMENTS = 4;
+    private static final int INFLATE_BUFFER_LENGTH = 1024;
+
+    private final String address;
+    private final LoRaBTInputOutputStream ioStream;
+
+    //segments received ahead of rcvBase; slot = seq % WINDOW_SIZE
+    private final byte[][] outOfOrderSegments = new byte[LoRaARQSender.WINDOW_SIZE][];
+    private final int[] outOfOrderLengths = new int[LoRaARQSender.WINDOW_SIZE]; //0: slot is empty
+    //segments onData() delivers outside our lock, only used by the thread calling onData()
+    private final byte[][] deliverable = new byte[LoRaARQSender.WINDOW_SIZE][];
+    private final int[] deliverableLengths = new int[LoRaARQSender.WINDOW_SIZE];
+    private int rcvBase = 0;
+    private long bytesDelivered = 0;
+    private int unacknowledgedSegments = 0;
+    private boolean acksRequested = false; //our peer asks for acks
+    private LoRaTimerWheel.Timeout delayedAck = null;
+    private boolean ackPending = false;
+    private final byte[] ackSegment = new byte[LoRaStreamSegment.ACK_DICTIONARY_LENGTH];
+    private final LoRaFECDecoder fecDecoder = new LoRaFECDecoder(); //only used by the thread calling onData()
+    private long segmentsRecovered = 0;
+    //created with the first DEFLATED segment, close() may end it while onData() inflates
+    private final Object inflaterLock = new Object();
+    private Inflater inflater = null;
+    private byte[] inflated = null;
+
+    LoRaARQReceiver(String address, LoRaBTInputOutputStream ioStream) {
+        this(address, ioStream, 0);
+    }
+
+    /**
+     * @param rcvBase next sequence number we expect, e.g. of a session read back from the
+     *                {@link LoRaOutboundJournal}
+     */
+    LoRaARQReceiver(String address, LoRaBTInputOutputStream ioStream, int rcvBase) {
+        this.address = address;
+        this.ioStream = ioStream;
+        this.rcvBase = rcvBase;
+    }
+
+    /**
+     * Handles a DATA or DEFLATED segment from our peer. Must only be called from the thread reading from the
+     * ASAPLoRaBTModule, as segments are delivered in the order of these calls.
+     *
+     * @param segment the segment, only valid during this call. Segments that can't be delivered
+     *                yet are copied into buffers of this receiver, which are reused.
+     * @param length
+     */
+    void onData(byte[] segment, int length) {
+        int deliverableCount = 0;
+        int deliveredBase;
+        this.fecDecoder.onData(segment, length);
+        LoRaBTInputOutputStream.LoRaASAPInputStream is = this.ioStream.getASAPInputStream(this.address);
+
+        synchronized (this) {
+            boolean ackRequested = LoRaStreamSegment.isAckRequested(segment);
+            this.acksRequested |= ackRequested;
+            int seq = LoRaStreamSegment.readShort(segment, 1);
+            int offset = LoRaStreamSegment.distance(this.rcvBase, seq);
+            if (offset < 0 || offset >= LoRaARQSender.WINDOW_SIZE) {
+                //a duplicate, our last ack got lost - or something far beyond our window
+                this.sendAck();
+                return;
+            }
+
+            int slot = seq % LoRaARQSender.WINDOW_SIZE;
+            if (this.outOfOrderLengths[slot] > 0) { //duplicate of a buffered segment
+                this.sendAck();
+                return;
+            }
+
+            //our window ends where the stream could not take the segments up to this one, if they are as long
+            int space = is.getFreeSpace();
+            if ((offset + 1) * spaceNeeded(segment, length) > space)
+                return; //dropped without an ack, our peer sends it again
+
+            if (offset > 0) { //gap, keep the segment and tell our peer what we have as soon as we may
+                if (this.outOfOrderSegments[slot] == null)
+                    this.outOfOrderSegments[slot] = new byte[ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH];
+                System.arraycopy(segment, 0, this.outOfOrderSegments[slot], 0, length);
+                this.outOfOrderLengths[slot] = length;
+                if (ackRequested || !this.acksRequested)
+                    this.sendAck();
+                return;
+            }
+
+            //the segment itself goes first, followed by everything that is in sequence now and fits
+            space -= spaceNeeded(segment, length);
+            this.deliverable[deliverableCount] = segment;
+            this.deliverableLengths[deliverableCount++] = length;
+            deliveredBase = LoRaStreamSegment.next(this.rcvBase, 1);
+            while (this.outOfOrderLengths[deliveredBase % LoRaARQSender.WINDOW_SIZE] > 0) {
+                slot = deliveredBase % LoRaARQSender.WINDOW_SIZE;
+                int needed = spaceNeeded(this.outOfOrderSegments[slot], this.outOfOrderLengths[slot]);
+                if (needed > space)
+                    break;
+                space -= needed;
+                this.deliverable[deliverableCount] = this.outOfOrderSegments[slot];
+                this.deliverableLengths[deliverableCount++] = this.outOfOrderLengths[slot];
+                deliveredBase = LoRaStreamSegment.next(deliveredBase, 1);
+            }
+        }
+
+        //appending fits into the stream, except for segments inflating to more than we expect
+        int delivered = 0;
+        while (delivered < deliverableCount && this.deliver(is, this.deliverable[delivered], this.deliverableLengths[delivered]))
+            delivered++;
+
+        //we only acknowledge what the stream took
+        synchronized (this) {
+            for (int i = 0; i < delivered; i++) {
+                this.bytesDelivered += this.deliverableLengths[i] - LoRaStreamSegment.DATA_HEADER_LENGTH;
+                if (i > 0)
+                    this.outOfOrderLengths[LoRaStreamSegment.next(this.rcvBase, i) % LoRaARQSender.WINDOW_SIZE] = 0;
+                this.deliverable[i] = null;
+            }
+            for (int i = delivered; i < deliverableCount; i++)
+                this.deliverable[i] = null;
+            if (delivered == 0)
+                return;
+            this.rcvBase = LoRaStreamSegment.next(this.rcvBase, delivered);
+
+            LoRaOutboundJournal journal = this.ioStream.getJournal();
+            if (journal != null)
+                journal.onReceived(this.address, this.rcvBase);
+
+            this.unacknowledgedSegments += delivered;
+            //delivered > 1: we just closed a gap
+            boolean ackNow = this.unacknowledgedSegments >= ACK_EVERY_SEGMENTS || delivered > 1;
+            if (LoRaStreamSegment.isAckRequested(segment) || (!this.acksRequested && ackNow))
+                this.sendAck();
+            else if (!this.acksRequested)
+                this.scheduleDelayedAck();
+        }
+    }
+
+    /**
+     * @return bytes a DATA or DEFLATED segment takes in the stream of our peer, for DEFLATED ones
+     *         what we expect it to inflate to at most
+     */
+    private static int spaceNeeded(byte[] segment, int length) {
+        return LoRaStreamSegment.typeOf(segment[0]) == LoRaStreamSegment.TYPE_DEFLATED ? INFLATE_BUFFER_LENGTH
+                : length - LoRaStreamSegment.DATA_HEADER_LENGTH;
+    }
+
+    /**
+     * Appends the ASAP bytes of a segment to is, may block while is is full.
+     *
+     * @return false if is was closed
+     */
+    private boolean deliver(LoRaBTInputOutputStream.LoRaASAPInputStream is, byte[] segment, int length) {
+        if (LoRaStreamSegment.typeOf(segment[0]) == LoRaStreamSegment.TYPE_DEFLATED)
+            return this.inflate(is, segment, length);
+        return is.appendData(segment, LoRaStreamSegment.DATA_HEADER_LENGTH,
+                length - LoRaStreamSegment.DATA_HEADER_LENGTH);
+    }
+
+    /**
+     * Appends the ASAP bytes of a DEFLATED segment to is, closing the stream if they can't be
+     * inflated, as everything after them would be lost as well.
+     *
+     * @return false if is was closed
+     */
+    private boolean inflate(LoRaBTInputOutputStream.LoRaASAPInputStream is, byte[] segment, int length) {
+        try {
+            synchronized (this.inflaterLock) {
+                if (this.inflater == null) {
+                    LoRaASAPDictionary dictionary = this.ioStream.getCompressionDictionary();
+                    if (dictionary == null)
+                        throw new DataFormatException("compression is off");
+                    this.inflater = new Inflater(true);
+                    this.inflater.setDictionary(dictionary.getBytes());
+                    this.inflated = new byte[INFLATE_BUFFER_LENGTH];
+                }
+                this.inflater.setInput(segment, LoRaStreamSegment.DATA_HEADER_LENGTH,
+                        length - LoRaStreamSegment.DATA_HEADER_LENGTH);
+            }
+
+            boolean more;
+            do {
+                int n;
+                synchronized (this.inflaterLock) {
+                    if (this.inflater == null)
+                        return false; //closed
+                    n = this.inflater.inflate(this.inflated);
+                    more = n > 0 && (n == this.inflated.length || !this.inflater.needsInput());
+                }
+                //appending may block until the ASAPPeer reads
+                if (!is.appendData(this.inflated, 0, n))
+                    return false;
+            } while (more);
+            return true;
+        } catch (DataFormatException e) {
+            Log.e(CLASS_LOG_TAG, "Can't inflate segment from " + this.address + ": " + e.getMessage());
+            this.ioStream.closeASAPStream(this.address);
+            return false;
+        }
+    }
+
+    /**
+     * Handles a PARITY segment from our peer, same thread as {@link #onData(byte[], int)}.
+     *
+     * @param segment only valid during this call
+     * @param length
+     */
+    void onParity(byte[] segment, int length) {
+        int recovered = this.fecDecoder.onParity(segment, length);
+        for (int i = 0; i < recovered; i++)
+            this.onData(this.fecDecoder.getRecovered(i), this.fecDecoder.getRecoveredLength(i));
+        if (recovered > 0) {
+            synchronized (this) {
+                this.segmentsRecovered += recovered;
+            }
+        }
+    }
+
+    private void scheduleDelayedAck() {
+        if (this.delayedAck != null)
+            return;
+        LoRaTimerWheel timerWheel = this.ioStream.getTimerWheel();
+        if (timerWheel != null) {
+            this.delayedAck = timerWheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (LoRaARQReceiver.this) {
+                        LoRaARQReceiver.this.delayedAck = null;
+                        LoRaARQReceiver.this.sendAck();
+                    }
+                }
+            }, (long) (DELAYED_ACK_TIMEOUT * this.ioStream.getTimerScale()));
+        }
+        if (this.delayedAck == null)
+            this.sendAck(); //no timers, or we are shutting down
+    }
+
+    /**
+     * Asks the {@link LoRaTransmitScheduler} for a turn to send our ack.
+     * Must be called holding our lock.
+     */
+    private void sendAck() {
+        if (this.delayedAck != null) {
+            this.delayedAck.cancel();
+            this.delayedAck = null;
+        }
+        this.unacknowledgedSegments = 0;
+        if (!this.ackPending) {
+            this.ackPending = true;
+            this.ioStream.getTransmitScheduler().ready(this, true);
+        }
+    }
+
+    private int ackLength() {
+        return this.ioStream.getCompressionDictionary() == null ? LoRaStreamSegment.ACK_LENGTH
+                : LoRaStreamSegment.ACK_DICTIONARY_LENGTH;
+    }
+
+    @Override
+    public synchronized int nextFrameLength() {
+        return this.ackPending ? this.ackLength() : -1;
+    }
+
+    /**
+     * Sends our cumulative ack and a bitmap of the segments we keep beyond it, followed by the
+     * id of our compression dictionary, if we have one.
+     */
+    @Override
+    public synchronized int transmitNext(LoRaBTInputOutputStream.LoRaBTOutputStream os) throws IOException, ASAPLoRaException {
+        if (!this.ackPending)
+            return -1;
+        this.ackPending = false;
+
+        int selectiveAcks = 0;
+        for (int i = 0; i < LoRaARQSender.WINDOW_SIZE - 1; i++) {
+            if (this.outOfOrderLengths[LoRaStreamSegment.next(this.rcvBase, i + 1) % LoRaARQSender.WINDOW_SIZE] > 0)
+                selectiveAcks |= 1 << i;
+        }
+        LoRaStreamSegment.writeAck(this.ackSegment, this.rcvBase, selectiveAcks);
+        LoRaASAPDictionary dictionary = this.ioStream.getCompressionDictionary();
+        int length = LoRaStreamSegment.ACK_LENGTH;
+        if (dictionary != null) {
+            LoRaStreamSegment.writeShort(this.ackSegment, length, dictionary.getId());
+            length = LoRaStreamSegment.ACK_DICTIONARY_LENGTH;
+        }
+        os.write(new ASAPLoRaMessage(this.address, this.ackSegment, length, null));
+        return length;
+    }
+
+    @Override
+    public String getAddress() {
+        return this.address;
+    }
+
+    synchronized int getRcvBase() {
+        return this.rcvBase;
+    }
+
+    /**
+     * @return data bytes received in sequence, without segment headers
+     */
+    synchronized long getBytesDelivered() {
+        return this.bytesDelivered;
+    }
+
+    /**
+     * @return DATA segments rebuilt from PARITY segments
+     */
+    synchronized long getSegmentsRecovered() {
+        return this.segmentsRecovered;
+    }
+
+    /**
+     * Drops buffered segments, a pending delayed ack and our inflater.
+     */
+    synchronized void close() {
+        synchronized (this.inflaterLock) {
+            if (this.inflater != null)
+                this.inflater.end();
+            this.inflater = null;
+        }
+        if (this.delayedAck != null) {
+            this.delayedAck.cancel();
+            this.delayedAck = null;
+        }
+        for (int i = 0; i < this.outOfOrderSegments.length; i++) {
+            this.outOfOrderSegments[i] = null;
+            this.outOfOrderLengths[i] = 0;
+        }
+        this.ackPending = false;
+    }
+}
@@ -0,0 +1,513 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaException;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessageBufferPool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+
+/**
+ * Sending half of the selective-repeat ARQ between us and one LoRa peer.
+ *
+ * Segments handed over by the {@link LoRaBTInputOutputStream.LoRaASAPOutputStream} are queued,
+ * numbered and sent while there is room in the window. They are kept until the peer acknowledges
+ * them, cumulatively or selectively. Unacknowledged segments are retransmitted after a
+ * retransmission timeout derived from the measured round trip time (RFC 6298), or earlier, if
+ * the peer acknowledged {@link #FAST_RETRANSMIT_THRESHOLD} later segments in the meantime.
+ *
+ * Segments are not written right away, but marked pending and sent when the
+ * {@link LoRaTransmitScheduler} gives our peer its turn. Retransmissions go first.
+ *
+ * We ask our peer for an ack with every {@link #ACK_REQUEST_EVERY_SEGMENTS}th segment, every
+ * retransmission and the last segment we have, and the scheduler keeps the channel free until the
+ * ack is in. The board can't receive while it sends, acks coming at any other time would be lost.
+ * With nothing new to send, the first selective ack missing a segment retransmits it (early
+ * retransmit, RFC 5827), as no more acks may come to report it again.
+ *
+ * A suspended sender keeps its segments, but sends nothing until it is resumed.
+ *
+ * With a {@link LoRaOutboundJournal}, segments are recorded when we take them over and dropped
+ * from it once they are acknowledged, so that a session can be restored after a restart.
+ *
+ * With forward error correction on (see {@link LoRaBTInputOutputStream#setForwardErrorCorrection(int, int)}),
+ * segments sent for the first time are protected in groups: once a group is complete, or there is
+ * nothing more to send, its PARITY segments go out ahead of new data, so the peer can rebuild lost
+ * segments without waiting for a retransmission. PARITY segments are never retransmitted.
+ */
+class LoRaARQSender implements LoRaTransmitScheduler.Source {
+    private static final String CLASS_LOG_TAG = "ASAPLoRaARQSender";
+    static final int WINDOW_SIZE = 32; //must not exceed the 32 bit selective ack bitmap
+    static final int MAX_QUEUED_SEGMENTS = 64;
+    static final long INITIAL_RTO = 10 * 1000; //10 seconds in ms
+    static final long MIN_RTO = 2 * 1000; //2 seconds in ms
+    static final long MAX_RTO = 2 * 60 * 1000; //2 minutes in ms
+    static final int FAST_RETRANSMIT_THRESHOLD = 3;
+    static final int ACK_REQUEST_EVERY_SEGMENTS = 4;
+
+    private final String address;
+    private final LoRaBTInputOutputStream ioStream;
+    private final ASAPLoRaMessageBufferPool bufferPool;
+
+    //segments waiting for room in the window
+    private final byte[][] queuedSegments = new byte[MAX_QUEUED_SEGMENTS][];
+    private final int[] queuedLengths = new int[MAX_QUEUED_SEGMENTS];
+    private int queueHead = 0;
+    private int queueSize = 0;
+
+    //segments sent, but not acknowledged yet; slot = seq % WINDOW_SIZE
+    private final Slot[] window = new Slot[WINDOW_SIZE];
+    private int sendBase = 0;
+    private int nextSeq = 0;
+
+    private long smoothedRtt = -1;
+    private long rttVariation = 0;
+    private long retransmissionTimeout;
+    private LoRaTimerWheel.Timeout retransmissionTimer = null;
+    private boolean closed = false;
+    private boolean suspended = false;
+
+    private LoRaFECEncoder fecEncoder = null;
+    private int nextParity = 0; //PARITY segment of the last group to send next
+    private int parityEnd; //sequence number after the last group
+
+    private long retransmissions = 0;
+    //DATA segments since our last ack request, the first one asks, so that our peer waits for us
+    private int sentSinceAck = ACK_REQUEST_EVERY_SEGMENTS - 1;
+    private long bytesAcknowledged = 0;
+
+    private static class Slot {
+        byte[] segment = null;
+        int length;
+        long sentAt;
+        int transmissions;
+        int missingReports;
+        boolean pending; //waiting for the transmit scheduler
+    }
+
+    LoRaARQSender(String address, LoRaBTInputOutputStream ioStream, ASAPLoRaMessageBufferPool bufferPool) {
+        this.address = address;
+        this.ioStream = ioStream;
+        this.bufferPool = bufferPool;
+        this.retransmissionTimeout = this.scaled(INITIAL_RTO);
+        for (int i = 0; i < WINDOW_SIZE; i++)
+            this.window[i] = new Slot();
+    }
+
+    /**
+     * Takes over segment, a pooled buffer whose first {@link LoRaStreamSegment#DATA_HEADER_LENGTH}
+     * bytes are reserved for the header, its type already set, and sends it as soon as the window allows.
+     *
+     * @param segment
+     * @param length   header and data
+     * @param mayBlock wait for room in the queue if it is full. Threads the ARQ itself depends
+     *                 on must not block, for them segment is not taken over if the queue is full.
+     * @return false if segment was not taken over
+     * @throws IOException
+     */
+    synchronized boolean send(byte[] segment, int length, boolean mayBlock) throws IOException {
+        while (this.queueSize >= MAX_QUEUED_SEGMENTS && !this.closed) {
+            if (!mayBlock)
+                return false;
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for the LoRa send queue");
+            }
+        }
+        if (this.closed)
+            throw new IOException("LoRa stream to " + this.address + " was closed");
+
+        LoRaOutboundJournal journal = this.ioStream.getJournal();
+        if (journal != null)
+            journal.onSegment(this.address, LoRaStreamSegment.next(this.nextSeq, this.queueSize), segment, length);
+        this.enqueue(segment, length);
+        return true;
+    }
+
+    private void enqueue(byte[] segment, int length) {
+        int tail = (this.queueHead + this.queueSize) % MAX_QUEUED_SEGMENTS;
+        this.queuedSegments[tail] = segment;
+        this.queuedLengths[tail] = length;
+        this.queueSize++;
+
+        this.pump();
+    }
+
+    /**
+     * Continues a session read back from the {@link LoRaOutboundJournal} after a restart: queues
+     * copies of segments to be sent from sendBase on, suspended until our peer resumes the session.
+     *
+     * @param sendBase
+     * @param segments not acknowledged, in sequence
+     */
+    synchronized void restore(int sendBase, List<byte[]> segments) {
+        this.sendBase = sendBase;
+        this.nextSeq = sendBase;
+        this.suspended = true;
+        for (byte[] segment : segments) {
+            byte[] buffer = this.bufferPool.acquire();
+            System.arraycopy(segment, 0, buffer, 0, segment.length);
+            this.enqueue(buffer, segment.length);
+        }
+    }
+
+    /**
+     * Moves queued segments into the window, as long as there is room, and asks the
+     * {@link LoRaTransmitScheduler} for a turn to send them.
+     */
+    private void pump() {
+        boolean added = false;
+        while (this.queueSize > 0 && this.inFlight() < WINDOW_SIZE) {
+            Slot slot = this.window[this.nextSeq % WINDOW_SIZE];
+            slot.segment = this.queuedSegments[this.queueHead];
+            slot.length = this.queuedLengths[this.queueHead];
+            slot.transmissions = 0;
+            slot.missingReports = 0;
+            this.queuedSegments[this.queueHead] = null;
+            this.queueHead = (this.queueHead + 1) % MAX_QUEUED_SEGMENTS;
+            this.queueSize--;
+
+            LoRaStreamSegment.writeShort(slot.segment, 1, this.nextSeq);
+            this.nextSeq = LoRaStreamSegment.next(this.nextSeq, 1);
+            slot.pending = true;
+            added = true;
+        }
+        this.notifyAll(); //there may be room in the queue now
+        if (added)
+            this.ioStream.getTransmitScheduler().ready(this, false);
+    }
+
+    private int inFlight() {
+        return LoRaStreamSegment.distance(this.sendBase, this.nextSeq);
+    }
+
+    private void retransmit(Slot slot) {
+        if (slot.pending)
+            return;
+        slot.pending = true;
+        this.retransmissions++;
+        this.ioStream.getTransmitScheduler().ready(this, false);
+    }
+
+    /**
+     * @return the first segment in the window waiting to be sent, retransmissions come first
+     */
+    private Slot nextPendingSlot() {
+        for (int i = 0; i < this.inFlight(); i++) {
+            Slot slot = this.window[LoRaStreamSegment.next(this.sendBase, i) % WINDOW_SIZE];
+            if (slot.segment != null && slot.pending)
+                return slot;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if there is a PARITY segment to send, for a group that was not fully acknowledged yet
+     */
+    private boolean hasPendingParity() {
+        if (this.fecEncoder == null || this.fecEncoder.isOpen()
+                || this.nextParity >= this.fecEncoder.getParityFrames())
+            return false;
+        if (LoRaStreamSegment.distance(this.sendBase, this.parityEnd) <= 0)
+            this.nextParity = this.fecEncoder.getParityFrames(); //nothing left to protect
+        return this.nextParity < this.fecEncoder.getParityFrames();
+    }
+
+    @Override
+    public synchronized int nextFrameLength() {
+        if (this.suspended)
+            return -1;
+        if (this.hasPendingParity())
+            return this.fecEncoder.getParityLength();
+        Slot slot = this.nextPendingSlot();
+        return slot == null ? -1 : slot.length;
+    }
+
+    @Override
+    public synchronized int transmitNext(LoRaBTInputOutputStream.LoRaBTOutputStream os) throws IOException, ASAPLoRaException {
+        if (this.suspended)
+            return -1;
+        if (this.hasPendingParity()) {
+            int length = this.fecEncoder.getParityLength();
+            os.write(new ASAPLoRaMessage(this.address, this.fecEncoder.getParity(this.nextParity++), length, null));
+            return length;
+        }
+
+        Slot slot = this.nextPendingSlot();
+        if (slot == null)
+            return -1;
+
+        slot.pending = false;
+        slot.sentAt = System.currentTimeMillis();
+        boolean firstTransmission = slot.transmissions++ == 0;
+        //we ask for acks, so that we know when to keep quiet to hear them
+        boolean ackRequest = ++this.sentSinceAck >= ACK_REQUEST_EVERY_SEGMENTS || !firstTransmission
+                || !this.hasNewSegments();
+        LoRaStreamSegment.setAckRequest(slot.segment, ackRequest);
+        if (ackRequest) {
+            this.sentSinceAck = 0;
+            this.ioStream.getTransmitScheduler().expectReply(LoRaStreamSegment.ACK_DICTIONARY_LENGTH);
+        }
+        if (firstTransmission)
+            this.encode(slot); //with the flag, so that a rebuilt segment asks for its ack as well
+        os.write(new ASAPLoRaMessage(this.address, slot.segment, slot.length, null));
+        this.armRetransmissionTimer();
+        return slot.length;
+    }
+
+    @Override
+    public String getAddress() {
+        return this.address;
+    }
+
+    /**
+     * Adds a segment sent for the first time to the current group, if forward error correction
+     * is on. First transmissions happen in sequence, so groups have no gaps.
+     */
+    private void encode(Slot slot) {
+        int parityFrames = this.ioStream.getFECParityFrames();
+        boolean fits = slot.length <= this.ioStream.getMaxPayloadLength() - LoRaFEC.SEGMENT_OVERHEAD;
+        if (this.fecEncoder == null || !this.fecEncoder.isOpen()) {
+            if (parityFrames == 0 || !fits)
+                return;
+            if (this.fecEncoder == null)
+                this.fecEncoder = new LoRaFECEncoder();
+            this.fecEncoder.start(LoRaStreamSegment.readShort(slot.segment, 1),
+                    this.ioStream.getFECGroupSize(), parityFrames);
+        } else if (!fits) {
+            this.finishGroup(); //FEC was switched on with the segment already cut
+            return;
+        }
+
+        this.fecEncoder.add(slot.segment, slot.length);
+        if (this.fecEncoder.isFull() || !this.hasNewSegments())
+            this.finishGroup();
+    }
+
+    private void finishGroup() {
+        this.fecEncoder.finish();
+        this.nextParity = 0;
+        this.parityEnd = LoRaStreamSegment.next(this.fecEncoder.getGroupBase(), this.fecEncoder.getCount());
+    }
+
+    /**
+     * @return true if there are segments that were never sent
+     */
+    private boolean hasNewSegments() {
+        if (this.queueSize > 0)
+            return true;
+        for (int i = 0; i < this.inFlight(); i++) {
+            Slot slot = this.window[LoRaStreamSegment.next(this.sendBase, i) % WINDOW_SIZE];
+            if (slot.segment != null && slot.transmissions == 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Handles an ACK segment from our peer.
+     *
+     * @param cumulativeAck next sequence number the peer expects
+     * @param selectiveAcks bitmap of segments the peer received beyond cumulativeAck
+     */
+    synchronized void onAck(int cumulativeAck, int selectiveAcks) {
+        int acked = LoRaStreamSegment.distance(this.sendBase, cumulativeAck);
+        if (acked < 0 || acked > this.inFlight())
+            return; //old or bogus ack
+        int oldSendBase = this.sendBase;
+        this.sentSinceAck = 0;
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < acked; i++)
+            this.acknowledge(this.window[LoRaStreamSegment.next(this.sendBase, i) % WINDOW_SIZE], now);
+        this.sendBase = cumulativeAck;
+
+        //selective acks, and retransmit early what the peer keeps reporting as missing
+        int highestSelectiveAck = -1;
+        for (int i = 0; i < 32 && i + 1 < this.inFlight(); i++) {
+            if ((selectiveAcks & (1 << i)) != 0) {
+                this.acknowledge(this.window[LoRaStreamSegment.next(this.sendBase, i + 1) % WINDOW_SIZE], now);
+                highestSelectiveAck = i + 1;
+            }
+        }
+        boolean earlyRetransmit = !this.hasNewSegments();
+        for (int i = 0; i < highestSelectiveAck; i++) {
+            Slot slot = this.window[LoRaStreamSegment.next(this.sendBase, i) % WINDOW_SIZE];
+            if (slot.segment == null)
+                continue;
+            slot.missingReports++;
+            if (slot.missingReports == FAST_RETRANSMIT_THRESHOLD || (earlyRetransmit && slot.missingReports == 1))
+                this.retransmit(slot);
+        }
+
+        //slide the window over selectively acked segments at its start
+        while (this.inFlight() > 0 && this.window[this.sendBase % WINDOW_SIZE].segment == null)
+            this.sendBase = LoRaStreamSegment.next(this.sendBase, 1);
+        LoRaOutboundJournal journal = this.ioStream.getJournal();
+        if (journal != null && this.sendBase != oldSendBase)
+            journal.onAcknowledged(this.address, this.sendBase);
+
+        this.disarmRetransmissionTimer();
+        this.pump();
+        this.armRetransmissionTimer();
+    }
+
+    private void acknowledge(Slot slot, long now) {
+        if (slot.segment == null)
+            return;
+        if (slot.transmissions == 1 && !slot.pending) //Karn: only sample segments that were sent once
+            this.sampleRtt(now - slot.sentAt);
+        this.bytesAcknowledged += slot.length - LoRaStreamSegment.DATA_HEADER_LENGTH;
+        this.bufferPool.release(slot.segment);
+        slot.segment = null;
+    }
+
+    /**
+     * RTT estimation and retransmission timeout as in RFC 6298
+     */
+    private void sampleRtt(long rtt) {
+        if (this.smoothedRtt < 0) {
+            this.smoothedRtt = rtt;
+            this.rttVariation = rtt / 2;
+        } else {
+            this.rttVariation = (3 * this.rttVariation + Math.abs(this.smoothedRtt - rtt)) / 4;
+            this.smoothedRtt = (7 * this.smoothedRtt + rtt) / 8;
+        }
+        this.retransmissionTimeout = Math.min(this.scaled(MAX_RTO),
+                Math.max(this.scaled(MIN_RTO), this.smoothedRtt + 4 * this.rttVariation));
+    }
+
+    private long scaled(long timeout) {
+        return (long) (timeout * this.ioStream.getTimerScale());
+    }
+
+    private void armRetransmissionTimer() {
+        if (this.retransmissionTimer != null || this.inFlight() == 0 || this.closed || this.suspended)
+            return;
+        LoRaTimerWheel timerWheel = this.ioStream.getTimerWheel();
+        if (timerWheel == null)
+            return;
+
+        //null if we are shutting down
+        this.retransmissionTimer = timerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                LoRaARQSender.this.onRetransmissionTimeout();
+            }
+        }, this.retransmissionTimeout);
+    }
+
+    private void disarmRetransmissionTimer() {
+        if (this.retransmissionTimer != null) {
+            this.retransmissionTimer.cancel();
+            this.retransmissionTimer = null;
+        }
+    }
+
+    /**
+     * Retransmits the earliest segment in the window that was sent, but not acknowledged within
+     * the timeout and backs off the timeout (RFC 6298, 5.4). Segments still waiting for their
+     * turn don't count. The ack for it reports what else is missing.
+     *
+     * Retransmitting all of them back to back could repeat forever on a half-duplex link: the
+     * peer acks the first one right away, on top of the second one, so both get lost.
+     */
+    synchronized void onRetransmissionTimeout() {
+        this.retransmissionTimer = null;
+        if (this.suspended)
+            return;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < this.inFlight(); i++) {
+            Slot slot = this.window[LoRaStreamSegment.next(this.sendBase, i) % WINDOW_SIZE];
+            if (slot.segment != null && !slot.pending && slot.transmissions > 0
+                    && now - slot.sentAt >= this.retransmissionTimeout) {
+                this.retransmit(slot);
+                this.retransmissionTimeout = Math.min(this.scaled(MAX_RTO), this.retransmissionTimeout * 2);
+                break;
+            }
+        }
+        this.armRetransmissionTimer();
+    }
+
+    /**
+     * Stops sending and retransmitting, e.g. while our peer is out of reach. Writers block once
+     * the queue is full.
+     */
+    synchronized void suspend() {
+        this.suspended = true;
+        this.disarmRetransmissionTimer();
+    }
+
+    /**
+     * Continues after {@link #suspend()} or a lost contact: takes peerRcvBase as cumulative ack
+     * and retransmits everything else that was sent right away, with a fresh timeout.
+     *
+     * @param peerRcvBase next sequence number our peer expects, must be in our window
+     */
+    synchronized void resume(int peerRcvBase) {
+        this.suspended = false;
+        this.onAck(peerRcvBase, 0);
+        this.retransmissionTimeout = Math.min(this.scaled(MAX_RTO), Math.max(this.scaled(MIN_RTO),
+                this.smoothedRtt < 0 ? this.scaled(INITIAL_RTO) : this.smoothedRtt + 4 * this.rttVariation));
+        for (int i = 0; i < this.inFlight(); i++) {
+            Slot slot = this.window[LoRaStreamSegment.next(this.sendBase, i) % WINDOW_SIZE];
+            if (slot.segment != null && slot.transmissions > 0)
+                this.retransmit(slot);
+        }
+        if (this.nextPendingSlot() != null)
+            this.ioStream.getTransmitScheduler().ready(this, false);
+    }
+
+    synchronized boolean isSuspended() {
+        return this.suspended;
+    }
+
+    /**
+     * Drops all queued and unacknowledged segments and wakes up blocked writers.
+     */
+    synchronized void close() {
+        this.closed = true;
+        this.disarmRetransmissionTimer();
+        for (Slot slot : this.window) {
+            this.bufferPool.release(slot.segment);
+            slot.segment = null;
+            slot.pending = false;
+        }
+        while (this.queueSize > 0) {
+            this.bufferPool.release(this.queuedSegments[this.queueHead]);
+            this.queuedSegments[this.queueHead] = null;
+            this.queueHead = (this.queueHead + 1) % MAX_QUEUED_SEGMENTS;
+            this.queueSize--;
+        }
+        this.notifyAll();
+    }
+
+    synchronized int getQueueDepth() {
+        return this.queueSize + this.inFlight();
+    }
+
+    synchronized int getSendBase() {
+        return this.sendBase;
+    }
+
+    synchronized int getNextSeq() {
+        return this.nextSeq;
+    }
+
+    /**
+     * @return data bytes our peer acknowledged, without segment headers
+     */
+    synchronized long getBytesAcknowledged() {
+        return this.bytesAcknowledged;
+    }
+
+    synchronized long getRetransmissionTimeout() {
+        return this.retransmissionTimeout;
+    }
+
+    synchronized long getRetransmissions() {
+        return this.retransmissions;
+    }
+}
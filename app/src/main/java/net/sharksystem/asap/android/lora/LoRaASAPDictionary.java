@@ -0,0 +1,89 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.ASAPHop;
+import net.sharksystem.asap.protocol.ASAP_1_0;
+import net.sharksystem.asap.protocol.ASAP_Modem_Impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Preset dictionary for the DEFLATE compression of our LoRa streams, see
+ * {@link LoRaBTInputOutputStream#setCompressionDictionary(LoRaASAPDictionary)}.
+ *
+ * ASAP sessions start with PDU headers, format strings and URIs every peer sends alike, which
+ * DEFLATE can't find repetitions of in the first few hundred bytes of a stream. With these
+ * already in its window, even the first segments of a session compress.
+ *
+ * Peers only compress for each other if they built the same dictionary, they tell by its
+ * 16 bit id, see {@link LoRaStreamSegment}.
+ */
+public final class LoRaASAPDictionary {
+    static final int NO_DICTIONARY = 0;
+    private static final byte[] SAMPLE_DATA = new byte[1];
+
+    private final byte[] dictionary;
+    private final int id;
+
+    /**
+     * @param dictionary at most 32 KiB are used, the bytes at the end are the cheapest to refer to
+     */
+    public LoRaASAPDictionary(byte[] dictionary) {
+        this.dictionary = dictionary;
+        CRC32 crc = new CRC32();
+        crc.update(dictionary, 0, dictionary.length);
+        int id = (int) (crc.getValue() & 0xFFFF);
+        this.id = id == NO_DICTIONARY ? 1 : id;
+    }
+
+    /**
+     * Renders an interest and an assimilate PDU for each of formats and the formats every ASAP
+     * peer uses, the way the ASAP modem writes them. Formats are sorted, so that peers supporting
+     * the same formats build the same dictionary.
+     *
+     * @param formats supported by our ASAPService
+     * @return the dictionary
+     * @throws IOException if the modem fails to write a PDU
+     */
+    public static LoRaASAPDictionary build(Collection<CharSequence> formats) throws IOException {
+        TreeSet<String> sorted = new TreeSet<>();
+        for (CharSequence format : formats)
+            sorted.add(format.toString());
+        sorted.remove(ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
+        sorted.remove(ASAP_1_0.ANY_FORMAT);
+        //in every session, so last
+        ArrayList<String> ordered = new ArrayList<>(sorted);
+        ordered.add(ASAP_1_0.ANY_FORMAT);
+        ordered.add(ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
+
+        ASAP_1_0 modem = new ASAP_Modem_Impl();
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        try {
+            for (String format : ordered) {
+                modem.interest(null, null, format, null, ASAP_1_0.ERA_NOT_DEFINED,
+                        ASAP_1_0.ERA_NOT_DEFINED, dictionary, false);
+                modem.assimilate(null, null, format, "", 0, new ArrayList<Long>(),
+                        new ArrayList<ASAPHop>(), SAMPLE_DATA, dictionary, false);
+            }
+        } catch (ASAPException e) {
+            throw new IOException("Can't render ASAP PDUs for the LoRa dictionary", e);
+        }
+        return new LoRaASAPDictionary(dictionary.toByteArray());
+    }
+
+    byte[] getBytes() {
+        return this.dictionary;
+    }
+
+    /**
+     * @return never {@link #NO_DICTIONARY}
+     */
+    int getId() {
+        return this.id;
+    }
+}
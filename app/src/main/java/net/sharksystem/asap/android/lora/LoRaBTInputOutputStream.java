@@ -4,22 +4,34 @@ import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
 import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaException;
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaMessageException;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaBinaryFrame;
 import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessageBufferPool;
 import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessageInterface;
 import net.sharksystem.asap.android.lora.messages.AbstractASAPLoRaMessage;
-import net.sharksystem.asap.utils.DateTimeHelper;
+import net.sharksystem.asap.android.lora.messages.DeviceDiscoveredASAPLoRaMessage;
+import net.sharksystem.asap.android.lora.messages.FrameModeASAPLoRaMessage;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
 
 /**
  * This class manages the Stream-Operations in communication with the ASAPLoRaBTModule and the
@@ -29,11 +41,38 @@ import java.util.LinkedList;
 public class LoRaBTInputOutputStream {
     private static final String CLASS_LOG_TAG = "ASAPLoRaBTIOStream";
     private static final long READ_WAIT_TIMEOUT = 10 * 1000; //10 seconds in ms
+    private static final long CLOSE_TIMEOUT = 10 * 1000; //10 seconds in ms
+    static final long RESUME_RETRY_INTERVAL = 30 * 1000; //30 seconds in ms
     private final BluetoothSocket btSocket;
     private final LoRaBTInputStream is;
     private final LoRaBTOutputStream os;
-    private final HashMap<String, LoRaASAPInputStream> loRaASAPInputStreams = new HashMap<>();
-    private final HashMap<String, LoRaASAPOutputStream> loRaASAPOutputStreams = new HashMap<>();
+    private final LoRaTransmitScheduler transmitScheduler;
+    //per peer streams, used by the listen thread, the manager and ASAP session threads.
+    //ConcurrentMap, as ConcurrentHashMap.keySet() has a different signature below API level 24
+    private final ConcurrentMap<String, LoRaASAPInputStream> loRaASAPInputStreams = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LoRaASAPOutputStream> loRaASAPOutputStreams = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LoRaARQReceiver> loRaARQReceivers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LoRaSessionCheckpoint> suspendedSessions = new ConcurrentHashMap<>();
+    private volatile ChunkPendingListener chunkPendingListener = null;
+    private volatile ScheduledExecutorService scheduler = null;
+    private volatile LoRaTimerWheel timerWheel = null;
+    private volatile double timerScale = 1.0;
+    private volatile int fecGroupSize = 0;
+    private volatile int fecParityFrames = 0;
+    private volatile LoRaASAPDictionary compressionDictionary = null;
+    private volatile LoRaOutboundJournal journal = null;
+    private final ASAPLoRaMessageBufferPool bufferPool = new ASAPLoRaMessageBufferPool();
+    private final LoRaBroadcastSender broadcastSender = new LoRaBroadcastSender(this, new Random());
+    private final LoRaBroadcastReceiver broadcastReceiver = new LoRaBroadcastReceiver(this, new Random());
+    private final LoRaRelay relay = new LoRaRelay(this, new Random());
+
+    /**
+     * Gets notified when a {@link LoRaASAPOutputStream} holds unsent data in its chunk,
+     * so that a flush can be scheduled.
+     */
+    interface ChunkPendingListener {
+        void onChunkPending(LoRaASAPOutputStream os);
+    }
 
     /**
      * Initialize our managementclass, opening Sockets from and to the ASAPLoRaBTModule
@@ -45,32 +84,66 @@ public class LoRaBTInputOutputStream {
         this.btSocket = btSocket;
         this.is = new LoRaBTInputStream(btSocket.getInputStream());
         this.os = new LoRaBTOutputStream(btSocket.getOutputStream());
+        this.os.relay = this.relay;
+        this.transmitScheduler = new LoRaTransmitScheduler(this.os);
+        this.transmitScheduler.start();
     }
 
     /**
-     * Close all open Sockets and Resources, wait for them to close down
+     * Initialize our managementclass on top of plain streams to and from an ASAPLoRaBTModule,
+     * e.g. for testing without a BluetoothSocket.
+     *
+     * @param is
+     * @param os
+     */
+    LoRaBTInputOutputStream(InputStream is, OutputStream os) {
+        this.btSocket = null;
+        this.is = new LoRaBTInputStream(is);
+        this.os = new LoRaBTOutputStream(os);
+        this.os.relay = this.relay;
+        this.transmitScheduler = new LoRaTransmitScheduler(this.os);
+        this.transmitScheduler.start();
+    }
+
+    /**
+     * Close all open Sockets and Resources, wait for the readers of our
+     * {@link LoRaASAPInputStream}s to get their EOF, but no longer than {@link #CLOSE_TIMEOUT}.
      */
     public void close() {
         try {
-            //Cleanup all loRaASAPOutputStreams
-            for (OutputStream os : this.loRaASAPOutputStreams.values())
-                os.close();
-            this.loRaASAPOutputStreams.clear();
+            //Nothing goes to the board anymore, and what we did not deliver stays in our journal
+            this.transmitScheduler.interrupt();
+            LoRaOutboundJournal journal = this.journal;
+            if (journal != null) {
+                //buffered data and what our deflaters hold go to the senders, which record them
+                for (LoRaASAPOutputStream os : this.loRaASAPOutputStreams.values()) {
+                    try {
+                        if (!os.flushOnDeadline())
+                            Log.e(CLASS_LOG_TAG, "Lost data buffered for " + os.LoRaAddress + ", its stream is busy");
+                    } catch (IOException e) {
+                        Log.e(CLASS_LOG_TAG, "Lost data buffered for " + os.LoRaAddress + ": " + e.getMessage());
+                    }
+                }
+                journal.close();
+            }
 
-            //Cleanup all loRaASAPInputStreams
-            for (InputStream is : this.loRaASAPInputStreams.values())
-                is.close();
+            //Cleanup all streams and ARQ state
+            List<Future<Void>> closeFutures = new ArrayList<>();
+            for (String mac : this.loRaASAPInputStreams.keySet())
+                closeFutures.add(this.closeASAPStream(mac));
+            for (String mac : this.loRaASAPOutputStreams.keySet())
+                this.closeASAPStream(mac);
+            for (String mac : this.loRaARQReceivers.keySet())
+                this.closeASAPStream(mac);
 
             //Wait for all loRaASAPInputStreams to close
-            boolean allClosed;
-            do {
-                allClosed = true;
-                for (LoRaASAPInputStream is : this.loRaASAPInputStreams.values())
-                    allClosed = allClosed && is.closed();
-            } while (!allClosed);
-
-            //finish cleanup
-            this.loRaASAPInputStreams.clear();
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+            try {
+                for (Future<Void> closeFuture : closeFutures)
+                    closeFuture.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                Log.e(CLASS_LOG_TAG, "Not all ASAP streams closed in time: " + e);
+            }
 
             //Close BT Socket if it is still open. Our IS and OS will close on socket disconnect
             if (this.btSocket != null && this.btSocket.isConnected())
@@ -90,31 +163,39 @@ public class LoRaBTInputOutputStream {
      * @return
      */
     public LoRaASAPOutputStream getASAPOutputStream(String mac) {
-        if (this.loRaASAPOutputStreams.containsKey(mac))
-            return this.loRaASAPOutputStreams.get(mac);
+        LoRaASAPOutputStream os = this.loRaASAPOutputStreams.get(mac);
+        if (os != null)
+            return os;
 
-        this.loRaASAPOutputStreams.put(mac, new LoRaASAPOutputStream(mac));
-        return this.getASAPOutputStream(mac);
+        LoRaASAPOutputStream created = new LoRaASAPOutputStream(mac);
+        os = this.loRaASAPOutputStreams.putIfAbsent(mac, created);
+        if (os == null)
+            return created;
+        created.abort(); //another thread was faster
+        return os;
     }
 
 
     /**
      * Tries to retrieve the {@link LoRaASAPInputStream} corresponding to the MAC-Address in mac
-     * If no {@link LoRaASAPInputStream} exists yet, it creates one.
+     * If no {@link LoRaASAPInputStream} exists yet, it creates one. A stream that is still closing
+     * is returned until its reader got the EOF, data appended to it is dropped.
      *
      * @param mac
      * @return
      */
     public LoRaASAPInputStream getASAPInputStream(String mac) {
-        if (this.loRaASAPInputStreams.containsKey(mac))
-            return this.loRaASAPInputStreams.get(mac);
+        LoRaASAPInputStream is = this.loRaASAPInputStreams.get(mac);
+        if (is != null)
+            return is;
 
-        this.loRaASAPInputStreams.put(mac, new LoRaASAPInputStream(mac));
-        return this.getASAPInputStream(mac);
+        LoRaASAPInputStream created = new LoRaASAPInputStream(mac);
+        is = this.loRaASAPInputStreams.putIfAbsent(mac, created);
+        return is == null ? created : is;
     }
 
     /**
-     * Checks if there is an active {@link LoRaASAPInputStream} for this mac
+     * Checks if there is an open or closing {@link LoRaASAPInputStream} for this mac
      * @param macAddress
      * @return
      */
@@ -130,6 +211,419 @@ public class LoRaBTInputOutputStream {
         return os;
     }
 
+    /**
+     * Everything sent over the air, except for the local frame mode negotiation with the board,
+     * has to pass the {@link LoRaTransmitScheduler}, so that it can keep the duty cycle.
+     *
+     * @return
+     */
+    LoRaTransmitScheduler getTransmitScheduler() {
+        return this.transmitScheduler;
+    }
+
+    /**
+     * @return number of frames waiting in the send queue of the peer with the MAC-Address in mac
+     */
+    public int getQueueDepth(String mac) {
+        LoRaASAPOutputStream os = this.loRaASAPOutputStreams.get(mac);
+        return os == null ? 0 : os.getQueueDepth();
+    }
+
+    /**
+     * @return what happened to the frames we sent to the peer with the MAC-Address in mac
+     */
+    public LoRaCollisionStats getCollisionStats(String mac) {
+        LoRaASAPOutputStream os = this.loRaASAPOutputStreams.get(mac);
+        return this.transmitScheduler.getCollisionStats(mac, os == null ? 0 : os.getRetransmissions());
+    }
+
+    /**
+     * Switches reading from and writing to the ASAPLoRaBTModule between Base64 text lines and
+     * {@link ASAPLoRaBinaryFrame}s. Must only be called once the board confirmed the mode.
+     *
+     * @param binaryFrameMode
+     */
+    public void setBinaryFrameMode(boolean binaryFrameMode) {
+        this.is.parser.setBinaryFrameMode(binaryFrameMode);
+        this.os.binaryFrameMode = binaryFrameMode;
+    }
+
+    public boolean isBinaryFrameMode() {
+        return this.os.binaryFrameMode;
+    }
+
+    /**
+     * Returns the number of ASAP bytes that fit into a single LoRa message in the current frame
+     * mode. In relay mode, that leaves room for the RELAY header.
+     *
+     * @return
+     */
+    public int getMaxPayloadLength() {
+        return (this.isBinaryFrameMode() ?
+                ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH : ASAPLoRaMessage.MAX_TEXT_PAYLOAD_LENGTH)
+                - (this.relay.isEnabled() ? LoRaStreamSegment.RELAY_HEADER_LENGTH : 0);
+    }
+
+    /**
+     * Relays frames for other nodes and ours over them, see {@link LoRaRelay}. Off by default.
+     * Has to be set before any data is sent.
+     *
+     * @param relaying
+     */
+    public void setRelaying(boolean relaying) {
+        this.relay.setEnabled(relaying);
+    }
+
+    public void setChunkPendingListener(ChunkPendingListener chunkPendingListener) {
+        this.chunkPendingListener = chunkPendingListener;
+    }
+
+    /**
+     * Sets the scheduler running the timers of our broadcasts.
+     *
+     * @param scheduler
+     */
+    public void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * Sets the timer wheel running retransmission and delayed ack timers of the ARQ. Without one,
+     * acks are sent right away and lost segments are not retransmitted.
+     *
+     * @param timerWheel
+     */
+    void setTimerWheel(LoRaTimerWheel timerWheel) {
+        this.timerWheel = timerWheel;
+    }
+
+    LoRaTimerWheel getTimerWheel() {
+        return this.timerWheel;
+    }
+
+    /**
+     * Scales the retransmission and delayed ack timeouts of the ARQ, for simulated boards
+     * running faster than the air. Applies to streams opened afterwards.
+     *
+     * @param timerScale real time per LoRa time
+     */
+    void setTimerScale(double timerScale) {
+        this.timerScale = timerScale;
+        this.transmitScheduler.setTimerScale(timerScale);
+    }
+
+    double getTimerScale() {
+        return this.timerScale;
+    }
+
+    /**
+     * Protects the data we send with PARITY segments (see {@link LoRaFEC}), so peers can rebuild
+     * lost frames without waiting for a retransmission. Costs parityFrames frames per groupSize
+     * frames of data, worth it on lossy links only. Off by default, peers decode either way.
+     *
+     * @param groupSize    DATA segments per group, 1 to {@link LoRaFEC#MAX_GROUP_SIZE}
+     * @param parityFrames PARITY segments per group, up to {@link LoRaFEC#MAX_PARITY_FRAMES}, 0 switches it off
+     */
+    public void setForwardErrorCorrection(int groupSize, int parityFrames) {
+        if (groupSize < 1 || groupSize > LoRaFEC.MAX_GROUP_SIZE
+                || parityFrames < 0 || parityFrames > LoRaFEC.MAX_PARITY_FRAMES)
+            throw new IllegalArgumentException("Unsupported FEC of " + parityFrames + " parity frames per "
+                    + groupSize + " LoRa frames");
+        this.fecGroupSize = groupSize;
+        this.fecParityFrames = parityFrames;
+    }
+
+    int getFECGroupSize() {
+        return this.fecGroupSize;
+    }
+
+    int getFECParityFrames() {
+        return this.fecParityFrames;
+    }
+
+    /**
+     * Compresses what we send to peers that have the same dictionary with DEFLATE and tells
+     * peers to do so for us (see {@link LoRaStreamSegment}). Off by default. A peer with another
+     * dictionary, or none, gets and sends its data uncompressed. Takes effect with the next ack
+     * we send, streams that compress already keep doing so.
+     *
+     * @param dictionary null switches it off
+     */
+    public void setCompressionDictionary(LoRaASAPDictionary dictionary) {
+        this.compressionDictionary = dictionary;
+    }
+
+    LoRaASAPDictionary getCompressionDictionary() {
+        return this.compressionDictionary;
+    }
+
+    /**
+     * Records what we send and receive in journal, so that our sessions survive {@link #close()},
+     * see {@link #restoreSessions()}. Has to be set before any data is sent.
+     *
+     * @param journal null for none
+     */
+    void setJournal(LoRaOutboundJournal journal) {
+        this.journal = journal;
+    }
+
+    LoRaOutboundJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Restores the sessions our journal kept from the last run, suspended, so that they are
+     * resumed like any other once their peer shows up, see {@link #onPeerHeard(String)}. Segments
+     * our peer did not acknowledge are sent again, without compression from then on, as the
+     * state of our deflater is gone. Has to be called before any data is sent or received.
+     *
+     * @return MAC-Addresses of the restored sessions
+     */
+    List<String> restoreSessions() {
+        List<String> restored = new ArrayList<>();
+        LoRaOutboundJournal journal = this.journal;
+        if (journal == null)
+            return restored;
+        for (LoRaOutboundJournal.Session session : journal.restore()) {
+            LoRaASAPOutputStream os = new LoRaASAPOutputStream(session.address);
+            os.restored = true;
+            os.sender.restore(session.sendBase, session.segments);
+            this.loRaASAPOutputStreams.put(session.address, os);
+            this.loRaARQReceivers.put(session.address, new LoRaARQReceiver(session.address, this, session.rcvBase));
+            this.suspendASAPStream(session.address);
+            restored.add(session.address);
+        }
+        return restored;
+    }
+
+    /**
+     * @return DATA segments of all peers rebuilt from PARITY segments
+     */
+    public long getFECSegmentsRecovered() {
+        long recovered = 0;
+        for (LoRaARQReceiver receiver : this.loRaARQReceivers.values())
+            recovered += receiver.getSegmentsRecovered();
+        return recovered;
+    }
+
+    /**
+     * Handles a segment (see {@link LoRaStreamSegment}) received from the peer with the
+     * MAC-Address in mac. Data goes to the {@link LoRaASAPInputStream} of the peer in sequence,
+     * acks to the sender of its {@link LoRaASAPOutputStream}, PARITY segments to the receiving
+     * half of its ARQ to rebuild lost data. Broadcasts of mac and NACKs for
+     * broadcasts go to our {@link LoRaBroadcastReceiver} and {@link LoRaBroadcastSender},
+     * RELAY and NEIGHBOURS segments to our {@link LoRaRelay}.
+     *
+     * @param mac
+     * @param segment
+     * @param length
+     */
+    public void receiveSegment(String mac, byte[] segment, int length) {
+        if (length < 1)
+            return;
+
+        switch (LoRaStreamSegment.typeOf(segment[0])) {
+            case LoRaStreamSegment.TYPE_DATA:
+            case LoRaStreamSegment.TYPE_DEFLATED:
+                if (length < LoRaStreamSegment.DATA_HEADER_LENGTH)
+                    break;
+                this.getARQReceiver(mac).onData(segment, length);
+                return;
+            case LoRaStreamSegment.TYPE_PARITY:
+                if (length <= LoRaStreamSegment.PARITY_HEADER_LENGTH)
+                    break;
+                this.getARQReceiver(mac).onParity(segment, length);
+                return;
+            case LoRaStreamSegment.TYPE_ACK:
+                if (length < LoRaStreamSegment.ACK_LENGTH)
+                    break;
+                LoRaASAPOutputStream os = this.loRaASAPOutputStreams.get(mac);
+                if (os != null) {
+                    os.peerDictionaryId = length < LoRaStreamSegment.ACK_DICTIONARY_LENGTH ?
+                            LoRaASAPDictionary.NO_DICTIONARY : LoRaStreamSegment.readShort(segment, 7);
+                    os.sender.onAck(LoRaStreamSegment.readShort(segment, 1),
+                            LoRaStreamSegment.readInt(segment, 3));
+                }
+                return;
+            case LoRaStreamSegment.TYPE_RESUME:
+            case LoRaStreamSegment.TYPE_RESUMED:
+                if (length < LoRaStreamSegment.RESUME_LENGTH)
+                    break;
+                this.onResume(mac, LoRaSessionCheckpoint.read(mac, segment),
+                        segment[0] == LoRaStreamSegment.TYPE_RESUME);
+                return;
+            case LoRaStreamSegment.TYPE_BROADCAST:
+                if (length < LoRaStreamSegment.BROADCAST_HEADER_LENGTH)
+                    break;
+                this.broadcastReceiver.onFragment(mac, segment, length);
+                return;
+            case LoRaStreamSegment.TYPE_BROADCAST_NACK:
+                if (length < LoRaStreamSegment.BROADCAST_NACK_LENGTH)
+                    break;
+                if (!this.broadcastSender.onNack(segment))
+                    this.broadcastReceiver.onNack(segment);
+                return;
+            case LoRaStreamSegment.TYPE_RELAY:
+                if (length <= LoRaStreamSegment.RELAY_HEADER_LENGTH)
+                    break;
+                this.relay.onRelay(mac, segment, length);
+                return;
+            case LoRaStreamSegment.TYPE_NEIGHBOURS:
+                if (length < LoRaStreamSegment.NEIGHBOURS_HEADER_LENGTH)
+                    break;
+                this.relay.onNeighbours(mac, segment, length);
+                return;
+            case LoRaStreamSegment.TYPE_RESET:
+                //only ever sent in reply to our RESUME
+                if (this.suspendedSessions.containsKey(mac)) {
+                    Log.i(CLASS_LOG_TAG, "Peer " + mac + " can't resume our session, starting over");
+                    this.closeASAPStream(mac);
+                }
+                return;
+        }
+        Log.e(CLASS_LOG_TAG, "Dropping unknown or truncated segment from " + mac);
+    }
+
+    private LoRaARQReceiver getARQReceiver(String mac) {
+        LoRaARQReceiver receiver = this.loRaARQReceivers.get(mac);
+        if (receiver == null) { //only the listen thread creates receivers
+            receiver = new LoRaARQReceiver(mac, this);
+            this.loRaARQReceivers.put(mac, receiver);
+        }
+        return receiver;
+    }
+
+    LoRaBroadcastSender getBroadcastSender() {
+        return this.broadcastSender;
+    }
+
+    LoRaBroadcastReceiver getBroadcastReceiver() {
+        return this.broadcastReceiver;
+    }
+
+    LoRaRelay getRelay() {
+        return this.relay;
+    }
+
+    private boolean hasSession(String mac) {
+        return this.loRaASAPInputStreams.containsKey(mac) || this.loRaASAPOutputStreams.containsKey(mac)
+                || this.loRaARQReceivers.containsKey(mac);
+    }
+
+    private LoRaSessionCheckpoint checkpoint(String mac, long suspendedAt) {
+        LoRaASAPOutputStream os = this.loRaASAPOutputStreams.get(mac);
+        LoRaARQReceiver receiver = this.loRaARQReceivers.get(mac);
+        return new LoRaSessionCheckpoint(mac,
+                os == null ? 0 : os.sender.getSendBase(), os == null ? 0 : os.sender.getNextSeq(),
+                receiver == null ? 0 : receiver.getRcvBase(),
+                os == null ? 0 : os.sender.getBytesAcknowledged(),
+                receiver == null ? 0 : receiver.getBytesDelivered(), suspendedAt);
+    }
+
+    /**
+     * @param mac
+     * @return where the session with mac stands, or stood when it was suspended. Null if there is none.
+     */
+    LoRaSessionCheckpoint getSessionCheckpoint(String mac) {
+        LoRaSessionCheckpoint suspended = this.suspendedSessions.get(mac);
+        if (suspended != null)
+            return suspended;
+        return this.hasSession(mac) ? this.checkpoint(mac, -1) : null;
+    }
+
+    public boolean isSuspended(String mac) {
+        return this.suspendedSessions.containsKey(mac);
+    }
+
+    /**
+     * Suspends the session with the peer with the MAC-Address in mac instead of closing it: its
+     * streams stay open and keep everything our peer did not acknowledge yet, but nothing is sent
+     * until our peer shows up again and the session is resumed, see {@link #onPeerHeard(String)}.
+     *
+     * @param mac
+     * @return false if there was no session with mac
+     */
+    public boolean suspendASAPStream(String mac) {
+        if (!this.hasSession(mac))
+            return false;
+        LoRaASAPOutputStream os = this.loRaASAPOutputStreams.get(mac);
+        if (os != null)
+            os.sender.suspend();
+        LoRaSessionCheckpoint checkpoint = this.checkpoint(mac, System.currentTimeMillis());
+        this.suspendedSessions.put(mac, checkpoint);
+        Log.i(CLASS_LOG_TAG, "Suspended session " + checkpoint);
+        return true;
+    }
+
+    /**
+     * Called for every message from the peer with the MAC-Address in mac. Asks our peer to
+     * resume a suspended session, at most every {@link #RESUME_RETRY_INTERVAL}.
+     *
+     * @param mac
+     */
+    void onPeerHeard(String mac) {
+        LoRaSessionCheckpoint suspended = this.suspendedSessions.get(mac);
+        if (suspended == null)
+            return;
+        long now = System.currentTimeMillis();
+        if (now - suspended.getResumeRequestedAt() < RESUME_RETRY_INTERVAL * this.timerScale)
+            return;
+        suspended.setResumeRequestedAt(now);
+        this.sendSessionSegment(mac, LoRaStreamSegment.TYPE_RESUME);
+    }
+
+    /**
+     * Handles the checkpoint of our peer. We continue if it matches ours and there is something
+     * to continue, otherwise both sides drop the session, so that a fresh ASAP session starts.
+     *
+     * @param mac
+     * @param peer
+     * @param request true for a RESUME, false for the RESUMED reply to ours
+     */
+    private void onResume(String mac, LoRaSessionCheckpoint peer, boolean request) {
+        LoRaSessionCheckpoint ours = this.hasSession(mac) ? this.checkpoint(mac, -1) : null;
+        boolean resumable = ours != null && ours.matches(peer)
+                && !(request && ours.isQuiescent() && peer.isQuiescent());
+        if (!resumable) {
+            this.sendSessionSegment(mac, LoRaStreamSegment.TYPE_RESET);
+            if (ours != null) {
+                Log.i(CLASS_LOG_TAG, "Can't resume session " + ours + " with " + peer + ", starting over");
+                this.closeASAPStream(mac);
+            }
+            return;
+        }
+
+        LoRaASAPOutputStream os = this.loRaASAPOutputStreams.get(mac);
+        if (os != null)
+            os.sender.resume(peer.getRcvBase());
+        if (this.suspendedSessions.remove(mac) != null)
+            Log.i(CLASS_LOG_TAG, "Resumed session " + ours);
+        if (request)
+            this.sendSessionSegment(mac, LoRaStreamSegment.TYPE_RESUMED);
+    }
+
+    /**
+     * Sends a RESUME or RESUMED segment with our checkpoint, or a RESET, ahead of any data.
+     */
+    private void sendSessionSegment(String mac, byte type) {
+        byte[] segment;
+        if (type == LoRaStreamSegment.TYPE_RESET) {
+            segment = new byte[]{LoRaStreamSegment.TYPE_RESET};
+        } else {
+            segment = new byte[LoRaStreamSegment.RESUME_LENGTH];
+            this.checkpoint(mac, -1).write(type, segment);
+        }
+        try {
+            this.transmitScheduler.sendControlMessage(new ASAPLoRaMessage(mac, segment));
+        } catch (ASAPLoRaMessageException e) {
+            Log.e(CLASS_LOG_TAG, e.getMessage()); //can't happen, the segment is short
+        }
+    }
+
     /**
      * Triggers sending of Packages residing in the {@link LoRaASAPOutputStream}s
      * @throws IOException
@@ -140,156 +634,402 @@ public class LoRaBTInputOutputStream {
     }
 
     /**
-     * Closes the {@link LoRaASAPInputStream} and waits for it to actually close, before removing
-     * it from our HashMap, so that it gets garbage collected. This is necessary, so that it has
-     * time to signal the ASAPPeer the EOF of the stream, closing the ASAPPeers connection. The
-     * corresponding {@link LoRaASAPOutputStream} is closed and removed from the HashMap, too.
+     * Closes the {@link LoRaASAPInputStream} of the peer with the MAC-Address in mac without
+     * waiting for it. It stays registered until its reader got the EOF, so that the ASAPPeer
+     * learns about the closed connection before a new stream to the peer can be opened.
+     * The corresponding {@link LoRaASAPOutputStream} and ARQ state are dropped right away,
+     * including all data our peer did not acknowledge yet and its journal.
+     *
      * @param mac
+     * @return completes when the reader of the input stream got the EOF
      */
-    public void closeASAPStream(String mac) {
-        if (this.loRaASAPInputStreams.containsKey(mac)) {
-            LoRaASAPInputStream is = this.loRaASAPInputStreams.get(mac);
-            is.close();
-            do {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) { /* does not matter */}
-            } while (!is.closed());
-            this.loRaASAPInputStreams.remove(mac);
-        }
+    public Future<Void> closeASAPStream(final String mac) {
+        this.suspendedSessions.remove(mac);
+        LoRaOutboundJournal journal = this.journal;
+        if (journal != null)
+            journal.discard(mac);
+        LoRaASAPOutputStream os = this.loRaASAPOutputStreams.remove(mac);
+        if (os != null)
+            os.abort();
 
-        if (this.loRaASAPOutputStreams.containsKey(mac)) {
-            this.loRaASAPOutputStreams.get(mac).close();
-            this.loRaASAPOutputStreams.remove(mac);
-        }
+        LoRaARQReceiver receiver = this.loRaARQReceivers.remove(mac);
+        if (receiver != null)
+            receiver.close();
+
+        final LoRaASAPInputStream is = this.loRaASAPInputStreams.get(mac);
+        if (is == null)
+            return LoRaStreamCloseFuture.completed();
+        is.close();
+        is.getCloseFuture().addListener(new Runnable() {
+            @Override
+            public void run() {
+                LoRaBTInputOutputStream.this.loRaASAPInputStreams.remove(mac, is);
+            }
+        });
+        return is.getCloseFuture();
     }
 
     /**
      * Subclass for the Communication with ASAPMessages over BluetoothStreams
      */
     static class LoRaBTInputStream extends FilterInputStream {
+        private final LoRaBTMessageParser parser;
+
         /**
-         * Blocking reads a Line from the underlying BluetoothInputStream and tries to create an
-         * {@link ASAPLoRaMessageInterface} from its {@link AbstractASAPLoRaMessage} Factory.
+         * Blocking reads the next message of the ASAPLoRaBTModule and passes its fields to
+         * listener, without creating an {@link ASAPLoRaMessageInterface}. Used by the
+         * {@link LoRaBTListenThread}.
+         *
+         * @param listener
+         * @throws IOException
+         * @throws ASAPLoRaException
+         */
+        void readASAPLoRaMessage(LoRaBTMessageParser.BoardMessageListener listener) throws IOException, ASAPLoRaException {
+            this.parser.parseNext(listener);
+        }
+
+        /**
+         * Blocking reads a Line (or a binary frame in binary frame mode) from the underlying
+         * BluetoothInputStream and tries to create an {@link ASAPLoRaMessageInterface} from its
+         * {@link AbstractASAPLoRaMessage} Factory.
          *
          * @return ASAPLoRaMessageInterface
          * @throws IOException
          * @throws ASAPLoRaException
          */
         public ASAPLoRaMessageInterface readASAPLoRaMessage() throws IOException, ASAPLoRaException {
-            BufferedReader br = new BufferedReader(new InputStreamReader(this));
-            String rawASAPLoRaMessage = "";
-            do {
-                rawASAPLoRaMessage = br.readLine();
-                Log.i(CLASS_LOG_TAG, "Got Message from BT Board: " + rawASAPLoRaMessage);
-            } while (rawASAPLoRaMessage.equals("")); //ignore empty lines
-            return AbstractASAPLoRaMessage.createASAPLoRaMessage(rawASAPLoRaMessage);
+            final ASAPLoRaMessageInterface[] message = new ASAPLoRaMessageInterface[1];
+            this.parser.parseNext(new LoRaBTMessageParser.BoardMessageListener() {
+                @Override
+                public void onMessage(String address, byte[] payload, int length) throws ASAPLoRaException {
+                    message[0] = new ASAPLoRaMessage(address, Arrays.copyOf(payload, length));
+                }
+
+                @Override
+                public void onDeviceDiscovered(String address) throws ASAPLoRaException {
+                    message[0] = new DeviceDiscoveredASAPLoRaMessage(address);
+                }
+
+                @Override
+                public void onError(String errorMessage) throws ASAPLoRaException {
+                    message[0] = AbstractASAPLoRaMessage.createASAPLoRaMessage(ASAPLoRaBinaryFrame.TYPE_ERROR,
+                            "FFFF", errorMessage.getBytes(StandardCharsets.UTF_8));
+                }
+
+                @Override
+                public void onFrameModeConfirmed(boolean binary) throws ASAPLoRaException {
+                    message[0] = new FrameModeASAPLoRaMessage(binary ? FrameModeASAPLoRaMessage.MODE_BINARY : "TXT");
+                }
+            });
+            return message[0];
         }
 
         public LoRaBTInputStream(InputStream in) {
             super(in);
+            this.parser = new LoRaBTMessageParser(in);
         }
     }
 
     /**
      * Subclass for the Communication with ASAPMessages over BluetoothStreams
+     *
+     * Frames are written to the board at once, unless the thread writing them started a batch
+     * (see {@link #startBatch()}). Its frames are then collected and go to the board in a single
+     * write once it ends the batch, or the batch is full. Frames of other threads go out at once,
+     * taking the batch along.
+     *
+     * Frames for peers our board does not hear go to the neighbour that relays them instead, see
+     * {@link LoRaRelay#route(ASAPLoRaMessageInterface)}.
      */
     static class LoRaBTOutputStream extends FilterOutputStream {
         private static final String CLASS_LOG_TAG = "ASAPLoRaBTOutputStream";
+        static final int MAX_BATCH_LENGTH = 1024; //1 KiB, some binary frames
+        private volatile boolean binaryFrameMode = false;
+        private final byte[] batch = new byte[MAX_BATCH_LENGTH];
+        private int batchLength = 0;
+        private Thread batchingThread = null;
+        private long writes = 0;
+        private volatile LoRaRelay relay = null;
 
         public LoRaBTOutputStream(OutputStream out) {
             super(out);
         }
 
+        /**
+         * @return bytes a frame to address grows by on its way to the board
+         */
+        int getOverhead(String address) {
+            LoRaRelay relay = this.relay;
+            return relay == null ? 0 : relay.getOverhead(address);
+        }
+
         /**
          * Writes the Payload of an Instance of {@link ASAPLoRaMessageInterface} onto the
-         * underlying OutputStream.
+         * underlying OutputStream, as a text line or as an {@link ASAPLoRaBinaryFrame}.
          *
          * @param msg
          * @throws IOException
          * @throws ASAPLoRaException
          */
         public void write(ASAPLoRaMessageInterface msg) throws IOException, ASAPLoRaException {
+            LoRaRelay relay = this.relay;
+            if (relay != null)
+                msg = relay.route(msg);
             synchronized (this) {
-                String msgString = msg.getPayload();
-                Log.i(CLASS_LOG_TAG, "Writing Message to BT Board: " + msgString);
-                this.write(msgString.getBytes());
-                this.write('\n');
+                if (this.binaryFrameMode) {
+                    Log.i(CLASS_LOG_TAG, "Writing binary Frame to BT Board: " + msg);
+                    if (this.batch.length - this.batchLength < ASAPLoRaBinaryFrame.MAX_FRAME_LENGTH)
+                        this.flushBatch();
+                    this.batchLength += ASAPLoRaBinaryFrame.encode(msg.getFrameType(), msg.getAddress(),
+                            msg.getBinaryPayload(), 0, msg.getBinaryPayloadLength(), this.batch, this.batchLength);
+                } else {
+                    String msgString = msg.getPayload();
+                    Log.i(CLASS_LOG_TAG, "Writing Message to BT Board: " + msgString);
+                    byte[] line = (msgString + '\n').getBytes();
+                    if (this.batch.length - this.batchLength < line.length)
+                        this.flushBatch();
+                    if (line.length > this.batch.length) {
+                        this.out.write(line);
+                        this.out.flush();
+                        this.writes++;
+                    } else {
+                        System.arraycopy(line, 0, this.batch, this.batchLength, line.length);
+                        this.batchLength += line.length;
+                    }
+                }
+                if (Thread.currentThread() != this.batchingThread)
+                    this.flushBatch();
             }
         }
+
+        /**
+         * Must be called holding our monitor
+         */
+        private void flushBatch() throws IOException {
+            if (this.batchLength == 0)
+                return;
+            this.out.write(this.batch, 0, this.batchLength);
+            this.out.flush();
+            this.batchLength = 0;
+            this.writes++;
+        }
+
+        /**
+         * Collects the frames the calling thread writes from now on, until it calls
+         * {@link #endBatch()}.
+         */
+        synchronized void startBatch() {
+            this.batchingThread = Thread.currentThread();
+        }
+
+        /**
+         * Writes the frames collected since {@link #startBatch()} to the board.
+         *
+         * @throws IOException
+         */
+        synchronized void endBatch() throws IOException {
+            this.batchingThread = null;
+            this.flushBatch();
+        }
+
+        /**
+         * @return writes to the board so far, each one holding one frame or more
+         */
+        synchronized long getWrites() {
+            return this.writes;
+        }
     }
 
     /**
-     * Subclass for the communication to ASAPPeers
+     * Subclass for the communication to ASAPPeers.
+     * Received data is kept in a fixed-capacity ring buffer. If the ASAPPeer does not keep up and
+     * the buffer runs full, {@link #appendData(byte[])} blocks the appending thread until there is
+     * space again.
+     *
+     * A stream is {@link State#OPEN} until it gets closed, then {@link State#CLOSING} until its
+     * reader got the EOF and finally {@link State#CLOSED}, completing its close future.
      */
     static class LoRaASAPInputStream extends InputStream {
+        static final int DEFAULT_BUFFER_CAPACITY = 8 * 1024; //8 KiB, some dozen LoRa messages
+
+        enum State { OPEN, CLOSING, CLOSED }
+
         private final String LoRaAddress;
-        private Object threadLock = new Object();
-        private boolean shouldClose = false;
-        private boolean wasClosed = false;
+        private final Object threadLock = new Object();
+        private volatile State state = State.OPEN;
+        private final LoRaStreamCloseFuture closeFuture = new LoRaStreamCloseFuture();
         private boolean isReading = false;
+        private boolean isAppending = false;
 
-        private LinkedList<InputStream> inputStreams = new LinkedList();
+        private final byte[] buffer;
+        private int readPosition = 0;
+        private int count = 0;
 
         public LoRaASAPInputStream(String mac) {
+            this(mac, DEFAULT_BUFFER_CAPACITY);
+        }
+
+        public LoRaASAPInputStream(String mac, int bufferCapacity) {
             super();
             this.LoRaAddress = mac;
+            this.buffer = new byte[bufferCapacity];
         }
 
         public boolean closed() {
-            return this.wasClosed;
+            return this.state == State.CLOSED;
+        }
+
+        State getState() {
+            return this.state;
+        }
+
+        /**
+         * @return completes when the stream is {@link State#CLOSED}
+         */
+        LoRaStreamCloseFuture getCloseFuture() {
+            return this.closeFuture;
+        }
+
+        /**
+         * Must be called holding the threadLock.
+         */
+        private void setClosed() {
+            if (this.state == State.CLOSED)
+                return;
+            this.state = State.CLOSED;
+            this.closeFuture.complete();
         }
 
         /**
-         * Append a {@link ByteArrayInputStream} to Read Data from, created from the bytes in data.
-         * Then notify a potential reading thread about the new data arriving.
+         * Append the bytes in data to our buffer to Read Data from, then notify a potential
+         * reading thread about the new data arriving.
          *
          * @param data
+         * @return false if the stream is closed, the data is discarded then
          */
-        public void appendData(byte[] data) {
+        public boolean appendData(byte[] data) {
+            return this.appendData(data, 0, data.length);
+        }
+
+        /**
+         * Append len bytes of data starting at off to our buffer. Blocks while the buffer is
+         * full, as long as the stream is not closed. Data for a closed stream is discarded.
+         *
+         * @param data
+         * @param off
+         * @param len
+         * @return false if the stream is closed, the data is discarded then
+         */
+        public boolean appendData(byte[] data, int off, int len) {
             //discard empty data arrays
-            if (data.length == 0)
-                return;
+            if (len == 0)
+                return this.state == State.OPEN;
 
             synchronized (this.threadLock) {
-                this.inputStreams.add(new ByteArrayInputStream(data));
-                this.threadLock.notify();
+                while (len > 0) {
+                    while (this.count == this.buffer.length && this.state == State.OPEN) {
+                        // no space, let the reader empty the buffer and wait for it
+                        this.isAppending = true;
+                        this.threadLock.notifyAll();
+                        try {
+                            this.threadLock.wait(LoRaBTInputOutputStream.READ_WAIT_TIMEOUT);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt(); //we are shutting down, drop the rest
+                            if (this.state == State.OPEN)
+                                this.state = State.CLOSING;
+                        }
+                    }
+                    this.isAppending = false;
+
+                    if (this.state != State.OPEN)
+                        return false;
+
+                    int writePosition = (this.readPosition + this.count) % this.buffer.length;
+                    int n = Math.min(len, Math.min(this.buffer.length - this.count,
+                            this.buffer.length - writePosition));
+                    System.arraycopy(data, off, this.buffer, writePosition, n);
+                    this.count += n;
+                    off += n;
+                    len -= n;
+                }
+
+                this.threadLock.notifyAll();
+                return true;
             }
         }
 
         /**
-         * Returns the sum of all available bytes in all Streams of our InputStream-Queue.
+         * @return bytes {@link #appendData(byte[], int, int)} takes without blocking, 0 unless the stream is open
+         */
+        int getFreeSpace() {
+            synchronized (this.threadLock) {
+                return this.state == State.OPEN ? this.buffer.length - this.count : 0;
+            }
+        }
+
+        /**
+         * Returns the number of bytes in our buffer.
          *
          * @return
-         * @throws IOException
          */
         @Override
-        public int available() throws IOException {
-            int availableBytes = 0;
-            for (InputStream is : inputStreams)
-                availableBytes += is.available();
-
-            return availableBytes;
+        public int available() {
+            synchronized (this.threadLock) {
+                return this.count;
+            }
         }
 
         /**
          * Tell our Stream that we're about to close and notify a potential reading thread.
+         * Without one, the stream is closed right away, the next read returns the EOF.
          */
         @Override
         public void close() {
-            this.shouldClose = true;
-
-            // Check if someone is currently reading.
-            // If so, notify, else just assume we are closed
-            if (this.isReading) {
-                synchronized (this.threadLock) {
-                    this.inputStreams.clear();
-                    this.threadLock.notify();
+            synchronized (this.threadLock) {
+                if (this.state == State.OPEN)
+                    this.state = State.CLOSING;
+                this.count = 0;
+                this.readPosition = 0;
+
+                // Check if someone is currently reading.
+                // If so, notify, else just assume we are closed
+                if (this.isReading)
+                    this.threadLock.notifyAll();
+                else
+                    this.setClosed();
+            }
+        }
+
+        /**
+         * Blocks until data arrives or the Stream is closed from the {@link LoRaCommunicationManager}.
+         * Must be called holding the threadLock.
+         *
+         * @return false if the stream was closed
+         */
+        private boolean awaitData() {
+            while (this.count < 1) {
+                if (this.state != State.OPEN) {
+                    this.setClosed();
+                    return false; //if our stream was closed, signal an EOF to ASAPEngine
                 }
-            } else {
-                this.inputStreams.clear();
-                this.wasClosed = true;
+
+                // no data, wait
+                try {
+                    this.threadLock.wait(LoRaBTInputOutputStream.READ_WAIT_TIMEOUT);
+                } catch (InterruptedException e) {/* NOOP, lets check our conditions again. */}
             }
+            return true;
+        }
+
+        /**
+         * Consume n bytes from the buffer and wake up a blocked appending thread.
+         * Must be called holding the threadLock.
+         */
+        private void consumed(int n) {
+            this.readPosition = (this.readPosition + n) % this.buffer.length;
+            this.count -= n;
+            if (this.isAppending)
+                this.threadLock.notifyAll();
         }
 
         /**
@@ -297,84 +1037,236 @@ public class LoRaBTInputOutputStream {
          * Blocks until data arrives or the Stream is closed from the {@link LoRaCommunicationManager}
          *
          * @return New Data or -1
-         * @throws IOException
          */
         @Override
-        public int read() throws IOException {
-            this.isReading = true;
-            net.sharksystem.utils.Log.writeLog(this, DateTimeHelper.long2ExactTimeString(System.currentTimeMillis()), "read start");
-            int returnResult = 0;
+        public int read() {
             synchronized (this.threadLock) {
-                while (this.available() < 1) {
-
-                    if (this.shouldClose) {
-                        this.wasClosed = true;
-                        this.isReading = false;
-                        return -1; //if our stream was closed, return an EOF Signal to ASAPEngine
-                    }
+                this.isReading = true;
+                try {
+                    if (!this.awaitData())
+                        return -1;
 
-                    // no data, wait
-                    try {
-                        this.threadLock.wait(LoRaBTInputOutputStream.READ_WAIT_TIMEOUT);
-                    } catch (InterruptedException e) {/* NOOP, lets check our conditions again. */}
+                    int returnResult = this.buffer[this.readPosition] & 0xFF;
+                    this.consumed(1);
+                    return returnResult;
+                } finally {
+                    this.isReading = false;
                 }
+            }
+        }
 
-                if (this.inputStreams.isEmpty())
-                    throw new IOException("Tried to read from Empty InputStream Queue."); //this *SHOULD* never happen.
+        /**
+         * Reads up to len bytes from our Stream.
+         * Blocks until at least one byte arrives or the Stream is closed.
+         *
+         * @return number of bytes read or -1
+         */
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
+            if (len == 0)
+                return 0;
 
-                //get our current inputstream and read its data
-                InputStream nextIs = this.inputStreams.peek();
-                returnResult = nextIs.read();
+            synchronized (this.threadLock) {
+                this.isReading = true;
+                try {
+                    if (!this.awaitData())
+                        return -1;
 
-                if (nextIs.available() == 0) //check if our stream is now empty
-                    this.inputStreams.remove(); //if so, remove empty stream from Queue
+                    int n = Math.min(len, this.count);
+                    int firstPart = Math.min(n, this.buffer.length - this.readPosition);
+                    System.arraycopy(this.buffer, this.readPosition, b, off, firstPart);
+                    System.arraycopy(this.buffer, 0, b, off + firstPart, n - firstPart);
+                    this.consumed(n);
+                    return n;
+                } finally {
+                    this.isReading = false;
+                }
             }
-
-            this.isReading = false;
-            return returnResult;
         }
     }
 
 
     /**
      * Subclass for the communication from ASAPPeers.
-     * Divides all data into LoRa-Transmissible chunks.
+     * Divides all data into LoRa-Transmissible chunks, each one the DATA segment (see
+     * {@link LoRaStreamSegment}) a {@link LoRaARQSender} delivers reliably to our peer.
      * Derived from @{@link java.io.BufferedOutputStream}
+     *
+     * Once our peer acked with the id of our compression dictionary, all data that follows is
+     * compressed with DEFLATE into DEFLATED segments instead. Flushes end the DEFLATE block, so
+     * our peer can inflate everything we flushed.
      */
     class LoRaASAPOutputStream extends OutputStream {
         private final String LoRaAddress;
-        private byte chunk[] = new byte[174]; //we can't deliver messages that are longer than 174 chars over LoRa
-        private int count = 0;
+        private final LoRaARQSender sender;
+        //not synchronized, the flush deadline must not wait for a writer blocked by the sender
+        private final ReentrantLock lock = new ReentrantLock();
+        private byte chunk[] = LoRaBTInputOutputStream.this.bufferPool.acquire();
+        private int count = LoRaStreamSegment.DATA_HEADER_LENGTH;
+        private boolean flushArmed = false;
+        //set by the listen thread from the acks of our peer
+        volatile int peerDictionaryId = LoRaASAPDictionary.NO_DICTIONARY;
+        private Deflater deflater = null;
+        //restored from our journal, our peer can't inflate what a new deflater would write
+        volatile boolean restored = false;
+        private final byte[] singleByte = new byte[1];
 
         public LoRaASAPOutputStream(String mac) {
             this.LoRaAddress = mac;
+            this.sender = new LoRaARQSender(mac, LoRaBTInputOutputStream.this,
+                    LoRaBTInputOutputStream.this.bufferPool);
+        }
+
+        /**
+         * We can't deliver messages that are longer than 174 bytes over LoRa in text mode,
+         * binary frames carry up to 250 bytes. Both include the segment header. With forward
+         * error correction, the PARITY segments of our chunks have to fit as well.
+         *
+         * @return the currently usable size of our chunk
+         */
+        private int chunkLength() {
+            return LoRaBTInputOutputStream.this.getMaxPayloadLength()
+                    - (LoRaBTInputOutputStream.this.fecParityFrames > 0 ? LoRaFEC.SEGMENT_OVERHEAD : 0);
+        }
+
+        /**
+         * Called when data was put into an empty chunk. Asks the {@link ChunkPendingListener}
+         * once for a flush, until the armed flush deadline expired.
+         */
+        private void chunkPending() {
+            ChunkPendingListener listener = LoRaBTInputOutputStream.this.chunkPendingListener;
+            if (this.flushArmed || listener == null)
+                return;
+            this.flushArmed = true;
+            listener.onChunkPending(this);
         }
 
         /**
-         * Flushes our current chunk to the {@link LoRaBTOutputStream} if there is any data
+         * Called by the {@link ChunkPendingListener} when the deadline it armed expired, and on
+         * {@link LoRaBTInputOutputStream#close()}. Flushes our chunk unless that would block: if a
+         * writer holds the stream or the send queue of our peer is full, nothing happens and the
+         * deadline stays armed.
+         *
+         * @return false if the listener has to call again later
+         * @throws IOException
+         */
+        boolean flushOnDeadline() throws IOException {
+            if (!this.lock.tryLock())
+                return false;
+            try {
+                if (this.deflater != null && !this.deflate(Deflater.SYNC_FLUSH, false))
+                    return false;
+                if (!this.sendChunk(false))
+                    return false;
+                this.flushArmed = false;
+                return true;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Hands our chunk over to the {@link LoRaARQSender} if there is any data and continues
+         * with a fresh buffer from the pool. The sender hands the chunk back once our peer
+         * acknowledged it. Must be called holding our lock.
+         *
+         * @return false if the chunk was not sent as the sender was not allowed to block
+         */
+        private boolean sendChunk(boolean mayBlock) throws IOException {
+            if (this.count <= LoRaStreamSegment.DATA_HEADER_LENGTH)
+                return true;
+            this.chunk[0] = this.deflater == null ? LoRaStreamSegment.TYPE_DATA : LoRaStreamSegment.TYPE_DEFLATED;
+            if (!this.sender.send(this.chunk, this.count, mayBlock))
+                return false;
+            this.chunk = LoRaBTInputOutputStream.this.bufferPool.acquire();
+            this.count = LoRaStreamSegment.DATA_HEADER_LENGTH;
+            return true;
+        }
+
+        /**
+         * Flushes our current chunk to the {@link LoRaARQSender} if there is any data.
+         * Blocks while the send queue of our peer is full.
          * @throws IOException
          */
         @Override
         public void flush() throws IOException {
-            if (this.count > 0) {
-                try {
-                    ASAPLoRaMessage asapLoRaMessage = new ASAPLoRaMessage(this.LoRaAddress, Arrays.copyOf(this.chunk, this.count));
-                    LoRaBTInputOutputStream.this.getOutputStream().write(asapLoRaMessage);
-                    this.count = 0;
-                } catch (ASAPLoRaException e) {
-                    throw new IOException(e); //convert our ASAPLoRaException to an IOException and bubble it.
-                }
+            this.lock.lock();
+            try {
+                if (this.deflater != null)
+                    this.deflate(Deflater.SYNC_FLUSH, true);
+                this.sendChunk(true);
+            } finally {
+                this.lock.unlock();
             }
         }
 
         @Override
         public void close() {
-            // No need for any action. If we get closed, there is no point in sending any more data
+            // No need for any action. Data we already took over is still delivered
+        }
+
+        /**
+         * Drops our chunk and everything the sender did not deliver yet.
+         */
+        void abort() {
+            this.sender.close();
+            //a writer blocked by the sender fails now, the deflater is collected with us then
+            if (this.lock.tryLock()) {
+                try {
+                    if (this.deflater != null)
+                        this.deflater.end();
+                    this.deflater = null;
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Switches to compression once our peer has our dictionary. Only between chunks, as the
+         * type of a chunk tells our peer how to read it. Must be called holding our lock.
+         *
+         * @return true if we compress
+         */
+        private boolean compress() {
+            if (this.deflater != null)
+                return true;
+            LoRaASAPDictionary dictionary = LoRaBTInputOutputStream.this.compressionDictionary;
+            if (this.count > LoRaStreamSegment.DATA_HEADER_LENGTH || dictionary == null || this.restored
+                    || dictionary.getId() != this.peerDictionaryId)
+                return false;
+            this.deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+            this.deflater.setDictionary(dictionary.getBytes());
+            return true;
+        }
+
+        /**
+         * Moves what our deflater has ready into our chunk, sending every chunk it fills.
+         * Must be called holding our lock.
+         *
+         * @param flush {@link Deflater#NO_FLUSH} or {@link Deflater#SYNC_FLUSH}
+         * @return false if a full chunk was not sent as the sender was not allowed to block
+         */
+        private boolean deflate(int flush, boolean mayBlock) throws IOException {
+            while (true) {
+                int space = this.chunkLength() - this.count;
+                if (space <= 0) {
+                    if (!this.sendChunk(mayBlock))
+                        return false;
+                    continue;
+                }
+                int n = this.deflater.deflate(this.chunk, this.count, space, flush);
+                this.count += n;
+                if (n < space && this.deflater.needsInput())
+                    return true;
+            }
         }
 
         /**
          * Writes a Byte-Array to our chunk, subdivides if necessary and flushes our buffer if needed.
-         * This is a modified write from BufferedOutputStream to create a chunked stream.
+         * Copies straight from b into the chunk, one chunk-sized slice at a time.
          *
          * @param b
          * @param off
@@ -382,26 +1274,41 @@ public class LoRaBTInputOutputStream {
          * @throws IOException
          */
         @Override
-        public synchronized void write(byte[] b, int off, int len) throws IOException {
-            //we need to write to a buffer and trigger a flush once one chunk is complete.
-            int currentChunkSpace = chunk.length - this.count;
-            if(len > currentChunkSpace){ //if the message is bigger than our current space in the buffer
-                //cut of a chunk the size of our remaining chunk
-                this.write(Arrays.copyOf(b, currentChunkSpace));
-                //Flush it down the LoRa Board
-                this.flush();
-                //handle the rest of the byte array recursively
-                this.write(Arrays.copyOfRange(b, currentChunkSpace, b.length));
-                return;
-            }
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
 
-            //write the data to our chunk
-            System.arraycopy(b, off, chunk, count, len);
-            count += len;
+            this.lock.lock();
+            try {
+                while (len > 0) {
+                    if (this.compress()) {
+                        //the deflater takes all of it, but keeps what it did not write yet
+                        this.deflater.setInput(b, off, len);
+                        this.deflate(Deflater.NO_FLUSH, true);
+                        this.chunkPending();
+                        return;
+                    }
+
+                    int currentChunkSpace = this.chunkLength() - this.count;
+                    if (currentChunkSpace <= 0) { //e.g. if the frame mode shrunk our chunk
+                        this.sendChunk(true);
+                        continue;
+                    }
 
-            //if chunk is now full, flush it.
-            if (count >= chunk.length) {
-                this.flush();
+                    //write as much data as fits to our chunk
+                    int n = Math.min(len, currentChunkSpace);
+                    System.arraycopy(b, off, this.chunk, this.count, n);
+                    this.count += n;
+                    off += n;
+                    len -= n;
+                    this.chunkPending();
+
+                    //if chunk is now full, flush it down the LoRa Board
+                    if (this.count >= this.chunkLength())
+                        this.sendChunk(true);
+                }
+            } finally {
+                this.lock.unlock();
             }
         }
 
@@ -412,11 +1319,35 @@ public class LoRaBTInputOutputStream {
          * @throws IOException
          */
         @Override
-        public synchronized void write(int b) throws IOException {
-            if (count >= chunk.length) {
-                this.flush();
+        public void write(int b) throws IOException {
+            this.lock.lock();
+            try {
+                if (this.compress()) {
+                    this.singleByte[0] = (byte) b;
+                    this.deflater.setInput(this.singleByte, 0, 1);
+                    this.deflate(Deflater.NO_FLUSH, true);
+                    this.chunkPending();
+                    return;
+                }
+                if (this.count >= this.chunkLength()) {
+                    this.sendChunk(true);
+                }
+                this.chunk[this.count++] = (byte) b;
+                this.chunkPending();
+            } finally {
+                this.lock.unlock();
             }
-            chunk[count++] = (byte)b;
+        }
+
+        /**
+         * @return number of chunks waiting for or in transmission to our peer
+         */
+        int getQueueDepth() {
+            return this.sender.getQueueDepth();
+        }
+
+        long getRetransmissions() {
+            return this.sender.getRetransmissions();
         }
     }
 }
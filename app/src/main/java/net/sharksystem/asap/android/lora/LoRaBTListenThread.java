@@ -23,12 +23,13 @@ public class LoRaBTListenThread extends Thread {
         while (!this.isInterrupted()) {
             //Listen for a Message from the BT Stream & pass it on
             try {
-                loRaCommunicationManager.receiveASAPLoRaMessage(this.loRaCommunicationManager.getBTInputStream().readASAPLoRaMessage());
+                this.loRaCommunicationManager.getBTInputStream().readASAPLoRaMessage(this.loRaCommunicationManager);
             } catch (ASAPLoRaException | IOException e) {
                 //The ASAPLoRa-Module was disconnected, so we cannot continue to run the LoRaEngine
                 Log.e(this.CLASS_LOG_TAG, e.getMessage());
                 Log.e(this.CLASS_LOG_TAG, "Stopping ASAPLoRaEngine...");
-                LoRaEngine.getASAPLoRaEngine().stop();
+                this.loRaCommunicationManager.interrupt();
+                return;
             }
         }
     }
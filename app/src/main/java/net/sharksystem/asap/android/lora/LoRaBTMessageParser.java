@@ -0,0 +1,298 @@
+package net.sharksystem.asap.android.lora;
+
+import android.util.Log;
+
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaException;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaBinaryFrame;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+import net.sharksystem.asap.android.lora.messages.FrameModeASAPLoRaMessage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the messages of the ASAPLoRaBTModule from the BT stream and hands their fields to a
+ * {@link BoardMessageListener}.
+ *
+ * There is one parser per connection to the board, reading ahead into a buffer that lives as
+ * long as the connection, so no bytes are lost when the board switches from text lines to
+ * {@link ASAPLoRaBinaryFrame}s. Text lines and frames are parsed in place and payloads are
+ * decoded into a reused buffer, so receiving data does not allocate. Addresses are looked up in
+ * a small cache instead of formatting a new String for every message.
+ *
+ * Unlike the {@link net.sharksystem.asap.android.lora.messages.AbstractASAPLoRaMessage} factory,
+ * malformed messages are logged and skipped, like corrupted binary frames.
+ */
+class LoRaBTMessageParser {
+    private static final String CLASS_LOG_TAG = "ASAPLoRaBTMessageParser";
+    static final int READ_BUFFER_SIZE = 1024; //holds a text line with the longest Base64 payload
+    private static final int ADDRESS_CACHE_SIZE = 64; //power of 2
+
+    private static final byte[] DVDCR = "DVDCR".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MSSGE = "MSSGE".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ERROR = "ERROR".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FRMOD = "FRMOD".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MODE_BINARY = FrameModeASAPLoRaMessage.MODE_BINARY.getBytes(StandardCharsets.US_ASCII);
+    private static final int[] BASE64_VALUES = LoRaBTMessageParser.base64Values();
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private final byte[] payload = new byte[ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH];
+    private final int[] cachedAddresses = new int[ADDRESS_CACHE_SIZE];
+    private final String[] addressCache = new String[ADDRESS_CACHE_SIZE];
+    private volatile boolean binaryFrameMode = false;
+
+    /**
+     * Gets the messages of the ASAPLoRaBTModule. Buffers passed in are only valid during the call.
+     */
+    interface BoardMessageListener {
+        void onMessage(String address, byte[] payload, int length) throws ASAPLoRaException;
+
+        void onDeviceDiscovered(String address) throws ASAPLoRaException;
+
+        void onError(String message) throws ASAPLoRaException;
+
+        void onFrameModeConfirmed(boolean binary) throws ASAPLoRaException;
+    }
+
+    LoRaBTMessageParser(InputStream in) {
+        this.in = in;
+    }
+
+    void setBinaryFrameMode(boolean binaryFrameMode) {
+        this.binaryFrameMode = binaryFrameMode;
+    }
+
+    boolean isBinaryFrameMode() {
+        return this.binaryFrameMode;
+    }
+
+    /**
+     * Blocking reads the next valid message and passes it to listener. Switching the frame mode
+     * from within listener applies to the next message.
+     *
+     * @param listener
+     * @throws IOException
+     * @throws ASAPLoRaException
+     */
+    void parseNext(BoardMessageListener listener) throws IOException, ASAPLoRaException {
+        if (this.binaryFrameMode) {
+            while (!this.parseFrame(listener));
+        } else {
+            while (!this.parseLine(listener));
+        }
+    }
+
+    /**
+     * Makes sure at least n bytes are buffered from position on, blocking on the BT stream.
+     */
+    private void fill(int n) throws IOException {
+        if (this.limit - this.position >= n)
+            return;
+        if (this.buffer.length - this.position < n) {
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, this.limit - this.position);
+            this.limit -= this.position;
+            this.position = 0;
+        }
+        while (this.limit - this.position < n) {
+            int read = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (read < 0)
+                throw new EOFException("BT Stream closed while reading from the ASAPLoRaBTModule");
+            this.limit += read;
+        }
+    }
+
+    /**
+     * @return false if there was no valid frame at position
+     */
+    private boolean parseFrame(BoardMessageListener listener) throws IOException, ASAPLoRaException {
+        //hunt for the start of a frame
+        this.fill(1);
+        while ((this.buffer[this.position] & 0xFF) != ASAPLoRaBinaryFrame.SYNC) {
+            if (++this.position == this.limit)
+                return false;
+        }
+
+        this.fill(ASAPLoRaBinaryFrame.HEADER_LENGTH);
+        int len = this.buffer[this.position + 4] & 0xFF;
+        if (len > ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH) {
+            this.position++; //can't be a valid header, resync
+            return false;
+        }
+        this.fill(ASAPLoRaBinaryFrame.HEADER_LENGTH + len + ASAPLoRaBinaryFrame.CRC_LENGTH);
+        int crcOffset = this.position + ASAPLoRaBinaryFrame.HEADER_LENGTH + len;
+        int crc = ((this.buffer[crcOffset] & 0xFF) << 8) | (this.buffer[crcOffset + 1] & 0xFF);
+        if (crc != ASAPLoRaBinaryFrame.crc16(this.buffer, this.position + 1, ASAPLoRaBinaryFrame.HEADER_LENGTH - 1 + len)) {
+            this.position++; //corrupted frame, resync
+            return false;
+        }
+
+        byte type = this.buffer[this.position + 1];
+        String address = this.address(((this.buffer[this.position + 2] & 0xFF) << 8) | (this.buffer[this.position + 3] & 0xFF));
+        System.arraycopy(this.buffer, this.position + ASAPLoRaBinaryFrame.HEADER_LENGTH, this.payload, 0, len);
+        this.position = crcOffset + ASAPLoRaBinaryFrame.CRC_LENGTH;
+
+        switch (type) {
+            case ASAPLoRaBinaryFrame.TYPE_MSSGE:
+                listener.onMessage(address, this.payload, len);
+                return true;
+            case ASAPLoRaBinaryFrame.TYPE_DVDCR:
+                listener.onDeviceDiscovered(address);
+                return true;
+            case ASAPLoRaBinaryFrame.TYPE_ERROR:
+                listener.onError(new String(this.payload, 0, len, StandardCharsets.UTF_8));
+                return true;
+        }
+        Log.e(CLASS_LOG_TAG, "Skipping binary frame of unknown type " + type);
+        return false;
+    }
+
+    /**
+     * @return false if the line was empty or not a valid message
+     */
+    private boolean parseLine(BoardMessageListener listener) throws IOException, ASAPLoRaException {
+        int end;
+        int scanned = this.position;
+        boolean tooLong = false;
+        while (true) {
+            end = -1;
+            for (int i = scanned; i < this.limit; i++) {
+                if (this.buffer[i] == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+            if (end >= 0)
+                break;
+            if (this.limit - this.position == this.buffer.length) {
+                this.position = this.limit; //no message is that long, drop it
+                tooLong = true;
+            }
+            scanned = this.limit - this.position; //fill may move the buffered bytes to the front
+            this.fill(this.limit - this.position + 1);
+            scanned += this.position;
+        }
+
+        int off = this.position;
+        int len = end - off;
+        this.position = end + 1;
+        if (len > 0 && this.buffer[end - 1] == '\r')
+            len--;
+        if (len == 0) //ignore empty lines
+            return false;
+        if (tooLong) {
+            Log.e(CLASS_LOG_TAG, "Skipping overlong line from the ASAPLoRaBTModule");
+            return false;
+        }
+
+        // <COMMAND (5 Char)>:<Payload> or <COMMAND (5 Char)>@<Address (4 Char)>:<Payload>
+        if (len < 6 || (this.buffer[off + 5] != ':' && this.buffer[off + 5] != '@'))
+            return this.invalidLine(off, len);
+
+        if (this.startsWith(off, MSSGE)) {
+            String address = len > 11 && this.buffer[off + 10] == ':' ? this.addressAt(off + 6) : null;
+            int payloadLength = address == null ? -1 : this.decodeBase64(off + 11, off + len);
+            if (payloadLength < 0)
+                return this.invalidLine(off, len);
+            listener.onMessage(address, this.payload, payloadLength);
+        } else if (this.startsWith(off, DVDCR)) {
+            String address = len >= 10 ? this.addressAt(off + 6) : null;
+            if (address == null)
+                return this.invalidLine(off, len);
+            listener.onDeviceDiscovered(address);
+        } else if (this.startsWith(off, ERROR)) {
+            listener.onError(new String(this.buffer, off + 6, len - 6, StandardCharsets.UTF_8));
+        } else if (this.startsWith(off, FRMOD)) {
+            int modeLength = len - 6;
+            while (modeLength > 0 && this.buffer[off + 6 + modeLength - 1] == ' ')
+                modeLength--;
+            listener.onFrameModeConfirmed(modeLength == MODE_BINARY.length && this.startsWith(off + 6, MODE_BINARY));
+        } else {
+            return this.invalidLine(off, len);
+        }
+        return true;
+    }
+
+    private boolean invalidLine(int off, int len) {
+        Log.e(CLASS_LOG_TAG, "Skipping invalid message from the ASAPLoRaBTModule: "
+                + new String(this.buffer, off, len, StandardCharsets.UTF_8));
+        return false;
+    }
+
+    private boolean startsWith(int off, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (this.buffer[off + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the address in the 4 hex characters at off, null if they are no address
+     */
+    private String addressAt(int off) {
+        int address = 0;
+        for (int i = off; i < off + 4; i++) {
+            int digit = Character.digit(this.buffer[i], 16);
+            if (digit < 0)
+                return null;
+            address = (address << 4) | digit;
+        }
+        return this.address(address);
+    }
+
+    private String address(int address) {
+        int slot = address & (ADDRESS_CACHE_SIZE - 1);
+        String cached = this.addressCache[slot];
+        if (cached == null || this.cachedAddresses[slot] != address) {
+            cached = ASAPLoRaBinaryFrame.intToAddress(address);
+            this.addressCache[slot] = cached;
+            this.cachedAddresses[slot] = address;
+        }
+        return cached;
+    }
+
+    /**
+     * Decodes Base64 from the buffer into payload. Whitespace is ignored, as allowed by RFC2045.
+     *
+     * @return number of decoded bytes, -1 if the Base64 was invalid or too long
+     */
+    private int decodeBase64(int from, int to) {
+        int length = 0;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = from; i < to; i++) {
+            byte c = this.buffer[i];
+            if (c == '=')
+                break;
+            if (c == ' ' || c == '\t' || c == '\r')
+                continue;
+            int value = c < 0 ? -1 : BASE64_VALUES[c];
+            if (value < 0)
+                return -1;
+            bits = ((bits << 6) | value) & 0xFFFFFF;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                if (length == this.payload.length)
+                    return -1;
+                bitCount -= 8;
+                this.payload[length++] = (byte) (bits >> bitCount);
+            }
+        }
+        return length;
+    }
+
+    private static int[] base64Values() {
+        int[] values = new int[128];
+        for (int i = 0; i < values.length; i++)
+            values[i] = -1;
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++)
+            values[alphabet.charAt(i)] = i;
+        return values;
+    }
+}
@@ -0,0 +1,272 @@
+package net.sharksystem.asap.android.lora;
+
+import android.util.Log;
+
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaMessageException;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassembles messages a {@link LoRaBroadcastSender} of one of our neighbours sent to everyone.
+ *
+ * Fragments of a message may get lost, so once no more fragments arrive for a while we ask for the
+ * missing ones in a BROADCAST NACK (see {@link LoRaStreamSegment}), after {@link #NACK_DELAY} for
+ * gaps before the last fragment we got and after {@link #TAIL_NACK_DELAY} for missing fragments at
+ * the end, which may just not be sent yet. NACKs go to everyone as well: delays are randomized,
+ * and a receiver overhearing a NACK that covers its own gaps keeps quiet, so one NACK usually
+ * speaks for the whole neighbourhood. Repairs may wait for the duty cycle of the sender, so the
+ * delay doubles with every NACK without progress, and we give up after {@link #MAX_NACKS}.
+ */
+class LoRaBroadcastReceiver {
+    private static final String CLASS_LOG_TAG = "ASAPLoRaBroadcastRcv";
+    static final long NACK_DELAY = 2 * 1000; //2 seconds in ms, randomized up to twice as long
+    static final long TAIL_NACK_DELAY = 60 * 1000; //60 seconds in ms, randomized up to twice as long
+    static final int MAX_NACKS = 6;
+    static final int MAX_REASSEMBLIES = 16;
+    static final int MAX_COMPLETED = 64;
+
+    private final LoRaBTInputOutputStream ioStream;
+    private final Random random;
+    //incomplete messages by sender id and message id, oldest first
+    private final LinkedHashMap<Integer, Reassembly> reassemblies = new LinkedHashMap<>();
+    //recently completed messages, so that repairs for others are not delivered twice
+    private final LinkedHashMap<Integer, Boolean> completed = new LinkedHashMap<Integer, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return this.size() > MAX_COMPLETED;
+        }
+    };
+    private volatile LoRaCommunicationManager.BroadcastListener broadcastListener = null;
+
+    private long messagesReceived = 0;
+    private long nacksSent = 0;
+    private long nacksSuppressed = 0;
+
+    private static class Reassembly {
+        final String address;
+        final int key;
+        final byte[][] fragments;
+        int received = 0;
+        int highest = -1;
+        int length = 0;
+        int nacks = 0;
+        ScheduledFuture<?> nackTimer = null;
+
+        Reassembly(String address, int key, int fragmentCount) {
+            this.address = address;
+            this.key = key;
+            this.fragments = new byte[fragmentCount][];
+        }
+
+        boolean isMissing(int fragment) {
+            return fragment < this.fragments.length && this.fragments[fragment] == null;
+        }
+
+        /**
+         * @return true if a fragment before the last one we got is missing
+         */
+        boolean hasGap() {
+            return this.received < this.highest + 1;
+        }
+    }
+
+    LoRaBroadcastReceiver(LoRaBTInputOutputStream ioStream, Random random) {
+        this.ioStream = ioStream;
+        this.random = random;
+    }
+
+    void setBroadcastListener(LoRaCommunicationManager.BroadcastListener broadcastListener) {
+        this.broadcastListener = broadcastListener;
+    }
+
+    private static int key(byte[] segment) {
+        return LoRaStreamSegment.readShort(segment, 1) << 16 | LoRaStreamSegment.readShort(segment, 3);
+    }
+
+    /**
+     * Handles a BROADCAST segment. Must only be called from the thread reading from the
+     * ASAPLoRaBTModule.
+     *
+     * @param address sender of segment
+     * @param segment only valid during this call
+     * @param length
+     */
+    void onFragment(String address, byte[] segment, int length) {
+        int key = key(segment);
+        int fragment = segment[5] & 0xFF;
+        int fragmentCount = segment[6] & 0xFF;
+        if (fragment >= fragmentCount)
+            return;
+
+        byte[] message = null;
+        synchronized (this) {
+            if (this.completed.containsKey(key))
+                return; //a repair for someone else
+            Reassembly reassembly = this.reassemblies.get(key);
+            if (reassembly == null) {
+                reassembly = new Reassembly(address, key, fragmentCount);
+                this.reassemblies.put(key, reassembly);
+                this.dropOldest();
+            }
+            if (!reassembly.isMissing(fragment))
+                return;
+
+            int dataLength = length - LoRaStreamSegment.BROADCAST_HEADER_LENGTH;
+            reassembly.fragments[fragment] = new byte[dataLength];
+            System.arraycopy(segment, LoRaStreamSegment.BROADCAST_HEADER_LENGTH, reassembly.fragments[fragment], 0, dataLength);
+            reassembly.received++;
+            reassembly.length += dataLength;
+            reassembly.highest = Math.max(reassembly.highest, fragment);
+            reassembly.nacks = 0;
+
+            if (reassembly.received < fragmentCount) {
+                this.armNackTimer(reassembly);
+                return;
+            }
+
+            this.remove(reassembly);
+            this.completed.put(key, Boolean.TRUE);
+            this.messagesReceived++;
+            message = new byte[reassembly.length];
+            int off = 0;
+            for (byte[] data : reassembly.fragments) {
+                System.arraycopy(data, 0, message, off, data.length);
+                off += data.length;
+            }
+        }
+
+        LoRaCommunicationManager.BroadcastListener broadcastListener = this.broadcastListener;
+        if (broadcastListener != null)
+            broadcastListener.onBroadcastReceived(address, message);
+    }
+
+    /**
+     * Handles a BROADCAST NACK of another receiver: if it asks for all fragments we miss
+     * before the last one we got, our own NACK can wait.
+     *
+     * @param segment
+     */
+    synchronized void onNack(byte[] segment) {
+        Reassembly reassembly = this.reassemblies.get(key(segment));
+        if (reassembly == null || reassembly.nackTimer == null)
+            return;
+
+        int firstMissing = segment[5] & 0xFF;
+        int missing = LoRaStreamSegment.readInt(segment, 6);
+        for (int fragment = 0; fragment < reassembly.highest; fragment++) {
+            if (!reassembly.isMissing(fragment))
+                continue;
+            int bit = fragment - firstMissing - 1;
+            if (fragment != firstMissing && (bit < 0 || bit >= 32 || (missing & (1 << bit)) == 0))
+                return;
+        }
+        this.nacksSuppressed++;
+        this.armNackTimer(reassembly);
+    }
+
+    private void remove(Reassembly reassembly) {
+        if (reassembly.nackTimer != null) {
+            reassembly.nackTimer.cancel(false);
+            reassembly.nackTimer = null;
+        }
+        this.reassemblies.remove(reassembly.key);
+    }
+
+    private void dropOldest() {
+        Iterator<Reassembly> iterator = this.reassemblies.values().iterator();
+        while (this.reassemblies.size() > MAX_REASSEMBLIES) {
+            Reassembly oldest = iterator.next();
+            if (oldest.nackTimer != null)
+                oldest.nackTimer.cancel(false);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * (Re)starts the randomized NACK timer of reassembly. Without a scheduler, we never NACK.
+     */
+    private void armNackTimer(final Reassembly reassembly) {
+        ScheduledExecutorService scheduler = this.ioStream.getScheduler();
+        if (scheduler == null)
+            return;
+        if (reassembly.nackTimer != null)
+            reassembly.nackTimer.cancel(false);
+
+        final boolean tail = !reassembly.hasGap();
+        long delay = (long) (((tail ? TAIL_NACK_DELAY : NACK_DELAY) << reassembly.nacks)
+                * this.ioStream.getTimerScale() * (1 + this.random.nextDouble()));
+        try {
+            reassembly.nackTimer = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    LoRaBroadcastReceiver.this.onNackDue(reassembly, tail);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //we are shutting down
+        }
+    }
+
+    /**
+     * Asks for the first fragment we miss and the 32 after it, only for gaps unless tail is set.
+     */
+    private synchronized void onNackDue(Reassembly reassembly, boolean tail) {
+        if (this.reassemblies.get(reassembly.key) != reassembly)
+            return;
+        reassembly.nackTimer = null;
+        if (reassembly.nacks >= MAX_NACKS) {
+            Log.i(CLASS_LOG_TAG, "Giving up on broadcast from " + reassembly.address);
+            this.remove(reassembly);
+            return;
+        }
+
+        int limit = tail ? reassembly.fragments.length : reassembly.highest;
+        int firstMissing = 0;
+        while (!reassembly.isMissing(firstMissing))
+            firstMissing++;
+        int missing = 0;
+        for (int i = 0; i < 32 && firstMissing + 1 + i < limit; i++) {
+            if (reassembly.isMissing(firstMissing + 1 + i))
+                missing |= 1 << i;
+        }
+
+        byte[] nack = new byte[LoRaStreamSegment.BROADCAST_NACK_LENGTH];
+        nack[0] = LoRaStreamSegment.TYPE_BROADCAST_NACK;
+        LoRaStreamSegment.writeShort(nack, 1, reassembly.key >>> 16);
+        LoRaStreamSegment.writeShort(nack, 3, reassembly.key & 0xFFFF);
+        nack[5] = (byte) firstMissing;
+        LoRaStreamSegment.writeInt(nack, 6, missing);
+        try {
+            this.ioStream.getTransmitScheduler().sendControlMessage(
+                    new ASAPLoRaMessage(LoRaBroadcastSender.BROADCAST_ADDRESS, nack));
+        } catch (ASAPLoRaMessageException e) {
+            Log.e(CLASS_LOG_TAG, e.getMessage());
+        }
+        reassembly.nacks++;
+        this.nacksSent++;
+        this.armNackTimer(reassembly);
+    }
+
+    synchronized long getMessagesReceived() {
+        return this.messagesReceived;
+    }
+
+    synchronized long getNacksSent() {
+        return this.nacksSent;
+    }
+
+    /**
+     * @return NACKs we did not send, as another receiver asked for the same fragments
+     */
+    synchronized long getNacksSuppressed() {
+        return this.nacksSuppressed;
+    }
+}
@@ -0,0 +1,230 @@
+package net.sharksystem.asap.android.lora;
+
+import android.util.Log;
+
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaException;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Sends messages meant for all our LoRa neighbours once to the broadcast address, instead of once
+ * per peer, so their airtime does not grow with the neighbourhood.
+ *
+ * A message is cut into BROADCAST fragments (see {@link LoRaStreamSegment}), which go out in
+ * order, one per turn of the {@link LoRaTransmitScheduler}, like the data of a peer. Receivers
+ * reassemble them in a {@link LoRaBroadcastReceiver} and report what they miss in a BROADCAST
+ * NACK, also to everyone. Each fragment reported missing is repeated once, no matter how many
+ * receivers miss it: NACKs arriving within {@link LoRaBroadcastReceiver#NACK_DELAY} of its repair
+ * were most likely sent before they heard it. Messages are kept for {@link #REPAIR_TIMEOUT} after
+ * their last fragment went out.
+ *
+ * Our board does not tell us its own address, so a random sender id tells NACKs for our messages
+ * apart from those for other senders.
+ */
+class LoRaBroadcastSender implements LoRaTransmitScheduler.Source {
+    private static final String CLASS_LOG_TAG = "ASAPLoRaBroadcastSender";
+    static final String BROADCAST_ADDRESS = "FFFF";
+    static final int MAX_FRAGMENTS = 255;
+    static final int MAX_MESSAGES = 16;
+    static final long REPAIR_TIMEOUT = 30 * 60 * 1000; //30 minutes in ms
+
+    private final LoRaBTInputOutputStream ioStream;
+    private final int senderId;
+    private final ArrayDeque<Message> messages = new ArrayDeque<>(); //oldest first
+    private final byte[] frame = new byte[ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH];
+    private int nextMessageId;
+
+    private long fragmentsSent = 0;
+    private long repairsSent = 0;
+
+    private static class Message {
+        final int id;
+        final byte[] data;
+        final int fragmentLength;
+        final int fragmentCount;
+        final BitSet repairs = new BitSet(); //fragments to repeat
+        final long[] repairedAt;
+        int nextFragment = 0; //first fragment never sent
+        long sentAt = -1; //when the last fragment went out for the first time
+
+        Message(int id, byte[] data, int fragmentLength) {
+            this.id = id;
+            this.data = data;
+            this.fragmentLength = fragmentLength;
+            this.fragmentCount = Math.max(1, (data.length + fragmentLength - 1) / fragmentLength);
+            this.repairedAt = new long[this.fragmentCount];
+        }
+
+        boolean isSent() {
+            return this.nextFragment == this.fragmentCount;
+        }
+
+        /**
+         * @return next fragment to send, repairs first, -1 if there is none
+         */
+        int nextFragment() {
+            int repair = this.repairs.nextSetBit(0);
+            if (repair >= 0)
+                return repair;
+            return this.isSent() ? -1 : this.nextFragment;
+        }
+
+        int length(int fragment) {
+            return Math.min(this.fragmentLength, this.data.length - fragment * this.fragmentLength);
+        }
+    }
+
+    LoRaBroadcastSender(LoRaBTInputOutputStream ioStream, Random random) {
+        this.ioStream = ioStream;
+        this.senderId = random.nextInt(0x10000);
+        this.nextMessageId = random.nextInt(0x10000);
+    }
+
+    /**
+     * Queues data for all neighbours.
+     *
+     * @param data
+     * @return id of the message
+     * @throws IOException if data does not fit into {@link #MAX_FRAGMENTS} fragments
+     */
+    int broadcast(byte[] data) throws IOException {
+        int fragmentLength = this.ioStream.getMaxPayloadLength() - LoRaStreamSegment.BROADCAST_HEADER_LENGTH;
+        if (data.length > MAX_FRAGMENTS * fragmentLength)
+            throw new IOException("Broadcast of " + data.length + " bytes does not fit into "
+                    + MAX_FRAGMENTS + " LoRa frames");
+
+        Message message;
+        synchronized (this) {
+            this.expire();
+            message = new Message(this.nextMessageId, data, fragmentLength);
+            this.nextMessageId = LoRaStreamSegment.next(this.nextMessageId, 1);
+            this.messages.add(message);
+        }
+        this.ioStream.getTransmitScheduler().ready(this, false);
+        return message.id;
+    }
+
+    /**
+     * Drops messages past their repair timeout and the oldest sent ones beyond {@link #MAX_MESSAGES}
+     */
+    private void expire() {
+        long deadline = System.currentTimeMillis() - (long) (REPAIR_TIMEOUT * this.ioStream.getTimerScale());
+        int excess = this.messages.size() - MAX_MESSAGES + 1;
+        Iterator<Message> iterator = this.messages.iterator();
+        while (iterator.hasNext()) {
+            Message message = iterator.next();
+            if (message.isSent() && (message.sentAt < deadline || excess > 0)) {
+                iterator.remove();
+                excess--;
+            }
+        }
+    }
+
+    private Message nextMessage() {
+        for (Message message : this.messages) {
+            if (message.nextFragment() >= 0)
+                return message;
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized int nextFrameLength() {
+        Message message = this.nextMessage();
+        return message == null ? -1
+                : LoRaStreamSegment.BROADCAST_HEADER_LENGTH + message.length(message.nextFragment());
+    }
+
+    @Override
+    public synchronized int transmitNext(LoRaBTInputOutputStream.LoRaBTOutputStream os) throws IOException, ASAPLoRaException {
+        Message message = this.nextMessage();
+        if (message == null)
+            return -1;
+
+        int fragment = message.nextFragment();
+        if (message.repairs.get(fragment)) {
+            message.repairs.clear(fragment);
+            message.repairedAt[fragment] = System.currentTimeMillis();
+            this.repairsSent++;
+        } else {
+            message.nextFragment++;
+            if (message.isSent())
+                message.sentAt = System.currentTimeMillis();
+            this.fragmentsSent++;
+        }
+
+        int length = message.length(fragment);
+        this.frame[0] = LoRaStreamSegment.TYPE_BROADCAST;
+        LoRaStreamSegment.writeShort(this.frame, 1, this.senderId);
+        LoRaStreamSegment.writeShort(this.frame, 3, message.id);
+        this.frame[5] = (byte) fragment;
+        this.frame[6] = (byte) message.fragmentCount;
+        System.arraycopy(message.data, fragment * message.fragmentLength,
+                this.frame, LoRaStreamSegment.BROADCAST_HEADER_LENGTH, length);
+        os.write(new ASAPLoRaMessage(BROADCAST_ADDRESS, this.frame,
+                LoRaStreamSegment.BROADCAST_HEADER_LENGTH + length, null));
+        return LoRaStreamSegment.BROADCAST_HEADER_LENGTH + length;
+    }
+
+    @Override
+    public String getAddress() {
+        return BROADCAST_ADDRESS;
+    }
+
+    /**
+     * Handles a BROADCAST NACK segment: marks the fragments it reports missing for repair, if it
+     * is about one of our messages. Fragments not sent yet are on their way anyway.
+     *
+     * @param segment
+     * @return false if the NACK is about the message of another sender
+     */
+    boolean onNack(byte[] segment) {
+        if (LoRaStreamSegment.readShort(segment, 1) != this.senderId)
+            return false;
+
+        int id = LoRaStreamSegment.readShort(segment, 3);
+        int firstMissing = segment[5] & 0xFF;
+        int missing = LoRaStreamSegment.readInt(segment, 6);
+        boolean repair = false;
+        long repairedSince = System.currentTimeMillis()
+                - (long) (LoRaBroadcastReceiver.NACK_DELAY * this.ioStream.getTimerScale());
+        synchronized (this) {
+            for (Message message : this.messages) {
+                if (message.id != id)
+                    continue;
+                for (int i = -1; i < 32; i++) {
+                    int fragment = firstMissing + 1 + i;
+                    if ((i < 0 || (missing & (1 << i)) != 0) && fragment < message.nextFragment
+                            && !message.repairs.get(fragment) && message.repairedAt[fragment] < repairedSince) {
+                        message.repairs.set(fragment);
+                        repair = true;
+                    }
+                }
+            }
+        }
+        if (repair) {
+            Log.i(CLASS_LOG_TAG, "Repairing broadcast " + id);
+            this.ioStream.getTransmitScheduler().ready(this, false);
+        }
+        return true;
+    }
+
+    /**
+     * @return fragments sent for the first time
+     */
+    synchronized long getFragmentsSent() {
+        return this.fragmentsSent;
+    }
+
+    /**
+     * @return fragments repeated on NACKs
+     */
+    synchronized long getRepairsSent() {
+        return this.repairsSent;
+    }
+}
@@ -0,0 +1,57 @@
+package net.sharksystem.asap.android.lora;
+
+/**
+ * What happened to the frames we sent to one LoRa peer, see
+ * {@link LoRaCommunicationManager#getCollisionStats(String)}. Frames lost to collisions show up
+ * as ERRORs of the board or, if nobody noticed, as retransmissions of the ARQ.
+ */
+public class LoRaCollisionStats {
+    private final long framesSent;
+    private final long errors;
+    private final long deferrals;
+    private final long retransmissions;
+
+    /**
+     * @param framesSent      frames written to the board
+     * @param errors          ERRORs the board answered them with
+     * @param deferrals       times we held a frame back, as the channel seemed busy
+     * @param retransmissions segments the ARQ sent again
+     */
+    LoRaCollisionStats(long framesSent, long errors, long deferrals, long retransmissions) {
+        this.framesSent = framesSent;
+        this.errors = errors;
+        this.deferrals = deferrals;
+        this.retransmissions = retransmissions;
+    }
+
+    public long getFramesSent() {
+        return this.framesSent;
+    }
+
+    public long getErrors() {
+        return this.errors;
+    }
+
+    public long getDeferrals() {
+        return this.deferrals;
+    }
+
+    public long getRetransmissions() {
+        return this.retransmissions;
+    }
+
+    /**
+     * @return share of the frames sent that did not make it, 0 if none were sent
+     */
+    public double getCollisionRate() {
+        if (this.framesSent == 0)
+            return 0;
+        return (double) (this.errors + this.retransmissions) / this.framesSent;
+    }
+
+    @Override
+    public String toString() {
+        return "LoRaCollisionStats{framesSent=" + this.framesSent + ", errors=" + this.errors
+                + ", deferrals=" + this.deferrals + ", retransmissions=" + this.retransmissions + "}";
+    }
+}
@@ -11,25 +11,62 @@ import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessageInterface;
 import net.sharksystem.asap.android.lora.messages.AbstractASAPLoRaMessage;
 import net.sharksystem.asap.android.lora.messages.DiscoverASAPLoRaMessage;
 import net.sharksystem.asap.android.lora.messages.ErrorASAPLoRaMessage;
+import net.sharksystem.asap.android.lora.messages.FrameModeASAPLoRaMessage;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * This Class orchestrates the Communication between the LoRaEngine and the different Stream-Instances
  */
-public class LoRaCommunicationManager extends Thread {
+public class LoRaCommunicationManager extends Thread
+        implements LoRaBTInputOutputStream.ChunkPendingListener, LoRaBTMessageParser.BoardMessageListener,
+        LoRaRelay.RouteListener {
     private static final String CLASS_LOG_TAG = "ASAPLoRaCommManager";
-    private static final long FLUSH_BUFFER_TIMEOUT = 250;
-    private static final long DISCOVER_MESSAGE_TIMEOUT = 5 * 60 * 1000; //5 minutes in ms
-    private static final long CONNECTION_ACTIVE_TIMEOUT = DISCOVER_MESSAGE_TIMEOUT * 10; //60s in ms
-    private static LoRaBTInputOutputStream ioStream = null;
+    public static final long FLUSH_BUFFER_TIMEOUT = 250;
+    public static final long DISCOVER_MESSAGE_TIMEOUT = 5 * 60 * 1000; //5 minutes in ms
+    public static final long CONNECTION_ACTIVE_TIMEOUT = DISCOVER_MESSAGE_TIMEOUT * 10; //50 minutes in ms
+    public static final long SESSION_RESUME_TIMEOUT = 12 * 60 * 60 * 1000; //12 hours in ms
+    private static final long FRAME_MODE_NEGOTIATION_TIMEOUT = 2 * 1000; //2 seconds in ms
+    public static final long TIMER_TICK = 50; //ms, idle, flush and ARQ timers fire up to two ticks late
+    private LoRaBTInputOutputStream ioStream = null;
+    private PeerDiscoveryListener peerDiscoveryListener;
     private BluetoothDevice btDevice;
     private LoRaBTListenThread loRaBTListenThread = null;
-    private HashMap<String, Long> lastMessageTimeLog = new HashMap<>();
+    private final ConcurrentMap<String, Long> lastMessageTimeLog = new ConcurrentHashMap<>();
+    private final Object runLock = new Object();
+    private volatile ScheduledExecutorService scheduler = null;
+    private volatile LoRaTimerWheel timerWheel = null;
+    private volatile LoRaDiscoveryBeacon discoveryBeacon = null;
+    private volatile long flushBufferTimeout = FLUSH_BUFFER_TIMEOUT;
+    private long discoverMessageInterval = DISCOVER_MESSAGE_TIMEOUT;
+    private long connectionActiveTimeout = CONNECTION_ACTIVE_TIMEOUT;
+    private long sessionResumeTimeout = SESSION_RESUME_TIMEOUT;
+    private long timerTick = TIMER_TICK;
+    private final Object frameModeLock = new Object();
+    private boolean frameModeNegotiated = false;
+
+    /**
+     * Gets told about peers the ASAPLoRaBTModule discovered
+     */
+    interface PeerDiscoveryListener {
+        void onPeerDiscovered(String address);
+    }
+
+    /**
+     * Gets the messages our neighbours sent to everyone, see {@link #broadcast(byte[])}.
+     * Called from the thread reading from the ASAPLoRaBTModule, so it must not block.
+     */
+    public interface BroadcastListener {
+        void onBroadcastReceived(String address, byte[] message);
+    }
 
     /**
      * Creates our LoRa Communication Management Thread
@@ -41,6 +78,12 @@ public class LoRaCommunicationManager extends Thread {
     public LoRaCommunicationManager(BluetoothDevice bluetoothDevice) throws ASAPLoRaException {
 
         this.btDevice = bluetoothDevice;
+        this.peerDiscoveryListener = new PeerDiscoveryListener() {
+            @Override
+            public void onPeerDiscovered(String address) {
+                LoRaEngine.getASAPLoRaEngine().tryConnect(LoRaCommunicationManager.this, address);
+            }
+        };
 
         if (this.btDevice == null)
             throw new ASAPLoRaException("Please pair to an ASAP-LoRa Board before Starting LoRa!");
@@ -64,6 +107,19 @@ public class LoRaCommunicationManager extends Thread {
         }
     }
 
+    /**
+     * Creates our LoRa Communication Management Thread on top of an existing connection to an
+     * ASAPLoRaBTModule, e.g. a simulated one, reporting discovered peers to peerDiscoveryListener
+     * instead of the {@link LoRaEngine}.
+     *
+     * @param ioStream
+     * @param peerDiscoveryListener
+     */
+    LoRaCommunicationManager(LoRaBTInputOutputStream ioStream, PeerDiscoveryListener peerDiscoveryListener) {
+        this.ioStream = ioStream;
+        this.peerDiscoveryListener = peerDiscoveryListener;
+    }
+
     public OutputStream getASAPOutputStream(String mac) {
         return this.ioStream.getASAPOutputStream(mac);
     }
@@ -80,13 +136,60 @@ public class LoRaCommunicationManager extends Thread {
         return this.ioStream.getInputStream();
     }
 
+    LoRaBTInputOutputStream getIOStream() {
+        return this.ioStream;
+    }
+
+    /**
+     * @return the ASAPLoRaBTModule we are connected to, null for a simulated one
+     */
+    BluetoothDevice getBluetoothDevice() {
+        return this.btDevice;
+    }
+
     /**
      * Tries to initiate a connection to a device with the MAC in address by passing it to the LoRaEngine
      * This gets called if a new device was discovered after sending out a periodical Discover message
      * @param address
      */
     public void tryConnect(String address) {
-        LoRaEngine.getASAPLoRaEngine().tryConnect(address);
+        this.peerDiscoveryListener.onPeerDiscovered(address);
+    }
+
+    /**
+     * Sends message once to all LoRa neighbours instead of once per peer. Neighbours that miss
+     * parts of it ask for them again, see {@link LoRaBroadcastSender}.
+     *
+     * @param message at most {@link LoRaBroadcastSender#MAX_FRAGMENTS} LoRa frames long
+     * @throws IOException if message is too long
+     */
+    public void broadcast(byte[] message) throws IOException {
+        this.ioStream.getBroadcastSender().broadcast(message);
+    }
+
+    public void setBroadcastListener(BroadcastListener broadcastListener) {
+        this.ioStream.getBroadcastReceiver().setBroadcastListener(broadcastListener);
+    }
+
+    /**
+     * Sends parityFrames PARITY frames along with every groupSize frames of data, see
+     * {@link LoRaBTInputOutputStream#setForwardErrorCorrection(int, int)}.
+     *
+     * @param groupSize
+     * @param parityFrames 0 switches forward error correction off
+     */
+    public void setForwardErrorCorrection(int groupSize, int parityFrames) {
+        this.ioStream.setForwardErrorCorrection(groupSize, parityFrames);
+    }
+
+    /**
+     * Compresses the streams to peers with the same dictionary, see
+     * {@link LoRaBTInputOutputStream#setCompressionDictionary(LoRaASAPDictionary)}.
+     *
+     * @param dictionary null switches compression off
+     */
+    public void setCompressionDictionary(LoRaASAPDictionary dictionary) {
+        this.ioStream.setCompressionDictionary(dictionary);
     }
 
     /**
@@ -100,20 +203,143 @@ public class LoRaCommunicationManager extends Thread {
      */
     public void receiveASAPLoRaMessage(ASAPLoRaMessageInterface theASAPLoRaMessage) throws ASAPLoRaException {
         Log.i(this.CLASS_LOG_TAG, "Message received: " + theASAPLoRaMessage.toString());
+        //messages from the board itself use the broadcast address and don't keep any peer alive
+        boolean fromPeer = !theASAPLoRaMessage.getAddress().equals("FFFF");
+        if (fromPeer)
+            this.frameHeard(theASAPLoRaMessage.getAddress(), theASAPLoRaMessage.getBinaryPayload(),
+                    theASAPLoRaMessage.getBinaryPayloadLength());
         theASAPLoRaMessage.handleMessage(this);
 
-        this.lastMessageTimeLog.put(theASAPLoRaMessage.getAddress(), System.currentTimeMillis());
+        if (fromPeer)
+            this.keepAlive(theASAPLoRaMessage.getAddress());
+    }
+
+    /**
+     * Called for every frame the board received from a peer, which may still be on the air.
+     * Must be called before the frame is handled, as handling it may queue our answer already.
+     *
+     * @param address
+     * @param payload       may be null
+     * @param payloadLength
+     */
+    private void frameHeard(String address, byte[] payload, int payloadLength) {
+        boolean ackRequested = payloadLength > 0 && LoRaStreamSegment.isData(payload[0])
+                && LoRaStreamSegment.isAckRequested(payload);
+        this.ioStream.getTransmitScheduler().onFrameHeard(address, payloadLength, ackRequested);
+    }
+
+    /**
+     * Called for every frame the board received from address
+     *
+     * @param address
+     */
+    private void keepAlive(String address) {
+        this.ioStream.getRelay().onHeard(address);
+        this.peerHeard(address);
+    }
+
+    private void peerHeard(String address) {
+        this.logMessageTime(address);
+        this.ioStream.onPeerHeard(address);
+    }
+
+    /**
+     * Resets the idle timeout of address. Only a peer we did not watch yet gets a timer, the
+     * timer of any other one finds out about the new time when it fires.
+     */
+    private void logMessageTime(String address) {
+        if (this.lastMessageTimeLog.put(address, System.currentTimeMillis()) == null)
+            this.watchIdle(address, this.connectionActiveTimeout);
+    }
+
+    private void watchIdle(final String address, long delay) {
+        LoRaTimerWheel timerWheel = this.timerWheel;
+        if (timerWheel == null)
+            return; //not running (yet)
+        timerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                LoRaCommunicationManager.this.checkIdle(address);
+            }
+        }, delay);
+    }
+
+    /**
+     * A peer our board does not hear can be reached over other nodes, see {@link LoRaRelay}
+     *
+     * @param address
+     */
+    @Override
+    public void onPeerReachable(String address) {
+        Log.i(CLASS_LOG_TAG, "Peer reachable over relays: " + address);
+        this.tryConnect(address);
+    }
+
+    /**
+     * Keeps a peer alive that reaches us over other nodes
+     *
+     * @param origin
+     */
+    @Override
+    public void onRelayedFrame(String origin) {
+        this.peerHeard(origin);
+    }
+
+    /**
+     * Handles data received by the {@link LoRaBTListenThread}, like {@link #appendMessage(ASAPLoRaMessage)}.
+     * Payload is the parser's buffer, which is only valid during this call.
+     *
+     * @param address
+     * @param payload
+     * @param length
+     */
+    @Override
+    public void onMessage(String address, byte[] payload, int length) {
+        this.frameHeard(address, payload, length);
+        this.ioStream.receiveSegment(address, payload, length);
+        this.keepAlive(address);
+    }
+
+    @Override
+    public void onDeviceDiscovered(String address) {
+        Log.i(CLASS_LOG_TAG, "Device discovered: " + address);
+        LoRaDiscoveryBeacon discoveryBeacon = this.discoveryBeacon;
+        if (discoveryBeacon != null)
+            discoveryBeacon.onDeviceDiscovered(address);
+        this.frameHeard(address, null, 0);
+        this.tryConnect(address);
+        this.keepAlive(address);
+    }
+
+    /**
+     * The board could not send our last frame, e.g. as the channel was busy, so we back off,
+     * see {@link LoRaTransmitScheduler}.
+     *
+     * @param message
+     */
+    @Override
+    public void onError(String message) {
+        Log.e(CLASS_LOG_TAG, "Error from ASAPLoRaBTModule: " + message);
+        this.ioStream.getTransmitScheduler().onBoardError();
+    }
+
+    @Override
+    public void onFrameModeConfirmed(boolean binary) {
+        this.frameModeConfirmed(binary);
     }
 
     /**
      * Append Data from a received ASAPLoRaMessage to the corresponding ASAPInputStream, to
      * pass the data to the ASAPPeer it is addressed to go to, which is reading from the InputStream.
+     * The data is a segment of the ARQ between us and the peer, so it may as well be an ack
+     * for data we sent.
      *
      * @param asapLoRaMessage
      * @throws ASAPLoRaMessageException
      */
     public void appendMessage(ASAPLoRaMessage asapLoRaMessage) throws ASAPLoRaMessageException {
-        this.ioStream.getASAPInputStream(asapLoRaMessage.getAddress()).appendData(asapLoRaMessage.getMessage());
+        byte[] segment = asapLoRaMessage.getMessage();
+        this.ioStream.receiveSegment(asapLoRaMessage.getAddress(), segment, segment.length);
     }
 
     /**
@@ -123,45 +349,381 @@ public class LoRaCommunicationManager extends Thread {
      */
     public void handleError(ErrorASAPLoRaMessage asapLoRaMessage) {
         Log.e(CLASS_LOG_TAG, "ErrorASAPLoRaMessage discovered: " + asapLoRaMessage.getPayload());
+        this.ioStream.getTransmitScheduler().onBoardError();
+    }
+
+    /**
+     * Called from the {@link FrameModeASAPLoRaMessage} when the board confirmed a frame mode.
+     * The board switches right after its confirmation, so we have to switch before the
+     * {@link LoRaBTListenThread} reads the next message.
+     *
+     * @param binary
+     */
+    public void frameModeConfirmed(boolean binary) {
+        Log.i(CLASS_LOG_TAG, "Board confirmed " + (binary ? "binary" : "text") + " frame mode.");
+        this.ioStream.setBinaryFrameMode(binary);
+        synchronized (this.frameModeLock) {
+            this.frameModeNegotiated = true;
+            this.frameModeLock.notifyAll();
+        }
+    }
+
+    /**
+     * Asks the board for binary frames and waits for its confirmation. Nothing else may be
+     * written to the board in the meantime, so this has to happen before any discovery.
+     * If the board does not answer in time, we keep using text lines.
+     *
+     * @throws IOException
+     * @throws ASAPLoRaException
+     */
+    private void negotiateFrameMode() throws IOException, ASAPLoRaException {
+        this.ioStream.getOutputStream().write(new FrameModeASAPLoRaMessage(FrameModeASAPLoRaMessage.MODE_BINARY));
+
+        long deadline = System.currentTimeMillis() + FRAME_MODE_NEGOTIATION_TIMEOUT;
+        synchronized (this.frameModeLock) {
+            while (!this.frameModeNegotiated && System.currentTimeMillis() < deadline) {
+                try {
+                    this.frameModeLock.wait(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    this.interrupt(); //keep the interrupt for our run loop
+                    break;
+                }
+            }
+        }
+
+        if (!this.frameModeNegotiated)
+            Log.i(CLASS_LOG_TAG, "Board did not confirm binary frames, using text mode.");
+    }
+
+    /**
+     * Arms the flush deadline of a {@link LoRaBTInputOutputStream.LoRaASAPOutputStream} whose
+     * chunk just received its first bytes. This bounds the time data waits in a chunk to the
+     * flush buffer timeout, without waking up while there is nothing to send.
+     *
+     * @param os
+     */
+    @Override
+    public void onChunkPending(final LoRaBTInputOutputStream.LoRaASAPOutputStream os) {
+        LoRaTimerWheel timerWheel = this.timerWheel;
+        if (timerWheel == null)
+            return; //not running (yet), leave the data for the next flush
+
+        //null if we are shutting down
+        timerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    //our scheduler must never block, so try again later if the stream is busy
+                    if (!os.flushOnDeadline())
+                        LoRaCommunicationManager.this.onChunkPending(os);
+                } catch (IOException e) {
+                    //the stream was closed in the meantime
+                    Log.e(CLASS_LOG_TAG, e.getMessage());
+                }
+            }
+        }, this.flushBufferTimeout);
+    }
+
+    /**
+     * Send a Discover Message when the {@link LoRaDiscoveryBeacon} says so, ahead of any queued data.
+     * In relay mode, the nodes we reach follow it.
+     *
+     * @return time on air of the Discover Message in ms
+     */
+    private long sendDiscoverMessage() {
+        try {
+            this.ioStream.getTransmitScheduler().sendControlMessage(new DiscoverASAPLoRaMessage());
+        } catch (ASAPLoRaMessageException e) {
+            this.fail(e);
+        }
+        this.ioStream.getRelay().advertise();
+        return this.ioStream.getTransmitScheduler().timeOnAir(0);
+    }
+
+    /**
+     * Called by the idle timer of address: suspends the session of a peer we did not hear from,
+     * so that it can be resumed when the peer shows up again. Sessions stay suspended for
+     * {@link #SESSION_RESUME_TIMEOUT}, then their streams are closed and we forget the peer.
+     * Until then, the timer is armed again for the time left.
+     * Does not wait for the ASAPPeers to get the EOF, so many idle peers don't hold up the scheduler.
+     *
+     * @param address
+     */
+    private void checkIdle(String address) {
+        Long lastMessageTime = this.lastMessageTimeLog.get(address);
+        if (lastMessageTime == null)
+            return;
+        long idle = System.currentTimeMillis() - lastMessageTime;
+        if (idle <= this.connectionActiveTimeout) {
+            this.watchIdle(address, this.connectionActiveTimeout - idle + 1);
+            return;
+        }
+        if (idle <= this.connectionActiveTimeout + this.sessionResumeTimeout
+                && (this.ioStream.isSuspended(address) || this.ioStream.suspendASAPStream(address))) {
+            this.watchIdle(address, this.connectionActiveTimeout + this.sessionResumeTimeout - idle + 1);
+            return;
+        }
+        if (!this.lastMessageTimeLog.remove(address, lastMessageTime)) {
+            this.checkIdle(address); //heard just now
+            return;
+        }
+        Log.i(CLASS_LOG_TAG, "Closing streams of idle peer " + address);
+        this.ioStream.closeASAPStream(address);
+        LoRaDiscoveryBeacon discoveryBeacon = this.discoveryBeacon;
+        if (discoveryBeacon != null)
+            discoveryBeacon.forget(address);
+    }
+
+    /**
+     * A scheduled task failed to talk to the board, shut down like the former run loop did.
+     *
+     * @param e
+     */
+    private void fail(Exception e) {
+        Log.e(this.CLASS_LOG_TAG, e.getMessage());
+        this.interrupt();
+    }
+
+    /**
+     * @return number of control messages and peers waiting to send over LoRa
+     */
+    public int getTransmitQueueDepth() {
+        return this.ioStream.getTransmitScheduler().getQueueDepth();
+    }
+
+    /**
+     * @param mac
+     * @return number of frames waiting to be sent to, or acknowledged by, the peer with mac
+     */
+    public int getTransmitQueueDepth(String mac) {
+        return this.ioStream.getQueueDepth(mac);
+    }
+
+    /**
+     * @param mac
+     * @return frames sent to the peer with mac, and how many of them collided
+     */
+    public LoRaCollisionStats getCollisionStats(String mac) {
+        return this.ioStream.getCollisionStats(mac);
+    }
+
+    /**
+     * @param listenBeforeTalk hold back after hearing a frame or getting an ERROR from the board, on by default
+     */
+    public void setListenBeforeTalk(boolean listenBeforeTalk) {
+        this.ioStream.getTransmitScheduler().setListenBeforeTalk(listenBeforeTalk);
+    }
+
+    /**
+     * Relays frames between nodes that don't hear each other, see
+     * {@link LoRaBTInputOutputStream#setRelaying(boolean)}. Has to be set before any data is sent.
+     *
+     * @param relaying
+     */
+    public void setRelaying(boolean relaying) {
+        this.ioStream.setRelaying(relaying);
+    }
+
+    /**
+     * Keeps our sessions in journal, so that they survive a restart, see
+     * {@link LoRaBTInputOutputStream#restoreSessions()}. Has to be set before .start().
+     *
+     * @param journal
+     */
+    void setJournal(LoRaOutboundJournal journal) {
+        this.ioStream.setJournal(journal);
+    }
+
+    /**
+     * @return frames we passed on for other nodes in relay mode
+     */
+    public long getFramesRelayed() {
+        return this.ioStream.getRelay().getFramesRelayed();
+    }
+
+    /**
+     * @return relay frames we got twice and dropped
+     */
+    public long getRelayDuplicatesDropped() {
+        return this.ioStream.getRelay().getDuplicatesDropped();
+    }
+
+    /**
+     * @return airtime in ms the duty cycle leaves us right now
+     */
+    public long getAirtimeBudget() {
+        return this.ioStream.getTransmitScheduler().getAirtimeBudget();
+    }
+
+    /**
+     * @param dutyCycle share of time we may send, e.g. 0.01 for the 1% of most EU868 sub-bands
+     */
+    public void setDutyCycle(double dutyCycle) {
+        this.ioStream.getTransmitScheduler().setDutyCycle(dutyCycle);
+    }
+
+    /**
+     * @return Discover Messages sent since start
+     */
+    public long getBeaconsSent() {
+        LoRaDiscoveryBeacon discoveryBeacon = this.discoveryBeacon;
+        return discoveryBeacon == null ? 0 : discoveryBeacon.getBeaconsSent();
+    }
+
+    /**
+     * @return Discover Messages no other device answered before the next one was due
+     */
+    public long getUnansweredBeacons() {
+        LoRaDiscoveryBeacon discoveryBeacon = this.discoveryBeacon;
+        return discoveryBeacon == null ? 0 : discoveryBeacon.getUnansweredBeacons();
+    }
+
+    /**
+     * @return time on air in ms spent on unanswered Discover Messages
+     */
+    public long getWastedBeaconAirtime() {
+        LoRaDiscoveryBeacon discoveryBeacon = this.discoveryBeacon;
+        return discoveryBeacon == null ? 0 : discoveryBeacon.getWastedAirtime();
+    }
+
+    /**
+     * @return ms from start to the first discovered device, -1 if there was none yet
+     */
+    public long getTimeToFirstEncounter() {
+        LoRaDiscoveryBeacon discoveryBeacon = this.discoveryBeacon;
+        return discoveryBeacon == null ? -1 : discoveryBeacon.getTimeToFirstEncounter();
+    }
+
+    /**
+     * @return ms the Discover Messages are currently apart, without jitter
+     */
+    public long getBeaconInterval() {
+        LoRaDiscoveryBeacon discoveryBeacon = this.discoveryBeacon;
+        return discoveryBeacon == null ? 0 : discoveryBeacon.getInterval();
+    }
+
+    /**
+     * @return broadcast frames sent, the first time or repeated on request
+     */
+    public long getBroadcastFramesSent() {
+        LoRaBroadcastSender broadcastSender = this.ioStream.getBroadcastSender();
+        return broadcastSender.getFragmentsSent() + broadcastSender.getRepairsSent();
+    }
+
+    /**
+     * @return broadcast frames repeated, as neighbours missed them
+     */
+    public long getBroadcastRepairsSent() {
+        return this.ioStream.getBroadcastSender().getRepairsSent();
+    }
+
+    /**
+     * @return NACKs we sent for broadcasts we did not receive completely
+     */
+    public long getBroadcastNacksSent() {
+        return this.ioStream.getBroadcastReceiver().getNacksSent();
+    }
+
+    /**
+     * @return frames we received by rebuilding them from PARITY frames instead
+     */
+    public long getFECSegmentsRecovered() {
+        return this.ioStream.getFECSegmentsRecovered();
+    }
+
+    public void setFlushBufferTimeout(long flushBufferTimeout) {
+        this.flushBufferTimeout = flushBufferTimeout;
+    }
+
+    /**
+     * @param discoverMessageInterval longest time between Discover Messages, reached when nobody answers
+     */
+    public void setDiscoverMessageInterval(long discoverMessageInterval) {
+        this.discoverMessageInterval = discoverMessageInterval;
+    }
+
+    public void setConnectionActiveTimeout(long connectionActiveTimeout) {
+        this.connectionActiveTimeout = connectionActiveTimeout;
+    }
+
+    /**
+     * @param sessionResumeTimeout how long the session of an idle peer can be resumed, 0 closes it right away
+     */
+    public void setSessionResumeTimeout(long sessionResumeTimeout) {
+        this.sessionResumeTimeout = sessionResumeTimeout;
+    }
+
+    /**
+     * @param timerTick in ms, idle peers are closed, chunks flushed and ARQ timers fire up to two
+     *                  ticks late, see {@link LoRaTimerWheel}. Has to be set before .start().
+     */
+    public void setTimerTick(long timerTick) {
+        this.timerTick = timerTick;
+    }
+
+    /**
+     * @return peers we did not close the streams of yet, as we heard them within the idle timeouts
+     */
+    public int getWatchedPeers() {
+        return this.lastMessageTimeLog.size();
     }
 
     @Override
     public void run() {
         try {
+            /*
+             * All periodic work runs on a scheduler, so this thread can sleep until it gets
+             * interrupted instead of spinning. Idle peers, flush deadlines and ARQ timers are
+             * kept in a timer wheel on the same scheduler, armed as soon as we hear from a peer.
+             */
+            this.scheduler = Executors.newSingleThreadScheduledExecutor();
+            this.ioStream.setScheduler(this.scheduler);
+            double timerScale = this.ioStream.getTimerScale();
+            this.timerWheel = new LoRaTimerWheel(this.scheduler, (long) (this.timerTick * timerScale));
+            this.ioStream.setTimerWheel(this.timerWheel);
+
+            this.ioStream.setChunkPendingListener(this);
+            //sessions of the last run are resumed once we hear their peers, or expire like idle ones.
+            //Before we listen, a frame of a peer would start its session over in our journal otherwise.
+            for (String mac : this.ioStream.restoreSessions())
+                this.logMessageTime(mac);
+
             //Start Listening for new Messages
             this.loRaBTListenThread = new LoRaBTListenThread(this);
             this.loRaBTListenThread.start();
-            long lastBufferFlush = System.currentTimeMillis();
-            long lastDiscoverMessage = 0;
-
-            while (!this.isInterrupted()) {
-                //Periodically send Discover Message
-                if ((System.currentTimeMillis() - lastDiscoverMessage) > this.DISCOVER_MESSAGE_TIMEOUT) {
-                    this.ioStream.getOutputStream().write(new DiscoverASAPLoRaMessage());
-                    lastDiscoverMessage = System.currentTimeMillis();
-
-                    //Periodically check last message times and close streams
-                    for (HashMap.Entry<String, Long> lastMessageTime :
-                            this.lastMessageTimeLog.entrySet()) {
-                        if ((System.currentTimeMillis() - lastMessageTime.getValue()) > (CONNECTION_ACTIVE_TIMEOUT))
-                            ioStream.closeASAPStream(lastMessageTime.getKey());
-
-                    }
-                }
+            this.negotiateFrameMode();
 
-                //Periodically flush Buffers
-                if ((System.currentTimeMillis() - lastBufferFlush) > this.FLUSH_BUFFER_TIMEOUT) {
-                    this.ioStream.flushASAPOutputStreams();
-                    lastBufferFlush = System.currentTimeMillis();
+            //routes are advertised after the Discover Messages, at least every discover message interval
+            this.ioStream.getRelay().setRouteListener(this);
+            this.ioStream.getRelay().setRouteTimeout(Math.max(1, (long) (LoRaRelay.ROUTE_TIMEOUT
+                    * this.discoverMessageInterval / DISCOVER_MESSAGE_TIMEOUT * timerScale)));
+            this.discoveryBeacon = new LoRaDiscoveryBeacon(this.scheduler, new LoRaDiscoveryBeacon.BeaconSender() {
+                @Override
+                public long sendBeacon() {
+                    return LoRaCommunicationManager.this.sendDiscoverMessage();
                 }
-            }
+            }, Math.max(1, (long) (LoRaDiscoveryBeacon.MIN_BEACON_INTERVAL * timerScale)),
+                    Math.max(1, (long) (this.discoverMessageInterval * timerScale)), new Random());
+            this.discoveryBeacon.start();
 
+            synchronized (this.runLock) {
+                while (!this.isInterrupted())
+                    this.runLock.wait();
+            }
+        } catch (InterruptedException e) {
             Log.i(CLASS_LOG_TAG, "Thread was interrupted, starting Shutdown.");
         } catch (IOException | ASAPLoRaException e) {
             Log.e(this.CLASS_LOG_TAG, e.getMessage());
         } finally {
             //cleanup after ourselves
-            this.loRaBTListenThread.interrupt(); //Interrupt our Listen Thread
+            if (this.discoveryBeacon != null)
+                this.discoveryBeacon.stop();
+            if (this.timerWheel != null)
+                this.timerWheel.stop();
+            if (this.scheduler != null)
+                this.scheduler.shutdownNow(); //Stop all periodic tasks and pending flushes
+            if (this.loRaBTListenThread != null)
+                this.loRaBTListenThread.interrupt(); //Interrupt our Listen Thread
             this.ioStream.close(); //Close the Streams
             Log.i(CLASS_LOG_TAG, "Streams were closed. Shutting down.");
         }
@@ -0,0 +1,201 @@
+package net.sharksystem.asap.android.lora;
+
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the {@link LoRaCommunicationManager} sends its DSCVR beacons.
+ *
+ * Right after startup and whenever we hear a peer we did not know yet, we beacon every
+ * {@link #MIN_BEACON_INTERVAL}, so a new neighbour learns about us quickly. Every beacon that
+ * is followed by silence doubles the interval, up to the maximum, so an empty area does not
+ * cost airtime. Each delay is randomized by {@link #JITTER}, so that boards powered on together
+ * don't keep beaconing at the same time.
+ *
+ * We can't tell who heard our beacon, so a beacon counts as answered if any DVDCR arrived before
+ * the next one is due. The airtime of unanswered beacons is counted as wasted.
+ */
+class LoRaDiscoveryBeacon {
+    private static final String CLASS_LOG_TAG = "ASAPLoRaDiscoveryBeacon";
+    static final long MIN_BEACON_INTERVAL = 15 * 1000; //15 seconds in ms
+    static final int BACKOFF_FACTOR = 2;
+    static final double JITTER = 0.25; //delays vary by +-25%
+
+    /**
+     * Sends a beacon
+     */
+    interface BeaconSender {
+        /**
+         * @return time on air of the beacon in ms
+         */
+        long sendBeacon();
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final BeaconSender sender;
+    private final long minInterval;
+    private final long maxInterval;
+    private final Random random;
+
+    private long interval;
+    private boolean heardSinceLastBeacon = false;
+    private long lastBeaconAirtime = -1;
+    private final Set<String> knownPeers = new HashSet<>();
+    private ScheduledFuture<?> nextBeacon = null;
+    private long nextBeaconAt = 0;
+    private boolean stopped = false;
+
+    private long startedAt = -1;
+    private long firstEncounterAt = -1;
+    private long beaconsSent = 0;
+    private long unansweredBeacons = 0;
+    private long wastedAirtime = 0;
+    private long peersDiscovered = 0;
+
+    /**
+     * @param scheduler
+     * @param sender
+     * @param minInterval ms between beacons after startup and new peers
+     * @param maxInterval ms between beacons in an empty area
+     * @param random      source of the jitter
+     */
+    LoRaDiscoveryBeacon(ScheduledExecutorService scheduler, BeaconSender sender,
+                        long minInterval, long maxInterval, Random random) {
+        this.scheduler = scheduler;
+        this.sender = sender;
+        this.minInterval = minInterval;
+        this.maxInterval = Math.max(minInterval, maxInterval);
+        this.random = random;
+        this.interval = this.minInterval;
+    }
+
+    /**
+     * Sends the first beacon within a fraction of the minimum interval.
+     */
+    synchronized void start() {
+        this.startedAt = System.currentTimeMillis();
+        this.schedule((long) (this.random.nextDouble() * JITTER * this.minInterval));
+    }
+
+    synchronized void stop() {
+        this.stopped = true;
+        if (this.nextBeacon != null)
+            this.nextBeacon.cancel(false);
+    }
+
+    private long jittered(long interval) {
+        return (long) (interval * (1 - JITTER + 2 * JITTER * this.random.nextDouble()));
+    }
+
+    /**
+     * Must be called holding our lock.
+     */
+    private void schedule(long delay) {
+        if (this.stopped)
+            return;
+        if (this.nextBeacon != null)
+            this.nextBeacon.cancel(false);
+        this.nextBeaconAt = System.currentTimeMillis() + delay;
+        try {
+            this.nextBeacon = this.scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    LoRaDiscoveryBeacon.this.onBeaconDue();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //we are shutting down
+        }
+    }
+
+    synchronized void onBeaconDue() {
+        if (this.stopped)
+            return;
+        if (this.lastBeaconAirtime >= 0 && !this.heardSinceLastBeacon) {
+            this.unansweredBeacons++;
+            this.wastedAirtime += this.lastBeaconAirtime;
+            this.interval = Math.min(this.maxInterval, this.interval * BACKOFF_FACTOR);
+        }
+        this.heardSinceLastBeacon = false;
+        this.lastBeaconAirtime = this.sender.sendBeacon();
+        this.beaconsSent++;
+        this.schedule(this.jittered(this.interval));
+    }
+
+    /**
+     * Called for every DVDCR. A peer we did not know yet brings the next beacon forward.
+     *
+     * @param address
+     */
+    synchronized void onDeviceDiscovered(String address) {
+        this.heardSinceLastBeacon = true;
+        if (this.firstEncounterAt < 0 && this.startedAt >= 0) {
+            this.firstEncounterAt = System.currentTimeMillis();
+            Log.i(CLASS_LOG_TAG, "First encounter after " + (this.firstEncounterAt - this.startedAt) + "ms");
+        }
+        if (!this.knownPeers.add(address))
+            return;
+
+        this.peersDiscovered++;
+        this.interval = this.minInterval;
+        long delay = this.jittered(this.minInterval);
+        if (this.startedAt >= 0 && this.nextBeaconAt - System.currentTimeMillis() > delay)
+            this.schedule(delay);
+    }
+
+    /**
+     * Forgets a peer, e.g. after its streams expired, so that it counts as new when it's back.
+     *
+     * @param address
+     */
+    synchronized void forget(String address) {
+        this.knownPeers.remove(address);
+    }
+
+    synchronized long getInterval() {
+        return this.interval;
+    }
+
+    /**
+     * @return ms until the next beacon is due
+     */
+    synchronized long getNextBeaconDelay() {
+        return Math.max(0, this.nextBeaconAt - System.currentTimeMillis());
+    }
+
+    synchronized long getBeaconsSent() {
+        return this.beaconsSent;
+    }
+
+    /**
+     * @return beacons after which no DVDCR arrived before the next one
+     */
+    synchronized long getUnansweredBeacons() {
+        return this.unansweredBeacons;
+    }
+
+    /**
+     * @return time on air of all unanswered beacons in ms
+     */
+    synchronized long getWastedAirtime() {
+        return this.wastedAirtime;
+    }
+
+    synchronized long getPeersDiscovered() {
+        return this.peersDiscovered;
+    }
+
+    /**
+     * @return ms from start to the first DVDCR, -1 if there was none yet
+     */
+    synchronized long getTimeToFirstEncounter() {
+        return this.firstEncounterAt < 0 ? -1 : this.firstEncounterAt - this.startedAt;
+    }
+}
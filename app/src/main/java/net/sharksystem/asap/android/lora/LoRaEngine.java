@@ -8,13 +8,22 @@ import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaException;
 import net.sharksystem.asap.android.service.ASAPService;
 import net.sharksystem.asap.android.service.MacLayerEngine;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 
 public class LoRaEngine extends MacLayerEngine {
 
     private static final String CLASS_LOG_TAG = "ASAPLoRaEngine";
+    private static final String JOURNAL_FOLDER_NAME = "lora";
     private static LoRaEngine engine = null;
-    private LoRaCommunicationManager loRaCommunicationManager;
-    private BluetoothDevice asapLoRaBTModule;
+    private final LoRaModulePool modulePool = new LoRaModulePool();
+    private final List<BluetoothDevice> asapLoRaBTModules = new CopyOnWriteArrayList<>();
+    private volatile boolean relayMode = false;
+    private volatile LoRaCommunicationManager.BroadcastListener broadcastListener = null;
 
     public static LoRaEngine getASAPLoRaEngine(ASAPService ASAPService,
                                                Context context) {
@@ -34,53 +43,154 @@ public class LoRaEngine extends MacLayerEngine {
     }
 
     /**
-     * Expects a BluetoothDevice that is an ASAPLoRaBTModule as the parameter.
-     * Has to be set before .start(), otherwise {@link LoRaCommunicationManager} will crash immediately.
+     * Expects a BluetoothDevice that is an ASAPLoRaBTModule as the parameter, replacing any
+     * modules added before.
+     * Has to be set before .start(), otherwise the LoRaEngine will stop immediately.
      *
      * @param asapLoRaBTModule
      */
     public void setAsapLoRaBTModule(BluetoothDevice asapLoRaBTModule) {
-        this.asapLoRaBTModule = asapLoRaBTModule;
+        this.asapLoRaBTModules.clear();
+        this.addAsapLoRaBTModule(asapLoRaBTModule);
+    }
+
+    /**
+     * Adds a BluetoothDevice that is an ASAPLoRaBTModule, e.g. a second board on another channel.
+     * Takes effect with the next .start().
+     *
+     * @param asapLoRaBTModule
+     */
+    public void addAsapLoRaBTModule(BluetoothDevice asapLoRaBTModule) {
+        if (asapLoRaBTModule != null && !this.asapLoRaBTModules.contains(asapLoRaBTModule))
+            this.asapLoRaBTModules.add(asapLoRaBTModule);
+    }
+
+    /**
+     * Lets our modules relay frames between LoRa nodes that don't hear each other, and reach peers
+     * further away over other nodes in relay mode, see {@link LoRaRelay}. Off by default, takes
+     * effect with the next .start().
+     *
+     * @param relayMode
+     */
+    public void setRelayMode(boolean relayMode) {
+        this.relayMode = relayMode;
+    }
+
+    /**
+     * Gets the messages our LoRa neighbours send to everyone, see {@link #broadcast(byte[])}, on
+     * every ASAPLoRaBTModule. Takes effect right away and for modules started later.
+     *
+     * @param broadcastListener called on the listen thread of a module, must not block; null
+     *                          drops broadcasts
+     */
+    public synchronized void setBroadcastListener(LoRaCommunicationManager.BroadcastListener broadcastListener) {
+        this.broadcastListener = broadcastListener;
+        for (LoRaCommunicationManager loRaCommunicationManager : this.modulePool.getModules())
+            loRaCommunicationManager.setBroadcastListener(broadcastListener);
     }
 
     /**
      * Method to start the LoRaEngine.
-     * Starts the {@link LoRaCommunicationManager} with the ASAPLoRaBTModule set for this Engine.
+     * Starts a {@link LoRaCommunicationManager} for every ASAPLoRaBTModule set for this Engine.
+     * Modules we can't connect to are skipped. Streams are compressed with a dictionary built
+     * from the formats of our ASAPService. Sessions that were cut off by the last .stop(), e.g.
+     * as a module lost its Bluetooth connection, are restored from their journals under our
+     * ASAP root folder and resumed.
+     * Can be called while running: modules that stopped, e.g. as their Bluetooth connection
+     * broke, are replaced by new ones, modules that still run are kept.
      */
     @Override
-    public void start() {
+    public synchronized void start() {
         Log.i(this.CLASS_LOG_TAG, "MacLayerEngine.start() called");
-        try {
-            loRaCommunicationManager = new LoRaCommunicationManager(this.asapLoRaBTModule);
-            loRaCommunicationManager.start();
-        } catch (ASAPLoRaException e) {
+        for (LoRaCommunicationManager stopped : this.modulePool.removeStopped())
+            Log.i(CLASS_LOG_TAG, "Reconnecting module " + stopped.getBluetoothDevice());
+        LoRaASAPDictionary dictionary = this.buildCompressionDictionary();
+        for (BluetoothDevice asapLoRaBTModule : this.asapLoRaBTModules) {
+            if (this.modulePool.isRunning(asapLoRaBTModule))
+                continue;
+            try {
+                LoRaCommunicationManager loRaCommunicationManager = new LoRaCommunicationManager(asapLoRaBTModule);
+                loRaCommunicationManager.setCompressionDictionary(dictionary);
+                loRaCommunicationManager.setRelaying(this.relayMode);
+                loRaCommunicationManager.setBroadcastListener(this.broadcastListener);
+                loRaCommunicationManager.setJournal(new LoRaOutboundJournal(this.getJournalDirectory(asapLoRaBTModule)));
+                loRaCommunicationManager.start();
+                this.modulePool.add(loRaCommunicationManager);
+            } catch (ASAPLoRaException e) {
+                Log.e(CLASS_LOG_TAG, e.getMessage());
+            }
+        }
+
+        if (this.modulePool.isEmpty()) {
             //In case we were not able to initialize the LoRaEngine, call the stop() method for cleanup
-            Log.e(CLASS_LOG_TAG, e.getMessage());
+            Log.e(CLASS_LOG_TAG, "Please pair to an ASAP-LoRa Board before Starting LoRa!");
             this.stop();
         }
     }
 
+    /**
+     * @return where the sessions over asapLoRaBTModule are kept between runs, see {@link LoRaOutboundJournal}
+     */
+    private File getJournalDirectory(BluetoothDevice asapLoRaBTModule) {
+        return new File(new File(this.getASAPService().getASAPRootFolderName(), JOURNAL_FOLDER_NAME),
+                asapLoRaBTModule.getAddress().replace(":", ""));
+    }
+
+    /**
+     * @return null if the dictionary can't be built, we send uncompressed then
+     */
+    private LoRaASAPDictionary buildCompressionDictionary() {
+        List<CharSequence> formats = this.getASAPService().getSupportedFormats();
+        try {
+            return LoRaASAPDictionary.build(formats == null ? new ArrayList<CharSequence>() : formats);
+        } catch (IOException e) {
+            Log.e(CLASS_LOG_TAG, "Can't build the compression dictionary: " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Method to shut down the LoRaEngine.
-     * Stops the {@link LoRaCommunicationManager} if it was previously initialized.
+     * Stops all {@link LoRaCommunicationManager}s that were previously initialized.
      */
     @Override
-    public void stop() {
+    public synchronized void stop() {
         Log.i(this.CLASS_LOG_TAG, "MacLayerEngine.stop() called");
-        if (loRaCommunicationManager != null) {
+        for (LoRaCommunicationManager loRaCommunicationManager : this.modulePool.getModules())
             loRaCommunicationManager.interrupt();
-        }
+        this.modulePool.clear();
+    }
+
+    /**
+     * Sends message once to all LoRa neighbours, on every ASAPLoRaBTModule.
+     *
+     * @param message
+     * @throws IOException if message is too long for a LoRa broadcast
+     */
+    public void broadcast(byte[] message) throws IOException {
+        for (LoRaCommunicationManager loRaCommunicationManager : this.modulePool.getModules())
+            loRaCommunicationManager.broadcast(message);
+    }
+
+    /**
+     * @return number of control messages and peers waiting to send over all ASAPLoRaBTModules
+     */
+    public int getTransmitQueueDepth() {
+        return this.modulePool.getTransmitQueueDepth();
     }
 
 
     /**
      * Method to check if previously paired devices can be connected to.
-     * Since we do not have pairing, no action is taken and we return true to signal that it is
-     * at least theoretically possible to find other devices.
+     * Since we do not have pairing, we only reconnect ASAPLoRaBTModules whose Bluetooth connection
+     * broke, see .start(), and return true to signal that it is at least theoretically possible
+     * to find other devices.
      */
     @Override
     public boolean tryReconnect() {
         Log.i(this.CLASS_LOG_TAG, "MacLayerEngine.tryReconnect() called");
+        if (!this.modulePool.isEmpty())
+            this.start(); //only if we run, a stopped engine stays stopped
         return true; //assume we have a good connection, as we do not have persistent connections
     }
 
@@ -94,15 +204,18 @@ public class LoRaEngine extends MacLayerEngine {
     }
 
     /**
-     * Check if we need a new Connection to macAddress and if so launch a Connection to it.
+     * Check if we need a new Connection to macAddress and if so launch a Connection to it,
+     * on the module the {@link LoRaModulePool} pins macAddress to.
      *
+     * @param heardBy    module that discovered macAddress
      * @param macAddress
      */
-    void tryConnect(String macAddress) {
+    void tryConnect(LoRaCommunicationManager heardBy, String macAddress) {
         if (this.shouldConnectToMACPeer(macAddress) && !this.hasActiveConnectionToMACPeer(macAddress)) {
             Log.d(this.CLASS_LOG_TAG, "Connection to "
                     + macAddress + " not yet established. Trying to start an ASAPSession.");
-            this.launchASAPConnection(macAddress, this.loRaCommunicationManager.getASAPInputStream(macAddress), this.loRaCommunicationManager.getASAPOutputStream(macAddress));
+            LoRaCommunicationManager module = this.modulePool.pin(macAddress, heardBy);
+            this.launchASAPConnection(macAddress, module.getASAPInputStream(macAddress), module.getASAPOutputStream(macAddress));
         } else {
             Log.d(this.CLASS_LOG_TAG, "Connection to "
                     + macAddress + " not needed.");
@@ -115,8 +228,6 @@ public class LoRaEngine extends MacLayerEngine {
      * @return
      */
     private boolean hasActiveConnectionToMACPeer(String macAddress) {
-        if(this.loRaCommunicationManager != null && this.loRaCommunicationManager.isAlive())
-            return this.loRaCommunicationManager.hasASAPInputStream(macAddress);
-        return false;
+        return this.modulePool.hasASAPInputStream(macAddress);
     }
 }
@@ -0,0 +1,112 @@
+package net.sharksystem.asap.android.lora;
+
+/**
+ * Arithmetic of the systematic Reed-Solomon code behind the PARITY segments (see
+ * {@link LoRaStreamSegment}): GF(2^8) with the polynomial x^8 + x^4 + x^3 + x^2 + 1 and a Cauchy
+ * matrix, so that any e of the parity frames of a group rebuild any e lost segments of it.
+ *
+ * Each DATA (or DEFLATED) segment of a group is coded as one block, its type and data length in
+ * the first two bytes followed by its data, padded with zeros to the longest block of the group. Parity frame j carries
+ * the sum over all blocks i of {@link #coefficient(int, int)} times block i.
+ */
+final class LoRaFEC {
+    static final int MAX_GROUP_SIZE = 16; //well within the window, so a group is never overwritten in the cache
+    static final int MAX_PARITY_FRAMES = 4;
+    static final int BLOCK_HEADER_LENGTH = 2; //the type and the data length
+    //what a data segment has to leave free so that a parity frame of its group fits into a LoRa frame
+    static final int SEGMENT_OVERHEAD = LoRaStreamSegment.PARITY_HEADER_LENGTH + BLOCK_HEADER_LENGTH
+            - LoRaStreamSegment.DATA_HEADER_LENGTH;
+
+    private static final int POLYNOMIAL = 0x11D;
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+    private static final int[][] COEFFICIENTS = new int[MAX_PARITY_FRAMES][MAX_GROUP_SIZE];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x > 0xFF)
+                x ^= POLYNOMIAL;
+        }
+        for (int i = 255; i < EXP.length; i++)
+            EXP[i] = EXP[i - 255];
+
+        //x_j = j and y_i = MAX_PARITY_FRAMES + i are all distinct, so x_j + y_i is never 0
+        for (int j = 0; j < MAX_PARITY_FRAMES; j++) {
+            for (int i = 0; i < MAX_GROUP_SIZE; i++)
+                COEFFICIENTS[j][i] = LoRaFEC.inverse(j ^ (MAX_PARITY_FRAMES + i));
+        }
+    }
+
+    private LoRaFEC() {}
+
+    static int multiply(int a, int b) {
+        return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]];
+    }
+
+    static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    /**
+     * @param parity index of the parity frame in its group
+     * @param block  index of the data segment in its group
+     */
+    static int coefficient(int parity, int block) {
+        return COEFFICIENTS[parity][block];
+    }
+
+    /**
+     * dst[dstOff..dstOff+length) += factor * src[srcOff..srcOff+length), addition being XOR
+     */
+    static void addScaled(byte[] dst, int dstOff, byte[] src, int srcOff, int length, int factor) {
+        if (factor == 0)
+            return;
+        int logFactor = LOG[factor];
+        for (int i = 0; i < length; i++) {
+            int s = src[srcOff + i] & 0xFF;
+            if (s != 0)
+                dst[dstOff + i] ^= EXP[LOG[s] + logFactor];
+        }
+    }
+
+    /**
+     * buffer[off..off+length) *= factor
+     */
+    static void scale(byte[] buffer, int off, int length, int factor) {
+        int logFactor = LOG[factor];
+        for (int i = off; i < off + length; i++) {
+            int b = buffer[i] & 0xFF;
+            if (b != 0)
+                buffer[i] = (byte) EXP[LOG[b] + logFactor];
+        }
+    }
+
+    /**
+     * Adds factor times the block of a DATA segment to the block in dst.
+     *
+     * @param dst     block, starting with the type at dstOff
+     * @param dstOff
+     * @param segment DATA segment, header included
+     * @param length  of segment
+     * @param factor
+     */
+    static void addSegment(byte[] dst, int dstOff, byte[] segment, int length, int factor) {
+        int dataLength = length - LoRaStreamSegment.DATA_HEADER_LENGTH;
+        dst[dstOff] ^= LoRaFEC.multiply(factor, segment[0] & 0xFF);
+        dst[dstOff + 1] ^= LoRaFEC.multiply(factor, dataLength);
+        LoRaFEC.addScaled(dst, dstOff + BLOCK_HEADER_LENGTH, segment, LoRaStreamSegment.DATA_HEADER_LENGTH,
+                dataLength, factor);
+    }
+
+    /**
+     * @param length of a DATA segment
+     * @return length of its block
+     */
+    static int blockLength(int length) {
+        return length - LoRaStreamSegment.DATA_HEADER_LENGTH + BLOCK_HEADER_LENGTH;
+    }
+}
@@ -0,0 +1,199 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+
+/**
+ * Rebuilds lost DATA and DEFLATED segments from the PARITY segments of their group, see {@link LoRaFEC}.
+ *
+ * The last {@link LoRaARQSender#WINDOW_SIZE} DATA segments are kept, as a group is only decoded
+ * once its PARITY segments arrived, usually after the segments themselves were delivered. The
+ * syndromes of the lost segments are solved for by Gauss-Jordan elimination over GF(2^8).
+ * All buffers are allocated once, so decoding allocates nothing.
+ */
+class LoRaFECDecoder {
+    private static final int WINDOW_SIZE = LoRaARQSender.WINDOW_SIZE;
+    private static final int MAX_SEGMENT_LENGTH = ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH;
+
+    //the DATA segments received last; slot = seq % WINDOW_SIZE
+    private final byte[][] segments = new byte[WINDOW_SIZE][MAX_SEGMENT_LENGTH];
+    private final int[] seqs = new int[WINDOW_SIZE];
+    private final int[] lengths = new int[WINDOW_SIZE];
+
+    //the PARITY segments of the current group, 0: not received
+    private final byte[][] parity = new byte[LoRaFEC.MAX_PARITY_FRAMES][MAX_SEGMENT_LENGTH];
+    private final int[] parityLengths = new int[LoRaFEC.MAX_PARITY_FRAMES];
+    private int groupBase = -1;
+    private int groupSize;
+    private int parityFrames;
+
+    //the equations for the lost blocks, one row per PARITY segment used
+    private final int[][] matrix = new int[LoRaFEC.MAX_PARITY_FRAMES][LoRaFEC.MAX_PARITY_FRAMES];
+    private final byte[][] syndromes = new byte[LoRaFEC.MAX_PARITY_FRAMES][MAX_SEGMENT_LENGTH];
+    private final int[] lost = new int[LoRaFEC.MAX_PARITY_FRAMES]; //indices in the group
+
+    private final byte[][] recovered = new byte[LoRaFEC.MAX_PARITY_FRAMES][MAX_SEGMENT_LENGTH];
+    private final int[] recoveredLengths = new int[LoRaFEC.MAX_PARITY_FRAMES];
+
+    LoRaFECDecoder() {
+        for (int i = 0; i < WINDOW_SIZE; i++)
+            this.seqs[i] = -1;
+    }
+
+    /**
+     * Keeps a copy of a DATA segment.
+     *
+     * @param segment header included
+     * @param length
+     */
+    void onData(byte[] segment, int length) {
+        int seq = LoRaStreamSegment.readShort(segment, 1);
+        int slot = seq % WINDOW_SIZE;
+        System.arraycopy(segment, 0, this.segments[slot], 0, length);
+        this.seqs[slot] = seq;
+        this.lengths[slot] = length;
+    }
+
+    private boolean isKept(int seq) {
+        return this.seqs[seq % WINDOW_SIZE] == seq;
+    }
+
+    /**
+     * Handles a PARITY segment and rebuilds the lost DATA segments of its group, if enough of its
+     * PARITY segments arrived by now.
+     *
+     * @param segment header included, only valid during this call
+     * @param length
+     * @return number of DATA segments rebuilt, see {@link #getRecovered(int)}
+     */
+    int onParity(byte[] segment, int length) {
+        int groupBase = LoRaStreamSegment.readShort(segment, 1);
+        int groupSize = segment[3] & 0xFF;
+        int parityFrames = (segment[4] >> 4) & 0x0F;
+        int index = segment[4] & 0x0F;
+        if (groupSize < 1 || groupSize > LoRaFEC.MAX_GROUP_SIZE || parityFrames > LoRaFEC.MAX_PARITY_FRAMES
+                || index >= parityFrames || length <= LoRaStreamSegment.PARITY_HEADER_LENGTH)
+            return 0;
+
+        if (groupBase != this.groupBase || groupSize != this.groupSize || parityFrames != this.parityFrames) {
+            this.groupBase = groupBase;
+            this.groupSize = groupSize;
+            this.parityFrames = parityFrames;
+            for (int j = 0; j < LoRaFEC.MAX_PARITY_FRAMES; j++)
+                this.parityLengths[j] = 0;
+        }
+        if (this.parityLengths[index] > 0)
+            return 0;
+        System.arraycopy(segment, 0, this.parity[index], 0, length);
+        this.parityLengths[index] = length;
+        return this.decode();
+    }
+
+    private int decode() {
+        int lostCount = 0;
+        for (int i = 0; i < this.groupSize; i++) {
+            if (this.isKept(LoRaStreamSegment.next(this.groupBase, i)))
+                continue;
+            if (lostCount == LoRaFEC.MAX_PARITY_FRAMES)
+                return 0;
+            this.lost[lostCount++] = i;
+        }
+        if (lostCount == 0)
+            return 0;
+
+        //one equation per PARITY segment: its block minus the blocks we have
+        int rows = 0;
+        int blockLength = -1;
+        for (int j = 0; j < this.parityFrames && rows < lostCount; j++) {
+            if (this.parityLengths[j] == 0)
+                continue;
+            if (blockLength < 0)
+                blockLength = this.parityLengths[j] - LoRaStreamSegment.PARITY_HEADER_LENGTH;
+            else if (blockLength != this.parityLengths[j] - LoRaStreamSegment.PARITY_HEADER_LENGTH)
+                return 0;
+
+            byte[] syndrome = this.syndromes[rows];
+            System.arraycopy(this.parity[j], LoRaStreamSegment.PARITY_HEADER_LENGTH, syndrome, 0, blockLength);
+            int l = 0;
+            for (int i = 0; i < this.groupSize; i++) {
+                if (l < lostCount && this.lost[l] == i) {
+                    this.matrix[rows][l++] = LoRaFEC.coefficient(j, i);
+                    continue;
+                }
+                int slot = LoRaStreamSegment.next(this.groupBase, i) % WINDOW_SIZE;
+                if (LoRaFEC.blockLength(this.lengths[slot]) > blockLength)
+                    return 0;
+                LoRaFEC.addSegment(syndrome, 0, this.segments[slot], this.lengths[slot], LoRaFEC.coefficient(j, i));
+            }
+            rows++;
+        }
+        if (rows < lostCount)
+            return 0;
+
+        if (!this.solve(lostCount, blockLength))
+            return 0;
+
+        for (int l = 0; l < lostCount; l++) {
+            byte[] block = this.syndromes[l];
+            int dataLength = block[1] & 0xFF;
+            if (!LoRaStreamSegment.isData(block[0]) || dataLength + LoRaFEC.BLOCK_HEADER_LENGTH > blockLength)
+                return 0; //not our group after all
+            this.recovered[l][0] = block[0];
+            LoRaStreamSegment.writeShort(this.recovered[l], 1, LoRaStreamSegment.next(this.groupBase, this.lost[l]));
+            System.arraycopy(block, LoRaFEC.BLOCK_HEADER_LENGTH, this.recovered[l],
+                    LoRaStreamSegment.DATA_HEADER_LENGTH, dataLength);
+            this.recoveredLengths[l] = LoRaStreamSegment.DATA_HEADER_LENGTH + dataLength;
+        }
+        return lostCount;
+    }
+
+    /**
+     * Gauss-Jordan elimination of the first n rows of matrix, applied to the syndromes, which
+     * hold the lost blocks in the order of {@link #lost} afterwards.
+     *
+     * @return false if the equations are singular, which a Cauchy matrix never is
+     */
+    private boolean solve(int n, int blockLength) {
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            while (pivot < n && this.matrix[pivot][column] == 0)
+                pivot++;
+            if (pivot == n)
+                return false;
+            if (pivot != column) {
+                int[] row = this.matrix[pivot];
+                this.matrix[pivot] = this.matrix[column];
+                this.matrix[column] = row;
+                byte[] syndrome = this.syndromes[pivot];
+                this.syndromes[pivot] = this.syndromes[column];
+                this.syndromes[column] = syndrome;
+            }
+
+            int inverse = LoRaFEC.inverse(this.matrix[column][column]);
+            for (int c = column; c < n; c++)
+                this.matrix[column][c] = LoRaFEC.multiply(this.matrix[column][c], inverse);
+            LoRaFEC.scale(this.syndromes[column], 0, blockLength, inverse);
+
+            for (int r = 0; r < n; r++) {
+                int factor = this.matrix[r][column];
+                if (r == column || factor == 0)
+                    continue;
+                for (int c = column; c < n; c++)
+                    this.matrix[r][c] ^= LoRaFEC.multiply(factor, this.matrix[column][c]);
+                LoRaFEC.addScaled(this.syndromes[r], 0, this.syndromes[column], 0, blockLength, factor);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param index below the result of the last {@link #onParity(byte[], int)}
+     * @return a rebuilt DATA segment, valid until the next PARITY segment
+     */
+    byte[] getRecovered(int index) {
+        return this.recovered[index];
+    }
+
+    int getRecoveredLength(int index) {
+        return this.recoveredLengths[index];
+    }
+}
@@ -0,0 +1,103 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+
+import java.util.Arrays;
+
+/**
+ * Computes the PARITY segments of a group of DATA segments while they are sent for the first
+ * time, see {@link LoRaFEC}. Its buffers are reused for every group, so encoding allocates nothing.
+ */
+class LoRaFECEncoder {
+    //complete PARITY segments, their blocks grow with every segment added
+    private final byte[][] parity = new byte[LoRaFEC.MAX_PARITY_FRAMES][ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH];
+    private int groupBase;
+    private int groupSize;
+    private boolean open = false;
+    private int parityFrames;
+    private int count = 0;
+    private int blockLength = 0;
+
+    /**
+     * Starts a new group, dropping the parity of the previous one.
+     *
+     * @param groupBase    sequence number of the first segment
+     * @param groupSize    segments to protect, at most {@link LoRaFEC#MAX_GROUP_SIZE}
+     * @param parityFrames at most {@link LoRaFEC#MAX_PARITY_FRAMES}
+     */
+    void start(int groupBase, int groupSize, int parityFrames) {
+        this.groupBase = groupBase;
+        this.groupSize = groupSize;
+        this.parityFrames = parityFrames;
+        this.count = 0;
+        this.blockLength = 0;
+        this.open = true;
+        for (int j = 0; j < parityFrames; j++)
+            Arrays.fill(this.parity[j], (byte) 0);
+    }
+
+    /**
+     * Adds the next DATA segment of the group.
+     *
+     * @param segment header included
+     * @param length  at most the max payload length minus {@link LoRaFEC#SEGMENT_OVERHEAD}
+     */
+    void add(byte[] segment, int length) {
+        for (int j = 0; j < this.parityFrames; j++)
+            LoRaFEC.addSegment(this.parity[j], LoRaStreamSegment.PARITY_HEADER_LENGTH, segment, length,
+                    LoRaFEC.coefficient(j, this.count));
+        this.blockLength = Math.max(this.blockLength, LoRaFEC.blockLength(length));
+        this.count++;
+    }
+
+    /**
+     * Writes the headers of the PARITY segments for the segments added so far.
+     */
+    void finish() {
+        for (int j = 0; j < this.parityFrames; j++) {
+            byte[] segment = this.parity[j];
+            segment[0] = LoRaStreamSegment.TYPE_PARITY;
+            LoRaStreamSegment.writeShort(segment, 1, this.groupBase);
+            segment[3] = (byte) this.count;
+            segment[4] = (byte) (this.parityFrames << 4 | j);
+        }
+        this.open = false;
+    }
+
+    /**
+     * @return true between {@link #start(int, int, int)} and {@link #finish()}
+     */
+    boolean isOpen() {
+        return this.open;
+    }
+
+    boolean isFull() {
+        return this.count == this.groupSize;
+    }
+
+    /**
+     * @return segments added to the group so far
+     */
+    int getCount() {
+        return this.count;
+    }
+
+    int getGroupBase() {
+        return this.groupBase;
+    }
+
+    int getParityFrames() {
+        return this.parityFrames;
+    }
+
+    /**
+     * @param index of the PARITY segment, valid after {@link #finish()}
+     */
+    byte[] getParity(int index) {
+        return this.parity[index];
+    }
+
+    int getParityLength() {
+        return LoRaStreamSegment.PARITY_HEADER_LENGTH + this.blockLength;
+    }
+}
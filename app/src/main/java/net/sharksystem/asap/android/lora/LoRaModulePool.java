@@ -0,0 +1,126 @@
+package net.sharksystem.asap.android.lora;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The {@link LoRaCommunicationManager}s of all ASAPLoRaBTModules connected to this phone, e.g.
+ * two boards on different channels of a gateway.
+ *
+ * The streams of a peer live in the manager of one module, so every peer is pinned to the module
+ * its ASAP session runs on. A new session goes to the module that heard the peer, unless the peer
+ * is already pinned to another module that reaches it with a shorter transmit queue.
+ */
+class LoRaModulePool {
+    private static final String CLASS_LOG_TAG = "ASAPLoRaModulePool";
+
+    private final List<LoRaCommunicationManager> modules = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, LoRaCommunicationManager> pinnedModules = new ConcurrentHashMap<>();
+
+    void add(LoRaCommunicationManager module) {
+        this.modules.add(module);
+    }
+
+    List<LoRaCommunicationManager> getModules() {
+        return this.modules;
+    }
+
+    boolean isEmpty() {
+        return this.modules.isEmpty();
+    }
+
+    /**
+     * @param device
+     * @return true if a running module is connected to device
+     */
+    boolean isRunning(BluetoothDevice device) {
+        for (LoRaCommunicationManager module : this.modules) {
+            if (module.isAlive() && device.equals(module.getBluetoothDevice()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forgets modules that stopped, e.g. as their Bluetooth connection broke, and the peers
+     * pinned to them. Their sessions are kept in their journals.
+     *
+     * @return modules removed
+     */
+    synchronized List<LoRaCommunicationManager> removeStopped() {
+        List<LoRaCommunicationManager> stopped = new ArrayList<>();
+        for (LoRaCommunicationManager module : this.modules) {
+            if (!module.isAlive())
+                stopped.add(module);
+        }
+        this.modules.removeAll(stopped);
+        this.pinnedModules.values().removeAll(stopped);
+        return stopped;
+    }
+
+    void clear() {
+        this.modules.clear();
+        this.pinnedModules.clear();
+    }
+
+    /**
+     * @param address
+     * @return module address is pinned to, null if there is none or it stopped
+     */
+    LoRaCommunicationManager getModule(String address) {
+        LoRaCommunicationManager module = this.pinnedModules.get(address);
+        return module != null && module.isAlive() ? module : null;
+    }
+
+    /**
+     * @param address
+     * @return true if any running module has streams for address
+     */
+    boolean hasASAPInputStream(String address) {
+        for (LoRaCommunicationManager module : this.modules) {
+            if (module.isAlive() && module.hasASAPInputStream(address))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Picks the module a session with address runs on. Stays with the pinned module while it has
+     * streams for address, otherwise prefers the module with the shorter transmit queue of the
+     * pinned one and heardBy, as both reach the peer.
+     *
+     * @param address
+     * @param heardBy module that just discovered address
+     * @return module address is pinned to now
+     */
+    synchronized LoRaCommunicationManager pin(String address, LoRaCommunicationManager heardBy) {
+        LoRaCommunicationManager pinned = this.getModule(address);
+        if (pinned != null && pinned != heardBy && (pinned.hasASAPInputStream(address)
+                || pinned.getTransmitQueueDepth() <= heardBy.getTransmitQueueDepth()))
+            return pinned;
+
+        if (pinned != heardBy)
+            Log.i(CLASS_LOG_TAG, "Pinning " + address + " to module " + this.modules.indexOf(heardBy));
+        this.pinnedModules.put(address, heardBy);
+        return heardBy;
+    }
+
+    /**
+     * @return number of control messages and peers waiting to send over all running modules
+     */
+    int getTransmitQueueDepth() {
+        int depth = 0;
+        for (LoRaCommunicationManager module : this.modules) {
+            //the queue of a stopped module never drains, it must not hold back the others
+            if (module.isAlive())
+                depth += module.getTransmitQueueDepth();
+        }
+        return depth;
+    }
+}
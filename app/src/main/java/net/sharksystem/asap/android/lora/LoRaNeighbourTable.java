@@ -0,0 +1,189 @@
+package net.sharksystem.asap.android.lora;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The LoRa nodes a {@link LoRaRelay} knows how to reach: neighbours our board hears itself, and
+ * nodes further away with the neighbour that reaches them and the number of hops it takes.
+ *
+ * Neighbours are learned from DVDCR replies and any frame we receive, nodes further away from
+ * the NEIGHBOURS adverts of our neighbours and from the origin of frames relayed to us. A route
+ * is only replaced by a shorter one, or refreshed by the neighbour it goes through, until it
+ * expires. The table holds at most {@link #MAX_ENTRIES} nodes, so a single advert can list them.
+ */
+class LoRaNeighbourTable {
+    static final int MAX_ENTRIES = 48;
+    static final int UNKNOWN_NODE_ID = 0;
+
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private long timeout;
+    private String ownAddress = null;
+
+    static class Entry {
+        final String address;
+        String via; //null if we hear address ourselves
+        int hops;
+        int nodeId = UNKNOWN_NODE_ID;
+        long heardAt;
+
+        Entry(String address) {
+            this.address = address;
+        }
+
+        boolean isNeighbour() {
+            return this.via == null;
+        }
+    }
+
+    /**
+     * @param timeout ms after which nodes we did not hear of are forgotten
+     */
+    LoRaNeighbourTable(long timeout) {
+        this.timeout = timeout;
+    }
+
+    synchronized void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Notes that our board heard address.
+     *
+     * @return true if address was not reachable before
+     */
+    synchronized boolean onHeard(String address) {
+        if (address.equals(this.ownAddress))
+            return false;
+        long now = System.currentTimeMillis();
+        Entry entry = this.entries.get(address);
+        boolean reachable = entry != null && !this.isExpired(entry, now);
+        if (entry == null)
+            entry = this.add(address);
+        entry.via = null;
+        entry.hops = 1;
+        entry.heardAt = now;
+        return !reachable;
+    }
+
+    /**
+     * Notes the node id a neighbour advertised.
+     */
+    synchronized void setNodeId(String address, int nodeId) {
+        Entry entry = this.entries.get(address);
+        if (entry != null)
+            entry.nodeId = nodeId;
+    }
+
+    /**
+     * Notes that address can be reached in hops hops through the neighbour via, unless we reach
+     * it as quickly already.
+     *
+     * @param nodeId of address, {@link #UNKNOWN_NODE_ID} if we don't know it
+     * @return true if address was not reachable before
+     */
+    synchronized boolean onRoute(String address, String via, int hops, int nodeId) {
+        if (address.equals(this.ownAddress) || address.equals(via))
+            return false;
+        long now = System.currentTimeMillis();
+        Entry entry = this.entries.get(address);
+        boolean reachable = entry != null && !this.isExpired(entry, now);
+        if (reachable && !via.equals(entry.via) && entry.hops <= hops)
+            return false;
+        if (entry == null)
+            entry = this.add(address);
+        entry.via = via;
+        entry.hops = hops;
+        if (nodeId != UNKNOWN_NODE_ID)
+            entry.nodeId = nodeId;
+        entry.heardAt = now;
+        return !reachable;
+    }
+
+    /**
+     * Our address, as a neighbour advertised it with our node id. We never route to it.
+     */
+    synchronized void setOwnAddress(String ownAddress) {
+        this.ownAddress = ownAddress;
+        this.entries.remove(ownAddress);
+    }
+
+    synchronized String getOwnAddress() {
+        return this.ownAddress;
+    }
+
+    /**
+     * @return the neighbour frames to address go to, address itself for neighbours, null if we
+     * can't reach address
+     */
+    synchronized String nextHop(String address) {
+        Entry entry = this.entries.get(address);
+        if (entry == null || this.isExpired(entry, System.currentTimeMillis()))
+            return null;
+        return entry.isNeighbour() ? address : entry.via;
+    }
+
+    /**
+     * @return true if our board hears address itself
+     */
+    synchronized boolean isNeighbour(String address) {
+        Entry entry = this.entries.get(address);
+        return entry != null && entry.isNeighbour() && !this.isExpired(entry, System.currentTimeMillis());
+    }
+
+    /**
+     * @return copies of the nodes we reach within maxHops hops whose node id we know, nearest first
+     */
+    synchronized List<Entry> getAdvertisable(int maxHops) {
+        long now = System.currentTimeMillis();
+        List<Entry> advertisable = new ArrayList<>();
+        for (int hops = 1; hops <= maxHops; hops++) {
+            for (Entry entry : this.entries.values()) {
+                if (entry.hops != hops || entry.nodeId == UNKNOWN_NODE_ID || this.isExpired(entry, now))
+                    continue;
+                Entry copy = new Entry(entry.address);
+                copy.via = entry.via;
+                copy.hops = entry.hops;
+                copy.nodeId = entry.nodeId;
+                copy.heardAt = entry.heardAt;
+                advertisable.add(copy);
+            }
+        }
+        return advertisable;
+    }
+
+    synchronized int size() {
+        return this.entries.size();
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.heardAt > this.timeout;
+    }
+
+    /**
+     * Must be called holding our monitor. Makes room by dropping expired entries, or the one we
+     * heard of last.
+     */
+    private Entry add(String address) {
+        if (this.entries.size() >= MAX_ENTRIES) {
+            long now = System.currentTimeMillis();
+            Entry oldest = null;
+            Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next().getValue();
+                if (this.isExpired(entry, now))
+                    iterator.remove();
+                else if (oldest == null || entry.heardAt < oldest.heardAt)
+                    oldest = entry;
+            }
+            if (this.entries.size() >= MAX_ENTRIES)
+                this.entries.remove(oldest.address);
+        }
+        Entry entry = new Entry(address);
+        this.entries.put(address, entry);
+        return entry;
+    }
+}
@@ -0,0 +1,375 @@
+package net.sharksystem.asap.android.lora;
+
+import android.util.Log;
+
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Keeps what we send to each LoRa peer in an append-only file per peer, so that a session
+ * survives a restart of the {@link LoRaEngine}, e.g. after the Bluetooth connection to the
+ * ASAPLoRaBTModule broke.
+ *
+ * Every segment a {@link LoRaARQSender} takes over is appended with its sequence number, and so
+ * is every cumulative ack of our peer and every step of our {@link LoRaARQReceiver}:
+ * <pre>
+ * SEGMENT:      | 'S' | SEQ (2) | LENGTH (2) | segment ... |
+ * ACKNOWLEDGED: | 'A' | SEND BASE (2) |
+ * RECEIVED:     | 'R' | RCV BASE (2) |
+ * </pre>
+ * Once everything was acknowledged, a file shrinks to the sequence numbers. Otherwise it is
+ * rewritten without the records we don't need anymore once they make up half of it and it
+ * reached {@link #COMPACT_THRESHOLD}. Records are handed to the file system right away, so they
+ * survive the app, but not necessarily a power loss.
+ *
+ * After a restart, {@link #restore()} reads the sessions back, see
+ * {@link LoRaBTInputOutputStream#restoreSessions()}. The file of a session closed for good is
+ * deleted, {@link #close()} keeps them all for the next start.
+ */
+class LoRaOutboundJournal {
+    private static final String CLASS_LOG_TAG = "ASAPLoRaJournal";
+    static final String FILE_SUFFIX = ".journal";
+    static final int COMPACT_THRESHOLD = 16 * 1024; //16 KiB, about 60 full segments
+    private static final byte RECORD_SEGMENT = 'S';
+    private static final byte RECORD_ACKNOWLEDGED = 'A';
+    private static final byte RECORD_RECEIVED = 'R';
+    static final int SEGMENT_RECORD_HEADER_LENGTH = 5;
+    static final int SEQ_RECORD_LENGTH = 3;
+    //segments a sender holds at most, in its window and its queue
+    private static final int MAX_OUTSTANDING = LoRaARQSender.WINDOW_SIZE + LoRaARQSender.MAX_QUEUED_SEGMENTS;
+
+    private final File directory;
+    private final HashMap<String, PeerJournal> journals = new HashMap<>();
+    private final byte[] record = new byte[SEGMENT_RECORD_HEADER_LENGTH + ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH];
+    private boolean closed = false;
+
+    /**
+     * The file of one peer and where its session stands
+     */
+    private static class PeerJournal {
+        final File file;
+        FileOutputStream out = null;
+        int sendBase = 0;
+        int nextSeq = 0;
+        int rcvBase = 0;
+        long length = 0;
+        long deadLength = 0; //records we don't need anymore
+        //record lengths of the segments from sendBase to nextSeq; index = seq % MAX_OUTSTANDING
+        final int[] segmentRecordLengths = new int[MAX_OUTSTANDING];
+
+        PeerJournal(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * A session read back by {@link #restore()}
+     */
+    static class Session {
+        final String address;
+        final int sendBase;
+        final int rcvBase;
+        final List<byte[]> segments; //not acknowledged, in sequence from sendBase on
+
+        Session(String address, int sendBase, int rcvBase, List<byte[]> segments) {
+            this.address = address;
+            this.sendBase = sendBase;
+            this.rcvBase = rcvBase;
+            this.segments = segments;
+        }
+    }
+
+    /**
+     * @param directory for the files of all peers of one ASAPLoRaBTModule, created when needed
+     */
+    LoRaOutboundJournal(File directory) {
+        this.directory = directory;
+    }
+
+    File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Must be called holding our monitor. Starts a new file for address if it has none yet.
+     */
+    private PeerJournal get(String address) throws IOException {
+        PeerJournal journal = this.journals.get(address);
+        if (journal != null)
+            return journal;
+        if (!this.directory.isDirectory() && !this.directory.mkdirs())
+            throw new IOException("Can't create " + this.directory);
+        journal = new PeerJournal(new File(this.directory, address + FILE_SUFFIX));
+        journal.out = new FileOutputStream(journal.file, false);
+        this.journals.put(address, journal);
+        return journal;
+    }
+
+    private void appendSegment(PeerJournal journal, int seq, byte[] segment, int length) throws IOException {
+        this.record[0] = RECORD_SEGMENT;
+        LoRaStreamSegment.writeShort(this.record, 1, seq);
+        LoRaStreamSegment.writeShort(this.record, 3, length);
+        System.arraycopy(segment, 0, this.record, SEGMENT_RECORD_HEADER_LENGTH, length);
+        journal.out.write(this.record, 0, SEGMENT_RECORD_HEADER_LENGTH + length);
+        journal.length += SEGMENT_RECORD_HEADER_LENGTH + length;
+        journal.segmentRecordLengths[seq % MAX_OUTSTANDING] = SEGMENT_RECORD_HEADER_LENGTH + length;
+    }
+
+    private void appendSeq(PeerJournal journal, byte type, int seq) throws IOException {
+        this.record[0] = type;
+        LoRaStreamSegment.writeShort(this.record, 1, seq);
+        journal.out.write(this.record, 0, SEQ_RECORD_LENGTH);
+        journal.length += SEQ_RECORD_LENGTH;
+    }
+
+    /**
+     * The file of address is broken, its session won't survive a restart
+     */
+    private void fail(String address, IOException e) {
+        Log.e(CLASS_LOG_TAG, "Can't keep the session with " + address + ": " + e.getMessage());
+        this.discard(address);
+    }
+
+    /**
+     * Records a segment the {@link LoRaARQSender} of address took over.
+     *
+     * @param address
+     * @param seq     sequence number the segment is going to be sent with
+     * @param segment
+     * @param length
+     */
+    synchronized void onSegment(String address, int seq, byte[] segment, int length) {
+        if (this.closed)
+            return;
+        try {
+            PeerJournal journal = this.get(address);
+            this.appendSegment(journal, seq, segment, length);
+            journal.nextSeq = LoRaStreamSegment.next(seq, 1);
+        } catch (IOException e) {
+            this.fail(address, e);
+        }
+    }
+
+    /**
+     * Records that address acknowledged everything before sendBase.
+     */
+    synchronized void onAcknowledged(String address, int sendBase) {
+        if (this.closed)
+            return;
+        try {
+            PeerJournal journal = this.get(address);
+            while (journal.sendBase != sendBase && journal.sendBase != journal.nextSeq) {
+                journal.deadLength += journal.segmentRecordLengths[journal.sendBase % MAX_OUTSTANDING];
+                journal.sendBase = LoRaStreamSegment.next(journal.sendBase, 1);
+            }
+            journal.sendBase = sendBase;
+            this.appendSeq(journal, RECORD_ACKNOWLEDGED, sendBase);
+            journal.deadLength += SEQ_RECORD_LENGTH;
+            this.compact(journal);
+        } catch (IOException e) {
+            this.fail(address, e);
+        }
+    }
+
+    /**
+     * Records that we received everything before rcvBase from address.
+     */
+    synchronized void onReceived(String address, int rcvBase) {
+        if (this.closed)
+            return;
+        try {
+            PeerJournal journal = this.get(address);
+            journal.rcvBase = rcvBase;
+            this.appendSeq(journal, RECORD_RECEIVED, rcvBase);
+            journal.deadLength += SEQ_RECORD_LENGTH;
+            this.compact(journal);
+        } catch (IOException e) {
+            this.fail(address, e);
+        }
+    }
+
+    /**
+     * Drops the records of journal we don't need anymore, see above. Must be called holding our monitor.
+     */
+    private void compact(PeerJournal journal) throws IOException {
+        if (journal.sendBase == journal.nextSeq && journal.length > 2 * SEQ_RECORD_LENGTH) {
+            //nothing to keep but the sequence numbers, start the file over
+            journal.out.getChannel().truncate(0);
+            journal.length = 0;
+            journal.deadLength = 0;
+            this.appendSeq(journal, RECORD_ACKNOWLEDGED, journal.sendBase);
+            this.appendSeq(journal, RECORD_RECEIVED, journal.rcvBase);
+        } else if (journal.length >= COMPACT_THRESHOLD && 2 * journal.deadLength >= journal.length) {
+            journal.out.close();
+            this.rewrite(journal, read(journal.file, new int[3]));
+        }
+    }
+
+    /**
+     * Replaces the file of journal by one with the sequence numbers and segments only, written
+     * next to it first, so that a crash leaves one of them complete. Must be called holding our monitor.
+     *
+     * @param segments not acknowledged, in sequence from the send base of journal on
+     */
+    private void rewrite(PeerJournal journal, List<byte[]> segments) throws IOException {
+        File rewritten = new File(journal.file.getPath() + ".tmp");
+        journal.out = new FileOutputStream(rewritten, false);
+        journal.length = 0;
+        journal.deadLength = 0;
+        this.appendSeq(journal, RECORD_ACKNOWLEDGED, journal.sendBase);
+        this.appendSeq(journal, RECORD_RECEIVED, journal.rcvBase);
+        int seq = journal.sendBase;
+        for (byte[] segment : segments) {
+            this.appendSegment(journal, seq, segment, segment.length);
+            seq = LoRaStreamSegment.next(seq, 1);
+        }
+        //our stream keeps writing to it under the old name
+        if (!rewritten.renameTo(journal.file))
+            throw new IOException("Can't replace " + journal.file);
+    }
+
+    /**
+     * Reads the records of file. A record cut short ends it, we can't have sent it yet.
+     *
+     * @param seqs gets the send base, the next sequence number and the rcv base
+     * @return the segments from the send base on, in sequence
+     */
+    private static List<byte[]> read(File file, int[] seqs) throws IOException {
+        HashMap<Integer, byte[]> segments = new HashMap<>();
+        int sendBase = 0;
+        int nextSeq = -1;
+        int rcvBase = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int type = in.read();
+                if (type < 0)
+                    break;
+                int seq = in.readUnsignedShort();
+                if (type == RECORD_SEGMENT) {
+                    byte[] segment = new byte[in.readUnsignedShort()];
+                    in.readFully(segment);
+                    segments.put(seq, segment);
+                    nextSeq = LoRaStreamSegment.next(seq, 1);
+                } else if (type == RECORD_ACKNOWLEDGED) {
+                    sendBase = seq;
+                } else if (type == RECORD_RECEIVED) {
+                    rcvBase = seq;
+                } else {
+                    throw new IOException("Unknown record in " + file);
+                }
+            }
+        } catch (EOFException e) {
+            Log.e(CLASS_LOG_TAG, "Last record of " + file + " was cut short");
+        } finally {
+            in.close();
+        }
+
+        if (nextSeq < 0 || LoRaStreamSegment.distance(sendBase, nextSeq) < 0)
+            nextSeq = sendBase;
+        List<byte[]> outstanding = new ArrayList<>();
+        for (int seq = sendBase; seq != nextSeq; seq = LoRaStreamSegment.next(seq, 1)) {
+            byte[] segment = segments.get(seq);
+            if (segment == null)
+                throw new IOException("Segment " + seq + " is missing in " + file);
+            outstanding.add(segment);
+        }
+        seqs[0] = sendBase;
+        seqs[1] = nextSeq;
+        seqs[2] = rcvBase;
+        return outstanding;
+    }
+
+    /**
+     * Reads back the sessions the last run kept and continues their files. Files that can't be
+     * read are deleted.
+     *
+     * @return the sessions, in no particular order
+     */
+    synchronized List<Session> restore() {
+        List<Session> sessions = new ArrayList<>();
+        File[] files = this.directory.listFiles();
+        if (files == null || this.closed)
+            return sessions;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(FILE_SUFFIX))
+                continue;
+            String address = name.substring(0, name.length() - FILE_SUFFIX.length());
+            if (this.journals.containsKey(address))
+                continue;
+            try {
+                int[] seqs = new int[3];
+                List<byte[]> segments = read(file, seqs);
+                if (segments.size() > MAX_OUTSTANDING)
+                    throw new IOException("Too many segments in " + file);
+                PeerJournal journal = new PeerJournal(file);
+                journal.sendBase = seqs[0];
+                journal.nextSeq = seqs[1];
+                journal.rcvBase = seqs[2];
+                this.journals.put(address, journal);
+                this.rewrite(journal, segments);
+                sessions.add(new Session(address, seqs[0], seqs[2], segments));
+            } catch (IOException e) {
+                Log.e(CLASS_LOG_TAG, "Can't restore the session with " + address + ": " + e.getMessage());
+                this.discard(address);
+                file.delete();
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Deletes the file of address, as its session was closed for good.
+     */
+    synchronized void discard(String address) {
+        if (this.closed)
+            return;
+        PeerJournal journal = this.journals.remove(address);
+        if (journal == null)
+            return;
+        try {
+            if (journal.out != null)
+                journal.out.close();
+        } catch (IOException e) {
+            Log.e(CLASS_LOG_TAG, "Exception in discard(): " + e.getMessage());
+        }
+        if (!journal.file.delete())
+            Log.e(CLASS_LOG_TAG, "Can't delete " + journal.file);
+    }
+
+    /**
+     * Closes all files and keeps them for {@link #restore()}. Records and discards that come
+     * later are ignored, so that closing the streams of the {@link LoRaBTInputOutputStream}
+     * afterwards does not touch them.
+     */
+    synchronized void close() {
+        this.closed = true;
+        for (PeerJournal journal : this.journals.values()) {
+            try {
+                journal.out.close();
+            } catch (IOException e) {
+                Log.e(CLASS_LOG_TAG, "Exception in close(): " + e.getMessage());
+            }
+        }
+        this.journals.clear();
+    }
+
+    /**
+     * @return bytes in the file of address, 0 if it has none
+     */
+    synchronized long getLength(String address) {
+        PeerJournal journal = this.journals.get(address);
+        return journal == null ? 0 : journal.length;
+    }
+}
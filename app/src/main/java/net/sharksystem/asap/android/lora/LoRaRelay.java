@@ -0,0 +1,317 @@
+package net.sharksystem.asap.android.lora;
+
+import android.util.Log;
+
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaException;
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaMessageException;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaBinaryFrame;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessageInterface;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Relays frames between LoRa nodes that don't hear each other, so peers further away than the
+ * range of our board can be reached over neighbours in relay mode.
+ *
+ * After each Discover Message we advertise the nodes we reach in a NEIGHBOURS segment (see
+ * {@link LoRaStreamSegment}), our neighbours learn routes from it into their
+ * {@link LoRaNeighbourTable}. Frames for a node we reach over a neighbour go to that neighbour
+ * in a RELAY segment, which passes them on until they reach a neighbour of the destination, at
+ * most {@link #MAX_HOPS} hops. Relayed frames teach the nodes on their way the route back to
+ * their origin, duplicates of frames we already handled are dropped.
+ *
+ * Our board does not tell us its own address, so nodes name themselves by a random node id in
+ * their adverts. A node finds its own address next to its node id in the adverts of its
+ * neighbours. Until then the origin of a frame is left for the first relay to fill in, and the
+ * last relay leaves out the destination, which is the node it sends to.
+ *
+ * Relay mode must be on in all nodes that should reach each other and be set before any data is
+ * sent: the streams leave room for the RELAY header in every frame then. Nodes without relay
+ * mode drop RELAY and NEIGHBOURS segments.
+ */
+class LoRaRelay {
+    private static final String CLASS_LOG_TAG = "ASAPLoRaRelay";
+    static final int MAX_HOPS = 3;
+    static final int MAX_RECENT = 64;
+    static final long ROUTE_TIMEOUT = 3 * LoRaCommunicationManager.DISCOVER_MESSAGE_TIMEOUT; //15 minutes in ms
+    private static final int UNKNOWN_ADDRESS = 0xFFFF;
+
+    private final LoRaBTInputOutputStream ioStream;
+    private final LoRaNeighbourTable table = new LoRaNeighbourTable(ROUTE_TIMEOUT);
+    private final int nodeId;
+    private final byte[] inner = new byte[ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH];
+    private volatile boolean enabled = false;
+    private volatile RouteListener routeListener = null;
+    private int nextMessageId;
+    //recently handled relay frames by origin and message id, so that none is handled twice
+    private final LinkedHashMap<Long, Boolean> recent = new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return this.size() > MAX_RECENT;
+        }
+    };
+
+    private long framesRelayed = 0;
+    private long duplicatesDropped = 0;
+    private long framesDropped = 0;
+
+    /**
+     * Gets told about peers we reach over other nodes and frames they sent us that way.
+     * Called from the thread reading from the ASAPLoRaBTModule.
+     */
+    interface RouteListener {
+        void onPeerReachable(String address);
+
+        void onRelayedFrame(String origin);
+    }
+
+    LoRaRelay(LoRaBTInputOutputStream ioStream, Random random) {
+        this.ioStream = ioStream;
+        this.nodeId = 1 + random.nextInt(0xFFFF); //never LoRaNeighbourTable.UNKNOWN_NODE_ID
+        this.nextMessageId = random.nextInt(0x10000);
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return this.enabled;
+    }
+
+    void setRouteListener(RouteListener routeListener) {
+        this.routeListener = routeListener;
+    }
+
+    /**
+     * @param routeTimeout ms after which routes we did not hear of again are forgotten
+     */
+    void setRouteTimeout(long routeTimeout) {
+        this.table.setTimeout(routeTimeout);
+    }
+
+    LoRaNeighbourTable getNeighbourTable() {
+        return this.table;
+    }
+
+    int getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * Called for every frame our board received from address.
+     */
+    void onHeard(String address) {
+        if (this.enabled)
+            this.table.onHeard(address);
+    }
+
+    /**
+     * @return bytes the frames to address grow by, as they go over another node
+     */
+    int getOverhead(String address) {
+        if (!this.enabled)
+            return 0;
+        String via = this.table.nextHop(address);
+        return via == null || via.equals(address) ? 0 : LoRaStreamSegment.RELAY_HEADER_LENGTH;
+    }
+
+    /**
+     * Wraps msg into a RELAY segment to the neighbour that reaches its destination, if our board
+     * does not hear the destination itself.
+     *
+     * @param msg
+     * @return msg or the frame to send instead
+     * @throws ASAPLoRaException
+     */
+    ASAPLoRaMessageInterface route(ASAPLoRaMessageInterface msg) throws ASAPLoRaException {
+        if (!this.enabled || msg.getFrameType() != ASAPLoRaBinaryFrame.TYPE_MSSGE)
+            return msg;
+        String destination = msg.getAddress();
+        String via = this.table.nextHop(destination);
+        if (via == null || via.equals(destination))
+            return msg;
+
+        int length = msg.getBinaryPayloadLength();
+        byte[] relayed = new byte[LoRaStreamSegment.RELAY_HEADER_LENGTH + length];
+        int messageId;
+        synchronized (this) {
+            messageId = this.nextMessageId;
+            this.nextMessageId = LoRaStreamSegment.next(this.nextMessageId, 1);
+        }
+        writeRelayHeader(relayed, ASAPLoRaBinaryFrame.addressToInt(destination), UNKNOWN_ADDRESS, MAX_HOPS, messageId);
+        System.arraycopy(msg.getBinaryPayload(), 0, relayed, LoRaStreamSegment.RELAY_HEADER_LENGTH, length);
+        return new ASAPLoRaMessage(via, relayed);
+    }
+
+    private static void writeRelayHeader(byte[] segment, int destination, int origin, int hopsLeft, int messageId) {
+        segment[0] = LoRaStreamSegment.TYPE_RELAY;
+        LoRaStreamSegment.writeShort(segment, 1, destination);
+        LoRaStreamSegment.writeShort(segment, 3, origin);
+        segment[5] = (byte) hopsLeft;
+        LoRaStreamSegment.writeShort(segment, 6, messageId);
+    }
+
+    /**
+     * Handles a RELAY segment our neighbour mac sent us: the segment inside goes to our
+     * {@link LoRaBTInputOutputStream} if we are its destination, otherwise on to the next hop.
+     * Must only be called from the thread reading from the ASAPLoRaBTModule.
+     *
+     * @param mac
+     * @param segment only valid during this call
+     * @param length
+     */
+    void onRelay(String mac, byte[] segment, int length) {
+        if (!this.enabled) {
+            Log.i(CLASS_LOG_TAG, "Not in relay mode, dropping relay frame from " + mac);
+            return;
+        }
+        this.table.onHeard(mac);
+
+        int destination = LoRaStreamSegment.readShort(segment, 1);
+        int origin = LoRaStreamSegment.readShort(segment, 3);
+        int hopsLeft = Math.min(segment[5] & 0xFF, MAX_HOPS);
+        int messageId = LoRaStreamSegment.readShort(segment, 6);
+        byte type = segment[LoRaStreamSegment.RELAY_HEADER_LENGTH];
+        if (type == LoRaStreamSegment.TYPE_RELAY || type == LoRaStreamSegment.TYPE_NEIGHBOURS)
+            return;
+        String originAddress;
+        try {
+            originAddress = origin == UNKNOWN_ADDRESS ? mac : ASAPLoRaBinaryFrame.intToAddress(origin);
+            origin = ASAPLoRaBinaryFrame.addressToInt(originAddress);
+        } catch (ASAPLoRaMessageException e) {
+            Log.e(CLASS_LOG_TAG, e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            if (this.recent.put((long) origin << 16 | messageId, Boolean.TRUE) != null) {
+                this.duplicatesDropped++;
+                return;
+            }
+        }
+        RouteListener routeListener = this.routeListener;
+        if (this.table.onRoute(originAddress, mac, MAX_HOPS - hopsLeft + 1, LoRaNeighbourTable.UNKNOWN_NODE_ID)
+                && routeListener != null)
+            routeListener.onPeerReachable(originAddress);
+
+        String destinationAddress = ASAPLoRaBinaryFrame.intToAddress(destination);
+        if (destination == UNKNOWN_ADDRESS || destinationAddress.equals(this.table.getOwnAddress())) {
+            int innerLength = length - LoRaStreamSegment.RELAY_HEADER_LENGTH;
+            System.arraycopy(segment, LoRaStreamSegment.RELAY_HEADER_LENGTH, this.inner, 0, innerLength);
+            if (routeListener != null)
+                routeListener.onRelayedFrame(originAddress);
+            this.ioStream.receiveSegment(originAddress, this.inner, innerLength);
+            return;
+        }
+
+        String via = this.table.nextHop(destinationAddress);
+        if (hopsLeft <= 1 || via == null || via.equals(mac)) {
+            synchronized (this) {
+                this.framesDropped++;
+            }
+            return;
+        }
+        byte[] forwarded = new byte[length];
+        System.arraycopy(segment, 0, forwarded, 0, length);
+        writeRelayHeader(forwarded, via.equals(destinationAddress) ? UNKNOWN_ADDRESS : destination,
+                origin, hopsLeft - 1, messageId);
+        try {
+            this.ioStream.getTransmitScheduler().sendControlMessage(new ASAPLoRaMessage(via, forwarded));
+        } catch (ASAPLoRaMessageException e) {
+            Log.e(CLASS_LOG_TAG, e.getMessage()); //can't happen, the frame arrived in one piece
+            return;
+        }
+        synchronized (this) {
+            this.framesRelayed++;
+        }
+    }
+
+    /**
+     * Handles the NEIGHBOURS advert of our neighbour mac: the nodes it reaches are a hop further
+     * away for us, unless it is us.
+     *
+     * @param mac
+     * @param segment
+     * @param length
+     */
+    void onNeighbours(String mac, byte[] segment, int length) {
+        if (!this.enabled)
+            return;
+        this.table.onHeard(mac);
+        this.table.setNodeId(mac, LoRaStreamSegment.readShort(segment, 1));
+
+        RouteListener routeListener = this.routeListener;
+        for (int off = LoRaStreamSegment.NEIGHBOURS_HEADER_LENGTH;
+             off + LoRaStreamSegment.NEIGHBOURS_ENTRY_LENGTH <= length;
+             off += LoRaStreamSegment.NEIGHBOURS_ENTRY_LENGTH) {
+            String address = ASAPLoRaBinaryFrame.intToAddress(LoRaStreamSegment.readShort(segment, off));
+            int nodeId = LoRaStreamSegment.readShort(segment, off + 2);
+            int hops = segment[off + 4] & 0xFF;
+            if (nodeId == this.nodeId) {
+                this.table.setOwnAddress(address);
+                continue;
+            }
+            if (hops >= MAX_HOPS)
+                continue;
+            if (this.table.onRoute(address, mac, hops + 1, nodeId) && routeListener != null)
+                routeListener.onPeerReachable(address);
+        }
+    }
+
+    /**
+     * Tells our neighbours which nodes we reach in fewer than {@link #MAX_HOPS} hops, and our
+     * node id. Nothing is sent while we don't hear anyone.
+     */
+    void advertise() {
+        if (!this.enabled || this.table.size() == 0)
+            return;
+        List<LoRaNeighbourTable.Entry> entries = this.table.getAdvertisable(MAX_HOPS - 1);
+        int maxEntries = (this.ioStream.getMaxPayloadLength() - LoRaStreamSegment.NEIGHBOURS_HEADER_LENGTH)
+                / LoRaStreamSegment.NEIGHBOURS_ENTRY_LENGTH;
+        int count = Math.min(entries.size(), maxEntries);
+        byte[] advert = new byte[LoRaStreamSegment.NEIGHBOURS_HEADER_LENGTH
+                + count * LoRaStreamSegment.NEIGHBOURS_ENTRY_LENGTH];
+        advert[0] = LoRaStreamSegment.TYPE_NEIGHBOURS;
+        LoRaStreamSegment.writeShort(advert, 1, this.nodeId);
+        int off = LoRaStreamSegment.NEIGHBOURS_HEADER_LENGTH;
+        try {
+            for (int i = 0; i < count; i++) {
+                LoRaNeighbourTable.Entry entry = entries.get(i);
+                LoRaStreamSegment.writeShort(advert, off, ASAPLoRaBinaryFrame.addressToInt(entry.address));
+                LoRaStreamSegment.writeShort(advert, off + 2, entry.nodeId);
+                advert[off + 4] = (byte) entry.hops;
+                off += LoRaStreamSegment.NEIGHBOURS_ENTRY_LENGTH;
+            }
+            this.ioStream.getTransmitScheduler().sendControlMessage(
+                    new ASAPLoRaMessage(LoRaBroadcastSender.BROADCAST_ADDRESS, advert));
+        } catch (ASAPLoRaMessageException e) {
+            Log.e(CLASS_LOG_TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * @return frames we passed on for other nodes
+     */
+    synchronized long getFramesRelayed() {
+        return this.framesRelayed;
+    }
+
+    /**
+     * @return relay frames we got again and dropped
+     */
+    synchronized long getDuplicatesDropped() {
+        return this.duplicatesDropped;
+    }
+
+    /**
+     * @return relay frames we could not pass on, as their hops ran out or we know no route
+     */
+    synchronized long getFramesDropped() {
+        return this.framesDropped;
+    }
+}
@@ -0,0 +1,129 @@
+package net.sharksystem.asap.android.lora;
+
+/**
+ * Where the ARQ of a session with one LoRa peer stands: how far our peer acknowledged what we
+ * sent and how far we received in sequence what our peer sent, in sequence numbers and bytes.
+ *
+ * Instead of closing a session that went idle, the {@link LoRaCommunicationManager} suspends it
+ * with a checkpoint. The streams, and so the ASAP session on top of them, stay open. When the
+ * peer shows up again, both sides exchange their checkpoints in RESUME segments (see
+ * {@link LoRaStreamSegment}) and continue, if they match, or start over otherwise.
+ */
+class LoRaSessionCheckpoint {
+    private final String address;
+    private final int sendBase;
+    private final int nextSeq;
+    private final int rcvBase;
+    private final long bytesAcknowledged;
+    private final long bytesDelivered;
+    private final long suspendedAt;
+    private volatile long resumeRequestedAt = 0;
+
+    /**
+     * @param address
+     * @param sendBase          oldest sequence number our peer did not acknowledge
+     * @param nextSeq           sequence number of our next segment
+     * @param rcvBase           next sequence number we expect from our peer
+     * @param bytesAcknowledged bytes our peer acknowledged, -1 if unknown
+     * @param bytesDelivered    bytes we received in sequence, -1 if unknown
+     * @param suspendedAt       when the session was suspended, -1 if it was not
+     */
+    LoRaSessionCheckpoint(String address, int sendBase, int nextSeq, int rcvBase,
+                          long bytesAcknowledged, long bytesDelivered, long suspendedAt) {
+        this.address = address;
+        this.sendBase = sendBase;
+        this.nextSeq = nextSeq;
+        this.rcvBase = rcvBase;
+        this.bytesAcknowledged = bytesAcknowledged;
+        this.bytesDelivered = bytesDelivered;
+        this.suspendedAt = suspendedAt;
+    }
+
+    /**
+     * @param address sender of segment
+     * @param segment a RESUME or RESUMED segment
+     * @return the checkpoint of our peer
+     */
+    static LoRaSessionCheckpoint read(String address, byte[] segment) {
+        return new LoRaSessionCheckpoint(address, LoRaStreamSegment.readShort(segment, 3),
+                LoRaStreamSegment.readShort(segment, 5), LoRaStreamSegment.readShort(segment, 1),
+                -1, -1, -1);
+    }
+
+    /**
+     * @param type    {@link LoRaStreamSegment#TYPE_RESUME} or {@link LoRaStreamSegment#TYPE_RESUMED}
+     * @param segment at least {@link LoRaStreamSegment#RESUME_LENGTH} bytes
+     * @return length of the segment
+     */
+    int write(byte type, byte[] segment) {
+        segment[0] = type;
+        LoRaStreamSegment.writeShort(segment, 1, this.rcvBase);
+        LoRaStreamSegment.writeShort(segment, 3, this.sendBase);
+        LoRaStreamSegment.writeShort(segment, 5, this.nextSeq);
+        return LoRaStreamSegment.RESUME_LENGTH;
+    }
+
+    /**
+     * Checks if our peer's checkpoint belongs to the same session: what it received must be
+     * something we sent and not acknowledged yet, and the other way round. A peer that lost its
+     * session, e.g. after a restart, does not match unless nothing was sent at all.
+     *
+     * @param peer
+     * @return true if both can continue where they are
+     */
+    boolean matches(LoRaSessionCheckpoint peer) {
+        int delivered = LoRaStreamSegment.distance(this.sendBase, peer.rcvBase);
+        int received = LoRaStreamSegment.distance(peer.sendBase, this.rcvBase);
+        return delivered >= 0 && delivered <= LoRaStreamSegment.distance(this.sendBase, this.nextSeq)
+                && received >= 0 && received <= LoRaStreamSegment.distance(peer.sendBase, peer.nextSeq);
+    }
+
+    /**
+     * @return true if everything sent was acknowledged, so there is nothing to resume
+     */
+    boolean isQuiescent() {
+        return this.sendBase == this.nextSeq;
+    }
+
+    String getAddress() {
+        return this.address;
+    }
+
+    int getSendBase() {
+        return this.sendBase;
+    }
+
+    int getNextSeq() {
+        return this.nextSeq;
+    }
+
+    int getRcvBase() {
+        return this.rcvBase;
+    }
+
+    long getBytesAcknowledged() {
+        return this.bytesAcknowledged;
+    }
+
+    long getBytesDelivered() {
+        return this.bytesDelivered;
+    }
+
+    long getSuspendedAt() {
+        return this.suspendedAt;
+    }
+
+    long getResumeRequestedAt() {
+        return this.resumeRequestedAt;
+    }
+
+    void setResumeRequestedAt(long resumeRequestedAt) {
+        this.resumeRequestedAt = resumeRequestedAt;
+    }
+
+    @Override
+    public String toString() {
+        return this.address + ": acknowledged " + this.bytesAcknowledged + " bytes (seq " + this.sendBase
+                + "/" + this.nextSeq + "), delivered " + this.bytesDelivered + " bytes (seq " + this.rcvBase + ")";
+    }
+}
@@ -0,0 +1,88 @@
+package net.sharksystem.asap.android.lora;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completes once a {@link LoRaBTInputOutputStream.LoRaASAPInputStream} is closed, i.e. its reader
+ * got the EOF. Can't be cancelled. (CompletableFuture needs API level 24.)
+ */
+class LoRaStreamCloseFuture implements Future<Void> {
+    private boolean done = false;
+    private List<Runnable> listeners = new ArrayList<>();
+
+    static LoRaStreamCloseFuture completed() {
+        LoRaStreamCloseFuture future = new LoRaStreamCloseFuture();
+        future.complete();
+        return future;
+    }
+
+    /**
+     * Completes this future and runs the listeners on the calling thread. Only the first call counts.
+     */
+    void complete() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (this.done)
+                return;
+            this.done = true;
+            listeners = this.listeners;
+            this.listeners = null;
+            this.notifyAll();
+        }
+        for (Runnable listener : listeners)
+            listener.run();
+    }
+
+    /**
+     * Runs listener once this future completed, right away if it already is.
+     *
+     * @param listener
+     */
+    void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!this.done) {
+                this.listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return this.done;
+    }
+
+    @Override
+    public synchronized Void get() throws InterruptedException {
+        while (!this.done)
+            this.wait();
+        return null;
+    }
+
+    @Override
+    public synchronized Void get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!this.done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,143 @@
+package net.sharksystem.asap.android.lora;
+
+/**
+ * Layout of the segments the LoRa stream layer puts into the payload of an ASAPLoRaMessage.
+ * The first byte is the segment type, all numbers are big endian.
+ * <pre>
+ * DATA, DEFLATED:
+ *       | TYPE      | SEQ (2) | ASAP bytes ...                          |
+ * ACK:  | TYPE_ACK  | CUMULATIVE ACK (2) | SELECTIVE ACK BITMAP (4) | [DICTIONARY ID (2)] |
+ * RESUME, RESUMED:
+ *       | TYPE      | RCV BASE (2) | SEND BASE (2) | NEXT SEQ (2)       |
+ * RESET:| TYPE_RESET |
+ * BROADCAST:
+ *       | TYPE      | SENDER ID (2) | MESSAGE ID (2) | FRAGMENT | FRAGMENT COUNT | data ... |
+ * BROADCAST NACK:
+ *       | TYPE      | SENDER ID (2) | MESSAGE ID (2) | FIRST MISSING | MISSING BITMAP (4) |
+ * PARITY:
+ *       | TYPE      | GROUP BASE SEQ (2) | GROUP SIZE | PARITY COUNT (4 bit) PARITY INDEX (4 bit) | block ... |
+ * RELAY:
+ *       | TYPE      | DESTINATION (2) | ORIGIN (2) | HOPS LEFT | MESSAGE ID (2) | segment ... |
+ * NEIGHBOURS:
+ *       | TYPE      | NODE ID (2) | ADDRESS (2) | NODE ID (2) | HOPS | ... |
+ * </pre>
+ * The cumulative ack is the next sequence number the receiver expects. Bit i of the bitmap
+ * (counted from the least significant bit) acknowledges sequence number cumulative ack + 1 + i.
+ * Sequence numbers are 16 bit and wrap around.
+ *
+ * A sender sets {@link #FLAG_ACK_REQUEST} in the type of a DATA or DEFLATED segment to ask for an
+ * ack right away, see {@link LoRaARQSender}.
+ *
+ * DEFLATED segments carry the ASAP bytes as raw DEFLATE stream, compressed with the preset
+ * dictionary whose id the receiver put into its acks, see {@link LoRaASAPDictionary}. A sender
+ * switches from DATA to DEFLATED once, the DEFLATED segments of a session form a single stream.
+ *
+ * RESUME asks a peer to continue a suspended session (see {@link LoRaSessionCheckpoint}) from
+ * where both ARQs stand, RESUMED agrees and RESET makes both sides start over.
+ *
+ * BROADCAST and BROADCAST NACK segments go to all neighbours, see {@link LoRaBroadcastSender}.
+ * Bit i of the missing bitmap stands for fragment first missing + 1 + i.
+ *
+ * PARITY segments protect the group size DATA segments from group base seq on, see
+ * {@link LoRaFEC}. Any parity count of them rebuild as many lost DATA segments of the group.
+ *
+ * RELAY segments carry a segment of the origin for the destination over other nodes, see
+ * {@link LoRaRelay}. A destination of FFFF stands for the node the frame goes to, an origin of
+ * FFFF for the node it comes from. NEIGHBOURS segments go to all neighbours and list the nodes
+ * the sender reaches, with their node id and the hops it takes.
+ */
+final class LoRaStreamSegment {
+    static final byte TYPE_DATA = 0x01;
+    static final byte TYPE_ACK = 0x02;
+    static final byte TYPE_RESUME = 0x03;
+    static final byte TYPE_RESUMED = 0x04;
+    static final byte TYPE_RESET = 0x05;
+    static final byte TYPE_BROADCAST = 0x06;
+    static final byte TYPE_BROADCAST_NACK = 0x07;
+    static final byte TYPE_PARITY = 0x08;
+    static final byte TYPE_DEFLATED = 0x09;
+    static final byte TYPE_RELAY = 0x0A;
+    static final byte TYPE_NEIGHBOURS = 0x0B;
+    static final byte FLAG_ACK_REQUEST = (byte) 0x80;
+
+    static final int DATA_HEADER_LENGTH = 3;
+    static final int ACK_LENGTH = 7;
+    static final int ACK_DICTIONARY_LENGTH = 9;
+    static final int RESUME_LENGTH = 7;
+    static final int RESET_LENGTH = 1;
+    static final int BROADCAST_HEADER_LENGTH = 7;
+    static final int BROADCAST_NACK_LENGTH = 10;
+    static final int PARITY_HEADER_LENGTH = 5;
+    static final int RELAY_HEADER_LENGTH = 8;
+    static final int NEIGHBOURS_HEADER_LENGTH = 3;
+    static final int NEIGHBOURS_ENTRY_LENGTH = 5;
+    static final int SEQUENCE_SPACE = 0x10000;
+
+    private LoRaStreamSegment() {}
+
+    static void writeDataHeader(byte[] segment, int seq) {
+        segment[0] = TYPE_DATA;
+        LoRaStreamSegment.writeShort(segment, 1, seq);
+    }
+
+    static void writeAck(byte[] segment, int cumulativeAck, int selectiveAcks) {
+        segment[0] = TYPE_ACK;
+        LoRaStreamSegment.writeShort(segment, 1, cumulativeAck);
+        LoRaStreamSegment.writeInt(segment, 3, selectiveAcks);
+    }
+
+    /**
+     * @return the type of a segment, without flags
+     */
+    static byte typeOf(byte type) {
+        return (byte) (type & ~FLAG_ACK_REQUEST);
+    }
+
+    /**
+     * @return true for the types of segments the ARQ delivers
+     */
+    static boolean isData(byte type) {
+        type = LoRaStreamSegment.typeOf(type);
+        return type == TYPE_DATA || type == TYPE_DEFLATED;
+    }
+
+    static boolean isAckRequested(byte[] segment) {
+        return (segment[0] & FLAG_ACK_REQUEST) != 0;
+    }
+
+    static void setAckRequest(byte[] segment, boolean ackRequest) {
+        segment[0] = ackRequest ? (byte) (segment[0] | FLAG_ACK_REQUEST) : LoRaStreamSegment.typeOf(segment[0]);
+    }
+
+    static int readShort(byte[] segment, int off) {
+        return ((segment[off] & 0xFF) << 8) | (segment[off + 1] & 0xFF);
+    }
+
+    static void writeShort(byte[] segment, int off, int value) {
+        segment[off] = (byte) (value >> 8);
+        segment[off + 1] = (byte) value;
+    }
+
+    static void writeInt(byte[] segment, int off, int value) {
+        segment[off] = (byte) (value >> 24);
+        segment[off + 1] = (byte) (value >> 16);
+        segment[off + 2] = (byte) (value >> 8);
+        segment[off + 3] = (byte) value;
+    }
+
+    static int readInt(byte[] segment, int off) {
+        return ((segment[off] & 0xFF) << 24) | ((segment[off + 1] & 0xFF) << 16)
+                | ((segment[off + 2] & 0xFF) << 8) | (segment[off + 3] & 0xFF);
+    }
+
+    /**
+     * @return how far sequence number to is ahead of from, negative if it is behind
+     */
+    static int distance(int from, int to) {
+        return (short) (to - from);
+    }
+
+    static int next(int seq, int n) {
+        return (seq + n) & (SEQUENCE_SPACE - 1);
+    }
+}
@@ -0,0 +1,187 @@
+package net.sharksystem.asap.android.lora;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel (Varghese and Lauck) for the many short lived timers of the LoRa streams:
+ * idle peers, retransmissions, delayed acks and flush deadlines.
+ *
+ * Timers are kept in {@link #WHEEL_SIZE} buckets of one tick each, a timer further away than one
+ * turn of the wheel waits for its turn in its bucket. Scheduling and cancelling take constant
+ * time, unlike the queue of a ScheduledExecutorService, and cancelled timers are gone right away.
+ * Timers fire once the tick of their deadline passed, so up to two ticks late, on the thread of
+ * the executor driving the wheel, which only ticks while there are timers.
+ */
+class LoRaTimerWheel {
+    private static final String CLASS_LOG_TAG = "ASAPLoRaTimerWheel";
+    static final int WHEEL_SIZE = 512; //must be a power of 2
+
+    private final ScheduledExecutorService executor;
+    private final long tickDuration;
+    //per bucket a ring of timers around an empty head
+    private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+    private final List<Timeout> expired = new ArrayList<>(); //only used by the ticking thread
+    private long lastTick; //last tick whose bucket was processed
+    private int pending = 0;
+    private ScheduledFuture<?> ticker = null;
+    private boolean stopped = false;
+
+    /**
+     * A scheduled task
+     */
+    class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private Timeout previous = this;
+        private Timeout next = this;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Keeps the task from running, if it did not run yet.
+         */
+        void cancel() {
+            synchronized (LoRaTimerWheel.this) {
+                if (this.next == this)
+                    return; //fired or cancelled
+                LoRaTimerWheel.this.remove(this);
+            }
+        }
+    }
+
+    /**
+     * @param executor     runs the tasks and drives the wheel
+     * @param tickDuration in ms, tasks run up to two ticks late
+     */
+    LoRaTimerWheel(ScheduledExecutorService executor, long tickDuration) {
+        this.executor = executor;
+        this.tickDuration = Math.max(1, tickDuration);
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            this.buckets[i] = new Timeout(null, 0);
+    }
+
+    /**
+     * @param task  runs on the thread of our executor
+     * @param delay in ms
+     * @return the timer, null if we were stopped
+     */
+    synchronized Timeout schedule(Runnable task, long delay) {
+        if (this.stopped)
+            return null;
+        long now = System.currentTimeMillis();
+        if (this.ticker == null && !this.start(now))
+            return null;
+
+        Timeout timeout = new Timeout(task, now + Math.max(0, delay));
+        //a deadline in a tick we processed already goes into the next one
+        long tick = Math.max(timeout.deadline / this.tickDuration, this.lastTick + 1);
+        Timeout head = this.buckets[(int) (tick & (WHEEL_SIZE - 1))];
+        timeout.previous = head.previous;
+        timeout.next = head;
+        head.previous.next = timeout;
+        head.previous = timeout;
+        this.pending++;
+        return timeout;
+    }
+
+    /**
+     * Must be called holding our monitor.
+     */
+    private void remove(Timeout timeout) {
+        timeout.previous.next = timeout.next;
+        timeout.next.previous = timeout.previous;
+        timeout.previous = timeout;
+        timeout.next = timeout;
+        this.pending--;
+    }
+
+    /**
+     * Must be called holding our monitor. Starts ticking with the next tick.
+     */
+    private boolean start(long now) {
+        this.lastTick = now / this.tickDuration - 1;
+        try {
+            this.ticker = this.executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    LoRaTimerWheel.this.tick();
+                }
+            }, this.tickDuration, this.tickDuration, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            this.stopped = true; //our executor was shut down
+            return false;
+        }
+    }
+
+    /**
+     * Runs the tasks of the buckets of all ticks that passed since the last call, catching up
+     * with ticks we missed, and stops ticking once there are no timers left. Timers of later
+     * turns of the wheel stay in their bucket.
+     */
+    private void tick() {
+        synchronized (this) {
+            long passedTick = System.currentTimeMillis() / this.tickDuration - 1;
+            //a turn of the wheel visits every bucket
+            long first = Math.max(this.lastTick + 1, passedTick - WHEEL_SIZE + 1);
+            for (long tick = first; tick <= passedTick; tick++) {
+                Timeout head = this.buckets[(int) (tick & (WHEEL_SIZE - 1))];
+                Timeout timeout = head.next;
+                while (timeout != head) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadline / this.tickDuration <= tick) {
+                        this.remove(timeout);
+                        this.expired.add(timeout);
+                    }
+                    timeout = next;
+                }
+            }
+            this.lastTick = Math.max(this.lastTick, passedTick);
+            if (this.pending == 0 && this.ticker != null) {
+                this.ticker.cancel(false);
+                this.ticker = null;
+            }
+        }
+
+        //tasks may schedule again, or cancel other timers
+        for (int i = 0; i < this.expired.size(); i++) {
+            try {
+                this.expired.get(i).task.run();
+            } catch (RuntimeException e) {
+                Log.e(CLASS_LOG_TAG, "Timer task failed: " + e);
+            }
+        }
+        this.expired.clear();
+    }
+
+    /**
+     * Drops all timers, later ones are refused.
+     */
+    synchronized void stop() {
+        this.stopped = true;
+        if (this.ticker != null)
+            this.ticker.cancel(false);
+        this.ticker = null;
+        for (Timeout head : this.buckets) {
+            while (head.next != head)
+                this.remove(head.next);
+        }
+    }
+
+    /**
+     * @return timers waiting to fire
+     */
+    synchronized int getPending() {
+        return this.pending;
+    }
+}
@@ -0,0 +1,630 @@
+package net.sharksystem.asap.android.lora;
+
+import android.util.Log;
+
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaException;
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaMessageException;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessageInterface;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Decides which frame goes to the ASAPLoRaBTModule next, so that every frame sent over the air
+ * passes this thread.
+ *
+ * Frames are sent in this order:
+ * <ol>
+ *     <li>control messages, like discover beacons, in the order they were passed</li>
+ *     <li>priority {@link Source}s, like ACKs of the ARQ, round robin</li>
+ *     <li>data {@link Source}s, one per peer, round robin - a single frame per turn, so one peer
+ *     with a big backlog can't starve the others</li>
+ * </ol>
+ * Each frame is charged with its estimated time on air against a token bucket, which refills
+ * at the duty cycle allowed for the band (1% in most EU868 sub-bands). When the budget is used
+ * up, we wait until it refilled enough for the next frame. Frames that go over another node are
+ * charged with the RELAY header they grow by, see {@link LoRaRelay}.
+ *
+ * Sources are pulled for their next frame only when it is their turn, so a segment acknowledged
+ * while waiting is never sent.
+ *
+ * Frames ready one after another are passed to the board in a single Bluetooth write (see
+ * {@link LoRaBTInputOutputStream.LoRaBTOutputStream#startBatch()}). A batch is written as soon as
+ * nothing else is ready, before we wait for airtime, and once its first frame waited
+ * {@link #MAX_BATCH_DELAY}.
+ *
+ * The radio is half-duplex and the phone can't sense the carrier, so we listen before we talk
+ * the only way we can: after hearing a frame, the board that sent it is likely still sending the
+ * next one, so we hold back for the time on air of a frame like it plus a random number of slots
+ * (the time on air of an empty frame). An ERROR from the board, e.g. as it found the channel busy,
+ * doubles the contention window the slots are drawn from, up to {@link #MAX_BACKOFF_EXPONENT},
+ * and holds us back for the time on air of a full frame plus a random number of slots of it.
+ * The window shrinks back once a frame goes without an ERROR. We also keep no more than the
+ * frame we write queued at the board, so that what we hear still changes what goes on the air
+ * next. Deferrals and errors are counted per peer, see {@link LoRaCollisionStats}.
+ *
+ * After a frame asking its peer for a reply right away, like an ack (see {@link #expectReply(int)}),
+ * we keep quiet until we hear from the peer, or for as long as it may take to answer. A frame
+ * asking us for a reply holds us back for a few slots only, as its sender waits for it.
+ */
+class LoRaTransmitScheduler extends Thread {
+    private static final String CLASS_LOG_TAG = "ASAPLoRaTxScheduler";
+    static final double DEFAULT_DUTY_CYCLE = 0.01; //1%
+    static final double NO_DUTY_CYCLE_LIMIT = 1.0;
+    static final long DUTY_CYCLE_PERIOD = 60 * 60 * 1000; //1 hour in ms
+    static final int DEFAULT_SPREADING_FACTOR = 7;
+    static final long DEFAULT_BANDWIDTH = 125000; //125 kHz
+    static final int LORA_FRAME_OVERHEAD = 4; //addresses the board adds on air, estimated
+    static final long MAX_BATCH_DELAY = 10; //10 ms, below the time on air of the shortest frame
+    static final int MIN_BACKOFF_EXPONENT = 2; //contention window of 4 slots
+    static final int MAX_BACKOFF_EXPONENT = 7; //contention window of 128 slots
+
+    /**
+     * Something that has frames to send, when it is its turn.
+     */
+    interface Source {
+        /**
+         * @return the payload length of the next frame or -1 if there is none
+         */
+        int nextFrameLength();
+
+        /**
+         * Writes the next frame to os
+         *
+         * @param os
+         * @return the payload length of the frame written or -1 if there was none
+         * @throws IOException if the connection to the board broke
+         * @throws ASAPLoRaException
+         */
+        int transmitNext(LoRaBTInputOutputStream.LoRaBTOutputStream os) throws IOException, ASAPLoRaException;
+
+        /**
+         * @return address of the peer our frames go to
+         */
+        String getAddress();
+    }
+
+    /**
+     * What happened to the frames of a peer, guarded by our lock
+     */
+    private static class PeerStats {
+        long framesSent = 0;
+        long errors = 0;
+        long deferrals = 0;
+    }
+
+    private final LoRaBTInputOutputStream.LoRaBTOutputStream os;
+    private final Object lock = new Object();
+    private final ArrayDeque<ASAPLoRaMessageInterface> controlMessages = new ArrayDeque<>();
+    private final ArrayDeque<Source> prioritySources = new ArrayDeque<>();
+    private final ArrayDeque<Source> dataSources = new ArrayDeque<>();
+    private final HashSet<Source> readySources = new HashSet<>();
+
+    private double dutyCycle = DEFAULT_DUTY_CYCLE;
+    private long airtimeBudgetCapacity = (long) (DEFAULT_DUTY_CYCLE * DUTY_CYCLE_PERIOD);
+    private double airtimeBudget = this.airtimeBudgetCapacity;
+    private long lastRefill = System.currentTimeMillis();
+    private volatile int spreadingFactor = DEFAULT_SPREADING_FACTOR;
+    private volatile long bandwidth = DEFAULT_BANDWIDTH;
+    private long batchStart = -1; //ns, -1: no batch; only used by our thread
+
+    private final Random random = new Random();
+    private final HashMap<String, PeerStats> peerStats = new HashMap<>();
+    private volatile boolean listenBeforeTalk = true;
+    private volatile double timerScale = 1.0;
+    private long holdBackUntil = System.nanoTime(); //ns
+    private long boardBusyUntil = this.holdBackUntil; //ns, when the board sent what we wrote, estimated
+    private int backoffExponent = 0;
+    private String lastAddress = null; //peer of the last frame we wrote
+    private int replyLength = -1; //of the reply the frame being written asks for, only used by our thread
+    private String replyFrom = null; //peer we keep quiet for
+    private long replyDueUntil = this.holdBackUntil; //ns, we keep quiet for replyFrom until then at the latest
+    private boolean errorSinceWrite = false;
+
+    LoRaTransmitScheduler(LoRaBTInputOutputStream.LoRaBTOutputStream os) {
+        this.os = os;
+        this.setName(CLASS_LOG_TAG);
+    }
+
+    /**
+     * Queues a message ahead of all sources, e.g. a discover beacon.
+     *
+     * @param msg
+     */
+    void sendControlMessage(ASAPLoRaMessageInterface msg) {
+        synchronized (this.lock) {
+            this.controlMessages.add(msg);
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Tells us that source has something to send.
+     *
+     * @param source
+     * @param priority
+     */
+    void ready(Source source, boolean priority) {
+        synchronized (this.lock) {
+            if (this.readySources.add(source)) {
+                (priority ? this.prioritySources : this.dataSources).add(source);
+                this.lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Sets the share of time we may send, {@link #NO_DUTY_CYCLE_LIMIT} disables budgeting.
+     * The budget can hold the airtime of one {@link #DUTY_CYCLE_PERIOD}.
+     *
+     * @param dutyCycle
+     */
+    void setDutyCycle(double dutyCycle) {
+        synchronized (this.lock) {
+            this.dutyCycle = dutyCycle;
+            this.airtimeBudgetCapacity = (long) (dutyCycle * DUTY_CYCLE_PERIOD);
+            this.airtimeBudget = Math.min(this.airtimeBudget, this.airtimeBudgetCapacity);
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Sets the LoRa modulation the board uses, to estimate the time on air.
+     *
+     * @param spreadingFactor 7 to 12
+     * @param bandwidth       in Hz
+     */
+    void setModulation(int spreadingFactor, long bandwidth) {
+        this.spreadingFactor = spreadingFactor;
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * @param listenBeforeTalk hold back after hearing a frame or getting an ERROR, on by default
+     */
+    void setListenBeforeTalk(boolean listenBeforeTalk) {
+        this.listenBeforeTalk = listenBeforeTalk;
+    }
+
+    /**
+     * Scales the time we hold back, for simulated boards running faster than the air.
+     *
+     * @param timerScale real time per LoRa time
+     */
+    void setTimerScale(double timerScale) {
+        this.timerScale = timerScale;
+    }
+
+    /**
+     * Tells us the board received a frame, so its sender may still be on the air - unless the
+     * frame asks us for a reply, its sender keeps quiet for it then.
+     *
+     * @param address        of the sender
+     * @param payloadLength  of the frame received
+     * @param replyRequested true if the frame asks us for a reply right away
+     */
+    void onFrameHeard(String address, int payloadLength, boolean replyRequested) {
+        if (!this.listenBeforeTalk)
+            return;
+        long frame = replyRequested ? 0 : this.scaledTimeOnAir(payloadLength);
+        synchronized (this.lock) {
+            if (address.equals(this.replyFrom)) {
+                this.replyFrom = null;
+                this.replyDueUntil = System.nanoTime();
+                this.lock.notifyAll();
+            }
+            this.holdBack(frame + this.randomSlots(MIN_BACKOFF_EXPONENT + this.backoffExponent));
+        }
+    }
+
+    /**
+     * Tells us that the frame a {@link Source} is writing asks its peer for a reply right away,
+     * like an ack of the ARQ. The board can't receive while it sends, so we keep the channel
+     * free after the frame until we hear from the peer. Must be called from
+     * {@link Source#transmitNext(LoRaBTInputOutputStream.LoRaBTOutputStream)}.
+     *
+     * @param replyLength payload length of the reply
+     */
+    void expectReply(int replyLength) {
+        this.replyLength = Math.max(this.replyLength, replyLength);
+    }
+
+    /**
+     * Tells us the board answered with an ERROR, which we blame on the last frame we wrote.
+     */
+    void onBoardError() {
+        synchronized (this.lock) {
+            if (this.lastAddress != null)
+                this.getPeerStats(this.lastAddress).errors++;
+            this.errorSinceWrite = true;
+            if (!this.listenBeforeTalk)
+                return;
+            if (MIN_BACKOFF_EXPONENT + this.backoffExponent < MAX_BACKOFF_EXPONENT)
+                this.backoffExponent++;
+            //we don't know how long the frame is that kept the channel busy
+            this.holdBack(this.scaledTimeOnAir(ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH)
+                    + this.randomSlots(MIN_BACKOFF_EXPONENT + this.backoffExponent));
+        }
+    }
+
+    /**
+     * @return the contention window we draw slots from, as a power of 2
+     */
+    int getBackoffExponent() {
+        synchronized (this.lock) {
+            return MIN_BACKOFF_EXPONENT + this.backoffExponent;
+        }
+    }
+
+    /**
+     * @param address
+     * @param retransmissions of the ARQ to the peer, which we don't see
+     * @return what happened to the frames to the peer with address so far
+     */
+    LoRaCollisionStats getCollisionStats(String address, long retransmissions) {
+        synchronized (this.lock) {
+            PeerStats stats = this.peerStats.get(address);
+            if (stats == null)
+                return new LoRaCollisionStats(0, 0, 0, retransmissions);
+            return new LoRaCollisionStats(stats.framesSent, stats.errors, stats.deferrals, retransmissions);
+        }
+    }
+
+    /**
+     * Must be called holding our lock
+     */
+    private PeerStats getPeerStats(String address) {
+        PeerStats stats = this.peerStats.get(address);
+        if (stats == null) {
+            stats = new PeerStats();
+            this.peerStats.put(address, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * @return time on air in ns, scaled
+     */
+    private long scaledTimeOnAir(int payloadLength) {
+        return (long) (this.timeOnAir(payloadLength) * this.timerScale * 1000000);
+    }
+
+    /**
+     * @return one slot, so the next frame of the sender is heard in time, plus a random number
+     * of slots of a contention window of 2^exponent slots in ns
+     */
+    private long randomSlots(int exponent) {
+        return (1 + this.random.nextInt(1 << exponent)) * this.scaledTimeOnAir(0);
+    }
+
+    /**
+     * Must be called holding our lock
+     */
+    private void holdBack(long duration) {
+        this.holdBackUntil = Math.max(this.holdBackUntil, System.nanoTime() + duration);
+    }
+
+    /**
+     * Must be called holding our lock
+     *
+     * @param queued time on air of the frames the board may have queued when we write, in ns
+     * @return ns until we may write the next frame
+     */
+    private long untilClear(long queued) {
+        long now = System.nanoTime();
+        return Math.max(Math.max(this.holdBackUntil, this.replyDueUntil) - now, this.boardBusyUntil - queued - now);
+    }
+
+    /**
+     * Blocks while we hold back, or while the board still has the time on air of the frame we
+     * are about to write queued, so that it would only go on the air after the frames the board
+     * has still got. Writes our batch before it blocks.
+     *
+     * @param address       of the frame we are about to write
+     * @param payloadLength of the frame we are about to write
+     * @return true if we waited, so something more important may go first now
+     */
+    private boolean awaitChannel(String address, int payloadLength) throws InterruptedException, IOException {
+        if (!this.listenBeforeTalk)
+            return false;
+        long queued = this.scaledTimeOnAir(payloadLength);
+        synchronized (this.lock) {
+            if (this.untilClear(queued) <= 0)
+                return false;
+            if (this.holdBackUntil - System.nanoTime() > 0)
+                this.getPeerStats(address).deferrals++;
+        }
+        this.endBatch();
+        synchronized (this.lock) {
+            for (long left = this.untilClear(queued); left > 0; left = this.untilClear(queued))
+                this.lock.wait(left / 1000000, (int) (left % 1000000));
+        }
+        return true;
+    }
+
+    /**
+     * Counts a frame we wrote to address and keeps the channel free for a reply to it, if one
+     * was asked for. The contention window shrinks back if the board did not complain about the
+     * frame before.
+     */
+    private void onFrameWritten(String address, int payloadLength) {
+        long timeOnAir = this.scaledTimeOnAir(payloadLength);
+        int replyLength = this.replyLength;
+        this.replyLength = -1;
+        synchronized (this.lock) {
+            this.boardBusyUntil = Math.max(this.boardBusyUntil, System.nanoTime()) + timeOnAir;
+            if (replyLength >= 0 && this.listenBeforeTalk) {
+                //as long as if the peer held back for a frame and the whole contention window, plus a slot for the Bluetooth links
+                long slots = (2 + (1 << MIN_BACKOFF_EXPONENT)) * this.scaledTimeOnAir(0);
+                this.replyFrom = address;
+                this.replyDueUntil = this.boardBusyUntil + timeOnAir + slots + this.scaledTimeOnAir(replyLength);
+            }
+            this.getPeerStats(address).framesSent++;
+            if (!this.errorSinceWrite)
+                this.backoffExponent = 0;
+            this.errorSinceWrite = false;
+            this.lastAddress = address;
+        }
+    }
+
+    /**
+     * @return the airtime in ms we may use right now
+     */
+    long getAirtimeBudget() {
+        synchronized (this.lock) {
+            if (this.dutyCycle >= NO_DUTY_CYCLE_LIMIT)
+                return Long.MAX_VALUE;
+            this.refill();
+            return (long) this.airtimeBudget;
+        }
+    }
+
+    /**
+     * @return number of control messages and sources waiting for their turn
+     */
+    int getQueueDepth() {
+        synchronized (this.lock) {
+            return this.controlMessages.size() + this.readySources.size();
+        }
+    }
+
+    /**
+     * Time on air of a LoRa packet with CR 4/5, 8 symbol preamble, explicit header and CRC,
+     * as calculated in Semtech AN1200.13.
+     *
+     * @param payloadLength   bytes on air
+     * @param spreadingFactor
+     * @param bandwidth       in Hz
+     * @return time on air in ms
+     */
+    static long timeOnAir(int payloadLength, int spreadingFactor, long bandwidth) {
+        double symbolTime = (double) (1 << spreadingFactor) * 1000 / bandwidth;
+        int lowDataRateOptimize = symbolTime > 16 ? 1 : 0;
+        double preambleTime = (8 + 4.25) * symbolTime;
+        double payloadSymbols = 8 + Math.max(Math.ceil(
+                (8.0 * payloadLength - 4 * spreadingFactor + 28 + 16)
+                        / (4 * (spreadingFactor - 2 * lowDataRateOptimize))) * 5, 0);
+        return (long) Math.ceil(preambleTime + payloadSymbols * symbolTime);
+    }
+
+    /**
+     * @param payloadLength bytes we pass to the board
+     * @return time on air in ms with the current modulation
+     */
+    long timeOnAir(int payloadLength) {
+        return LoRaTransmitScheduler.timeOnAir(payloadLength + LORA_FRAME_OVERHEAD,
+                this.spreadingFactor, this.bandwidth);
+    }
+
+    /**
+     * Must be called holding our lock
+     */
+    private void refill() {
+        long now = System.currentTimeMillis();
+        this.airtimeBudget = Math.min(this.airtimeBudgetCapacity,
+                this.airtimeBudget + (now - this.lastRefill) * this.dutyCycle);
+        this.lastRefill = now;
+    }
+
+    /**
+     * @return true if the budget covers airtime right now
+     */
+    private boolean hasAirtime(long airtime) {
+        synchronized (this.lock) {
+            if (this.dutyCycle >= NO_DUTY_CYCLE_LIMIT)
+                return true;
+            this.refill();
+            return this.airtimeBudget >= Math.min(airtime, this.airtimeBudgetCapacity);
+        }
+    }
+
+    /**
+     * Blocks until the budget covers airtime. Writes our batch before it blocks.
+     *
+     *
+     * @param dataFrame a data frame gives way to control messages and priority sources
+     * @return false if something more important arrived in the meantime and should go first
+     */
+    private boolean awaitAirtime(long airtime, boolean dataFrame) throws InterruptedException, IOException {
+        if (this.hasAirtime(airtime))
+            return true;
+        this.endBatch();
+        synchronized (this.lock) {
+            while (this.dutyCycle < NO_DUTY_CYCLE_LIMIT) {
+                this.refill();
+                //a frame longer than the whole budget may go once the budget is full
+                if (this.airtimeBudget >= Math.min(airtime, this.airtimeBudgetCapacity))
+                    return true;
+                if (dataFrame && (!this.controlMessages.isEmpty() || !this.prioritySources.isEmpty()))
+                    return false;
+                long missing = (long) Math.ceil((Math.min(airtime, this.airtimeBudgetCapacity)
+                        - this.airtimeBudget) / this.dutyCycle);
+                this.lock.wait(Math.max(1, missing));
+            }
+            return true;
+        }
+    }
+
+    private void charge(int payloadLength) {
+        synchronized (this.lock) {
+            if (this.dutyCycle < NO_DUTY_CYCLE_LIMIT)
+                this.airtimeBudget -= this.timeOnAir(payloadLength);
+        }
+    }
+
+    private static int payloadLength(ASAPLoRaMessageInterface msg) {
+        try {
+            return msg.getBinaryPayloadLength();
+        } catch (ASAPLoRaMessageException e) {
+            return 0;
+        }
+    }
+
+    private static String address(ASAPLoRaMessageInterface msg) {
+        try {
+            return msg.getAddress();
+        } catch (ASAPLoRaMessageException e) {
+            return LoRaBroadcastSender.BROADCAST_ADDRESS;
+        }
+    }
+
+    /**
+     * Lets the frames we write from now on collect in a batch, if they don't already.
+     */
+    private void startBatch() {
+        if (this.batchStart >= 0)
+            return;
+        this.os.startBatch();
+        this.batchStart = System.nanoTime();
+    }
+
+    /**
+     * Writes our batch to the board, if we have one.
+     */
+    private void endBatch() throws IOException {
+        if (this.batchStart < 0)
+            return;
+        this.batchStart = -1;
+        this.os.endBatch();
+    }
+
+    /**
+     * Ends our batch if its frames waited long enough.
+     */
+    private void checkBatchDelay() throws IOException {
+        if (this.batchStart >= 0 && System.nanoTime() - this.batchStart >= MAX_BATCH_DELAY * 1000000)
+            this.endBatch();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!this.isInterrupted()) {
+                ASAPLoRaMessageInterface controlMessage = null;
+                Source source = null;
+                boolean dataFrame = false;
+                boolean idle;
+                synchronized (this.lock) {
+                    idle = this.controlMessages.isEmpty() && this.readySources.isEmpty();
+                }
+                if (idle)
+                    this.endBatch();
+                synchronized (this.lock) {
+                    while (this.controlMessages.isEmpty() && this.readySources.isEmpty())
+                        this.lock.wait();
+                    if (!this.controlMessages.isEmpty()) {
+                        controlMessage = this.controlMessages.peek();
+                    } else if (!this.prioritySources.isEmpty()) {
+                        source = this.prioritySources.peek();
+                    } else {
+                        source = this.dataSources.peek();
+                        dataFrame = true;
+                    }
+                }
+
+                if (controlMessage != null) {
+                    String address = address(controlMessage);
+                    int length = payloadLength(controlMessage) + this.os.getOverhead(address);
+                    if (this.awaitChannel(address, length))
+                        continue;
+                    this.awaitAirtime(this.timeOnAir(length), false);
+                    synchronized (this.lock) {
+                        this.controlMessages.poll();
+                    }
+                    this.startBatch();
+                    this.os.write(controlMessage);
+                    this.charge(length);
+                    this.onFrameWritten(address, length);
+                    this.checkBatchDelay();
+                    continue;
+                }
+
+                //sources are called without holding our lock, they call ready() holding theirs
+                int length = source.nextFrameLength();
+                if (length < 0) {
+                    this.remove(source);
+                    continue;
+                }
+                int overhead = this.os.getOverhead(source.getAddress());
+                length += overhead;
+                if (this.awaitChannel(source.getAddress(), length))
+                    continue;
+                if (!this.awaitAirtime(this.timeOnAir(length), dataFrame))
+                    continue;
+
+                this.startBatch();
+                int sent = source.transmitNext(this.os);
+                if (sent >= 0) {
+                    sent += overhead;
+                    this.charge(sent);
+                    this.onFrameWritten(source.getAddress(), sent);
+                }
+                this.replyLength = -1;
+                this.rotate(source);
+                this.checkBatchDelay();
+            }
+        } catch (InterruptedException e) {
+            Log.i(CLASS_LOG_TAG, "Thread was interrupted, stopping.");
+        } catch (IOException | ASAPLoRaException e) {
+            //the LoRaBTListenThread notices the broken connection as well and stops the engine
+            Log.e(CLASS_LOG_TAG, "Could not write to the board, stopping: " + e.getMessage());
+        } finally {
+            try {
+                this.endBatch();
+            } catch (IOException e) {
+                Log.e(CLASS_LOG_TAG, "Could not write the last frames to the board: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Takes a source out of the rotation that had nothing to send.
+     */
+    private void remove(Source source) {
+        boolean priority;
+        synchronized (this.lock) {
+            this.readySources.remove(source);
+            priority = this.prioritySources.remove(source);
+            this.dataSources.remove(source);
+        }
+        //source may have called ready() just before we removed it
+        if (source.nextFrameLength() >= 0)
+            this.ready(source, priority);
+    }
+
+    /**
+     * Moves a source that just sent a frame to the end of its queue.
+     */
+    private void rotate(Source source) {
+        synchronized (this.lock) {
+            if (this.prioritySources.remove(source))
+                this.prioritySources.add(source);
+            else if (this.dataSources.remove(source))
+                this.dataSources.add(source);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package net.sharksystem.asap.android.lora.messages;
+
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaMessageException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Binary framing of {@link ASAPLoRaMessageInterface}s for the link between phone and
+ * ASAPLoRaBTModule. Used instead of the Base64 text lines once the board confirmed the
+ * binary frame mode (see {@link FrameModeASAPLoRaMessage}).
+ *
+ * A frame has the format:
+ * <pre>
+ * | SYNC (0xA5) | TYPE (1) | ADDRESS (2, big endian) | LENGTH (1) | PAYLOAD (LENGTH) | CRC16 (2) |
+ * </pre>
+ * The CRC (CRC-16/CCITT-FALSE) is calculated over TYPE, ADDRESS, LENGTH and PAYLOAD.
+ * The SYNC byte lets the reader find the start of the next frame after a corrupted one.
+ */
+public class ASAPLoRaBinaryFrame {
+    public static final int SYNC = 0xA5;
+    public static final byte TYPE_MSSGE = 'M';
+    public static final byte TYPE_DSCVR = 'D';
+    public static final byte TYPE_DVDCR = 'V';
+    public static final byte TYPE_ERROR = 'E';
+
+    public static final int HEADER_LENGTH = 5; //SYNC, TYPE, ADDRESS, LENGTH
+    public static final int CRC_LENGTH = 2;
+    public static final int MAX_FRAME_LENGTH = HEADER_LENGTH + ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH + CRC_LENGTH;
+    private static final int[] CRC16_TABLE = ASAPLoRaBinaryFrame.crc16Table();
+
+    /**
+     * Writes msg as a single binary frame to os.
+     *
+     * @param msg
+     * @param os
+     * @throws IOException
+     * @throws ASAPLoRaMessageException
+     */
+    public static void write(ASAPLoRaMessageInterface msg, OutputStream os) throws IOException, ASAPLoRaMessageException {
+        ASAPLoRaBinaryFrame.write(msg, os, new byte[MAX_FRAME_LENGTH]);
+    }
+
+    /**
+     * Writes msg as a single binary frame to os, encoding it in frameBuffer, which has to hold
+     * at least {@link #MAX_FRAME_LENGTH} bytes. Lets callers reuse one buffer for all frames.
+     *
+     * @param msg
+     * @param os
+     * @param frameBuffer
+     * @throws IOException
+     * @throws ASAPLoRaMessageException
+     */
+    public static void write(ASAPLoRaMessageInterface msg, OutputStream os, byte[] frameBuffer) throws IOException, ASAPLoRaMessageException {
+        int length = ASAPLoRaBinaryFrame.encode(msg.getFrameType(), msg.getAddress(),
+                msg.getBinaryPayload(), 0, msg.getBinaryPayloadLength(), frameBuffer, 0);
+        os.write(frameBuffer, 0, length);
+    }
+
+    /**
+     * Encodes a frame into the buffer frame starting at frameOffset.
+     *
+     * @return the number of bytes written to frame
+     * @throws ASAPLoRaMessageException
+     */
+    public static int encode(byte type, String address, byte[] payload, int off, int len,
+                             byte[] frame, int frameOffset) throws ASAPLoRaMessageException {
+        if (len > ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH)
+            throw new ASAPLoRaMessageException("Passed a message that is too long for a binary LoRa frame");
+
+        int addr = ASAPLoRaBinaryFrame.addressToInt(address);
+        int i = frameOffset;
+        frame[i++] = (byte) SYNC;
+        frame[i++] = type;
+        frame[i++] = (byte) (addr >> 8);
+        frame[i++] = (byte) addr;
+        frame[i++] = (byte) len;
+        System.arraycopy(payload, off, frame, i, len);
+        i += len;
+        int crc = ASAPLoRaBinaryFrame.crc16(frame, frameOffset + 1, HEADER_LENGTH - 1 + len);
+        frame[i++] = (byte) (crc >> 8);
+        frame[i++] = (byte) crc;
+        return i - frameOffset;
+    }
+
+    /**
+     * Blocking reads the next valid frame from is and creates an {@link ASAPLoRaMessageInterface}
+     * from it. Bytes in front of a SYNC byte and frames with a broken CRC are skipped.
+     *
+     * @param is
+     * @return ASAPLoRaMessageInterface
+     * @throws IOException
+     * @throws ASAPLoRaMessageException
+     */
+    public static ASAPLoRaMessageInterface read(InputStream is) throws IOException, ASAPLoRaMessageException {
+        byte[] frame = new byte[MAX_FRAME_LENGTH];
+        while (true) {
+            //hunt for the start of a frame
+            int b;
+            do {
+                b = is.read();
+                if (b < 0)
+                    throw new EOFException("BT Stream closed while waiting for a binary frame");
+            } while (b != SYNC);
+
+            ASAPLoRaBinaryFrame.readFully(is, frame, 1, HEADER_LENGTH - 1);
+            int len = frame[4] & 0xFF;
+            if (len > ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH)
+                continue; //can't be a valid header, resync
+
+            ASAPLoRaBinaryFrame.readFully(is, frame, HEADER_LENGTH, len + CRC_LENGTH);
+            int crc = ((frame[HEADER_LENGTH + len] & 0xFF) << 8) | (frame[HEADER_LENGTH + len + 1] & 0xFF);
+            if (crc != ASAPLoRaBinaryFrame.crc16(frame, 1, HEADER_LENGTH - 1 + len))
+                continue; //corrupted frame, resync
+
+            byte[] payload = new byte[len];
+            System.arraycopy(frame, HEADER_LENGTH, payload, 0, len);
+            String address = ASAPLoRaBinaryFrame.intToAddress(((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF));
+            return AbstractASAPLoRaMessage.createASAPLoRaMessage(frame[1], address, payload);
+        }
+    }
+
+    private static void readFully(InputStream is, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int read = is.read(b, off, len);
+            if (read < 0)
+                throw new EOFException("BT Stream closed within a binary frame");
+            off += read;
+            len -= read;
+        }
+    }
+
+    /**
+     * Converts a 4 hex character LoRa address to its 16 bit value
+     */
+    public static int addressToInt(String address) throws ASAPLoRaMessageException {
+        try {
+            return Integer.parseInt(address, 16) & 0xFFFF;
+        } catch (NumberFormatException e) {
+            throw new ASAPLoRaMessageException("Invalid LoRa address: " + address);
+        }
+    }
+
+    /**
+     * Converts a 16 bit LoRa address to the 4 hex character representation used by the board
+     */
+    public static String intToAddress(int address) {
+        return String.format("%04X", address & 0xFFFF);
+    }
+
+    /**
+     * CRC-16/CCITT-FALSE (poly 0x1021, init 0xFFFF)
+     */
+    public static int crc16(byte[] data, int off, int len) {
+        return ASAPLoRaBinaryFrame.crc16(0xFFFF, data, off, len);
+    }
+
+    /**
+     * Continues a CRC-16/CCITT-FALSE calculation over more data, for frames that are not in one buffer
+     *
+     * @param crc the CRC of the data so far
+     */
+    public static int crc16(int crc, byte[] data, int off, int len) {
+        for (int i = off; i < off + len; i++)
+            crc = (crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xFF];
+        return crc & 0xFFFF;
+    }
+
+    private static int[] crc16Table() {
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            table[i] = crc & 0xFFFF;
+        }
+        return table;
+    }
+}
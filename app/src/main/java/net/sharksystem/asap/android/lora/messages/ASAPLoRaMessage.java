@@ -7,6 +7,7 @@ import net.sharksystem.asap.android.lora.LoRaCommunicationManager;
 import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaMessageException;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Represents a Message from or to the ASAPLoRaBTModule, has the Payload "MSSGE:<Address 1000-FFFE>:<payload>"
@@ -14,28 +15,54 @@ import java.io.IOException;
  * As LoRa-Packages cannot send more than 250 byte of data in one Message, the limit has to be less
  * than 175 characters, since the payload is base64-encoded and the max length of a base64 message
  * is calculated by 4 * ceil(<characters> / 3)
+ *
+ * In binary frame mode (see {@link ASAPLoRaBinaryFrame}) the payload is sent raw, so it can use
+ * the full 250 bytes.
  */
 
 public class ASAPLoRaMessage extends AbstractASAPLoRaMessage {
+    public static final int MAX_TEXT_PAYLOAD_LENGTH = 174;
+    public static final int MAX_BINARY_PAYLOAD_LENGTH = 250;
     private static final String CLASS_LOG_TAG = "ASAPLoRaMessage";
     private byte[] message;
-    private String base64message;
+    private int length;
+    private ASAPLoRaMessageBufferPool bufferPool = null;
+    private String base64message = null;
 
     /**
-     * Creates a message for passing to the ASAPLoRaBTModule from the byte[]-data and the address,
-     * then encoding the data to base64.
+     * Creates a message for passing to the ASAPLoRaBTModule from the byte[]-data and the address.
+     * The data is only encoded to base64 if the message is sent in text mode.
      *
      * @param address
      * @param message
      * @throws ASAPLoRaMessageException
      */
     public ASAPLoRaMessage(String address, byte[] message) throws ASAPLoRaMessageException {
-        if (message.length > 174)
+        if (message.length > MAX_BINARY_PAYLOAD_LENGTH)
             throw new ASAPLoRaMessageException("Passed a message that is too long for LoRa Transport");
         this.setAddress(address);
         this.message = message;
-        //NO_WRAP to stop the Base64 Util to terminate the string with a newline, as we add our own LF
-        this.base64message = Base64.encodeToString(message, Base64.NO_WRAP);
+        this.length = message.length;
+    }
+
+    /**
+     * Creates a message for passing to the ASAPLoRaBTModule from the first length bytes of a
+     * buffer taken from bufferPool. The buffer is not copied and goes back to the pool on
+     * {@link #recycle()}.
+     *
+     * @param address
+     * @param buffer
+     * @param length
+     * @param bufferPool
+     * @throws ASAPLoRaMessageException
+     */
+    public ASAPLoRaMessage(String address, byte[] buffer, int length, ASAPLoRaMessageBufferPool bufferPool) throws ASAPLoRaMessageException {
+        if (length > MAX_BINARY_PAYLOAD_LENGTH || length > buffer.length)
+            throw new ASAPLoRaMessageException("Passed a message that is too long for LoRa Transport");
+        this.setAddress(address);
+        this.message = buffer;
+        this.length = length;
+        this.bufferPool = bufferPool;
     }
 
     /**
@@ -49,12 +76,33 @@ public class ASAPLoRaMessage extends AbstractASAPLoRaMessage {
         this.setAddress(address);
         this.base64message = base64message.trim(); //whitespaces can be ignored, according to RFC2045
         this.message = Base64.decode(this.base64message, Base64.DEFAULT);
+        this.length = this.message.length;
     }
 
     public byte[] getMessage() {
+        if (this.length != this.message.length)
+            return Arrays.copyOf(this.message, this.length);
         return this.message;
     }
 
+    /**
+     * Hands a pooled buffer back to its {@link ASAPLoRaMessageBufferPool}.
+     * The message must not be used afterwards.
+     */
+    public void recycle() {
+        if (this.bufferPool != null) {
+            this.bufferPool.release(this.message);
+            this.bufferPool = null;
+        }
+    }
+
+    private String getBase64Message() {
+        //NO_WRAP to stop the Base64 Util to terminate the string with a newline, as we add our own LF
+        if (this.base64message == null)
+            this.base64message = Base64.encodeToString(this.message, 0, this.length, Base64.NO_WRAP);
+        return this.base64message;
+    }
+
     /**
      * Gets called from the {@link LoRaCommunicationManager} if this message should be handled.
      * Passes itself to the corresponding LoRaASAPInputStream
@@ -89,13 +137,30 @@ public class ASAPLoRaMessage extends AbstractASAPLoRaMessage {
      */
     @Override
     public String getPayload() throws ASAPLoRaMessageException {
-        return "MSSGE:" + this.getAddress() + ":" + this.base64message;
+        if (this.length > MAX_TEXT_PAYLOAD_LENGTH)
+            throw new ASAPLoRaMessageException("Passed a message that is too long for LoRa Transport in text mode");
+        return "MSSGE:" + this.getAddress() + ":" + this.getBase64Message();
+    }
+
+    @Override
+    public byte getFrameType() {
+        return ASAPLoRaBinaryFrame.TYPE_MSSGE;
+    }
+
+    @Override
+    public byte[] getBinaryPayload() {
+        return this.message;
+    }
+
+    @Override
+    public int getBinaryPayloadLength() {
+        return this.length;
     }
 
     @Override
     public String toString() {
         try {
-            return "ASAPLoRaMessage (" + this.getAddress() + ":" + this.base64message + "): " + new String(this.message);
+            return "ASAPLoRaMessage (" + this.getAddress() + ":" + this.getBase64Message() + "): " + new String(this.message, 0, this.length);
         } catch (ASAPLoRaMessageException e) {
             return "ASAPLoRaMessage: " + e.toString();
         }
@@ -0,0 +1,60 @@
+package net.sharksystem.asap.android.lora.messages;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of payload buffers for outgoing {@link ASAPLoRaMessage}s.
+ *
+ * A LoRaASAPOutputStream fills a buffer from this pool as its chunk and hands it over to an
+ * {@link ASAPLoRaMessage} on flush, without copying. Once the message was written to the
+ * ASAPLoRaBTModule, {@link ASAPLoRaMessage#recycle()} puts the buffer back, so that large
+ * ASAP transfers do not allocate a new array per LoRa message.
+ */
+public class ASAPLoRaMessageBufferPool {
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = 32;
+    private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>();
+    private final int maxPooledBuffers;
+
+    public ASAPLoRaMessageBufferPool() {
+        this(DEFAULT_MAX_POOLED_BUFFERS);
+    }
+
+    public ASAPLoRaMessageBufferPool(int maxPooledBuffers) {
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * Returns a buffer able to hold the payload of any {@link ASAPLoRaMessage}.
+     * Creates a new one if the pool is empty.
+     *
+     * @return
+     */
+    public byte[] acquire() {
+        synchronized (this.freeBuffers) {
+            byte[] buffer = this.freeBuffers.poll();
+            if (buffer != null)
+                return buffer;
+        }
+        return new byte[ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH];
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers beyond the pool size are left to the GC.
+     *
+     * @param buffer
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH)
+            return;
+        synchronized (this.freeBuffers) {
+            if (this.freeBuffers.size() < this.maxPooledBuffers)
+                this.freeBuffers.push(buffer);
+        }
+    }
+
+    public int size() {
+        synchronized (this.freeBuffers) {
+            return this.freeBuffers.size();
+        }
+    }
+}
@@ -9,6 +9,9 @@ import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaMessageException;
  */
 public interface ASAPLoRaMessageInterface {
     String getPayload() throws ASAPLoRaMessageException;
+    byte getFrameType() throws ASAPLoRaMessageException;
+    byte[] getBinaryPayload() throws ASAPLoRaMessageException;
+    int getBinaryPayloadLength() throws ASAPLoRaMessageException;
     String getAddress() throws ASAPLoRaMessageException;
     void setAddress(String address) throws ASAPLoRaMessageException;
     void handleMessage(LoRaCommunicationManager loRaCommunicationManager) throws ASAPLoRaMessageException;
@@ -17,6 +17,24 @@ public abstract class AbstractASAPLoRaMessage implements ASAPLoRaMessageInterfac
         throw new ASAPLoRaMessageException("Trying to call getPayload() on non-outgoing ASAP Message. This should never happen.");
     }
 
+    public byte getFrameType() throws ASAPLoRaMessageException {
+        throw new ASAPLoRaMessageException("Trying to call getFrameType() on a message without binary representation.");
+    }
+
+    public byte[] getBinaryPayload() throws ASAPLoRaMessageException {
+        throw new ASAPLoRaMessageException("Trying to call getBinaryPayload() on a message without binary representation.");
+    }
+
+    /**
+     * The binary payload may be a pooled buffer that is longer than the payload itself.
+     *
+     * @return number of valid bytes in {@link #getBinaryPayload()}
+     * @throws ASAPLoRaMessageException
+     */
+    public int getBinaryPayloadLength() throws ASAPLoRaMessageException {
+        return this.getBinaryPayload().length;
+    }
+
     public String getAddress() throws ASAPLoRaMessageException {
         if(this.address == null)
             throw new ASAPLoRaMessageException("Trying to call getAddress() on ASAP Message without address.");
@@ -68,7 +86,31 @@ public abstract class AbstractASAPLoRaMessage implements ASAPLoRaMessageInterfac
                 return new ASAPLoRaMessage(messageAddress, message);
             case "ERROR":
                 return new ErrorASAPLoRaMessage(messagePayload);
+            case "FRMOD":
+                return new FrameModeASAPLoRaMessage(messagePayload);
         }
         throw new ASAPLoRaMessageException("Recieved invalid Message Type: " + rawMessage);
     }
+
+    /**
+     * Static Factory for Messages, creates @{@link ASAPLoRaMessageInterface}-Instances from the
+     * fields of an {@link ASAPLoRaBinaryFrame} received by the ASAPLoRaBTModule.
+     *
+     * @param frameType
+     * @param address
+     * @param payload
+     * @return
+     * @throws ASAPLoRaMessageException
+     */
+    public static ASAPLoRaMessageInterface createASAPLoRaMessage(byte frameType, String address, byte[] payload) throws ASAPLoRaMessageException {
+        switch (frameType) {
+            case ASAPLoRaBinaryFrame.TYPE_DVDCR:
+                return new DeviceDiscoveredASAPLoRaMessage(address);
+            case ASAPLoRaBinaryFrame.TYPE_MSSGE:
+                return new ASAPLoRaMessage(address, payload);
+            case ASAPLoRaBinaryFrame.TYPE_ERROR:
+                return new ErrorASAPLoRaMessage(new String(payload));
+        }
+        throw new ASAPLoRaMessageException("Recieved invalid binary Frame Type: " + frameType);
+    }
 }
\ No newline at end of file
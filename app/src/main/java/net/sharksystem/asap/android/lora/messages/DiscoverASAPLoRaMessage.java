@@ -16,6 +16,16 @@ public class DiscoverASAPLoRaMessage extends AbstractASAPLoRaMessage {
         return "DSCVR";
     }
 
+    @Override
+    public byte getFrameType() {
+        return ASAPLoRaBinaryFrame.TYPE_DSCVR;
+    }
+
+    @Override
+    public byte[] getBinaryPayload() {
+        return new byte[0];
+    }
+
     @Override
     public String toString() {
         return "DSCVR";
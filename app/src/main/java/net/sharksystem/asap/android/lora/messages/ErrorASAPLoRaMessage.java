@@ -1,6 +1,7 @@
 package net.sharksystem.asap.android.lora.messages;
 
 import net.sharksystem.asap.android.lora.LoRaCommunicationManager;
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaMessageException;
 
 
 /**
@@ -12,7 +13,8 @@ public class ErrorASAPLoRaMessage extends AbstractASAPLoRaMessage {
 
     String message = "";
 
-    ErrorASAPLoRaMessage(String message){
+    ErrorASAPLoRaMessage(String message) throws ASAPLoRaMessageException {
+        this.setAddress("FFFF"); //errors come from the board itself, not from a peer
         this.message = message;
     }
 
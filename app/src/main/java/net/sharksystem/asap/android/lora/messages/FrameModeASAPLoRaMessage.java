@@ -0,0 +1,46 @@
+package net.sharksystem.asap.android.lora.messages;
+
+import net.sharksystem.asap.android.lora.LoRaCommunicationManager;
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaMessageException;
+
+/**
+ * Represents the negotiation of the frame mode with the ASAPLoRaBTModule, has the Payload "FRMOD:<mode>"
+ *
+ * We send "FRMOD:BIN" to request {@link ASAPLoRaBinaryFrame}s. A board supporting them echoes
+ * "FRMOD:BIN" and uses binary frames in both directions from then on. Older boards reply with
+ * an ERROR or not at all, in which case we stay with the Base64 text lines.
+ */
+
+public class FrameModeASAPLoRaMessage extends AbstractASAPLoRaMessage {
+    public static final String MODE_BINARY = "BIN";
+    private final String mode;
+
+    public FrameModeASAPLoRaMessage(String mode) throws ASAPLoRaMessageException {
+        this.setAddress("FFFF");
+        this.mode = mode.trim();
+    }
+
+    public boolean isBinary() {
+        return MODE_BINARY.equals(this.mode);
+    }
+
+    @Override
+    public String getPayload() {
+        return "FRMOD:" + this.mode;
+    }
+
+    /**
+     * Gets called if the board confirmed a frame mode.
+     *
+     * @param loRaCommunicationManager
+     */
+    @Override
+    public void handleMessage(LoRaCommunicationManager loRaCommunicationManager) {
+        loRaCommunicationManager.frameModeConfirmed(this.isBinary());
+    }
+
+    @Override
+    public String toString() {
+        return this.getPayload();
+    }
+}
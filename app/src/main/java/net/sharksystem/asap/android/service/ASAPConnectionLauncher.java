@@ -7,6 +7,7 @@ import net.sharksystem.asap.ASAPPeer;
 import net.sharksystem.asap.ASAPPeerService;
 import net.sharksystem.asap.android.Util;
 import net.sharksystem.util.tcp.TCPChannelMaker;
+import net.sharksystem.util.tcp.TCPConnectionFuture;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -47,21 +48,43 @@ public class ASAPConnectionLauncher extends Thread {
             if(this.is == null) {
                 if (!this.channelMaker.running()) {
                     Log.d(this.getLogStart(), "connection maker not running - start");
+                    // handled on the channel maker thread once connected, nobody waits for it
+                    this.channelMaker.getConnectionFuture().addListener(new TCPConnectionFuture.Listener() {
+                        @Override
+                        public void onConnectionEstablished(InputStream is, OutputStream os) {
+                            Log.d(ASAPConnectionLauncher.this.getLogStart(), "connected - start handle connection");
+                            ASAPConnectionLauncher.this.is = is;
+                            ASAPConnectionLauncher.this.os = os;
+                            ASAPConnectionLauncher.this.handleConnection();
+                        }
+
+                        @Override
+                        public void onConnectionEstablishmentFailed(String reason) {
+                            Log.d(ASAPConnectionLauncher.this.getLogStart(), "no connection: " + reason);
+                        }
+                    });
                     this.channelMaker.start();
-                } else {
-                    // if already running must be a server channel
-                    Log.d(this.getLogStart(), "connection maker running - next connection");
-                    this.channelMaker.nextConnection();
+                    return;
                 }
 
-                Log.d(this.getLogStart(), "channel maker started, wait for connection");
-                this.channelMaker.waitUntilConnectionEstablished();
+                // if already running must be a server channel
+                Log.d(this.getLogStart(), "connection maker running - next connection");
+                this.channelMaker.nextConnection();
                 Log.d(this.getLogStart(), "connected - start handle connection");
 
                 this.is = this.channelMaker.getInputStream();
                 this.os = this.channelMaker.getOutputStream();
             }
+        } catch (IOException e) {
+            Log.d(this.getLogStart(), "while laucnhing asap connection: " + e.getLocalizedMessage());
+            return;
+        }
 
+        this.handleConnection();
+    }
+
+    private void handleConnection() {
+        try {
             Log.d(this.getLogStart(), "call asapMultiEngine to handle connection");
 //            TestConnectionHandler testConnectionHandler = new TestConnectionHandler(this.is, this.os);
 //            testConnectionHandler.start();
@@ -119,11 +119,24 @@ class ASAPMessageHandler extends Handler {
                 // ASK_HUB_CONNECTIONS; no parameters.
                 case ASAPServiceMethods.ASK_HUB_CONNECTIONS:
                     this.asapService.getHubConnectionManager().refreshHubList();
+                    break;
                 case ASAPServiceMethods.START_TCP_ENCOUNTER:
                     String host = msg.getData().getString(ASAPServiceMethods.STRING_PARAMETER);
                     int port = msg.getData().getInt(ASAPServiceMethods.INT_PARAMETER);
                     this.asapService.connectToServerSocket(host, port);
                     break;
+                case ASAPServiceMethods.START_TCP_ENCOUNTER_SERVER:
+                    this.asapService.startTCPEncounterServer(
+                            msg.getData().getInt(ASAPServiceMethods.INT_PARAMETER));
+                    break;
+                case ASAPServiceMethods.STOP_TCP_ENCOUNTER_SERVER:
+                    this.asapService.stopTCPEncounterServer();
+                    break;
+                case ASAPServiceMethods.START_TCP_ENCOUNTER_SWEEP:
+                    this.asapService.sweepTCPEncounters(
+                            msg.getData().getStringArray(ASAPServiceMethods.STRING_ARRAY_PARAMETER),
+                            msg.getData().getInt(ASAPServiceMethods.INT_PARAMETER));
+                    break;
                 default:
                     super.handleMessage(msg);
             }
@@ -27,6 +27,8 @@ import net.sharksystem.asap.android.lora.LoRaEngine;
 import net.sharksystem.asap.android.service2AppMessaging.ASAPServiceRequestNotifyIntent;
 import net.sharksystem.asap.android.tcpEncounter.TCPEncounterListener;
 import net.sharksystem.asap.android.tcpEncounter.TCPClientSocketThread;
+import net.sharksystem.asap.android.tcpEncounter.TCPEncounterServer;
+import net.sharksystem.asap.android.tcpEncounter.TCPEncounterSweep;
 import net.sharksystem.asap.android.wifidirect.WifiP2PEngine;
 import net.sharksystem.asap.engine.ASAPChunkAssimilatedListener;
 import net.sharksystem.hub.HubConnectionManagerMessageHandler;
@@ -64,10 +66,17 @@ public class ASAPService extends Service
     private ASAPHubManager asapASAPHubManager;
     private HubConnectionManagerMessageHandler hubConnectionManager;
 
-    String getASAPRootFolderName() {
+    public String getASAPRootFolderName() {
         return this.asapEngineRootFolderName;
     }
 
+    /**
+     * @return formats this service was created for, null if none were given
+     */
+    public List<CharSequence> getSupportedFormats() {
+        return this.supportedFormats;
+    }
+
     //////////////////////////////////////////////////////////////////////////////////////
     //                                 construction                                     //
     //////////////////////////////////////////////////////////////////////////////////////
@@ -227,6 +236,8 @@ public class ASAPService extends Service
         super.onDestroy();
 
         this.stopReconnectPairedDevices();
+        this.stopTCPEncounterServer();
+        this.stopTCPEncounterSweep();
 
         Log.d(this.getLogStart(),"onDestroy");
     }
@@ -327,7 +338,7 @@ public class ASAPService extends Service
     void startLoRa() {
         Log.d(this.getLogStart(), "start LoRa");
 
-        // Helper for finding an ASAPLoRaBTModule
+        // Helper for finding the ASAPLoRaBTModules, e.g. two boards on different channels
         //TODO - actually there should be a Setting or selection Dialog here
         BluetoothAdapter btAdapter = BluetoothAdapter.getDefaultAdapter();
 
@@ -336,11 +347,10 @@ public class ASAPService extends Service
 
         for (BluetoothDevice btDevice : btAdapter.getBondedDevices()) {
             if (btDevice.getName().indexOf("ASAP-LoRa") == 0) {
-                LoRaEngine.getASAPLoRaEngine(this, this).setAsapLoRaBTModule(btDevice);
-                break;
+                LoRaEngine.getASAPLoRaEngine(this, this).addAsapLoRaBTModule(btDevice);
             }
         }
-        // End helper for finding an ASAPLoRaBTModule
+        // End helper for finding the ASAPLoRaBTModules
 
         LoRaEngine.getASAPLoRaEngine(this, this).start();
     }
@@ -368,6 +378,100 @@ public class ASAPService extends Service
         tcpClientSocketThread.start();
     }
 
+    private TCPEncounterServer tcpEncounterServer = null;
+
+    /**
+     * Accepts encounters on port until stopped, see TCPEncounterServer
+     */
+    public void startTCPEncounterServer(int port) {
+        if(this.tcpEncounterServer != null) {
+            Log.d(this.getLogStart(), "tcp encounter server already running - stop it first");
+            return;
+        }
+
+        this.tcpEncounterServer = new TCPEncounterServer(this.getASAPEncounterManager(), port);
+        this.tcpEncounterServer.setListener(new TCPEncounterListener() {
+            @Override
+            public void onEncounterSuccess() {
+                ASAPServiceRequestNotifyIntent intent =
+                        new ASAPServiceRequestNotifyIntent(
+                                ASAPServiceRequestNotifyIntent.ASAP_TCP_ENCOUNTER_SUCCESS);
+                sendBroadcast(intent);
+            }
+        });
+        this.tcpEncounterServer.start();
+    }
+
+    public void stopTCPEncounterServer() {
+        if(this.tcpEncounterServer != null) {
+            this.tcpEncounterServer.stop();
+            this.tcpEncounterServer = null;
+        }
+    }
+
+    private TCPEncounterSweep tcpEncounterSweep = null;
+
+    /**
+     * Encounters each endpoint (host:port), see TCPEncounterSweep. Broadcasts the outcome of all
+     * of them at once when done. One sweep at a time, a sweep is refused while another one runs.
+     *
+     * @param hostDeadline in ms, default if not positive
+     */
+    public synchronized void sweepTCPEncounters(String[] endpoints, int hostDeadline) {
+        if(endpoints == null) {
+            Log.d(this.getLogStart(), "no endpoints to sweep");
+            return;
+        }
+
+        if(this.tcpEncounterSweep != null) {
+            Log.d(this.getLogStart(), "tcp encounter sweep already running - stop it first");
+            return;
+        }
+
+        final TCPEncounterSweep sweep = new TCPEncounterSweep(this.getASAPEncounterManager(), endpoints,
+                TCPEncounterSweep.MAX_PARALLEL_DEFAULT,
+                hostDeadline > 0 ? hostDeadline : TCPEncounterSweep.HOST_DEADLINE_DEFAULT);
+        sweep.setListener(new TCPEncounterSweep.Listener() {
+            @Override
+            public void onSweepDone(List<TCPEncounterSweep.Result> results) {
+                synchronized(ASAPService.this) {
+                    if(ASAPService.this.tcpEncounterSweep == sweep) {
+                        ASAPService.this.tcpEncounterSweep = null;
+                    }
+                }
+
+                String[] sweptEndpoints = new String[results.size()];
+                boolean[] success = new boolean[results.size()];
+                long[] durations = new long[results.size()];
+                for(int i = 0; i < results.size(); i++) {
+                    sweptEndpoints[i] = results.get(i).getEndpoint();
+                    success[i] = results.get(i).isSuccess();
+                    durations[i] = results.get(i).getDuration();
+                }
+
+                ASAPServiceRequestNotifyIntent intent =
+                        new ASAPServiceRequestNotifyIntent(
+                                ASAPServiceRequestNotifyIntent.ASAP_TCP_ENCOUNTER_SWEEP_DONE);
+                intent.putExtra(ASAPServiceRequestNotifyIntent.ASAP_PARAMETER_1, sweptEndpoints);
+                intent.putExtra(ASAPServiceRequestNotifyIntent.ASAP_PARAMETER_2, success);
+                intent.putExtra(ASAPServiceRequestNotifyIntent.ASAP_PARAMETER_3, durations);
+                sendBroadcast(intent);
+            }
+        });
+        this.tcpEncounterSweep = sweep;
+        sweep.start();
+    }
+
+    /**
+     * Gives up on the hosts of a running sweep, its outcome is not broadcast
+     */
+    public synchronized void stopTCPEncounterSweep() {
+        if(this.tcpEncounterSweep != null) {
+            this.tcpEncounterSweep.stop();
+            this.tcpEncounterSweep = null;
+        }
+    }
+
     //////////////////////////////////////////////////////////////////////////////////////
     //                                  ASAP hub management                             //
     //////////////////////////////////////////////////////////////////////////////////////
@@ -104,6 +104,15 @@ public class ASAPServiceRequestNotifyBroadcastReceiver extends BroadcastReceiver
                 Log.d(this.getLogStart(), "notified TCP encounter success");
                 this.notificationListener.asapNotifyTCPEncounterSuccess();
                 break;
+            case ASAPServiceRequestNotifyIntent.ASAP_TCP_ENCOUNTER_SWEEP_DONE:
+                Log.d(this.getLogStart(), "notified TCP encounter sweep done");
+                if(this.notificationListener instanceof TCPEncounterSweepNotificationListener) {
+                    ((TCPEncounterSweepNotificationListener) this.notificationListener).asapNotifyTCPEncounterSweepDone(
+                            intent.getStringArrayExtra(ASAPServiceRequestNotifyIntent.ASAP_PARAMETER_1),
+                            intent.getBooleanArrayExtra(ASAPServiceRequestNotifyIntent.ASAP_PARAMETER_2),
+                            intent.getLongArrayExtra(ASAPServiceRequestNotifyIntent.ASAP_PARAMETER_3));
+                }
+                break;
             case ASAPServiceRequestNotifyIntent.ASAP_NOTIFY_HUB_LIST_AVAILABLE:
                 Log.d(this.getLogStart(), "notified received current hub list");
                 byte[] serializedHubDescriptions = intent.getByteArrayExtra(ASAPServiceRequestNotifyIntent.ASAP_PARAMETER_1);
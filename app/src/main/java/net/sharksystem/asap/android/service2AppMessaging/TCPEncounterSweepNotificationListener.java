@@ -0,0 +1,14 @@
+package net.sharksystem.asap.android.service2AppMessaging;
+
+/**
+ * Implemented by notification listeners that start TCP encounter sweeps. It is not part of
+ * ASAPServiceNotificationListener, so existing implementations of that one are not broken.
+ */
+public interface TCPEncounterSweepNotificationListener {
+    /**
+     * @param endpoints host:port of each peer of the sweep
+     * @param success whether the encounter with the endpoint at the same index worked
+     * @param durations in ms, of the endpoint at the same index
+     */
+    void asapNotifyTCPEncounterSweepDone(String[] endpoints, boolean[] success, long[] durations);
+}
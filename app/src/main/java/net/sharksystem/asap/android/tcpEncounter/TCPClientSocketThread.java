@@ -4,6 +4,7 @@ import android.util.Log;
 
 import net.sharksystem.asap.ASAPEncounterManager;
 import net.sharksystem.asap.ASAPEncounterConnectionType;
+import net.sharksystem.util.tcp.TCPReconnectPolicy;
 import net.sharksystem.utils.streams.StreamPair;
 import net.sharksystem.utils.streams.StreamPairImpl;
 
@@ -13,18 +14,29 @@ import java.net.Socket;
 /**
  * This class can be used to create a TCP connection with another ASAPPeer which provides a TCP server.
  * The connection is handled by the ASAPEncounterManager.
- * The class inherits from Thread and establishes the connection in the run method.
+ * The class inherits from Thread and establishes the connection in the run method, retrying as
+ * its TCPReconnectPolicy says.
  */
 public class TCPClientSocketThread extends Thread {
+    // the server may not be up yet, give it a few tries
+    public static final int MAX_ATTEMPTS_DEFAULT = 5;
+
     private final ASAPEncounterManager encounterManager;
     private final String host;
     private final int port;
+    private final TCPReconnectPolicy reconnectPolicy;
     private TCPEncounterListener listener;
 
     public TCPClientSocketThread(ASAPEncounterManager encounterManager, String host, int port) {
+        this(encounterManager, host, port, new TCPReconnectPolicy(MAX_ATTEMPTS_DEFAULT));
+    }
+
+    public TCPClientSocketThread(ASAPEncounterManager encounterManager, String host, int port,
+                                 TCPReconnectPolicy reconnectPolicy) {
         this.encounterManager = encounterManager;
         this.host = host;
         this.port = port;
+        this.reconnectPolicy = reconnectPolicy;
     }
 
     public void setListener(TCPEncounterListener listener) {
@@ -40,7 +52,7 @@ public class TCPClientSocketThread extends Thread {
     public void run() {
         try {
             Log.d(this.getLogStart(), "create tcp client socket");
-            Socket socket = new Socket(host, port);
+            Socket socket = this.reconnectPolicy.connect(host, port);
             StreamPair streamPair = StreamPairImpl.getStreamPair(socket.getInputStream(), socket.getOutputStream());
             Log.d(this.getLogStart(), "connected - going to call handleEncounter");
             encounterManager.handleEncounter(streamPair, ASAPEncounterConnectionType.AD_HOC_LAYER_2_NETWORK);
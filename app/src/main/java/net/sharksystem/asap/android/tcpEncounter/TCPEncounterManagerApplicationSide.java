@@ -5,13 +5,18 @@ import android.util.Log;
 import net.sharksystem.asap.android.app2serviceMessaging.MessageFactory;
 import net.sharksystem.asap.android.apps.ASAPActivity;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- * This class is used to start a TCP Encounter to a target peer from the application side.
+ * This class is used to start a TCP Encounter to a target peer, or to accept encounters from other
+ * peers, from the application side.
  */
 public class TCPEncounterManagerApplicationSide {
 
     private final ASAPActivity asapActivity;
     private TCPEncounterListener tcpEncounterListener;
+    private TCPEncounterSweep.Listener tcpEncounterSweepListener;
 
     public TCPEncounterManagerApplicationSide(ASAPActivity asapActivity) {
         this.asapActivity = asapActivity;
@@ -23,6 +28,30 @@ public class TCPEncounterManagerApplicationSide {
         asapActivity.sendMessage2Service(MessageFactory.createConnectToServerSocketMessage(host, port));
     }
 
+    /**
+     * Lets the service accept encounters from other peers on port, until stopped
+     */
+    public void startTCPEncounterServer(int port) {
+        Log.d(getLogStart(), "send message to service: start TCP Encounter server");
+        asapActivity.sendMessage2Service(MessageFactory.createStartTCPEncounterServerMessage(port));
+    }
+
+    public void stopTCPEncounterServer() {
+        Log.d(getLogStart(), "send message to service: stop TCP Encounter server");
+        asapActivity.sendMessage2Service(MessageFactory.createStopTCPEncounterServerMessage());
+    }
+
+    /**
+     * Encounters each endpoint (host:port), a few at a time, instead of one message per peer.
+     * The sweep listener gets the outcome of all of them at once.
+     *
+     * @param hostDeadline in ms, for each endpoint to connect and hand over
+     */
+    public void startTCPEncounterSweep(String[] endpoints, int hostDeadline) {
+        Log.d(getLogStart(), "send message to service: start TCP Encounter sweep");
+        asapActivity.sendMessage2Service(MessageFactory.createTCPEncounterSweepMessage(endpoints, hostDeadline));
+    }
+
     public void setTcpEncounterListener(TCPEncounterListener tcpEncounterListener) {
         this.tcpEncounterListener = tcpEncounterListener;
     }
@@ -34,6 +63,21 @@ public class TCPEncounterManagerApplicationSide {
         }
     }
 
+    public void setTcpEncounterSweepListener(TCPEncounterSweep.Listener tcpEncounterSweepListener) {
+        this.tcpEncounterSweepListener = tcpEncounterSweepListener;
+    }
+
+    public void notifyTCPEncounterSweepDone(String[] endpoints, boolean[] success, long[] durations) {
+        Log.d(getLogStart(), "Notify TCP Encounter sweep done");
+        if (this.tcpEncounterSweepListener != null) {
+            List<TCPEncounterSweep.Result> results = new ArrayList<>();
+            for (int i = 0; i < endpoints.length; i++) {
+                results.add(new TCPEncounterSweep.Result(endpoints[i], success[i], durations[i]));
+            }
+            this.tcpEncounterSweepListener.onSweepDone(results);
+        }
+    }
+
     private String getLogStart() {
         return this.getClass().getSimpleName();
     }
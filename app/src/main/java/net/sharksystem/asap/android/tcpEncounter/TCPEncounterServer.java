@@ -0,0 +1,248 @@
+package net.sharksystem.asap.android.tcpEncounter;
+
+import android.util.Log;
+
+import net.sharksystem.asap.ASAPEncounterConnectionType;
+import net.sharksystem.asap.ASAPEncounterManager;
+import net.sharksystem.util.tcp.TCPChannelMaker;
+import net.sharksystem.util.tcp.TCPConnectionFuture;
+import net.sharksystem.util.tcp.TCPConnectionHandler;
+import net.sharksystem.utils.streams.StreamPair;
+import net.sharksystem.utils.streams.StreamPairImpl;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The counterpart of TCPClientSocketThread: listens on a port and hands each inbound connection
+ * to the ASAPEncounterManager. A single thread accepts, a bounded pool of workers hands the
+ * connections over. A worker stays with its connection until the ASAP session closes the streams
+ * or the peer goes away, so the workers bound the sessions running at the same time. Connections
+ * that find all workers busy wait in a queue, those that find the queue full as well are closed
+ * right away, so that many peers at once don't use up our threads.
+ */
+public class TCPEncounterServer implements TCPConnectionHandler {
+    public static final int MAX_WORKERS_DEFAULT = 8;
+    public static final int MAX_QUEUED_DEFAULT = 56;
+    private static final long WORKER_KEEP_ALIVE = 60; // seconds
+
+    private final ASAPEncounterManager encounterManager;
+    private final int port;
+    private final int maxWorkers;
+    private final int maxQueued;
+    private ThreadPoolExecutor workers = null;
+    private final AtomicInteger rejected = new AtomicInteger();
+    private TCPChannelMaker serverChannelMaker = null;
+    private TCPEncounterListener listener;
+
+    public TCPEncounterServer(ASAPEncounterManager encounterManager, int port) {
+        this(encounterManager, port, MAX_WORKERS_DEFAULT, MAX_QUEUED_DEFAULT);
+    }
+
+    /**
+     * @param maxWorkers sessions running at the same time
+     * @param maxQueued connections waiting for a worker, more are refused
+     */
+    public TCPEncounterServer(ASAPEncounterManager encounterManager, int port, int maxWorkers, int maxQueued) {
+        this.encounterManager = encounterManager;
+        this.port = port;
+        this.maxWorkers = maxWorkers;
+        this.maxQueued = maxQueued;
+    }
+
+    public void setListener(TCPEncounterListener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if(this.serverChannelMaker != null) {
+            Log.d(this.getLogStart(), "already started");
+            return;
+        }
+
+        Log.d(this.getLogStart(), "start tcp encounter server");
+        // a stopped server lets its workers finish, we need new ones
+        this.workers = new ThreadPoolExecutor(this.maxWorkers, this.maxWorkers,
+                WORKER_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(this.maxQueued),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // the server closes the connection
+                        TCPEncounterServer.this.rejected.incrementAndGet();
+                        throw new RejectedExecutionException("too many connections");
+                    }
+                });
+        // no threads kept while nobody connects
+        this.workers.allowCoreThreadTimeOut(true);
+        this.serverChannelMaker = TCPChannelMaker.getTCPServerCreator(this.port, this, this.workers);
+        // only fails, the connections go to us
+        this.serverChannelMaker.getConnectionFuture().addListener(new TCPConnectionFuture.Listener() {
+            @Override
+            public void onConnectionEstablished(InputStream is, OutputStream os) { }
+
+            @Override
+            public void onConnectionEstablishmentFailed(String reason) {
+                Log.e(TCPEncounterServer.this.getLogStart(), "cannot listen: " + reason);
+            }
+        });
+        this.serverChannelMaker.start();
+    }
+
+    /**
+     * Closes the listening socket, connections accepted already are still handed over.
+     * The server can be started again.
+     */
+    public synchronized void stop() {
+        Log.d(this.getLogStart(), "stop tcp encounter server");
+        if(this.serverChannelMaker != null) {
+            try {
+                this.serverChannelMaker.close();
+            } catch (IOException e) {
+                Log.d(this.getLogStart(), "while closing: " + e.getLocalizedMessage());
+            }
+            this.serverChannelMaker = null;
+        }
+        if(this.workers != null) {
+            this.workers.shutdown();
+            this.workers = null;
+        }
+    }
+
+    /**
+     * Called on a worker thread, returns when the session is over
+     */
+    @Override
+    public void handleConnection(InputStream is, OutputStream os) throws IOException {
+        Session session = new Session();
+        StreamPair streamPair = StreamPairImpl.getStreamPair(
+                session.new SessionInputStream(is), session.new SessionOutputStream(os));
+        Log.d(this.getLogStart(), "connected - going to call handleEncounter");
+        this.encounterManager.handleEncounter(streamPair, ASAPEncounterConnectionType.AD_HOC_LAYER_2_NETWORK);
+        if(this.listener != null) {
+            this.listener.onEncounterSuccess();
+        }
+
+        // handleEncounter returns once the session runs, the worker is taken until it ends
+        try {
+            session.ended.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.d(this.getLogStart(), "session ended");
+    }
+
+    /**
+     * Ends when either stream is closed, reaches its end or fails
+     */
+    private static class Session {
+        private final CountDownLatch ended = new CountDownLatch(1);
+
+        private void end() {
+            this.ended.countDown();
+        }
+
+        private class SessionInputStream extends FilterInputStream {
+            SessionInputStream(InputStream is) {
+                super(is);
+            }
+
+            @Override
+            public int read() throws IOException {
+                try {
+                    int b = super.read();
+                    if(b < 0) {
+                        Session.this.end();
+                    }
+                    return b;
+                } catch (IOException e) {
+                    Session.this.end();
+                    throw e;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    int read = super.read(b, off, len);
+                    if(read < 0) {
+                        Session.this.end();
+                    }
+                    return read;
+                } catch (IOException e) {
+                    Session.this.end();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                Session.this.end();
+                super.close();
+            }
+        }
+
+        private class SessionOutputStream extends FilterOutputStream {
+            SessionOutputStream(OutputStream os) {
+                super(os);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    this.out.write(b);
+                } catch (IOException e) {
+                    Session.this.end();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // FilterOutputStream would write byte by byte
+                try {
+                    this.out.write(b, off, len);
+                } catch (IOException e) {
+                    Session.this.end();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                try {
+                    this.out.flush();
+                } catch (IOException e) {
+                    Session.this.end();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                Session.this.end();
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * @return connections that were closed because workers and queue were full
+     */
+    public int getRejected() {
+        return this.rejected.get();
+    }
+
+    private String getLogStart() {
+        return String.format("TCPEncounterServer (port %d)", this.port);
+    }
+}
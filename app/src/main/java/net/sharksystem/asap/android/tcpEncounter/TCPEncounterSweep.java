@@ -0,0 +1,253 @@
+package net.sharksystem.asap.android.tcpEncounter;
+
+import android.util.Log;
+
+import net.sharksystem.asap.ASAPEncounterConnectionType;
+import net.sharksystem.asap.ASAPEncounterManager;
+import net.sharksystem.util.tcp.TCPReconnectPolicy;
+import net.sharksystem.utils.streams.StreamPair;
+import net.sharksystem.utils.streams.StreamPairImpl;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a TCP encounter with each of a list of hosts, a few of them at the same time. Each host has
+ * a deadline for connecting and handing the connection to the ASAPEncounterManager; a host that
+ * takes longer is closed and counts as failed. When all hosts are done, the listener gets the
+ * outcome of each of them at once.
+ */
+public class TCPEncounterSweep {
+    public static final int MAX_PARALLEL_DEFAULT = 4;
+    public static final long HOST_DEADLINE_DEFAULT = 30 * 1000; // ms
+
+    /**
+     * Outcome of one host
+     */
+    public static class Result {
+        private final String endpoint;
+        private final boolean success;
+        private final long duration;
+
+        Result(String endpoint, boolean success, long duration) {
+            this.endpoint = endpoint;
+            this.success = success;
+            this.duration = duration;
+        }
+
+        /**
+         * @return host:port as given to the sweep
+         */
+        public String getEndpoint() {
+            return this.endpoint;
+        }
+
+        public boolean isSuccess() {
+            return this.success;
+        }
+
+        /**
+         * @return ms from the start of this host until it succeeded or failed
+         */
+        public long getDuration() {
+            return this.duration;
+        }
+
+        public String toString() {
+            return this.endpoint + (this.success ? " ok " : " failed ") + this.duration + " ms";
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called once, on a worker thread
+         * @param results in the order the hosts were given
+         */
+        void onSweepDone(List<Result> results);
+    }
+
+    private final ASAPEncounterManager encounterManager;
+    private final String[] endpoints;
+    private final int maxParallel;
+    private final long hostDeadline;
+    private final TCPReconnectPolicy reconnectPolicy;
+    private final Result[] results;
+    private final AtomicInteger remaining;
+    private final AtomicBoolean started = new AtomicBoolean();
+    // set by stop() or by the last host, whoever comes first - only the latter notifies
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    // connected hosts not done yet, stop() closes them
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private ExecutorService workers;
+    private ScheduledExecutorService watchdog;
+    private Listener listener;
+
+    public TCPEncounterSweep(ASAPEncounterManager encounterManager, String[] endpoints) {
+        this(encounterManager, endpoints, MAX_PARALLEL_DEFAULT, HOST_DEADLINE_DEFAULT);
+    }
+
+    /**
+     * @param endpoints host:port of each peer
+     * @param maxParallel hosts at the same time
+     * @param hostDeadline in ms, for connecting and handing over to the encounter manager
+     */
+    public TCPEncounterSweep(ASAPEncounterManager encounterManager, String[] endpoints,
+                             int maxParallel, long hostDeadline) {
+        this.encounterManager = encounterManager;
+        this.endpoints = endpoints;
+        this.maxParallel = Math.max(1, maxParallel);
+        this.hostDeadline = hostDeadline;
+        this.reconnectPolicy = new TCPReconnectPolicy(TCPClientSocketThread.MAX_ATTEMPTS_DEFAULT,
+                TCPReconnectPolicy.INITIAL_DELAY_DEFAULT, TCPReconnectPolicy.MAX_DELAY_DEFAULT,
+                TCPReconnectPolicy.JITTER_DEFAULT, TCPReconnectPolicy.CONNECT_TIMEOUT_DEFAULT,
+                hostDeadline);
+        this.results = new Result[endpoints.length];
+        this.remaining = new AtomicInteger(endpoints.length);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the sweep and returns, a sweep runs only once
+     */
+    public synchronized void start() {
+        if(this.stopped.get() || !this.started.compareAndSet(false, true)) {
+            Log.d(this.getLogStart(), "already started or stopped");
+            return;
+        }
+
+        Log.d(this.getLogStart(), "start sweep over " + this.endpoints.length + " hosts");
+        if(this.endpoints.length == 0) {
+            this.stopped.set(true);
+            this.notifyListener();
+            return;
+        }
+
+        this.workers = Executors.newFixedThreadPool(Math.min(this.maxParallel, this.endpoints.length));
+        this.watchdog = Executors.newSingleThreadScheduledExecutor();
+        for(int i = 0; i < this.endpoints.length; i++) {
+            final int index = i;
+            this.workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    TCPEncounterSweep.this.encounter(index);
+                }
+            });
+        }
+    }
+
+    /**
+     * Gives up on hosts not done yet and closes their connections. The listener is not called,
+     * unless all hosts were done before.
+     */
+    public synchronized void stop() {
+        if(this.stopped.getAndSet(true)) {
+            return;
+        }
+
+        Log.d(this.getLogStart(), "stop sweep");
+        if(this.workers != null) {
+            this.workers.shutdownNow();
+            this.watchdog.shutdownNow();
+        }
+        for(Socket socket : this.connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closed anyway
+            }
+        }
+    }
+
+    private void encounter(int index) {
+        String endpoint = this.endpoints[index];
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        Socket connected = null;
+        try {
+            // last colon, hosts may be IPv6 addresses
+            int colon = endpoint.lastIndexOf(':');
+            if(colon < 1) {
+                throw new IOException("not host:port");
+            }
+            String host = endpoint.substring(0, colon);
+            int port = Integer.parseInt(endpoint.substring(colon + 1));
+            final Socket socket = this.reconnectPolicy.connect(host, port);
+            connected = socket;
+            this.connections.add(socket);
+            if(this.stopped.get()) {
+                // stop() might have missed it
+                throw new IOException("sweep stopped");
+            }
+            long left = start + this.hostDeadline - System.currentTimeMillis();
+            final AtomicBoolean expired = new AtomicBoolean();
+            // the encounter manager may hang on a peer that accepts but never answers
+            ScheduledFuture<?> timeout = this.watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expired.set(true);
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // closed anyway
+                    }
+                }
+            }, Math.max(0, left), TimeUnit.MILLISECONDS);
+
+            StreamPair streamPair = StreamPairImpl.getStreamPair(socket.getInputStream(), socket.getOutputStream());
+            Log.d(this.getLogStart(), "connected to " + endpoint + " - going to call handleEncounter");
+            this.encounterManager.handleEncounter(streamPair, ASAPEncounterConnectionType.AD_HOC_LAYER_2_NETWORK);
+            timeout.cancel(false);
+            this.connections.remove(socket);
+            success = !expired.get();
+            if(!success) {
+                Log.d(this.getLogStart(), endpoint + " missed its deadline");
+            }
+        } catch (Exception e) {
+            // IOException mostly, NumberFormatException on a bad port, RejectedExecutionException if stopped
+            Log.d(this.getLogStart(), "encounter with " + endpoint + " failed: "
+                    + e.getLocalizedMessage());
+            if(connected != null) {
+                this.connections.remove(connected);
+                try {
+                    connected.close();
+                } catch (IOException ex) {
+                    // closed anyway
+                }
+            }
+        }
+
+        this.results[index] = new Result(endpoint, success, System.currentTimeMillis() - start);
+        // the last host reports for all of them, if we were not stopped
+        if(this.remaining.decrementAndGet() == 0 && !this.stopped.getAndSet(true)) {
+            this.workers.shutdown();
+            this.watchdog.shutdown();
+            this.notifyListener();
+        }
+    }
+
+    private void notifyListener() {
+        Log.d(this.getLogStart(), "sweep done: " + Arrays.toString(this.results));
+        if(this.listener != null) {
+            this.listener.onSweepDone(Arrays.asList(this.results));
+        }
+    }
+
+    private String getLogStart() {
+        return "TCPEncounterSweep";
+    }
+}
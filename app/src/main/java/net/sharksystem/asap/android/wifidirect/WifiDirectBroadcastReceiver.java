@@ -92,6 +92,7 @@ class WifiDirectBroadcastReceiver extends BroadcastReceiver {
                 this.mManager.requestConnectionInfo(this.mChannel, this.connectionInfoListener);
             } else {
                 Log.d("Wifi_BR", "BL: p2p peers connection changed: not connected");
+                this.asapWifiP2PEngine.groupDissolved();
             }
 
         } else if (WifiP2pManager.WIFI_P2P_THIS_DEVICE_CHANGED_ACTION.equals(action)) {
@@ -36,6 +36,7 @@ public class WifiP2PEngine extends MacLayerEngine implements
     private WifiP2pManager mManager;
     private WifiP2pManager.Channel mChannel;
     private WifiDirectBroadcastReceiver mReceiver;
+    private WifiPeerConnectionInfoListener connectionInfoListener;
 
     WifiP2PEngine(ASAPService ASAPService, Context context) {
         super(ASAPService, context);
@@ -73,6 +74,9 @@ public class WifiP2PEngine extends MacLayerEngine implements
     //////////////////////////////////////////////////////////////////////////////////////
 
     private void shutdown() {
+        this.groupDissolved();
+        this.connectionInfoListener = null;
+
         if (this.mReceiver != null) {
             try {
                 this.getContext().unregisterReceiver(this.mReceiver);
@@ -125,13 +129,12 @@ public class WifiP2PEngine extends MacLayerEngine implements
 
             // create broadcast listener to get publications regarding wifi (p2p)
             WifiPeerListListener peerListListener = new WifiPeerListListener(this);
-            WifiP2pManager.ConnectionInfoListener connectionInfoListener =
-                    new WifiPeerConnectionInfoListener(this);
+            this.connectionInfoListener = new WifiPeerConnectionInfoListener(this);
 
             this.mReceiver = new WifiDirectBroadcastReceiver(this,
                     this.mManager, this.mChannel, this.getContext(),
                     peerListListener,
-                    connectionInfoListener);
+                    this.connectionInfoListener);
 
             // define what broadcasts we are interested in
             IntentFilter mIntentFilter = new IntentFilter();
@@ -157,6 +160,15 @@ public class WifiP2PEngine extends MacLayerEngine implements
         }
     }
 
+    /**
+     * We are not in a group (anymore) - a server we ran as group owner is not needed
+     */
+    void groupDissolved() {
+        if(this.connectionInfoListener != null) {
+            this.connectionInfoListener.closeServer();
+        }
+    }
+
     public void start() {
         Log.d(this.getLogStart(), "start / start setup wifip2p");
         this.setup();
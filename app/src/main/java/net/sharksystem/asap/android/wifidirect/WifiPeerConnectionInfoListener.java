@@ -4,9 +4,17 @@ import android.net.wifi.p2p.WifiP2pInfo;
 import android.net.wifi.p2p.WifiP2pManager;
 import android.util.Log;
 
+import net.sharksystem.asap.ASAPException;
 import net.sharksystem.asap.android.ASAPAndroid;
 import net.sharksystem.asap.android.service.ASAPConnectionLauncher;
 import net.sharksystem.util.tcp.TCPChannelMaker;
+import net.sharksystem.util.tcp.TCPConnectionHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class WifiPeerConnectionInfoListener implements WifiP2pManager.ConnectionInfoListener {
     private final WifiP2PEngine wifiP2PEngine;
@@ -20,6 +28,9 @@ public class WifiPeerConnectionInfoListener implements WifiP2pManager.Connection
     //////////////////////////////////////////////////////////////////////////////////////
 
     TCPChannelMaker serverChannelCreator = null;
+    // handing a connection to the asap peer is quick, it runs the session on its own threads
+    private static final int SESSION_THREADS = 2;
+    private ExecutorService sessionExecutor = null;
 
     /**
      * result of a requestConnectionInfo on wifip2pmanager after receiving a p2p connection
@@ -33,27 +44,40 @@ public class WifiPeerConnectionInfoListener implements WifiP2pManager.Connection
 
         TCPChannelMaker.max_connection_loops = 10;
 
-        TCPChannelMaker channelCreator = null;
         if(info.isGroupOwner) {
             Log.d(getLogStart(), "group owner - should create server");
 
-            // create tcp server as group owner
+            // create tcp server as group owner, it accepts each client in the group
             if(this.serverChannelCreator == null) {
                 Log.d(getLogStart(), "start server channel maker");
-                this.serverChannelCreator =
-                        TCPChannelMaker.getTCPServerCreator(ASAPAndroid.PORT_NUMBER, true);
+                this.sessionExecutor = Executors.newFixedThreadPool(SESSION_THREADS);
+                this.serverChannelCreator = TCPChannelMaker.getTCPServerCreator(ASAPAndroid.PORT_NUMBER,
+                        new TCPConnectionHandler() {
+                            @Override
+                            public void handleConnection(InputStream is, OutputStream os) throws IOException {
+                                Log.d(getLogStart(), "client connected - handle connection");
+                                try {
+                                    WifiPeerConnectionInfoListener.this.wifiP2PEngine.getASAPService()
+                                            .getASAPPeer().handleConnection(is, os);
+                                } catch (ASAPException e) {
+                                    throw new IOException(e.getLocalizedMessage());
+                                }
+                            }
+                        }, this.sessionExecutor);
+                this.serverChannelCreator.start();
             } else {
                 Log.d(getLogStart(), "server channel maker already exists");
             }
+            return;
+        }
 
-            channelCreator = this.serverChannelCreator;
+        // we might have owned a group before
+        this.closeServer();
 
-        } else {
-            String hostAddress = info.groupOwnerAddress.getHostAddress();
-            Log.d(getLogStart(), " start server channel maker: " + hostAddress);
-            // create client connection to group owner
-            channelCreator = TCPChannelMaker.getTCPClientCreator(hostAddress, ASAPAndroid.PORT_NUMBER);
-        }
+        String hostAddress = info.groupOwnerAddress.getHostAddress();
+        Log.d(getLogStart(), " start server channel maker: " + hostAddress);
+        // create client connection to group owner
+        TCPChannelMaker channelCreator = TCPChannelMaker.getTCPClientCreator(hostAddress, ASAPAndroid.PORT_NUMBER);
 
         // TODO - route this over encounter manager
         // create an ASAPSession with connection parameters
@@ -63,6 +87,28 @@ public class WifiPeerConnectionInfoListener implements WifiP2pManager.Connection
         ASAPConnectionLauncher.start();
     }
 
+    /**
+     * Stops accepting clients of the group and lets the session threads end. Called when the
+     * group dissolved or Wi-Fi Direct is shut down, a group formed later gets a new server.
+     */
+    void closeServer() {
+        if(this.serverChannelCreator != null) {
+            Log.d(getLogStart(), "close server channel maker");
+            try {
+                this.serverChannelCreator.close();
+            } catch (IOException e) {
+                Log.d(getLogStart(), "while closing server: " + e.getLocalizedMessage());
+            }
+            this.serverChannelCreator = null;
+        }
+
+        if(this.sessionExecutor != null) {
+            // sessions handed over already go on, on threads of the asap peer
+            this.sessionExecutor.shutdown();
+            this.sessionExecutor = null;
+        }
+    }
+
     private String getLogStart() {
         return this.getClass().getSimpleName();
     }
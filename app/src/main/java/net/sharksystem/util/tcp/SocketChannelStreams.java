@@ -0,0 +1,93 @@
+package net.sharksystem.util.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Streams of a socket that came out of a (server) socket channel. The streams the socket itself
+ * offers hold the blocking lock of its channel while reading, on Android and older JDKs writing
+ * needs that lock as well (JDK-4774871): a reader waiting for the peer would stall each write.
+ * ASAP reads and writes at the same time, so we go to SocketChannel.read and write instead, which
+ * lock reading and writing separately. The channel must be in blocking mode.
+ */
+class SocketChannelStreams {
+    static InputStream getInputStream(Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        return channel == null ? socket.getInputStream() : new ChannelInputStream(channel);
+    }
+
+    static OutputStream getOutputStream(Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        return channel == null ? socket.getOutputStream() : new ChannelOutputStream(channel);
+    }
+
+    private static class ChannelInputStream extends InputStream {
+        private final SocketChannel channel;
+        // ASAP reads single bytes a lot, no buffer allocated for each of them
+        private final ByteBuffer single = ByteBuffer.allocate(1);
+
+        ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            synchronized(this.single) {
+                this.single.clear();
+                // blocks until the byte arrived
+                return this.channel.read(this.single) < 0 ? -1 : this.single.get(0) & 0xff;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            // blocks until at least one byte arrived
+            return this.channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+    private static class ChannelOutputStream extends OutputStream {
+        private final SocketChannel channel;
+        private final ByteBuffer single = ByteBuffer.allocate(1);
+
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized(this.single) {
+                this.single.clear();
+                this.single.put(0, (byte) b);
+                while(this.single.hasRemaining()) {
+                    this.channel.write(this.single);
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while(buffer.hasRemaining()) {
+                this.channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
@@ -38,12 +38,12 @@ abstract class TCPChannel {
 
     InputStream getInputStream() throws IOException {
         this.checkConnected();
-        return this.socket.getInputStream();
+        return SocketChannelStreams.getInputStream(this.socket);
     }
 
     OutputStream getOutputStream() throws IOException {
         this.checkConnected();
-        return this.socket.getOutputStream();
+        return SocketChannelStreams.getOutputStream(this.socket);
     }
 
     /**
@@ -3,6 +3,7 @@ package net.sharksystem.util.tcp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
 
 /**
  * TCP creates a virtual channel between to communication partners. Only during binding procedure,
@@ -14,7 +15,8 @@ import java.io.OutputStream;
  *
  * After object creation, start that channel thread simply by calling start().
  * Call @see isConnected() to check if a connection was created or @see waitUntilConnectionEstablished()
- * which blocks the calling thread until a connection was established.
+ * which blocks the calling thread until a connection was established. Without blocking a thread,
+ * add a listener to @see getConnectionFuture(), which is completed the moment the socket connects.
  *
  * After connection establishment, methods by @see getInputStream() and @see getOutputStream()
  * can be used to get I/O streams to use the TCP channel.
@@ -24,6 +26,11 @@ import java.io.OutputStream;
  * In that case, the server accepts multiple client connection attempts and tries to create
  * a new connection with each call on createSocket.
  *
+ * A server created with a connection handler (@see getTCPServerCreator(int, TCPConnectionHandler,
+ * Executor)) instead accepts any number of clients on a single thread and hands each connection
+ * to the handler right away. Neither waitUntilConnectionEstablished() nor the streams of the
+ * channel maker are used then.
+ *
  * @author thsc
  */
 public class TCPChannelMaker extends Thread {
@@ -31,6 +38,9 @@ public class TCPChannelMaker extends Thread {
     private final boolean asServer;
     private final String hostname;
     private final boolean multiple;
+    private final TCPConnectionHandler handler;
+    private final Executor sessionExecutor;
+    private TCPReconnectPolicy reconnectPolicy = null;
 
     private boolean fatalError = false;
     private boolean threadRunning = false;
@@ -38,10 +48,14 @@ public class TCPChannelMaker extends Thread {
     public static int wait_for_next_connection_try;
     public static final int WAIT_FOR_NEXT_CONNECTION_TRY_DEFAULT = 10000; // any 10 sec
 
+    // attempts of clients without reconnect policy, see TCPReconnectPolicy for the delays between them
     public static int max_connection_loops;
     public static final int MAX_CONNECTION_LOOPS_DEFAULT = 100; // hundred times
 
     private TCPChannel channel;
+    private final Object closeLock = new Object();
+    private boolean closed = false;
+    private final TCPConnectionFuture connectionFuture = new TCPConnectionFuture();
 
     static {
         wait_for_next_connection_try = WAIT_FOR_NEXT_CONNECTION_TRY_DEFAULT;
@@ -57,6 +71,19 @@ public class TCPChannelMaker extends Thread {
         return new TCPChannelMaker(hostname, port, false, false);
     }
 
+    /**
+     * Create a tcp channel as client
+     * @param hostname remote host
+     * @param port remote port
+     * @param reconnectPolicy - how often and when to try again
+     */
+    public static TCPChannelMaker getTCPClientCreator(String hostname, int port,
+                                                      TCPReconnectPolicy reconnectPolicy) {
+        TCPChannelMaker channelMaker = new TCPChannelMaker(hostname, port, false, false);
+        channelMaker.reconnectPolicy = reconnectPolicy;
+        return channelMaker;
+    }
+
     /**
      * Create a tcp channel as server
      * @param port port - local port for server or remote port for client
@@ -74,6 +101,17 @@ public class TCPChannelMaker extends Thread {
         return new TCPChannelMaker(null, port, true, multiple);
     }
 
+    /**
+     * Create a tcp server that accepts any number of clients
+     * @param port port - local port for server
+     * @param handler - takes over each connection
+     * @param sessionExecutor - runs the handler
+     */
+    public static TCPChannelMaker getTCPServerCreator(int port, TCPConnectionHandler handler,
+                                                      Executor sessionExecutor) {
+        return new TCPChannelMaker(null, port, true, true, handler, sessionExecutor);
+    }
+
     /**
      * @param hostname remote host - only used when client
      * @param port port - local port for server or remote port for client
@@ -81,10 +119,17 @@ public class TCPChannelMaker extends Thread {
      * @param multiple - allow multiple connection on server - only used when server
      */
     private TCPChannelMaker(String hostname, int port, boolean asServer, boolean multiple) {
+        this(hostname, port, asServer, multiple, null, null);
+    }
+
+    private TCPChannelMaker(String hostname, int port, boolean asServer, boolean multiple,
+                            TCPConnectionHandler handler, Executor sessionExecutor) {
         this.hostname = hostname;
         this.port = port;
         this.asServer = asServer;
         this.multiple = multiple;
+        this.handler = handler;
+        this.sessionExecutor = sessionExecutor;
     }
 
     /**
@@ -101,92 +146,98 @@ public class TCPChannelMaker extends Thread {
     public void run() {
         this.threadRunning = true;
         try {
-            if(this.asServer) {
-                this.channel = new TCPServer(this.port, this.multiple);
+            TCPChannel channel;
+            if(this.asServer && this.handler != null) {
+                channel = new TCPServer(this.port, this.handler, this.sessionExecutor);
+            } else if(this.asServer) {
+                channel = new TCPServer(this.port, this.multiple);
             } else {
-                this.channel = new TCPClient(this.hostname, this.port);
+                TCPReconnectPolicy reconnectPolicy = this.reconnectPolicy;
+                if(reconnectPolicy == null) {
+                    reconnectPolicy = new TCPReconnectPolicy(max_connection_loops);
+                }
+                channel = new TCPClient(this.hostname, this.port, reconnectPolicy);
+            }
+
+            synchronized(this.closeLock) {
+                if(this.closed) {
+                    // e.g. a server must not keep its port
+                    channel.close();
+                    throw new IOException("closed before connecting");
+                }
+                this.channel = channel;
             }
 
             // this can take a while
             this.channel.createSocket();
 
+            if(this.channel.isConnected()) {
+                this.connectionFuture.complete(this.channel.getInputStream(), this.channel.getOutputStream());
+            } else if(this.handler == null) {
+                // no socket and no handler that takes them
+                this.fatalError = true;
+                this.connectionFuture.fail("couldn't establish connection");
+            }
         } catch (IOException ex) {
             //<<<<<<<<<<<<<<<<<<debug
             String s = "couldn't esatblish connection";
             System.out.println(s);
             this.fatalError = true;
+            this.connectionFuture.fail(s + ": " + ex.getLocalizedMessage());
         }
     }
 
     public void close() throws IOException {
-        if(this.channel != null) {
-            this.channel.close();
+        TCPChannel channel;
+        synchronized(this.closeLock) {
+            this.closed = true;
+            channel = this.channel;
+        }
+
+        if(channel != null) {
+            channel.close();
             //<<<<<<<<<<<<<<<<<<debug
             System.out.println("socket closed");
         }
     }
 
+    /**
+     * @return completed by the channel maker thread when the first connection is established or
+     * failed. A server with a connection handler hands its connections to the handler instead.
+     */
+    public TCPConnectionFuture getConnectionFuture() {
+        return this.connectionFuture;
+    }
+
     /**
      * holds thread until a connection is established
      */
     public void waitUntilConnectionEstablished() throws IOException {
-        if(!this.threadRunning) {
-            /* in unit tests there is a race condition between the test
-            thread and those newly created tests to establish a connection.
-
-            Thus, this call could be in the right order - give it a
-            second chance
-            */
-
-            try {
-                Thread.sleep(wait_for_next_connection_try);
-            } catch (InterruptedException ex) {
-                // ignore
-            }
-
-            if(!this.threadRunning) {
-                // that's probably wrong usage:
-                throw new IOException("must start TCPChannel thread first by calling start()");
-            }
+        if(this.getState() == State.NEW) {
+            // that's probably wrong usage:
+            throw new IOException("must start TCPChannel thread first by calling start()");
         }
 
-        while(!this.fatalError && !this.isConnected()) {
-            try {
-                Thread.sleep(wait_for_next_connection_try);
-            } catch (InterruptedException ex) {
-                // ignore
-            }
-        }
+        this.connectionFuture.await();
     }
 
     /**
-     * Starts a thread that runs until a connection was established or it failed
+     * Calls the listener as soon as a connection was established or it failed
      *
      * @param listener
      */
-    public void notifyWhenConnectionEstablishmened(TCPChannelMakerListener listener) {
-        Thread waiterThread = new WaitAndNotifyThread(listener, this.channel);
-        waiterThread.start();
-    }
-
-    private class WaitAndNotifyThread extends Thread {
-        private final TCPChannelMakerListener listener;
-        private final TCPChannel channel;
-
-        WaitAndNotifyThread(TCPChannelMakerListener listener, TCPChannel channel) {
-            this.listener = listener;
-            this.channel = channel;
-        }
+    public void notifyWhenConnectionEstablishmened(final TCPChannelMakerListener listener) {
+        this.connectionFuture.addListener(new TCPConnectionFuture.Listener() {
+            @Override
+            public void onConnectionEstablished(InputStream is, OutputStream os) {
+                listener.onConnectionEstablished(TCPChannelMaker.this.channel);
+            }
 
-        public void run() {
-          try {
-            waitUntilConnectionEstablished();
-            // done
-              this.listener.onConnectionEstablished(this.channel);
-            } catch (IOException e) {
-                this.listener.onConnectionEstablishmentFailed(this.channel, e.getLocalizedMessage());
+            @Override
+            public void onConnectionEstablishmentFailed(String reason) {
+                listener.onConnectionEstablishmentFailed(TCPChannelMaker.this.channel, reason);
             }
-        }
+        });
     }
 
     /**
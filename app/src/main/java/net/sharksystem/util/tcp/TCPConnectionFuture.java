@@ -0,0 +1,136 @@
+package net.sharksystem.util.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The connection a channel maker is about to establish. It is completed by the channel maker
+ * thread the moment the socket connects or establishment fails, listeners are called right then.
+ * A CompletableFuture would do, but it needs API level 24.
+ *
+ * @see TCPChannelMaker#getConnectionFuture()
+ */
+public class TCPConnectionFuture {
+    public interface Listener {
+        /**
+         * Called on the thread that established the connection, should not block it
+         */
+        public void onConnectionEstablished(InputStream is, OutputStream os);
+
+        public void onConnectionEstablishmentFailed(String reason);
+    }
+
+    private boolean done = false;
+    private InputStream is = null;
+    private OutputStream os = null;
+    private String failure = null;
+    private List<Listener> listeners = new ArrayList<>();
+
+    void complete(InputStream is, OutputStream os) {
+        List<Listener> listeners;
+        synchronized(this) {
+            if(this.done) {
+                return;
+            }
+            this.is = is;
+            this.os = os;
+            listeners = this.finish();
+        }
+
+        for(Listener listener : listeners) {
+            listener.onConnectionEstablished(is, os);
+        }
+    }
+
+    void fail(String reason) {
+        List<Listener> listeners;
+        synchronized(this) {
+            if(this.done) {
+                return;
+            }
+            this.failure = reason;
+            listeners = this.finish();
+        }
+
+        for(Listener listener : listeners) {
+            listener.onConnectionEstablishmentFailed(reason);
+        }
+    }
+
+    /**
+     * Must be called holding our monitor
+     * @return listeners to call
+     */
+    private List<Listener> finish() {
+        this.done = true;
+        this.notifyAll();
+        List<Listener> listeners = this.listeners;
+        this.listeners = null;
+        return listeners;
+    }
+
+    /**
+     * Calls listener as soon as the connection is established or failed - right away on the
+     * calling thread if that already happened.
+     */
+    public void addListener(Listener listener) {
+        synchronized(this) {
+            if(!this.done) {
+                this.listeners.add(listener);
+                return;
+            }
+        }
+
+        if(this.failure == null) {
+            listener.onConnectionEstablished(this.is, this.os);
+        } else {
+            listener.onConnectionEstablishmentFailed(this.failure);
+        }
+    }
+
+    /**
+     * @return connection established or failed
+     */
+    public synchronized boolean isDone() {
+        return this.done;
+    }
+
+    /**
+     * @return connection established
+     */
+    public synchronized boolean isConnected() {
+        return this.done && this.failure == null;
+    }
+
+    /**
+     * Blocks the calling thread until the connection is established
+     * @throws IOException establishment failed, or we were interrupted
+     */
+    public synchronized void await() throws IOException {
+        while(!this.done) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for connection");
+            }
+        }
+
+        if(this.failure != null) {
+            throw new IOException(this.failure);
+        }
+    }
+
+    public synchronized InputStream getInputStream() throws IOException {
+        this.await();
+        return this.is;
+    }
+
+    public synchronized OutputStream getOutputStream() throws IOException {
+        this.await();
+        return this.os;
+    }
+}
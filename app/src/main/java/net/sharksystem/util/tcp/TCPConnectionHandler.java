@@ -0,0 +1,16 @@
+package net.sharksystem.util.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Takes over connections a server accepted, @see TCPChannelMaker.getTCPServerCreator(int,
+ * TCPConnectionHandler, Executor). Called on a thread of the session executor.
+ */
+public interface TCPConnectionHandler {
+    /**
+     * @throws IOException the connection is closed then
+     */
+    public void handleConnection(InputStream is, OutputStream os) throws IOException;
+}
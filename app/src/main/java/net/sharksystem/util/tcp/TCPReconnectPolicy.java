@@ -0,0 +1,106 @@
+package net.sharksystem.util.tcp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * How a client retries connecting to a server: the delay between attempts doubles up to a cap,
+ * each attempt has a connect timeout and all of them together a deadline. Delays are shortened
+ * by a random share, so clients that failed together (e.g. members joining a Wi-Fi Direct group
+ * at the same time) don't retry in lockstep.
+ *
+ * Objects of that class are immutable and can be shared by any number of clients.
+ */
+public class TCPReconnectPolicy {
+    public static final long INITIAL_DELAY_DEFAULT = 500; // ms
+    public static final long MAX_DELAY_DEFAULT = 16 * 1000; // ms
+    public static final double JITTER_DEFAULT = 0.5; // up to half of each delay
+    public static final int CONNECT_TIMEOUT_DEFAULT = 5 * 1000; // ms
+    public static final long DEADLINE_DEFAULT = 2 * 60 * 1000; // 2 minutes in ms
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double jitter;
+    private final int connectTimeout;
+    private final long deadline;
+    private final Random random = new Random();
+
+    /**
+     * @param maxAttempts attempts with default delays, timeouts and deadline
+     */
+    public TCPReconnectPolicy(int maxAttempts) {
+        this(maxAttempts, INITIAL_DELAY_DEFAULT, MAX_DELAY_DEFAULT, JITTER_DEFAULT,
+                CONNECT_TIMEOUT_DEFAULT, DEADLINE_DEFAULT);
+    }
+
+    /**
+     * @param maxAttempts connection attempts at most
+     * @param initialDelay in ms, before the second attempt
+     * @param maxDelay in ms, delays double up to this one
+     * @param jitter share of a delay, between 0 and 1, it is randomly shortened by
+     * @param connectTimeout in ms, for each attempt
+     * @param deadline in ms, for all attempts together
+     */
+    public TCPReconnectPolicy(int maxAttempts, long initialDelay, long maxDelay, double jitter,
+                              int connectTimeout, long deadline) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialDelay = initialDelay;
+        this.maxDelay = Math.max(initialDelay, maxDelay);
+        this.jitter = Math.min(1, Math.max(0, jitter));
+        this.connectTimeout = connectTimeout;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param attempt failed attempts so far, at least 1
+     * @return ms to wait before the next attempt
+     */
+    long getDelay(int attempt) {
+        long delay = this.maxDelay;
+        // no overflow: the cap is reached long before
+        if(attempt <= 30) {
+            delay = Math.min(this.maxDelay, this.initialDelay << (attempt - 1));
+        }
+        return delay - (long) (delay * this.jitter * this.random.nextDouble());
+    }
+
+    /**
+     * Tries to connect until it succeeds, attempts are exhausted or the deadline passed.
+     *
+     * @return connected socket
+     * @throws IOException of the last attempt, or if we were interrupted
+     */
+    public Socket connect(String host, int port) throws IOException {
+        long giveUpAt = System.currentTimeMillis() + this.deadline;
+        for(int attempt = 1; ; attempt++) {
+            long left = giveUpAt - System.currentTimeMillis();
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port),
+                        (int) Math.max(1, Math.min(this.connectTimeout, left)));
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                long delay = this.getDelay(attempt);
+                if(attempt >= this.maxAttempts || System.currentTimeMillis() + delay >= giveUpAt) {
+                    Log.d("TCPReconnectPolicy:", "give up on " + host + ":" + port
+                            + " after " + attempt + " attempts: " + e.getLocalizedMessage());
+                    throw e;
+                }
+
+                Log.d("TCPReconnectPolicy:", "connecting " + host + ":" + port + " failed, retry in " + delay + " ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("interrupted while waiting to reconnect");
+                }
+            }
+        }
+    }
+}
@@ -3,111 +3,222 @@ package net.sharksystem.util.tcp;
 import android.util.Log;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 class TCPServer extends TCPChannel {
-    private ServerSocket srvSocket;
+    // queued when the server is closed, wakes up waiting createSocket calls
+    private static final Socket CLOSED = new Socket();
+
+    private final ServerSocketChannel srvChannel;
     private final int port;
     private final boolean multiple;
-    private List<Socket> socketList;
+    private final TCPConnectionHandler handler;
+    private final Executor sessionExecutor;
+    // accepted sockets not yet taken by createSocket - used if multiple flag set without handler
+    private final BlockingQueue<Socket> socketQueue = new LinkedBlockingQueue<>();
 
+    private volatile Selector selector = null;
     private Thread acceptThread = null;
 
     TCPServer(int port, boolean multiple) throws IOException {
+        this(port, multiple, null, null);
+    }
+
+    /**
+     * A server accepting any number of clients, each connection goes to the handler right away
+     * @param sessionExecutor runs the handler
+     */
+    TCPServer(int port, TCPConnectionHandler handler, Executor sessionExecutor) throws IOException {
+        this(port, true, handler, sessionExecutor);
+    }
+
+    private TCPServer(int port, boolean multiple, TCPConnectionHandler handler, Executor sessionExecutor)
+            throws IOException {
         this.port = port;
         this.multiple = multiple;
+        this.handler = handler;
+        this.sessionExecutor = sessionExecutor;
 
         // create server socket
-        this.srvSocket = new ServerSocket(port);
+        this.srvChannel = ServerSocketChannel.open();
+        this.srvChannel.socket().bind(new InetSocketAddress(port));
+    }
 
-        // create list oif socket - used if multiple flag set
-        socketList = new ArrayList<>();
+    /**
+     * @return the port we listen on, the bound one if we were created with port 0
+     */
+    int getLocalPort() {
+        return this.srvChannel.socket().getLocalPort();
     }
 
     /**
-     * That method is called within a thread. If multiple is set true
-     * each client connection is accept and kept in a socketlist.
-     * @return next or only socke4t
+     * That method is called within a thread. If multiple is set true, a single accept thread
+     * takes each client connection and queues it, or hands it to the handler if there is one.
+     * This call then returns right away, the server keeps accepting in the background.
      * @throws IOException
      */
     void createSocket() throws IOException {
         Log.d("TCPServer:", "createSocket called");
 
+        if(!this.multiple) {
+            // wait for the only connection attempt
+            this.setSocket(this.srvChannel.accept().socket());
+            return;
+        }
+
         // called first time
-        if(this.acceptThread == null) {
-            Log.d("TCPServer:", "accept thread null - going to accept");
-            // wait for connection attempt
-            Socket newSocket = srvSocket.accept();
-
-            // got a socket
-            if(multiple) {
-                Log.d("TCPServer:", "out of accept - multiple set");
-                // create a new thread to collect other sockets
-                this.acceptThread = new Thread() {
-                    public void run() {
-                        try {
-                            Log.d("TCPServer/AcceptThread:", "started");
-                            while(multiple) {
-                                // loop will be broken when close called which closes srvSocket
-                                socketList.add(srvSocket.accept());
-                                Log.d("AcceptThread:", "new socket");
-                            }
-                        } catch (IOException e) {
-                            // leave loop
-                        }
-                        finally {
-                            try {
-                                srvSocket.close();
-                            } catch (IOException e1) {
-                                // ignore
-                            }
-                            srvSocket = null; // remember invalid server socket
-                        }
-                        Log.d("TCPServer/AcceptThread:", "ended");
+        this.startAcceptThread();
+        if(this.handler != null) {
+            return;
+        }
+
+        // wait for a client, no polling
+        Socket socket;
+        try {
+            socket = this.socketQueue.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for a connection");
+        }
+
+        if(socket == CLOSED) {
+            // for other waiting threads
+            this.socketQueue.add(CLOSED);
+            throw new IOException("server closed - no further connections");
+        }
+
+        Log.d("TCPServer:", "new socket found");
+        this.setSocket(socket);
+    }
+
+    private synchronized void startAcceptThread() throws IOException {
+        if(this.acceptThread != null) {
+            return;
+        }
+
+        Log.d("TCPServer:", "start accept thread");
+        this.selector = Selector.open();
+        this.srvChannel.configureBlocking(false);
+        this.srvChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.acceptThread = new Thread() {
+            public void run() {
+                TCPServer.this.acceptConnections();
+            }
+        };
+        this.acceptThread.start();
+    }
+
+    /**
+     * Runs in the accept thread until close is called
+     */
+    private void acceptConnections() {
+        Log.d("TCPServer/AcceptThread:", "started");
+        try {
+            while(this.srvChannel.isOpen()) {
+                // returns when clients wait or we were woken up by close
+                this.selector.select();
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(key.isValid() && key.isAcceptable()) {
+                        this.acceptPending();
                     }
-                };
-                Log.d("TCPServer:", "start accept thread");
-                this.acceptThread.start();
+                }
             }
+        } catch (IOException | ClosedSelectorException e) {
+            // leave loop
+        }
+        finally {
+            try {
+                this.srvChannel.close();
+                this.selector.close();
+            } catch (IOException e1) {
+                // ignore
+            }
+
+            // nobody is going to take them
+            Socket socket;
+            while((socket = this.socketQueue.poll()) != null) {
+                closeQuietly(socket);
+            }
+            this.socketQueue.add(CLOSED);
+        }
+        Log.d("TCPServer/AcceptThread:", "ended");
+    }
 
-            // set first found socket on top of the queue
-            Log.d("TCPServer:", "new socket found");
-            this.setSocket(newSocket);
-
-        } else {
-            Log.d("TCPServer:", "accept thread running");
-            // an accept thread was already called
-
-            // was is successful?
-            boolean found = false;
-            do {
-                if (!this.socketList.isEmpty()) {
-                    Log.d("TCPServer:", "socket list not empty");
-                    // make first socket on waiting list to current socket
-                    this.setSocket(this.socketList.remove(0));
-                    found = true;
-                } else {
-                    // wait
+    /**
+     * Takes all clients that wait for us
+     */
+    private void acceptPending() throws IOException {
+        SocketChannel channel;
+        while((channel = this.srvChannel.accept()) != null) {
+            try {
+                // streams of a socket need a blocking channel, it is not registered with our selector
+                channel.configureBlocking(true);
+            } catch (IOException e) {
+                Log.d("TCPServer/AcceptThread:", "dropped new socket: " + e.getLocalizedMessage());
+                channel.close();
+                continue;
+            }
+            Log.d("TCPServer/AcceptThread:", "new socket");
+            this.onAccepted(channel.socket());
+        }
+    }
+
+    private void onAccepted(final Socket socket) {
+        if(this.handler == null) {
+            this.socketQueue.add(socket);
+            return;
+        }
+
+        try {
+            this.sessionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
                     try {
-                        // TODO: that's polling! replace with thread synchronization
-                        Log.d("TCPServer:", "socket list empty, wait/retry");
-                        Thread.sleep(WAIT_LOOP_IN_MILLIS);
-                    } catch (InterruptedException e) {
-                        // ignore
+                        // not the streams of the socket itself, see SocketChannelStreams
+                        TCPServer.this.handler.handleConnection(SocketChannelStreams.getInputStream(socket),
+                                SocketChannelStreams.getOutputStream(socket));
+                    } catch (IOException e) {
+                        Log.d("TCPServer:", "cannot handle connection: " + e.getLocalizedMessage());
+                        closeQuietly(socket);
                     }
                 }
-            } while(!found);
+            });
+        } catch (RejectedExecutionException e) {
+            // executor shut down
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
         }
     }
 
     void close() throws IOException {
         super.close();
 
-        if(this.srvSocket != null) {
-            this.srvSocket.close();
+        this.srvChannel.close();
+        Selector selector = this.selector;
+        if(selector != null) {
+            // accept thread ends and closes queued sockets
+            selector.wakeup();
         }
     }
 
@@ -128,7 +239,7 @@ class TCPServer extends TCPChannel {
             throw new IOException(message);
         }
 
-        if(this.srvSocket == null) {
+        if(!this.srvChannel.isOpen()) {
             String message = "no open server socket, cannot create another connection";
             Log.d("TCPServer:", message);
             throw new IOException(message);
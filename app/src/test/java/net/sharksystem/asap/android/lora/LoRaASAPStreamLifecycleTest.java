@@ -0,0 +1,160 @@
+package net.sharksystem.asap.android.lora;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lifecycle of the per peer streams of a {@link LoRaBTInputOutputStream}
+ */
+public class LoRaASAPStreamLifecycleTest {
+    private LoRaBTInputOutputStream ioStream;
+
+    @Before
+    public void setup() {
+        this.ioStream = new LoRaBTInputOutputStream(new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+    }
+
+    @After
+    public void teardown() {
+        this.ioStream.close();
+    }
+
+    private Thread startReader(final LoRaBTInputOutputStream.LoRaASAPInputStream is) {
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                while (is.read() >= 0);
+            }
+        };
+        reader.start();
+        return reader;
+    }
+
+    private static void awaitReading(Thread reader) throws InterruptedException {
+        while (reader.getState() != Thread.State.TIMED_WAITING)
+            Thread.sleep(1);
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentLookupsShareOneStream() throws Exception {
+        final int threads = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Object> streams = new ArrayList<>();
+        List<Thread> lookups = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread lookup = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    Object is = LoRaASAPStreamLifecycleTest.this.ioStream.getASAPInputStream("1000");
+                    Object os = LoRaASAPStreamLifecycleTest.this.ioStream.getASAPOutputStream("1000");
+                    synchronized (streams) {
+                        streams.add(is);
+                        streams.add(os);
+                    }
+                }
+            };
+            lookup.start();
+            lookups.add(lookup);
+        }
+        start.countDown();
+        for (Thread lookup : lookups)
+            lookup.join();
+
+        assertEquals(2 * threads, streams.size());
+        for (int i = 0; i < streams.size(); i += 2) {
+            assertSame(streams.get(0), streams.get(i));
+            assertSame(streams.get(1), streams.get(i + 1));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseCompletesWhenReaderGotEOF() throws Exception {
+        LoRaBTInputOutputStream.LoRaASAPInputStream is = this.ioStream.getASAPInputStream("1000");
+        Thread reader = this.startReader(is);
+        awaitReading(reader);
+
+        Future<Void> closed = this.ioStream.closeASAPStream("1000");
+        closed.get(5, TimeUnit.SECONDS);
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertEquals(LoRaBTInputOutputStream.LoRaASAPInputStream.State.CLOSED, is.getState());
+
+        //the next stream to this peer is a new one
+        assertFalse(this.ioStream.hasASAPInputStream("1000"));
+        LoRaBTInputOutputStream.LoRaASAPInputStream reopened = this.ioStream.getASAPInputStream("1000");
+        assertNotSame(is, reopened);
+        assertEquals(LoRaBTInputOutputStream.LoRaASAPInputStream.State.OPEN, reopened.getState());
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseWithoutReaderCompletesRightAway() throws Exception {
+        LoRaBTInputOutputStream.LoRaASAPInputStream is = this.ioStream.getASAPInputStream("1000");
+        is.appendData(new byte[]{1, 2, 3});
+
+        assertTrue(this.ioStream.closeASAPStream("1000").isDone());
+        assertTrue(is.closed());
+        assertEquals(-1, is.read());
+        assertTrue(this.ioStream.closeASAPStream("1001").isDone()); //no stream at all
+    }
+
+    @Test(timeout = 10000)
+    public void testFullStreamTakesNoData() throws Exception {
+        LoRaBTInputOutputStream.LoRaASAPInputStream is = this.ioStream.getASAPInputStream("1000");
+        int capacity = LoRaBTInputOutputStream.LoRaASAPInputStream.DEFAULT_BUFFER_CAPACITY;
+        assertTrue(is.appendData(new byte[capacity]));
+        byte[] segment = new byte[LoRaStreamSegment.DATA_HEADER_LENGTH + 5];
+        LoRaStreamSegment.writeDataHeader(segment, 0);
+
+        //dropped without blocking the thread reading from the board, our peer sends it again
+        this.ioStream.receiveSegment("1000", segment, segment.length);
+        assertEquals(capacity, is.available());
+
+        assertEquals(capacity, is.read(new byte[capacity], 0, capacity));
+        this.ioStream.receiveSegment("1000", segment, segment.length);
+        assertEquals(5, is.available());
+    }
+
+    @Test(timeout = 10000)
+    public void testClosingManyPeersDoesNotBlock() throws Exception {
+        int peers = 100;
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < peers; i++)
+            readers.add(this.startReader(this.ioStream.getASAPInputStream(LoRaBenchmark.address(i))));
+        for (Thread reader : readers)
+            awaitReading(reader);
+
+        long start = System.nanoTime();
+        List<Future<Void>> closed = new ArrayList<>();
+        for (int i = 0; i < peers; i++)
+            closed.add(this.ioStream.closeASAPStream(LoRaBenchmark.address(i)));
+        long closing = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        for (Future<Void> future : closed)
+            future.get(5, TimeUnit.SECONDS);
+        for (Thread reader : readers) {
+            reader.join(5000);
+            assertFalse(reader.isAlive());
+        }
+        assertTrue("closing took " + closing + "ms", closing < 1000);
+    }
+}
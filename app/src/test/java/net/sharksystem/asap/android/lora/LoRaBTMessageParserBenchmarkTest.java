@@ -0,0 +1,159 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaBinaryFrame;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessageInterface;
+import net.sharksystem.asap.android.lora.messages.AbstractASAPLoRaMessage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the cost per received frame of the {@link LoRaBTMessageParser} with reading
+ * {@link ASAPLoRaMessageInterface} objects, as the {@link LoRaBTListenThread} did before.
+ * Prints the time and the bytes allocated per frame.
+ */
+public class LoRaBTMessageParserBenchmarkTest {
+    private static final int FRAMES = 20000;
+    private static final int ROUNDS = 5;
+
+    private static class CountingListener implements LoRaBTMessageParser.BoardMessageListener {
+        long bytes = 0;
+
+        @Override
+        public void onMessage(String address, byte[] payload, int length) {
+            this.bytes += length;
+        }
+
+        @Override
+        public void onDeviceDiscovered(String address) {}
+
+        @Override
+        public void onError(String message) {}
+
+        @Override
+        public void onFrameModeConfirmed(boolean binary) {}
+    }
+
+    private interface FrameReader {
+        long readAll(InputStream in) throws Exception;
+    }
+
+    private static byte[] binaryFrames() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] payload = new byte[ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH];
+        for (int i = 0; i < FRAMES; i++)
+            data.write(LoRaBTMessageParserTest.frame(ASAPLoRaBinaryFrame.TYPE_MSSGE,
+                    String.format("%04X", 0x1000 + i % 8), payload));
+        return data.toByteArray();
+    }
+
+    private static byte[] discoveryLines() {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < FRAMES; i++)
+            lines.append("DVDCR:").append(String.format("%04X", 0x1000 + i % 8)).append('\n');
+        return lines.toString().getBytes();
+    }
+
+    /**
+     * @return ns and allocated bytes per frame of the best round
+     */
+    private static double[] measure(String name, byte[] data, FrameReader reader) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean ?
+                (com.sun.management.ThreadMXBean) threads : null;
+        long threadId = Thread.currentThread().getId();
+
+        double bestNanos = Double.MAX_VALUE;
+        double bestBytes = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            InputStream in = new ByteArrayInputStream(data);
+            long allocatedBefore = allocations == null ? 0 : allocations.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            long frames = reader.readAll(in);
+            long nanos = System.nanoTime() - start;
+            long allocated = allocations == null ? -FRAMES : allocations.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            assertEquals(FRAMES, frames);
+            bestNanos = Math.min(bestNanos, (double) nanos / frames);
+            bestBytes = Math.min(bestBytes, (double) allocated / frames);
+        }
+        System.out.println(String.format(Locale.ROOT, "LoRaBTMessageParserBenchmark: %s: %.0f ns/frame, %.0f bytes allocated/frame",
+                name, bestNanos, bestBytes));
+        return new double[]{bestNanos, bestBytes};
+    }
+
+    private static long parseAll(InputStream in, boolean binary) throws Exception {
+        LoRaBTMessageParser parser = new LoRaBTMessageParser(in);
+        parser.setBinaryFrameMode(binary);
+        CountingListener listener = new CountingListener();
+        for (int i = 0; i < FRAMES; i++)
+            parser.parseNext(listener);
+        return FRAMES;
+    }
+
+    /**
+     * Reads lines like the LoRaBTInputStream did before the parser
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b != '\r')
+                line.write(b);
+        }
+        return line.toString();
+    }
+
+    @Test
+    public void testBinaryFrames() throws Exception {
+        byte[] data = binaryFrames();
+        double[] before = measure("binary frames, message objects", data, new FrameReader() {
+            @Override
+            public long readAll(InputStream in) throws Exception {
+                long bytes = 0;
+                for (int i = 0; i < FRAMES; i++)
+                    bytes += ((ASAPLoRaMessage) ASAPLoRaBinaryFrame.read(in)).getMessage().length;
+                return bytes / ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH;
+            }
+        });
+        double[] after = measure("binary frames, parser", data, new FrameReader() {
+            @Override
+            public long readAll(InputStream in) throws Exception {
+                return parseAll(in, true);
+            }
+        });
+        assertTrue(after[1] < before[1]);
+    }
+
+    @Test
+    public void testTextLines() throws Exception {
+        byte[] data = discoveryLines();
+        double[] before = measure("text lines, message objects", data, new FrameReader() {
+            @Override
+            public long readAll(InputStream in) throws Exception {
+                long messages = 0;
+                for (int i = 0; i < FRAMES; i++)
+                    if (AbstractASAPLoRaMessage.createASAPLoRaMessage(readLine(in)) != null)
+                        messages++;
+                return messages;
+            }
+        });
+        double[] after = measure("text lines, parser", data, new FrameReader() {
+            @Override
+            public long readAll(InputStream in) throws Exception {
+                return parseAll(in, false);
+            }
+        });
+        assertTrue(after[1] < before[1]);
+    }
+}
@@ -0,0 +1,187 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaBinaryFrame;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class LoRaBTMessageParserTest {
+
+    /**
+     * Records what the parser reports, switching the parser's frame mode like the
+     * {@link LoRaCommunicationManager} does.
+     */
+    static class RecordingListener implements LoRaBTMessageParser.BoardMessageListener {
+        final List<String> events = new ArrayList<>();
+        final List<byte[]> payloads = new ArrayList<>();
+        final List<String> addresses = new ArrayList<>();
+        LoRaBTMessageParser parser;
+
+        @Override
+        public void onMessage(String address, byte[] payload, int length) {
+            this.events.add("MSSGE:" + address);
+            this.addresses.add(address);
+            this.payloads.add(Arrays.copyOf(payload, length));
+        }
+
+        @Override
+        public void onDeviceDiscovered(String address) {
+            this.events.add("DVDCR:" + address);
+            this.addresses.add(address);
+        }
+
+        @Override
+        public void onError(String message) {
+            this.events.add("ERROR:" + message);
+        }
+
+        @Override
+        public void onFrameModeConfirmed(boolean binary) {
+            this.events.add("FRMOD:" + binary);
+            this.parser.setBinaryFrameMode(binary);
+        }
+    }
+
+    /**
+     * Hands out at most one byte per read, so that every message crosses reads
+     */
+    static class TricklingInputStream extends InputStream {
+        private final InputStream in;
+
+        TricklingInputStream(byte[] data) {
+            this.in = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return this.in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return this.in.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    static byte[] frame(byte type, String address, byte[] payload) throws Exception {
+        byte[] frame = new byte[ASAPLoRaBinaryFrame.MAX_FRAME_LENGTH];
+        int length = ASAPLoRaBinaryFrame.encode(type, address, payload, 0, payload.length, frame, 0);
+        return Arrays.copyOf(frame, length);
+    }
+
+    private RecordingListener parseAll(InputStream in, int messages) throws Exception {
+        RecordingListener listener = new RecordingListener();
+        listener.parser = new LoRaBTMessageParser(in);
+        for (int i = 0; i < messages; i++)
+            listener.parser.parseNext(listener);
+        try {
+            listener.parser.parseNext(listener);
+            fail("Expected the end of the stream, got " + listener.events);
+        } catch (EOFException e) {
+            //all parsed
+        }
+        return listener;
+    }
+
+    @Test
+    public void testTextLines() throws Exception {
+        byte[] data = new byte[]{0, 1, 2, (byte) 0xFF, 42};
+        String lines = "\n"
+                + "DVDCR:1001\r\n"
+                + "MSSGE:ABCD:" + Base64.getEncoder().encodeToString(data) + "\n"
+                + "MSSGE@1002:" + Base64.getEncoder().encodeToString("Hello".getBytes()) + "\n"
+                + "NOTHING:TO:SEE\n"
+                + "ERROR:Something went wrong\n";
+
+        RecordingListener listener = this.parseAll(new TricklingInputStream(lines.getBytes()), 4);
+        assertEquals(Arrays.asList("DVDCR:1001", "MSSGE:ABCD", "MSSGE:1002", "ERROR:Something went wrong"),
+                listener.events);
+        assertArrayEquals(data, listener.payloads.get(0));
+        assertArrayEquals("Hello".getBytes(), listener.payloads.get(1));
+    }
+
+    @Test
+    public void testLongestTextPayload() throws Exception {
+        byte[] data = new byte[250];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        String line = "MSSGE:1000:" + Base64.getEncoder().encodeToString(data) + "\n";
+
+        RecordingListener listener = this.parseAll(new ByteArrayInputStream(line.getBytes()), 1);
+        assertArrayEquals(data, listener.payloads.get(0));
+    }
+
+    @Test
+    public void testOverlongLineIsSkipped() throws Exception {
+        char[] garbage = new char[3 * LoRaBTMessageParser.READ_BUFFER_SIZE];
+        Arrays.fill(garbage, 'x');
+        String lines = "MSSGE:1000:" + new String(garbage) + "\nDVDCR:1001\n";
+
+        RecordingListener listener = this.parseAll(new ByteArrayInputStream(lines.getBytes()), 1);
+        assertEquals(Arrays.asList("DVDCR:1001"), listener.events);
+    }
+
+    @Test
+    public void testSwitchToBinaryFramesWithinOneRead() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write("FRMOD:BIN\n".getBytes());
+        data.write(frame(ASAPLoRaBinaryFrame.TYPE_DVDCR, "1001", new byte[0]));
+        data.write(frame(ASAPLoRaBinaryFrame.TYPE_MSSGE, "1002", new byte[]{1, 2, 3}));
+        data.write(frame(ASAPLoRaBinaryFrame.TYPE_ERROR, "FFFF", "Oops".getBytes(StandardCharsets.UTF_8)));
+
+        //everything arrives with the first read of the parser
+        RecordingListener listener = this.parseAll(new ByteArrayInputStream(data.toByteArray()), 4);
+        assertEquals(Arrays.asList("FRMOD:true", "DVDCR:1001", "MSSGE:1002", "ERROR:Oops"), listener.events);
+        assertArrayEquals(new byte[]{1, 2, 3}, listener.payloads.get(0));
+    }
+
+    @Test
+    public void testResyncAfterCorruptedFrames() throws Exception {
+        byte[] corrupted = frame(ASAPLoRaBinaryFrame.TYPE_MSSGE, "1000", new byte[]{9, 9, 9});
+        corrupted[6] ^= 0x01;
+        byte[] badLength = new byte[]{(byte) ASAPLoRaBinaryFrame.SYNC, ASAPLoRaBinaryFrame.TYPE_MSSGE, 0x10, 0x00, (byte) 251};
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(new byte[]{1, 2, 3});
+        data.write(corrupted);
+        data.write(badLength);
+        data.write(frame(ASAPLoRaBinaryFrame.TYPE_MSSGE, "1001", new byte[]{4, 5}));
+
+        RecordingListener listener = new RecordingListener();
+        listener.parser = new LoRaBTMessageParser(new TricklingInputStream(data.toByteArray()));
+        listener.parser.setBinaryFrameMode(true);
+        listener.parser.parseNext(listener);
+        assertEquals(Arrays.asList("MSSGE:1001"), listener.events);
+        assertArrayEquals(new byte[]{4, 5}, listener.payloads.get(0));
+    }
+
+    @Test
+    public void testAddressesAreCached() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(frame(ASAPLoRaBinaryFrame.TYPE_MSSGE, "1A2B", new byte[]{1}));
+        data.write(frame(ASAPLoRaBinaryFrame.TYPE_MSSGE, "1A2B", new byte[]{2}));
+
+        RecordingListener listener = new RecordingListener();
+        listener.parser = new LoRaBTMessageParser(new ByteArrayInputStream(data.toByteArray()));
+        listener.parser.setBinaryFrameMode(true);
+        listener.parser.parseNext(listener);
+        listener.parser.parseNext(listener);
+        assertEquals("1A2B", listener.addresses.get(0));
+        assertSame(listener.addresses.get(0), listener.addresses.get(1));
+    }
+}
@@ -0,0 +1,117 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaBinaryFrame;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Collects frames into batches and counts the writes that reach the board.
+ */
+public class LoRaBTOutputStreamTest {
+    private static final int PAYLOAD_LENGTH = 10;
+    private static final int FRAME_LENGTH = ASAPLoRaBinaryFrame.MAX_FRAME_LENGTH
+            - ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH + PAYLOAD_LENGTH;
+
+    private CountingOutputStream board;
+    private LoRaBTInputOutputStream ioStream;
+    private LoRaBTInputOutputStream.LoRaBTOutputStream os;
+
+    /**
+     * The board end, counting the writes it gets
+     */
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        int writes = 0;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+            this.writes++;
+        }
+    }
+
+    @Before
+    public void setup() {
+        this.board = new CountingOutputStream();
+        this.ioStream = new LoRaBTInputOutputStream(new ByteArrayInputStream(new byte[0]), this.board);
+        this.ioStream.setBinaryFrameMode(true);
+        this.os = this.ioStream.getOutputStream();
+    }
+
+    @After
+    public void teardown() {
+        this.ioStream.close();
+    }
+
+    private void writeFrame(int payloadLength) throws Exception {
+        this.os.write(new ASAPLoRaMessage("1001", new byte[payloadLength]));
+    }
+
+    @Test
+    public void testFramesOutsideOfBatchesGoAtOnce() throws Exception {
+        this.writeFrame(PAYLOAD_LENGTH);
+        this.writeFrame(PAYLOAD_LENGTH);
+        assertEquals(2, this.board.writes);
+        assertEquals(2, this.os.getWrites());
+        assertEquals(2 * FRAME_LENGTH, this.board.size());
+    }
+
+    @Test
+    public void testBatchGoesInOneWrite() throws Exception {
+        this.os.startBatch();
+        for (int i = 0; i < 3; i++)
+            this.writeFrame(PAYLOAD_LENGTH);
+        assertEquals(0, this.board.writes);
+        this.os.endBatch();
+        assertEquals(1, this.board.writes);
+        assertEquals(3 * FRAME_LENGTH, this.board.size());
+
+        //nothing left to write
+        this.os.endBatch();
+        assertEquals(1, this.board.writes);
+    }
+
+    @Test
+    public void testFullBatchIsWritten() throws Exception {
+        int framesPerBatch = LoRaBTInputOutputStream.LoRaBTOutputStream.MAX_BATCH_LENGTH
+                / ASAPLoRaBinaryFrame.MAX_FRAME_LENGTH;
+        this.os.startBatch();
+        for (int i = 0; i <= framesPerBatch; i++)
+            this.writeFrame(ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH);
+        assertEquals(1, this.board.writes);
+        assertEquals(framesPerBatch * ASAPLoRaBinaryFrame.MAX_FRAME_LENGTH, this.board.size());
+        this.os.endBatch();
+        assertEquals(2, this.board.writes);
+    }
+
+    @Test
+    public void testOtherThreadsTakeTheBatchAlong() throws Exception {
+        this.os.startBatch();
+        this.writeFrame(PAYLOAD_LENGTH);
+        final IOException[] failure = new IOException[1];
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    LoRaBTOutputStreamTest.this.writeFrame(PAYLOAD_LENGTH);
+                } catch (Exception e) {
+                    failure[0] = new IOException(e);
+                }
+            }
+        };
+        other.start();
+        other.join();
+        assertEquals(null, failure[0]);
+        assertEquals(1, this.board.writes);
+        assertEquals(2 * FRAME_LENGTH, this.board.size());
+        this.os.endBatch();
+    }
+}
@@ -0,0 +1,380 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.ASAPHop;
+import net.sharksystem.asap.protocol.ASAP_1_0;
+import net.sharksystem.asap.protocol.ASAP_Modem_Impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Runs N phones, each with a {@link LoRaCommunicationManager} on a {@link SimulatedLoRaBoard},
+ * where phone i streams {@link #bytesPerPeer} bytes to phone i+1 over the ASAP streams.
+ * With {@link #gatewayModules} set, a gateway phone with one board per channel streams to
+ * N phones spread over these channels instead, pinning them with a {@link LoRaModulePool}.
+ *
+ * The data consists of records starting with the time they were written, so the receiver
+ * measures the latency of every record. The rest of a record is zeros, or the next bytes of
+ * {@link #session}, e.g. a {@link #recordSession() recorded ASAP session}. Reports goodput, latency percentiles and the CPU time
+ * the whole process spent per delivered byte (the simulator included, so compare runs of the
+ * same scenario only).
+ */
+class LoRaBenchmark {
+    static final int RECORD_LENGTH = 64;
+    private static final long SETUP_TIMEOUT = 5 * 1000;
+
+    int peers = 2;
+    int bytesPerPeer = 8 * 1024;
+    double lossRate = 0;
+    double timeScale = 0.01;
+    boolean halfDuplex = true;
+    long seed = 42;
+    int gatewayModules = 0;
+    int fecGroupSize = 1;
+    int fecParityFrames = 0;
+    byte[] session = null;
+    LoRaASAPDictionary compressionDictionary = null;
+
+    static class Result {
+        int peers;
+        long bytesDelivered;
+        long elapsedNanos;
+        double timeScale;
+        long cpuNanos;
+        long[] latenciesNanos;
+        long framesSent;
+        long framesLost;
+        long framesMissed;
+        long airtime;
+        long beaconsSent;
+        long wastedBeaconAirtime;
+        long timeToFirstEncounterNanos;
+        long segmentsRecovered;
+        long btWrites;
+
+        /**
+         * @return delivered bytes per second of simulated time
+         */
+        double goodput() {
+            return this.bytesDelivered / (this.elapsedNanos / 1e9 / this.timeScale);
+        }
+
+        /**
+         * @return p-th percentile of the record latency in ms of simulated time
+         */
+        double latencyPercentile(double p) {
+            if (this.latenciesNanos.length == 0)
+                return Double.NaN;
+            int index = (int) Math.ceil(p / 100 * this.latenciesNanos.length) - 1;
+            return this.latenciesNanos[Math.max(0, index)] / 1e6 / this.timeScale;
+        }
+
+        /**
+         * @return ns of process CPU time per delivered byte, -1 if the JVM can't tell
+         */
+        double cpuPerByte() {
+            return this.cpuNanos < 0 ? -1 : (double) this.cpuNanos / this.bytesDelivered;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%d peers: %d bytes, goodput %.1f B/s, latency p50 %.0f ms p90 %.0f ms p99 %.0f ms, "
+                            + "CPU %.1f ns/B, frames sent %d lost %d missed %d, airtime %d ms, "
+                            + "beacons %d wasting %d ms, first encounter after %.0f ms, FEC recovered %d, "
+                            + "BT writes %d",
+                    this.peers, this.bytesDelivered, this.goodput(), this.latencyPercentile(50),
+                    this.latencyPercentile(90), this.latencyPercentile(99), this.cpuPerByte(),
+                    this.framesSent, this.framesLost, this.framesMissed, this.airtime,
+                    this.beaconsSent, this.wastedBeaconAirtime, this.timeToFirstEncounterNanos / 1e6 / this.timeScale,
+                    this.segmentsRecovered, this.btWrites);
+        }
+    }
+
+    static String address(int peer) {
+        return String.format("%04X", 0x1000 + peer);
+    }
+
+    private static long processCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        return -1;
+    }
+
+    /**
+     * Starts a phone on board and waits until it negotiated binary frames.
+     */
+    static LoRaCommunicationManager startPhone(SimulatedLoRaBoard board, SimulatedLoRaChannel channel,
+                                               LoRaCommunicationManager.PeerDiscoveryListener listener) throws IOException {
+        return startPhone(board, channel, listener, null);
+    }
+
+    /**
+     * Like {@link #startPhone(SimulatedLoRaBoard, SimulatedLoRaChannel, LoRaCommunicationManager.PeerDiscoveryListener)},
+     * restoring and keeping the sessions of the phone in journal
+     */
+    static LoRaCommunicationManager startPhone(SimulatedLoRaBoard board, SimulatedLoRaChannel channel,
+                                               LoRaCommunicationManager.PeerDiscoveryListener listener,
+                                               LoRaOutboundJournal journal) throws IOException {
+        board.start();
+        LoRaBTInputOutputStream ioStream = new LoRaBTInputOutputStream(
+                board.getPhoneInputStream(), board.getPhoneOutputStream());
+        ioStream.setTimerScale(channel.getTimeScale());
+        ioStream.getTransmitScheduler().setDutyCycle(LoRaTransmitScheduler.NO_DUTY_CYCLE_LIMIT);
+        LoRaCommunicationManager manager = new LoRaCommunicationManager(ioStream, listener);
+        manager.setFlushBufferTimeout(10);
+        manager.setJournal(journal);
+        manager.start();
+
+        long deadline = System.currentTimeMillis() + SETUP_TIMEOUT;
+        while (!ioStream.isBinaryFrameMode()) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IOException("Simulated board did not confirm binary frames");
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+        return manager;
+    }
+
+    static void stopPhone(LoRaCommunicationManager manager, SimulatedLoRaBoard board) throws InterruptedException {
+        manager.interrupt();
+        board.close();
+        manager.join(SETUP_TIMEOUT);
+    }
+
+    static String gatewayAddress(int module) {
+        return String.format("%04X", 0x2000 + module);
+    }
+
+    Result run() throws Exception {
+        int channelCount = Math.max(1, this.gatewayModules);
+        SimulatedLoRaChannel[] channels = new SimulatedLoRaChannel[channelCount];
+        for (int c = 0; c < channelCount; c++) {
+            channels[c] = new SimulatedLoRaChannel(new Random(this.seed + c));
+            channels[c].setLossRate(this.lossRate);
+            channels[c].setTimeScale(this.timeScale);
+            channels[c].setHalfDuplex(this.halfDuplex);
+        }
+
+        List<SimulatedLoRaBoard> boards = new ArrayList<>();
+        List<LoRaCommunicationManager> managers = new ArrayList<>();
+        LoRaCommunicationManager[] phones = new LoRaCommunicationManager[this.peers];
+        for (int i = 0; i < this.peers; i++) {
+            SimulatedLoRaBoard board = new SimulatedLoRaBoard(address(i), channels[i % channelCount]);
+            phones[i] = startPhone(board, channels[i % channelCount], LoRaTestHelper.IGNORE_DISCOVERIES);
+            phones[i].setForwardErrorCorrection(this.fecGroupSize, this.fecParityFrames);
+            phones[i].setCompressionDictionary(this.compressionDictionary);
+            boards.add(board);
+            managers.add(phones[i]);
+        }
+        LoRaModulePool gateway = new LoRaModulePool();
+        LoRaCommunicationManager[] modules = new LoRaCommunicationManager[this.gatewayModules];
+        for (int m = 0; m < this.gatewayModules; m++) {
+            SimulatedLoRaBoard board = new SimulatedLoRaBoard(gatewayAddress(m), channels[m]);
+            modules[m] = startPhone(board, channels[m], LoRaTestHelper.IGNORE_DISCOVERIES);
+            modules[m].setForwardErrorCorrection(this.fecGroupSize, this.fecParityFrames);
+            modules[m].setCompressionDictionary(this.compressionDictionary);
+            gateway.add(modules[m]);
+            boards.add(board);
+            managers.add(modules[m]);
+        }
+
+        //the links to stream over
+        final int links = this.peers;
+        OutputStream[] senders = new OutputStream[links];
+        InputStream[] receivers = new InputStream[links];
+        LoRaCommunicationManager[] sendingManagers = new LoRaCommunicationManager[links];
+        String[] destinations = new String[links];
+        for (int i = 0; i < links; i++) {
+            if (this.gatewayModules > 0) {
+                sendingManagers[i] = gateway.pin(address(i), modules[i % channelCount]);
+                destinations[i] = address(i);
+                receivers[i] = phones[i].getASAPInputStream(gatewayAddress(i % channelCount));
+            } else {
+                sendingManagers[i] = phones[i];
+                destinations[i] = address((i + 1) % this.peers);
+                receivers[i] = phones[(i + 1) % this.peers].getASAPInputStream(address(i));
+            }
+            senders[i] = sendingManagers[i].getASAPOutputStream(destinations[i]);
+        }
+        if (this.session != null) {
+            //like an ASAP session, which opens with an interest, so the first acks came back
+            for (int i = 0; i < links; i++) {
+                senders[i].write(this.session, 0, RECORD_LENGTH);
+                senders[i].flush();
+                readFully(receivers[i], new byte[RECORD_LENGTH]);
+                long deadline = System.currentTimeMillis() + SETUP_TIMEOUT;
+                while (sendingManagers[i].getIOStream().getSessionCheckpoint(destinations[i]).getBytesAcknowledged() == 0) {
+                    if (System.currentTimeMillis() > deadline)
+                        throw new IOException("Opening of the session was not acknowledged");
+                    Thread.sleep(5);
+                }
+            }
+        }
+
+        final int records = this.bytesPerPeer / RECORD_LENGTH;
+        final List<long[]> latencies = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        final byte[] session = this.session;
+        for (int i = 0; i < links; i++) {
+            final OutputStream os = senders[i];
+            final InputStream is = receivers[i];
+            final long[] linkLatencies = new long[records];
+            latencies.add(linkLatencies);
+
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    byte[] record = new byte[RECORD_LENGTH];
+                    int sessionOffset = session == null ? 0 : RECORD_LENGTH % session.length;
+                    try {
+                        for (int r = 0; r < records; r++) {
+                            for (int b = 8; session != null && b < RECORD_LENGTH; b++) {
+                                record[b] = session[sessionOffset];
+                                sessionOffset = (sessionOffset + 1) % session.length;
+                            }
+                            writeLong(record, System.nanoTime());
+                            os.write(record);
+                        }
+                        os.flush();
+                    } catch (IOException e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            });
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    byte[] record = new byte[RECORD_LENGTH];
+                    try {
+                        for (int r = 0; r < records; r++) {
+                            readFully(is, record);
+                            linkLatencies[r] = System.nanoTime() - readLong(record);
+                        }
+                    } catch (IOException e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            });
+        }
+
+        long cpuStart = processCpuTime();
+        long start = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        long elapsed = System.nanoTime() - start;
+        long cpu = processCpuTime() - cpuStart;
+
+        Result result = new Result();
+        for (int i = 0; i < managers.size(); i++) {
+            LoRaCommunicationManager manager = managers.get(i);
+            result.beaconsSent += manager.getBeaconsSent();
+            result.wastedBeaconAirtime += manager.getWastedBeaconAirtime();
+            result.segmentsRecovered += manager.getFECSegmentsRecovered();
+            result.btWrites += manager.getIOStream().getOutputStream().getWrites();
+            result.timeToFirstEncounterNanos = Math.max(result.timeToFirstEncounterNanos,
+                    manager.getTimeToFirstEncounter() * 1000000);
+            stopPhone(manager, boards.get(i));
+        }
+        if (!failures.isEmpty())
+            throw new IOException("Benchmark transfer failed", failures.get(0));
+
+        result.peers = this.peers;
+        result.bytesDelivered = (long) records * RECORD_LENGTH * links;
+        result.elapsedNanos = elapsed;
+        result.timeScale = this.timeScale;
+        result.cpuNanos = cpuStart < 0 ? -1 : cpu;
+        result.latenciesNanos = new long[records * links];
+        for (int i = 0; i < links; i++)
+            System.arraycopy(latencies.get(i), 0, result.latenciesNanos, i * records, records);
+        Arrays.sort(result.latenciesNanos);
+        for (SimulatedLoRaChannel channel : channels) {
+            result.framesSent += channel.getFramesSent();
+            result.framesLost += channel.getFramesLost();
+            result.framesMissed += channel.getFramesMissed();
+            result.airtime += channel.getAirtime();
+        }
+        return result;
+    }
+
+    /**
+     * Records the ASAP PDUs two chat peers exchange: interests for every format and the
+     * messages of a few chats, each one sent by the peer that wrote it.
+     *
+     * @param formats of the chats
+     * @param messages per chat
+     */
+    static byte[] recordSession(List<CharSequence> formats, int messages) throws IOException {
+        ASAP_1_0 modem = new ASAP_Modem_Impl();
+        ByteArrayOutputStream session = new ByteArrayOutputStream();
+        Random random = new Random(messages);
+        String[] peers = {"Alice_42", "Bob_42"};
+        try {
+            for (String peer : peers) {
+                modem.interest(peer, null, ASAP_1_0.ASAP_MANAGEMENT_FORMAT, null, ASAP_1_0.ERA_NOT_DEFINED,
+                        ASAP_1_0.ERA_NOT_DEFINED, session, false);
+                for (CharSequence format : formats)
+                    modem.interest(peer, null, format, null, ASAP_1_0.ERA_NOT_DEFINED,
+                            ASAP_1_0.ERA_NOT_DEFINED, session, false);
+            }
+            for (int m = 0; m < messages; m++) {
+                String sender = peers[m % peers.length];
+                CharSequence format = formats.get(m % formats.size());
+                List<Long> offsets = new ArrayList<>();
+                offsets.add(0L);
+                List<ASAPHop> hops = new ArrayList<>();
+                String text = "message " + m + " from " + sender + " at " + (1600000000000L + random.nextInt(100000000));
+                modem.assimilate(sender, null, format, "sn2://chat/" + (m % 3), m / 10, offsets, hops,
+                        text.getBytes(), session, false);
+            }
+        } catch (ASAPException e) {
+            throw new IOException(e);
+        }
+        return session.toByteArray();
+    }
+
+    private static void writeLong(byte[] b, long value) {
+        for (int i = 7; i >= 0; i--) {
+            b[i] = (byte) value;
+            value >>= 8;
+        }
+    }
+
+    private static long readLong(byte[] b) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (b[i] & 0xFF);
+        return value;
+    }
+
+    private static void readFully(InputStream is, byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int read = is.read(b, off, b.length - off);
+            if (read < 0)
+                throw new IOException("Stream closed after " + off + " bytes of a record");
+            off += read;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package net.sharksystem.asap.android.lora;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmark scenarios on the simulated LoRa channel. Results are printed, so runs before and
+ * after a change of the LoRa stack can be compared. The assertions only check that all data
+ * arrived.
+ */
+public class LoRaBenchmarkTest {
+
+    private LoRaBenchmark.Result run(LoRaBenchmark benchmark) throws Exception {
+        LoRaBenchmark.Result result = benchmark.run();
+        System.out.println("LoRaBenchmark: " + result);
+        assertEquals((long) benchmark.peers * (benchmark.bytesPerPeer / LoRaBenchmark.RECORD_LENGTH)
+                * LoRaBenchmark.RECORD_LENGTH, result.bytesDelivered);
+        assertTrue(result.goodput() > 0);
+        return result;
+    }
+
+    @Test(timeout = 60000)
+    public void testTwoPeers() throws Exception {
+        this.run(new LoRaBenchmark());
+    }
+
+    @Test(timeout = 120000)
+    public void testEightPeers() throws Exception {
+        LoRaBenchmark benchmark = new LoRaBenchmark();
+        benchmark.peers = 8;
+        benchmark.bytesPerPeer = 2 * 1024;
+        this.run(benchmark);
+    }
+
+    @Test(timeout = 120000)
+    public void testTwoPeersLossy() throws Exception {
+        LoRaBenchmark benchmark = new LoRaBenchmark();
+        benchmark.lossRate = 0.1;
+        benchmark.bytesPerPeer = 4 * 1024;
+        this.run(benchmark);
+    }
+
+    @Test(timeout = 240000)
+    public void testTwoPeersLossyWithFEC() throws Exception {
+        LoRaBenchmark benchmark = new LoRaBenchmark();
+        benchmark.lossRate = 0.2;
+        benchmark.halfDuplex = false; //random losses only, PARITY frames don't help against collisions
+        LoRaBenchmark.Result withoutFEC = this.run(benchmark);
+        benchmark.fecGroupSize = 8;
+        benchmark.fecParityFrames = 2;
+        LoRaBenchmark.Result withFEC = this.run(benchmark);
+        assertTrue(withFEC.segmentsRecovered > 0);
+        System.out.println(String.format(Locale.ROOT,
+                "LoRaBenchmark: with FEC goodput %.1fx, latency p90 %.1fx, airtime %.1fx",
+                withFEC.goodput() / withoutFEC.goodput(),
+                withFEC.latencyPercentile(90) / withoutFEC.latencyPercentile(90),
+                (double) withFEC.airtime / withoutFEC.airtime));
+    }
+
+    @Test(timeout = 240000)
+    public void testRecordedSessionCompressed() throws Exception {
+        List<CharSequence> formats = new ArrayList<>();
+        formats.add("application/x-sharknet-chat");
+        formats.add("application/x-sharknet-contacts");
+        LoRaBenchmark benchmark = new LoRaBenchmark();
+        benchmark.session = LoRaBenchmark.recordSession(formats, 100);
+        LoRaBenchmark.Result raw = this.run(benchmark);
+        benchmark.compressionDictionary = LoRaASAPDictionary.build(formats);
+        LoRaBenchmark.Result compressed = this.run(benchmark);
+        assertTrue(compressed.airtime < raw.airtime);
+        System.out.println(String.format(Locale.ROOT,
+                "LoRaBenchmark: compressed goodput %.1fx, latency p90 %.1fx, airtime %.2fx",
+                compressed.goodput() / raw.goodput(),
+                compressed.latencyPercentile(90) / raw.latencyPercentile(90),
+                (double) compressed.airtime / raw.airtime));
+    }
+
+    @Test(timeout = 240000)
+    public void testGatewayWithTwoModules() throws Exception {
+        LoRaBenchmark benchmark = new LoRaBenchmark();
+        benchmark.peers = 4;
+        benchmark.bytesPerPeer = 2 * 1024;
+        benchmark.gatewayModules = 1;
+        LoRaBenchmark.Result oneModule = this.run(benchmark);
+        benchmark.gatewayModules = 2;
+        LoRaBenchmark.Result twoModules = this.run(benchmark);
+        System.out.println(String.format(Locale.ROOT, "LoRaBenchmark: gateway goodput with two modules %.1fx",
+                twoModules.goodput() / oneModule.goodput()));
+        assertTrue(twoModules.goodput() > oneModule.goodput());
+    }
+}
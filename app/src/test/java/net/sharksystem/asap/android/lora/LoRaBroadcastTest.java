@@ -0,0 +1,124 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * One simulated phone broadcasts to a growing neighbourhood. The frames it takes to get a message
+ * to everyone should stay about the same, while sending it to each peer grows with the peers.
+ */
+public class LoRaBroadcastTest {
+    private static final long TIMEOUT = 30 * 1000;
+    private static final int MESSAGE_LENGTH = 2 * 1024;
+
+    private static class Dissemination {
+        int receivers;
+        long framesSent;
+        long repairsSent;
+        long nacksSent;
+        long airtime; //of full fragments and NACKs, in ms
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d receivers: %d frames (%d repairs), %d NACKs, %d ms airtime",
+                    this.receivers, this.framesSent, this.repairsSent, this.nacksSent, this.airtime);
+        }
+    }
+
+    private Dissemination disseminate(int receivers, double lossRate, boolean halfDuplex) throws Exception {
+        SimulatedLoRaChannel channel = new SimulatedLoRaChannel(new Random(receivers));
+        //slow enough for a NACK to reach the sender before other receivers send theirs
+        channel.setTimeScale(0.05);
+        channel.setLossRate(lossRate);
+        channel.setHalfDuplex(halfDuplex);
+
+        final byte[] message = new byte[MESSAGE_LENGTH];
+        new Random(42).nextBytes(message);
+        final CountDownLatch received = new CountDownLatch(receivers);
+        final List<byte[]> messages = new ArrayList<>();
+
+        List<SimulatedLoRaBoard> boards = new ArrayList<>();
+        List<LoRaCommunicationManager> phones = new ArrayList<>();
+        try {
+            for (int i = 0; i <= receivers; i++) {
+                SimulatedLoRaBoard board = new SimulatedLoRaBoard(LoRaBenchmark.address(i), channel);
+                boards.add(board);
+                LoRaCommunicationManager phone = LoRaBenchmark.startPhone(board, channel, LoRaTestHelper.IGNORE_DISCOVERIES);
+                phones.add(phone);
+                if (i == 0)
+                    continue;
+                phone.setBroadcastListener(new LoRaCommunicationManager.BroadcastListener() {
+                    @Override
+                    public void onBroadcastReceived(String address, byte[] data) {
+                        synchronized (messages) {
+                            messages.add(data);
+                        }
+                        received.countDown();
+                    }
+                });
+            }
+
+            phones.get(0).broadcast(message);
+            assertTrue("Not every receiver got the broadcast", received.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            Thread.sleep(100); //no more deliveries
+            synchronized (messages) {
+                assertEquals(receivers, messages.size());
+                for (byte[] data : messages)
+                    assertTrue(Arrays.equals(message, data));
+            }
+
+            Dissemination dissemination = new Dissemination();
+            dissemination.receivers = receivers;
+            dissemination.framesSent = phones.get(0).getBroadcastFramesSent();
+            dissemination.repairsSent = phones.get(0).getBroadcastRepairsSent();
+            for (LoRaCommunicationManager phone : phones)
+                dissemination.nacksSent += phone.getBroadcastNacksSent();
+            dissemination.airtime = dissemination.framesSent * channel.timeOnAir(ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH)
+                    + dissemination.nacksSent * channel.timeOnAir(LoRaStreamSegment.BROADCAST_NACK_LENGTH);
+            System.out.println("LoRaBroadcast: " + dissemination);
+            return dissemination;
+        } finally {
+            for (int i = 0; i < phones.size(); i++)
+                LoRaBenchmark.stopPhone(phones.get(i), boards.get(i));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testLosslessBroadcastIsSentOnce() throws Exception {
+        Dissemination dissemination = this.disseminate(3, 0, false);
+        int fragmentLength = fragmentLength();
+        assertEquals((MESSAGE_LENGTH + fragmentLength - 1) / fragmentLength, dissemination.framesSent);
+        assertEquals(0, dissemination.repairsSent);
+        assertEquals(0, dissemination.nacksSent);
+    }
+
+    @Test(timeout = 120000)
+    public void testAirtimeStaysFlatAsNeighbourhoodGrows() throws Exception {
+        Dissemination two = this.disseminate(2, 0.1, true);
+        Dissemination eight = this.disseminate(8, 0.1, true);
+        int fragments = (MESSAGE_LENGTH + fragmentLength() - 1) / fragmentLength();
+        long unicast = 8 * fragments * new SimulatedLoRaChannel().timeOnAir(ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH);
+        System.out.println(String.format(Locale.ROOT,
+                "LoRaBroadcast: %d ms airtime for 8 receivers, at least %d ms sending to each of them",
+                eight.airtime, unicast));
+        //four times the receivers, not much more airtime - and far less than sending to each
+        assertTrue(eight.airtime < 2.5 * two.airtime);
+        assertTrue(eight.airtime < unicast / 2);
+    }
+
+    private static int fragmentLength() {
+        return ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH - LoRaStreamSegment.BROADCAST_HEADER_LENGTH;
+    }
+}
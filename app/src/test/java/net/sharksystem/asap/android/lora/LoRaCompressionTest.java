@@ -0,0 +1,135 @@
+package net.sharksystem.asap.android.lora;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams a recorded ASAP session between two simulated phones, compressed if both built the
+ * same {@link LoRaASAPDictionary}.
+ */
+public class LoRaCompressionTest {
+    private static final long TIMEOUT = 20 * 1000;
+
+    private SimulatedLoRaChannel channel;
+    private SimulatedLoRaBoard aliceBoard;
+    private SimulatedLoRaBoard bobBoard;
+    private LoRaCommunicationManager alice;
+    private LoRaCommunicationManager bob;
+    private List<CharSequence> formats;
+    private byte[] session;
+
+    @Before
+    public void setup() throws IOException {
+        this.channel = new SimulatedLoRaChannel(new Random(5));
+        this.channel.setTimeScale(0.01);
+        this.aliceBoard = new SimulatedLoRaBoard("1000", this.channel);
+        this.bobBoard = new SimulatedLoRaBoard("1001", this.channel);
+        this.alice = LoRaBenchmark.startPhone(this.aliceBoard, this.channel, LoRaTestHelper.IGNORE_DISCOVERIES);
+        this.bob = LoRaBenchmark.startPhone(this.bobBoard, this.channel, LoRaTestHelper.IGNORE_DISCOVERIES);
+
+        this.formats = new ArrayList<>();
+        this.formats.add("application/x-sharknet-chat");
+        this.formats.add("application/x-sharknet-contacts");
+        this.session = LoRaBenchmark.recordSession(this.formats, 40);
+    }
+
+    @After
+    public void teardown() throws InterruptedException {
+        LoRaBenchmark.stopPhone(this.alice, this.aliceBoard);
+        LoRaBenchmark.stopPhone(this.bob, this.bobBoard);
+    }
+
+    /**
+     * Sends our session from alice to bob in PDU sized writes, flushing in between. Like an
+     * ASAP session, which starts with an interest, alice waits for bob to get her first bytes.
+     */
+    private void transfer() throws Exception {
+        final byte[] received = new byte[this.session.length];
+        final InputStream is = this.bob.getASAPInputStream("1000");
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    int count = 0;
+                    while (count < received.length) {
+                        int read = is.read(received, count, received.length - count);
+                        if (read < 0)
+                            return;
+                        count += read;
+                    }
+                } catch (IOException e) {
+                    //the arrays differ then
+                }
+            }
+        };
+        reader.start();
+
+        OutputStream os = this.alice.getASAPOutputStream("1001");
+        os.write(this.session[0]);
+        os.flush();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (this.alice.getIOStream().getSessionCheckpoint("1001").getBytesAcknowledged() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        for (int off = 1; off < this.session.length; off += 100) {
+            os.write(this.session, off, Math.min(100, this.session.length - off));
+            if (off % 1000 == 1)
+                os.flush();
+        }
+        os.flush();
+        reader.join(TIMEOUT);
+        assertArrayEquals(this.session, received);
+    }
+
+    @Test
+    public void testSameDictionaryCompresses() throws Exception {
+        LoRaASAPDictionary dictionary = LoRaASAPDictionary.build(this.formats);
+        this.alice.setCompressionDictionary(dictionary);
+        this.bob.setCompressionDictionary(dictionary);
+        this.transfer();
+        long deflated = this.channel.getSegmentsSent(LoRaStreamSegment.TYPE_DEFLATED);
+        long raw = this.channel.getSegmentsSent(LoRaStreamSegment.TYPE_DATA);
+        assertTrue(deflated > 0);
+        //only until the first ack told alice about bob's dictionary
+        assertEquals(1, raw);
+    }
+
+    @Test
+    public void testDifferentDictionariesSendRaw() throws Exception {
+        this.alice.setCompressionDictionary(LoRaASAPDictionary.build(this.formats));
+        this.bob.setCompressionDictionary(LoRaASAPDictionary.build(this.formats.subList(0, 1)));
+        this.transfer();
+        assertEquals(0, this.channel.getSegmentsSent(LoRaStreamSegment.TYPE_DEFLATED));
+    }
+
+    @Test
+    public void testPeerWithoutDictionaryGetsRaw() throws Exception {
+        this.alice.setCompressionDictionary(LoRaASAPDictionary.build(this.formats));
+        this.transfer();
+        assertEquals(0, this.channel.getSegmentsSent(LoRaStreamSegment.TYPE_DEFLATED));
+    }
+
+    @Test
+    public void testDictionaryIgnoresOrderOfFormats() throws IOException {
+        List<CharSequence> reversed = new ArrayList<>();
+        reversed.add(this.formats.get(1));
+        reversed.add(this.formats.get(0));
+        assertEquals(LoRaASAPDictionary.build(this.formats).getId(), LoRaASAPDictionary.build(reversed).getId());
+        assertNotEquals(LoRaASAPDictionary.build(this.formats).getId(),
+                LoRaASAPDictionary.build(this.formats.subList(0, 1)).getId());
+    }
+}
@@ -0,0 +1,143 @@
+package net.sharksystem.asap.android.lora;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoRaDiscoveryBeaconTest {
+    private static final long MIN_INTERVAL = 60 * 60 * 1000; //never fires on its own during a test
+    private static final long MAX_INTERVAL = 8 * MIN_INTERVAL;
+    private static final long BEACON_AIRTIME = 40;
+
+    private ScheduledExecutorService scheduler;
+    private LoRaDiscoveryBeacon beacon;
+    private int beacons = 0;
+
+    @Before
+    public void setUp() {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.beacon = new LoRaDiscoveryBeacon(this.scheduler, new LoRaDiscoveryBeacon.BeaconSender() {
+            @Override
+            public long sendBeacon() {
+                LoRaDiscoveryBeaconTest.this.beacons++;
+                return BEACON_AIRTIME;
+            }
+        }, MIN_INTERVAL, MAX_INTERVAL, new Random(42));
+    }
+
+    @After
+    public void tearDown() {
+        this.beacon.stop();
+        this.scheduler.shutdownNow();
+    }
+
+    private void assertJittered(long interval, long delay) {
+        assertTrue("delay " + delay + " too short for " + interval,
+                delay >= interval * (1 - LoRaDiscoveryBeacon.JITTER) - 1000);
+        assertTrue("delay " + delay + " too long for " + interval,
+                delay <= interval * (1 + LoRaDiscoveryBeacon.JITTER));
+    }
+
+    @Test
+    public void testBackoffWhenNobodyAnswers() {
+        this.beacon.start();
+        assertTrue(this.beacon.getNextBeaconDelay() <= MIN_INTERVAL * LoRaDiscoveryBeacon.JITTER);
+
+        this.beacon.onBeaconDue();
+        assertEquals(MIN_INTERVAL, this.beacon.getInterval());
+        assertJittered(MIN_INTERVAL, this.beacon.getNextBeaconDelay());
+
+        long expected = MIN_INTERVAL;
+        for (int i = 1; i < 6; i++) {
+            this.beacon.onBeaconDue();
+            expected = Math.min(MAX_INTERVAL, expected * LoRaDiscoveryBeacon.BACKOFF_FACTOR);
+            assertEquals(expected, this.beacon.getInterval());
+            assertJittered(expected, this.beacon.getNextBeaconDelay());
+        }
+        assertEquals(MAX_INTERVAL, this.beacon.getInterval());
+
+        assertEquals(6, this.beacons);
+        assertEquals(6, this.beacon.getBeaconsSent());
+        assertEquals(5, this.beacon.getUnansweredBeacons());
+        assertEquals(5 * BEACON_AIRTIME, this.beacon.getWastedAirtime());
+        assertEquals(-1, this.beacon.getTimeToFirstEncounter());
+    }
+
+    @Test
+    public void testNewPeerResetsBackoff() {
+        this.beacon.start();
+        for (int i = 0; i < 4; i++)
+            this.beacon.onBeaconDue();
+        assertEquals(MAX_INTERVAL, this.beacon.getInterval());
+
+        this.beacon.onDeviceDiscovered("1001");
+        assertEquals(MIN_INTERVAL, this.beacon.getInterval());
+        assertJittered(MIN_INTERVAL, this.beacon.getNextBeaconDelay());
+        assertEquals(1, this.beacon.getPeersDiscovered());
+        assertTrue(this.beacon.getTimeToFirstEncounter() >= 0);
+
+        //answered, so no backoff
+        this.beacon.onBeaconDue();
+        assertEquals(MIN_INTERVAL, this.beacon.getInterval());
+        assertEquals(3, this.beacon.getUnansweredBeacons());
+    }
+
+    @Test
+    public void testKnownPeerDoesNotResetBackoff() {
+        this.beacon.start();
+        this.beacon.onBeaconDue();
+        this.beacon.onDeviceDiscovered("1001");
+        this.beacon.onBeaconDue();
+        this.beacon.onBeaconDue();
+        assertEquals(2 * MIN_INTERVAL, this.beacon.getInterval());
+
+        //heard again, counts as answer but is no reason to beacon faster
+        this.beacon.onDeviceDiscovered("1001");
+        assertEquals(2 * MIN_INTERVAL, this.beacon.getInterval());
+        this.beacon.onBeaconDue();
+        assertEquals(2 * MIN_INTERVAL, this.beacon.getInterval());
+        assertEquals(1, this.beacon.getPeersDiscovered());
+
+        //once forgotten, the peer is new again
+        this.beacon.forget("1001");
+        this.beacon.onDeviceDiscovered("1001");
+        assertEquals(MIN_INTERVAL, this.beacon.getInterval());
+        assertEquals(2, this.beacon.getPeersDiscovered());
+    }
+
+    @Test
+    public void testBeaconsOnItsOwn() throws Exception {
+        final int[] sent = {0};
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        LoRaDiscoveryBeacon beacon = new LoRaDiscoveryBeacon(scheduler, new LoRaDiscoveryBeacon.BeaconSender() {
+            @Override
+            public long sendBeacon() {
+                synchronized (sent) {
+                    sent[0]++;
+                    sent.notifyAll();
+                }
+                return BEACON_AIRTIME;
+            }
+        }, 10, 40, new Random(7));
+        try {
+            beacon.start();
+            long deadline = System.currentTimeMillis() + 5000;
+            synchronized (sent) {
+                while (sent[0] < 5 && System.currentTimeMillis() < deadline)
+                    sent.wait(100);
+            }
+            assertTrue(beacon.getBeaconsSent() >= 5);
+            assertEquals(40, beacon.getInterval());
+        } finally {
+            beacon.stop();
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaMessage;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes groups of DATA segments with the {@link LoRaFECEncoder}, drops some of them and
+ * rebuilds them with the {@link LoRaFECDecoder}. Prints the time per group.
+ */
+public class LoRaFECTest {
+    private static final int MAX_LENGTH = ASAPLoRaMessage.MAX_BINARY_PAYLOAD_LENGTH - LoRaFEC.SEGMENT_OVERHEAD;
+    private static final int ROUNDS = 2000;
+
+    private final Random random = new Random(42);
+
+    private byte[][] segments(int base, int count, boolean fullLength) {
+        byte[][] segments = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int length = fullLength ? MAX_LENGTH
+                    : LoRaStreamSegment.DATA_HEADER_LENGTH + 1 + this.random.nextInt(MAX_LENGTH - LoRaStreamSegment.DATA_HEADER_LENGTH);
+            segments[i] = new byte[length];
+            this.random.nextBytes(segments[i]);
+            LoRaStreamSegment.writeDataHeader(segments[i], LoRaStreamSegment.next(base, i));
+        }
+        return segments;
+    }
+
+    private static LoRaFECEncoder encode(LoRaFECEncoder encoder, byte[][] segments, int base, int parityFrames) {
+        encoder.start(base, segments.length, parityFrames);
+        for (byte[] segment : segments)
+            encoder.add(segment, segment.length);
+        encoder.finish();
+        return encoder;
+    }
+
+    /**
+     * Feeds the decoder all segments but the lost ones, then the PARITY segments in parities
+     *
+     * @return segments rebuilt
+     */
+    private static int decode(LoRaFECDecoder decoder, LoRaFECEncoder encoder, byte[][] segments, boolean[] lost, int... parities) {
+        for (int i = 0; i < segments.length; i++) {
+            if (!lost[i])
+                decoder.onData(segments[i], segments[i].length);
+        }
+        int recovered = 0;
+        for (int j : parities)
+            recovered += decoder.onParity(encoder.getParity(j), encoder.getParityLength());
+        return recovered;
+    }
+
+    private static void assertRecovered(LoRaFECDecoder decoder, byte[][] segments, boolean[] lost, int recovered) {
+        int expected = 0;
+        for (boolean l : lost)
+            expected += l ? 1 : 0;
+        assertEquals(expected, recovered);
+        for (int r = 0; r < recovered; r++) {
+            byte[] segment = Arrays.copyOf(decoder.getRecovered(r), decoder.getRecoveredLength(r));
+            int i = LoRaStreamSegment.distance(LoRaStreamSegment.readShort(segments[0], 1),
+                    LoRaStreamSegment.readShort(segment, 1));
+            assertTrue(lost[i]);
+            assertArrayEquals(segments[i], segment);
+        }
+    }
+
+    @Test
+    public void testRebuildsAsManySegmentsAsParityFrames() {
+        for (int parityFrames = 1; parityFrames <= LoRaFEC.MAX_PARITY_FRAMES; parityFrames++) {
+            for (int round = 0; round < 50; round++) {
+                int base = this.random.nextInt(LoRaStreamSegment.SEQUENCE_SPACE);
+                byte[][] segments = this.segments(base, LoRaFEC.MAX_GROUP_SIZE, false);
+                LoRaFECEncoder encoder = encode(new LoRaFECEncoder(), segments, base, parityFrames);
+
+                boolean[] lost = new boolean[segments.length];
+                int losses = 1 + this.random.nextInt(parityFrames);
+                for (int l = 0; l < losses; ) {
+                    int i = this.random.nextInt(segments.length);
+                    if (!lost[i]) {
+                        lost[i] = true;
+                        l++;
+                    }
+                }
+                //any of the PARITY segments will do
+                int[] parities = new int[losses];
+                int first = this.random.nextInt(parityFrames - losses + 1);
+                for (int j = 0; j < losses; j++)
+                    parities[j] = first + j;
+
+                LoRaFECDecoder decoder = new LoRaFECDecoder();
+                assertRecovered(decoder, segments, lost, decode(decoder, encoder, segments, lost, parities));
+            }
+        }
+    }
+
+    @Test
+    public void testRebuildsShortGroupAtTheEnd() {
+        byte[][] segments = this.segments(0xFFFE, 3, false); //across the wrap around
+        LoRaFECEncoder encoder = encode(new LoRaFECEncoder(), segments, 0xFFFE, 2);
+        boolean[] lost = {true, false, true};
+        LoRaFECDecoder decoder = new LoRaFECDecoder();
+        assertEquals(0, decode(decoder, encoder, segments, lost, 1));
+        assertRecovered(decoder, segments, lost, decoder.onParity(encoder.getParity(0), encoder.getParityLength()));
+    }
+
+    @Test
+    public void testRebuildsDeflatedSegments() {
+        byte[][] segments = this.segments(7, 4, false);
+        segments[1][0] = LoRaStreamSegment.TYPE_DEFLATED;
+        segments[2][0] = LoRaStreamSegment.TYPE_DEFLATED;
+        LoRaFECEncoder encoder = encode(new LoRaFECEncoder(), segments, 7, 2);
+        boolean[] lost = {false, true, true, false};
+        LoRaFECDecoder decoder = new LoRaFECDecoder();
+        assertRecovered(decoder, segments, lost, decode(decoder, encoder, segments, lost, 0, 1));
+    }
+
+    @Test
+    public void testNothingToRebuild() {
+        byte[][] segments = this.segments(100, 8, false);
+        LoRaFECEncoder encoder = encode(new LoRaFECEncoder(), segments, 100, 2);
+
+        //nothing lost
+        assertEquals(0, decode(new LoRaFECDecoder(), encoder, segments, new boolean[8], 0, 1));
+        //more lost than parity frames
+        boolean[] lost = {false, true, true, true, false, false, false, false};
+        assertEquals(0, decode(new LoRaFECDecoder(), encoder, segments, lost, 0, 1));
+    }
+
+    @Test
+    public void testEncodeAndDecodeAllocateNothing() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean ?
+                (com.sun.management.ThreadMXBean) threads : null;
+        long threadId = Thread.currentThread().getId();
+
+        int parityFrames = 2;
+        byte[][] segments = this.segments(0, LoRaFEC.MAX_GROUP_SIZE, true);
+        boolean[] lost = new boolean[segments.length];
+        lost[3] = true;
+        lost[11] = true;
+        LoRaFECEncoder encoder = new LoRaFECEncoder();
+        LoRaFECDecoder decoder = new LoRaFECDecoder();
+        int[] parities = {0, 1};
+
+        for (int pass = 0; pass < 2; pass++) { //the first one warms up
+            long allocatedBefore = allocations == null ? 0 : allocations.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                //a new group each round, so nothing is kept from the last one
+                int base = round * LoRaFEC.MAX_GROUP_SIZE % LoRaStreamSegment.SEQUENCE_SPACE;
+                for (int i = 0; i < segments.length; i++)
+                    LoRaStreamSegment.writeDataHeader(segments[i], LoRaStreamSegment.next(base, i));
+                encode(encoder, segments, base, parityFrames);
+                assertEquals(2, decode(decoder, encoder, segments, lost, parities));
+            }
+            long nanos = System.nanoTime() - start;
+            long allocated = allocations == null ? 0 : allocations.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            System.out.println(String.format(Locale.ROOT,
+                    "LoRaFEC: %d segments with %d parity frames: %.0f us/group to encode and rebuild 2, %.1f bytes allocated/group",
+                    segments.length, parityFrames, nanos / 1e3 / ROUNDS, (double) allocated / ROUNDS));
+            if (pass == 1)
+                assertTrue(allocated < ROUNDS); //less than a byte per group: nothing but noise
+        }
+        assertRecovered(decoder, segments, lost, 2);
+    }
+}
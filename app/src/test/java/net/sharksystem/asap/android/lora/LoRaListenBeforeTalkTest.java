@@ -0,0 +1,149 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.messages.DiscoverASAPLoRaMessage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two simulated phones stream to each other at the same time over a channel on which frames
+ * that overlap on the air collide, with and without listening before they talk. The boards
+ * refuse to send while they receive a frame.
+ */
+public class LoRaListenBeforeTalkTest {
+    private static final int PAYLOAD_LENGTH = 10;
+    private static final long TIMEOUT = 30 * 1000;
+
+    private SimulatedLoRaChannel channel;
+    private SimulatedLoRaBoard aliceBoard;
+    private SimulatedLoRaBoard bobBoard;
+    private LoRaCommunicationManager alice;
+    private LoRaCommunicationManager bob;
+
+    private void start(boolean listenBeforeTalk, boolean busyErrors) throws IOException {
+        this.channel = new SimulatedLoRaChannel(new Random(3));
+        this.channel.setTimeScale(0.01);
+        this.channel.setCollisions(true);
+        this.aliceBoard = new SimulatedLoRaBoard("1000", this.channel);
+        this.bobBoard = new SimulatedLoRaBoard("1001", this.channel);
+        this.aliceBoard.setBusyErrors(busyErrors);
+        this.bobBoard.setBusyErrors(busyErrors);
+        this.alice = LoRaBenchmark.startPhone(this.aliceBoard, this.channel, LoRaTestHelper.IGNORE_DISCOVERIES);
+        this.bob = LoRaBenchmark.startPhone(this.bobBoard, this.channel, LoRaTestHelper.IGNORE_DISCOVERIES);
+        this.alice.setListenBeforeTalk(listenBeforeTalk);
+        this.bob.setListenBeforeTalk(listenBeforeTalk);
+    }
+
+    @After
+    public void teardown() throws InterruptedException {
+        if (this.alice != null)
+            this.stop();
+    }
+
+    private void stop() throws InterruptedException {
+        LoRaBenchmark.stopPhone(this.alice, this.aliceBoard);
+        LoRaBenchmark.stopPhone(this.bob, this.bobBoard);
+        this.alice = null;
+    }
+
+    /**
+     * Alice and bob send length bytes to each other at the same time, or only alice to bob if
+     * bob has nothing to send
+     */
+    private void exchange(int length, boolean bobSends) throws Exception {
+        byte[] fromAlice = new byte[length];
+        byte[] fromBob = new byte[bobSends ? length : 0];
+        new Random(1).nextBytes(fromAlice);
+        new Random(2).nextBytes(fromBob);
+        byte[] receivedByBob = new byte[fromAlice.length];
+        byte[] receivedByAlice = new byte[fromBob.length];
+        Thread bobReader = LoRaTestHelper.reader(this.bob.getASAPInputStream("1000"), receivedByBob);
+        Thread aliceReader = LoRaTestHelper.reader(this.alice.getASAPInputStream("1001"), receivedByAlice);
+
+        OutputStream aliceOut = this.alice.getASAPOutputStream("1001");
+        OutputStream bobOut = this.bob.getASAPOutputStream("1000");
+        aliceOut.write(fromAlice);
+        bobOut.write(fromBob);
+        aliceOut.flush();
+        bobOut.flush();
+
+        bobReader.join(TIMEOUT);
+        aliceReader.join(TIMEOUT);
+        assertArrayEquals(fromAlice, receivedByBob);
+        assertArrayEquals(fromBob, receivedByAlice);
+    }
+
+    @Test
+    public void testExchangeOverBusyChannel() throws Exception {
+        this.start(true, true);
+        this.exchange(4000, true);
+        LoRaCollisionStats aliceStats = this.alice.getCollisionStats("1001");
+        LoRaCollisionStats bobStats = this.bob.getCollisionStats("1000");
+        assertTrue(aliceStats.getFramesSent() > 0);
+        assertTrue(bobStats.getFramesSent() > 0);
+        //both hear each other's data, so at least one of them held back
+        assertTrue(aliceStats.getDeferrals() + bobStats.getDeferrals() > 0);
+    }
+
+    @Test
+    public void testBusyBoardErrorsAreCounted() throws Exception {
+        this.start(false, true);
+        this.exchange(1000, true);
+        LoRaCollisionStats aliceStats = this.alice.getCollisionStats("1001");
+        LoRaCollisionStats bobStats = this.bob.getCollisionStats("1000");
+        //both start streaming at once, one of the boards finds the channel busy
+        assertTrue(aliceStats.getErrors() + bobStats.getErrors() > 0);
+        assertTrue(aliceStats.getCollisionRate() + bobStats.getCollisionRate() > 0);
+        assertEquals(0, aliceStats.getDeferrals() + bobStats.getDeferrals());
+    }
+
+    @Test
+    public void testHoldsBackAfterHearingAFrame() throws Exception {
+        ByteArrayOutputStream board = new ByteArrayOutputStream();
+        LoRaBTInputOutputStream ioStream = new LoRaBTInputOutputStream(new ByteArrayInputStream(new byte[0]), board);
+        try {
+            ioStream.setBinaryFrameMode(true);
+            LoRaTransmitScheduler scheduler = ioStream.getTransmitScheduler();
+            scheduler.setDutyCycle(LoRaTransmitScheduler.NO_DUTY_CYCLE_LIMIT);
+            long start = System.currentTimeMillis();
+            scheduler.onFrameHeard("1000", PAYLOAD_LENGTH, false);
+            scheduler.sendControlMessage(new DiscoverASAPLoRaMessage());
+            while (board.size() == 0) {
+                assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+                Thread.sleep(1);
+            }
+            //the frame we heard and at least one slot
+            assertTrue(System.currentTimeMillis() - start
+                    >= scheduler.timeOnAir(PAYLOAD_LENGTH) + scheduler.timeOnAir(0));
+            assertEquals(1, scheduler.getCollisionStats(LoRaBroadcastSender.BROADCAST_ADDRESS, 0).getDeferrals());
+        } finally {
+            ioStream.close();
+        }
+    }
+
+    @Test
+    public void testBoardErrorsWidenContentionWindow() throws Exception {
+        this.start(true, true);
+        LoRaTransmitScheduler scheduler = this.alice.getIOStream().getTransmitScheduler();
+        assertEquals(LoRaTransmitScheduler.MIN_BACKOFF_EXPONENT, scheduler.getBackoffExponent());
+        this.alice.onError("Channel busy");
+        assertEquals(LoRaTransmitScheduler.MIN_BACKOFF_EXPONENT + 1, scheduler.getBackoffExponent());
+        for (int i = 0; i < 2 * LoRaTransmitScheduler.MAX_BACKOFF_EXPONENT; i++)
+            this.alice.onError("Channel busy");
+        assertEquals(LoRaTransmitScheduler.MAX_BACKOFF_EXPONENT, scheduler.getBackoffExponent());
+
+        //the first frame after the errors still gets the blame, the next one shrinks the window
+        this.exchange(1000, false);
+        assertTrue(scheduler.getBackoffExponent() < LoRaTransmitScheduler.MAX_BACKOFF_EXPONENT);
+    }
+}
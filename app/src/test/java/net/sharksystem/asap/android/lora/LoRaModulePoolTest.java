@@ -0,0 +1,111 @@
+package net.sharksystem.asap.android.lora;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A gateway with two simulated boards, each on its own channel.
+ */
+public class LoRaModulePoolTest {
+    private static final String PEER = "1001";
+
+    private final SimulatedLoRaChannel[] channels = new SimulatedLoRaChannel[2];
+    private final SimulatedLoRaBoard[] boards = new SimulatedLoRaBoard[2];
+    private final LoRaCommunicationManager[] modules = new LoRaCommunicationManager[2];
+    private LoRaModulePool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        this.pool = new LoRaModulePool();
+        for (int i = 0; i < 2; i++) {
+            this.channels[i] = new SimulatedLoRaChannel();
+            this.channels[i].setTimeScale(0.01);
+            this.boards[i] = new SimulatedLoRaBoard(LoRaBenchmark.gatewayAddress(i), this.channels[i]);
+            this.modules[i] = LoRaBenchmark.startPhone(this.boards[i], this.channels[i], LoRaTestHelper.IGNORE_DISCOVERIES);
+            this.pool.add(this.modules[i]);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (int i = 0; i < 2; i++)
+            LoRaBenchmark.stopPhone(this.modules[i], this.boards[i]);
+    }
+
+    /**
+     * Keeps module busy sending to peers nobody hears, a 0.01% duty cycle hardly leaves any airtime.
+     * There are more peers than can be on the air at once, so the queue is never empty, and
+     * longer than a beacon of the other module.
+     */
+    private void makeBusy(int module) throws Exception {
+        this.modules[module].setDutyCycle(0.0001);
+        for (String peer : new String[] {"1FFF", "1FFE", "1FFD"}) {
+            OutputStream os = this.modules[module].getASAPOutputStream(peer);
+            os.write(new byte[1024]);
+            os.flush();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (this.modules[module].getTransmitQueueDepth() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertTrue(this.modules[module].getTransmitQueueDepth() >= 2);
+    }
+
+    @Test
+    public void testPinToModuleThatHeardThePeer() {
+        assertNull(this.pool.getModule(PEER));
+        assertSame(this.modules[1], this.pool.pin(PEER, this.modules[1]));
+        assertSame(this.modules[1], this.pool.getModule(PEER));
+    }
+
+    @Test
+    public void testNewSessionGoesToShorterQueue() throws Exception {
+        assertSame(this.modules[0], this.pool.pin(PEER, this.modules[0]));
+        this.makeBusy(0);
+
+        //heard on the other channel as well, which is idle
+        assertSame(this.modules[1], this.pool.pin(PEER, this.modules[1]));
+        //and back to module 0 only if its queue is shorter
+        assertSame(this.modules[1], this.pool.pin(PEER, this.modules[0]));
+    }
+
+    @Test
+    public void testStayPinnedWhileSessionRuns() throws Exception {
+        assertSame(this.modules[0], this.pool.pin(PEER, this.modules[0]));
+        this.modules[0].getASAPInputStream(PEER);
+        assertTrue(this.pool.hasASAPInputStream(PEER));
+        this.makeBusy(0);
+
+        assertSame(this.modules[0], this.pool.pin(PEER, this.modules[1]));
+        assertFalse(this.modules[1].hasASAPInputStream(PEER));
+    }
+
+    @Test
+    public void testStoppedModuleIsNotUsed() throws Exception {
+        assertSame(this.modules[0], this.pool.pin(PEER, this.modules[0]));
+        LoRaBenchmark.stopPhone(this.modules[0], this.boards[0]);
+
+        assertNull(this.pool.getModule(PEER));
+        assertSame(this.modules[1], this.pool.pin(PEER, this.modules[1]));
+    }
+
+    @Test
+    public void testStoppedModuleQueueIsNotCounted() throws Exception {
+        this.makeBusy(0);
+        assertTrue(this.pool.getTransmitQueueDepth() >= 2);
+        //module 1 would add its beacons now and then
+        LoRaBenchmark.stopPhone(this.modules[1], this.boards[1]);
+        LoRaBenchmark.stopPhone(this.modules[0], this.boards[0]);
+        assertTrue(this.modules[0].getTransmitQueueDepth() > 0);
+
+        assertEquals(0, this.pool.getTransmitQueueDepth());
+    }
+}
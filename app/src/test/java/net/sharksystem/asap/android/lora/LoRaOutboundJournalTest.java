@@ -0,0 +1,278 @@
+package net.sharksystem.asap.android.lora;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records, compacts and restores the journal of single sessions, and restarts a simulated phone
+ * in the middle of a transfer, which its peer then receives completely.
+ */
+public class LoRaOutboundJournalTest {
+    private static final long TIMEOUT = 20 * 1000;
+    private static final String ALICE = "1000";
+    private static final String BOB = "1001";
+
+    private File directory;
+    private SimulatedLoRaChannel channel = null;
+    private SimulatedLoRaBoard aliceBoard;
+    private SimulatedLoRaBoard bobBoard;
+    private LoRaCommunicationManager alice;
+    private LoRaCommunicationManager bob;
+
+    @Before
+    public void setup() throws IOException {
+        this.directory = File.createTempFile("lora", "journal");
+        assertTrue(this.directory.delete());
+    }
+
+    @After
+    public void teardown() throws InterruptedException {
+        if (this.channel != null) {
+            LoRaBenchmark.stopPhone(this.alice, this.aliceBoard);
+            LoRaBenchmark.stopPhone(this.bob, this.bobBoard);
+        }
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        this.directory.delete();
+    }
+
+    private static byte[] segment(int seq) {
+        byte[] segment = new byte[LoRaStreamSegment.DATA_HEADER_LENGTH + 100 + seq % 7];
+        new Random(seq).nextBytes(segment);
+        segment[0] = LoRaStreamSegment.TYPE_DATA;
+        return segment;
+    }
+
+    private static void record(LoRaOutboundJournal journal, String address, int from, int to) {
+        for (int seq = from; seq < to; seq++) {
+            byte[] segment = segment(seq);
+            journal.onSegment(address, seq, segment, segment.length);
+        }
+    }
+
+    @Test
+    public void testRestoresUnacknowledgedSegments() {
+        LoRaOutboundJournal journal = new LoRaOutboundJournal(this.directory);
+        record(journal, BOB, 0, 5);
+        journal.onAcknowledged(BOB, 2);
+        journal.onReceived(BOB, 7);
+        journal.close();
+
+        List<LoRaOutboundJournal.Session> sessions = new LoRaOutboundJournal(this.directory).restore();
+        assertEquals(1, sessions.size());
+        LoRaOutboundJournal.Session session = sessions.get(0);
+        assertEquals(BOB, session.address);
+        assertEquals(2, session.sendBase);
+        assertEquals(7, session.rcvBase);
+        assertEquals(3, session.segments.size());
+        for (int i = 0; i < 3; i++)
+            assertArrayEquals(segment(2 + i), session.segments.get(i));
+    }
+
+    @Test
+    public void testCompactsAsAcksArrive() {
+        LoRaOutboundJournal journal = new LoRaOutboundJournal(this.directory);
+        //acks trail the segments by a window, the file stays around the threshold
+        for (int seq = 0; seq < 1000; seq++) {
+            record(journal, BOB, seq, seq + 1);
+            if (seq >= LoRaARQSender.WINDOW_SIZE)
+                journal.onAcknowledged(BOB, seq - LoRaARQSender.WINDOW_SIZE + 1);
+            assertTrue(journal.getLength(BOB) < 2 * LoRaOutboundJournal.COMPACT_THRESHOLD);
+        }
+        assertEquals(journal.getLength(BOB), new File(this.directory, BOB + LoRaOutboundJournal.FILE_SUFFIX).length());
+
+        //everything acknowledged, only the sequence numbers are left
+        journal.onAcknowledged(BOB, 1000);
+        assertEquals(2 * LoRaOutboundJournal.SEQ_RECORD_LENGTH, journal.getLength(BOB));
+        journal.close();
+        LoRaOutboundJournal.Session session = new LoRaOutboundJournal(this.directory).restore().get(0);
+        assertEquals(1000, session.sendBase);
+        assertTrue(session.segments.isEmpty());
+    }
+
+    @Test
+    public void testDiscardDeletesAndCloseKeeps() {
+        LoRaOutboundJournal journal = new LoRaOutboundJournal(this.directory);
+        record(journal, BOB, 0, 3);
+        record(journal, "1002", 0, 3);
+        journal.discard("1002");
+        assertFalse(new File(this.directory, "1002" + LoRaOutboundJournal.FILE_SUFFIX).exists());
+
+        journal.close();
+        //streams closed after the journal leave it alone
+        journal.discard(BOB);
+        record(journal, BOB, 3, 4);
+        List<LoRaOutboundJournal.Session> sessions = new LoRaOutboundJournal(this.directory).restore();
+        assertEquals(1, sessions.size());
+        assertEquals(3, sessions.get(0).segments.size());
+    }
+
+    @Test
+    public void testIgnoresRecordCutShort() throws IOException {
+        LoRaOutboundJournal journal = new LoRaOutboundJournal(this.directory);
+        record(journal, BOB, 0, 2);
+        journal.close();
+        FileOutputStream out = new FileOutputStream(new File(this.directory, BOB + LoRaOutboundJournal.FILE_SUFFIX), true);
+        out.write(new byte[]{'S', 0, 2, 0, 100, 1, 2, 3});
+        out.close();
+
+        journal = new LoRaOutboundJournal(this.directory);
+        assertEquals(2, journal.restore().get(0).segments.size());
+        //and goes on from there
+        record(journal, BOB, 2, 3);
+        journal.close();
+        assertEquals(3, new LoRaOutboundJournal(this.directory).restore().get(0).segments.size());
+    }
+
+    @Test
+    public void testKeepsBufferedDataOnClose() throws IOException {
+        LoRaBTInputOutputStream ioStream = new LoRaBTInputOutputStream(new ByteArrayInputStream(new byte[0]),
+                new ByteArrayOutputStream());
+        ioStream.setJournal(new LoRaOutboundJournal(this.directory));
+        //less than a chunk, nothing flushes it before we close
+        ioStream.getASAPOutputStream(BOB).write("hello".getBytes());
+        ioStream.close();
+
+        List<LoRaOutboundJournal.Session> sessions = new LoRaOutboundJournal(this.directory).restore();
+        assertEquals(1, sessions.size());
+        assertEquals(1, sessions.get(0).segments.size());
+        byte[] segment = sessions.get(0).segments.get(0);
+        assertEquals("hello", new String(segment, LoRaStreamSegment.DATA_HEADER_LENGTH,
+                segment.length - LoRaStreamSegment.DATA_HEADER_LENGTH));
+    }
+
+    /**
+     * Alice keeps her sessions in a journal, bob does not
+     */
+    private void startPhones() throws IOException {
+        this.channel = new SimulatedLoRaChannel(new Random(3));
+        this.channel.setTimeScale(0.01);
+        this.aliceBoard = new SimulatedLoRaBoard(ALICE, this.channel);
+        this.bobBoard = new SimulatedLoRaBoard(BOB, this.channel);
+        this.alice = LoRaBenchmark.startPhone(this.aliceBoard, this.channel, LoRaTestHelper.IGNORE_DISCOVERIES,
+                new LoRaOutboundJournal(this.directory));
+        this.bob = LoRaBenchmark.startPhone(this.bobBoard, this.channel, LoRaTestHelper.IGNORE_DISCOVERIES);
+    }
+
+    private void restartAlice() throws IOException {
+        this.aliceBoard = new SimulatedLoRaBoard(ALICE, this.channel);
+        this.alice = LoRaBenchmark.startPhone(this.aliceBoard, this.channel, LoRaTestHelper.IGNORE_DISCOVERIES,
+                new LoRaOutboundJournal(this.directory));
+    }
+
+    /**
+     * Alice sends the first kilobyte to bob, and the rest once bob went out of range, so it can't
+     * be acknowledged in between. Bob suspends the session.
+     */
+    private void sendAcrossPartition(byte[] data) throws Exception {
+        OutputStream os = this.alice.getASAPOutputStream(BOB);
+        os.write(data, 0, 1024);
+        os.flush();
+        LoRaTestHelper.await("the first kilobyte", TIMEOUT, new LoRaTestHelper.Condition() {
+            @Override
+            public boolean holds() {
+                return LoRaOutboundJournalTest.this.alice.getIOStream().getSessionCheckpoint(BOB)
+                        .getBytesAcknowledged() >= 1024;
+            }
+        });
+        this.channel.detach(this.bobBoard);
+        Thread.sleep(50); //let frames on the air land
+        os.write(data, 1024, data.length - 1024);
+        os.flush();
+        LoRaTestHelper.await("segments nobody acknowledges", TIMEOUT, new LoRaTestHelper.Condition() {
+            @Override
+            public boolean holds() {
+                return !LoRaOutboundJournalTest.this.alice.getIOStream().getSessionCheckpoint(BOB).isQuiescent();
+            }
+        });
+        assertTrue(this.bob.getIOStream().suspendASAPStream(ALICE));
+    }
+
+    @Test
+    public void testResumesAfterRestart() throws Exception {
+        this.startPhones();
+
+        final byte[] data = new byte[6 * 1024];
+        new Random(1).nextBytes(data);
+        final byte[] received = new byte[data.length];
+        Thread reader = LoRaTestHelper.reader(this.bob.getASAPInputStream(ALICE), received);
+        //the Bluetooth connection of alice breaks in the middle of the transfer
+        this.sendAcrossPartition(data);
+        LoRaBenchmark.stopPhone(this.alice, this.aliceBoard);
+        assertTrue(new File(this.directory, BOB + LoRaOutboundJournal.FILE_SUFFIX).length() > 0);
+
+        //alice starts over with her journal and finishes what she had taken over
+        this.restartAlice();
+        LoRaTestHelper.await("alice to restore the session", TIMEOUT, new LoRaTestHelper.Condition() {
+            @Override
+            public boolean holds() {
+                return LoRaOutboundJournalTest.this.alice.getIOStream().isSuspended(BOB);
+            }
+        });
+        this.channel.attach(this.bobBoard);
+        reader.join(TIMEOUT);
+        assertArrayEquals(data, received);
+        LoRaTestHelper.await("the journal to shrink", TIMEOUT, new LoRaTestHelper.Condition() {
+            @Override
+            public boolean holds() {
+                return LoRaOutboundJournalTest.this.alice.getIOStream().getJournal().getLength(BOB)
+                        == 2 * LoRaOutboundJournal.SEQ_RECORD_LENGTH;
+            }
+        });
+    }
+
+    @Test
+    public void testResumesAfterBoardLinkBreaks() throws Exception {
+        this.startPhones();
+        //as the LoRaEngine keeps its modules
+        LoRaModulePool pool = new LoRaModulePool();
+        pool.add(this.alice);
+
+        final byte[] data = new byte[6 * 1024];
+        new Random(2).nextBytes(data);
+        final byte[] received = new byte[data.length];
+        Thread reader = LoRaTestHelper.reader(this.bob.getASAPInputStream(ALICE), received);
+        this.sendAcrossPartition(data);
+
+        //the Bluetooth connection to alice's board breaks, her listen thread stops her module
+        this.aliceBoard.close();
+        this.alice.join(TIMEOUT);
+        assertFalse(this.alice.isAlive());
+        assertEquals(0, pool.getTransmitQueueDepth());
+
+        //a restart drops the stopped module and connects the board again
+        List<LoRaCommunicationManager> stopped = pool.removeStopped();
+        assertEquals(1, stopped.size());
+        assertTrue(pool.isEmpty());
+        this.restartAlice();
+        pool.add(this.alice);
+        LoRaTestHelper.await("alice to replay her journal", TIMEOUT, new LoRaTestHelper.Condition() {
+            @Override
+            public boolean holds() {
+                return LoRaOutboundJournalTest.this.alice.getIOStream().isSuspended(BOB);
+            }
+        });
+        this.channel.attach(this.bobBoard);
+        reader.join(TIMEOUT);
+        assertArrayEquals(data, received);
+        assertTrue(pool.removeStopped().isEmpty());
+    }
+}
@@ -0,0 +1,208 @@
+package net.sharksystem.asap.android.lora;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Three simulated phones in a line, alice and bob only hear the relay between them. They find
+ * and reach each other over the relay. Hop limit, duplicates and adverts are checked on a single
+ * stream.
+ */
+public class LoRaRelayTest {
+    private static final long TIMEOUT = 30 * 1000;
+    private static final String ALICE = "1000";
+    private static final String RELAY = "1001";
+    private static final String BOB = "1002";
+    private static final String CAROL = "1003";
+
+    private SimulatedLoRaBoard[] boards = null;
+    private LoRaCommunicationManager[] phones = null;
+    private LoRaBTInputOutputStream ioStream = null;
+    private ByteArrayOutputStream board = null;
+
+    @After
+    public void teardown() throws InterruptedException {
+        if (this.phones != null) {
+            for (int i = 0; i < this.phones.length; i++)
+                LoRaBenchmark.stopPhone(this.phones[i], this.boards[i]);
+        }
+        if (this.ioStream != null)
+            this.ioStream.close();
+    }
+
+    @Test
+    public void testPeersReachEachOtherOverRelay() throws Exception {
+        SimulatedLoRaChannel channel = new SimulatedLoRaChannel(new Random(5));
+        channel.setTimeScale(0.01);
+        channel.setInRange(ALICE, BOB, false);
+        final CountDownLatch aliceFoundBob = new CountDownLatch(1);
+        final CountDownLatch bobFoundAlice = new CountDownLatch(1);
+        String[] addresses = {ALICE, RELAY, BOB};
+        this.boards = new SimulatedLoRaBoard[addresses.length];
+        this.phones = new LoRaCommunicationManager[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            final String address = addresses[i];
+            this.boards[i] = new SimulatedLoRaBoard(address, channel);
+            this.phones[i] = LoRaBenchmark.startPhone(this.boards[i], channel, new LoRaCommunicationManager.PeerDiscoveryListener() {
+                @Override
+                public void onPeerDiscovered(String discovered) {
+                    if (address.equals(ALICE) && discovered.equals(BOB))
+                        aliceFoundBob.countDown();
+                    if (address.equals(BOB) && discovered.equals(ALICE))
+                        bobFoundAlice.countDown();
+                }
+            });
+            this.phones[i].setRelaying(true);
+        }
+        LoRaCommunicationManager alice = this.phones[0];
+        LoRaCommunicationManager relay = this.phones[1];
+        LoRaCommunicationManager bob = this.phones[2];
+
+        assertTrue("Alice did not learn about bob", aliceFoundBob.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue("Bob did not learn about alice", bobFoundAlice.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(RELAY, alice.getIOStream().getRelay().getNeighbourTable().nextHop(BOB));
+        assertEquals(RELAY, bob.getIOStream().getRelay().getNeighbourTable().nextHop(ALICE));
+
+        byte[] fromAlice = new byte[3000];
+        byte[] fromBob = new byte[1000];
+        new Random(1).nextBytes(fromAlice);
+        new Random(2).nextBytes(fromBob);
+        byte[] receivedByBob = new byte[fromAlice.length];
+        byte[] receivedByAlice = new byte[fromBob.length];
+        Thread bobReader = LoRaTestHelper.reader(bob.getASAPInputStream(ALICE), receivedByBob);
+        Thread aliceReader = LoRaTestHelper.reader(alice.getASAPInputStream(BOB), receivedByAlice);
+        OutputStream aliceOut = alice.getASAPOutputStream(BOB);
+        OutputStream bobOut = bob.getASAPOutputStream(ALICE);
+        aliceOut.write(fromAlice);
+        bobOut.write(fromBob);
+        aliceOut.flush();
+        bobOut.flush();
+
+        bobReader.join(TIMEOUT);
+        aliceReader.join(TIMEOUT);
+        assertArrayEquals(fromAlice, receivedByBob);
+        assertArrayEquals(fromBob, receivedByAlice);
+        //the data of both and the acks of both
+        assertTrue(relay.getFramesRelayed() >= 4);
+        assertEquals(0, alice.getFramesRelayed());
+        assertEquals(0, bob.getFramesRelayed());
+    }
+
+    /**
+     * A single stream in relay mode that hears the relay, and over it bob, which hears carol
+     */
+    private LoRaRelay startRelay() {
+        this.board = new ByteArrayOutputStream();
+        this.ioStream = new LoRaBTInputOutputStream(new ByteArrayInputStream(new byte[0]), this.board);
+        this.ioStream.setBinaryFrameMode(true);
+        this.ioStream.setRelaying(true);
+        this.ioStream.getTransmitScheduler().setDutyCycle(LoRaTransmitScheduler.NO_DUTY_CYCLE_LIMIT);
+        this.ioStream.getTransmitScheduler().setListenBeforeTalk(false);
+        LoRaRelay relay = this.ioStream.getRelay();
+        relay.onHeard(RELAY);
+        relay.getNeighbourTable().onRoute(BOB, RELAY, 2, LoRaNeighbourTable.UNKNOWN_NODE_ID);
+        return relay;
+    }
+
+    private static byte[] relayFrame(String destination, String origin, int hopsLeft, int messageId, byte[] inner)
+            throws Exception {
+        byte[] segment = new byte[LoRaStreamSegment.RELAY_HEADER_LENGTH + inner.length];
+        segment[0] = LoRaStreamSegment.TYPE_RELAY;
+        LoRaStreamSegment.writeShort(segment, 1, Integer.parseInt(destination, 16));
+        LoRaStreamSegment.writeShort(segment, 3, Integer.parseInt(origin, 16));
+        segment[5] = (byte) hopsLeft;
+        LoRaStreamSegment.writeShort(segment, 6, messageId);
+        System.arraycopy(inner, 0, segment, LoRaStreamSegment.RELAY_HEADER_LENGTH, inner.length);
+        return segment;
+    }
+
+    private void awaitFrames(long frames) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (this.ioStream.getOutputStream().getWrites() < frames && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+    }
+
+    @Test
+    public void testForwardsWithinHopLimitOnce() throws Exception {
+        LoRaRelay relay = this.startRelay();
+        relay.getNeighbourTable().onHeard(CAROL);
+        byte[] reset = {LoRaStreamSegment.TYPE_RESET};
+
+        //no hops left
+        byte[] segment = relayFrame(CAROL, BOB, 1, 1, reset);
+        this.ioStream.receiveSegment(RELAY, segment, segment.length);
+        assertEquals(1, relay.getFramesDropped());
+        assertEquals(0, relay.getFramesRelayed());
+
+        segment = relayFrame(CAROL, BOB, 2, 2, reset);
+        this.ioStream.receiveSegment(RELAY, segment, segment.length);
+        this.ioStream.receiveSegment(RELAY, segment, segment.length);
+        assertEquals(1, relay.getFramesRelayed());
+        assertEquals(1, relay.getDuplicatesDropped());
+        this.awaitFrames(1);
+        assertEquals(1, this.ioStream.getOutputStream().getWrites());
+
+        //not back to where it came from
+        segment = relayFrame(BOB, CAROL, LoRaRelay.MAX_HOPS, 3, reset);
+        this.ioStream.receiveSegment(RELAY, segment, segment.length);
+        assertEquals(2, relay.getFramesDropped());
+    }
+
+    @Test
+    public void testDeliversAndLearnsRouteBack() throws Exception {
+        LoRaRelay relay = this.startRelay();
+        byte[] data = new byte[LoRaStreamSegment.DATA_HEADER_LENGTH + 5];
+        LoRaStreamSegment.writeDataHeader(data, 0);
+        System.arraycopy("hello".getBytes(), 0, data, LoRaStreamSegment.DATA_HEADER_LENGTH, 5);
+
+        byte[] segment = relayFrame(LoRaBroadcastSender.BROADCAST_ADDRESS, CAROL, LoRaRelay.MAX_HOPS - 1, 1, data);
+        this.ioStream.receiveSegment(RELAY, segment, segment.length);
+        assertEquals(RELAY, relay.getNeighbourTable().nextHop(CAROL));
+        byte[] received = new byte[5];
+        LoRaTestHelper.reader(this.ioStream.getASAPInputStream(CAROL), received).join(TIMEOUT);
+        assertArrayEquals("hello".getBytes(), received);
+        assertEquals(0, relay.getFramesRelayed());
+
+        //our ack goes back over the relay
+        this.awaitFrames(1);
+        assertEquals(LoRaStreamSegment.RELAY_HEADER_LENGTH, relay.getOverhead(CAROL));
+        assertEquals(0, relay.getOverhead(RELAY));
+    }
+
+    @Test
+    public void testLearnsRoutesAndOwnAddressFromAdverts() {
+        LoRaRelay relay = this.startRelay();
+        byte[] advert = new byte[LoRaStreamSegment.NEIGHBOURS_HEADER_LENGTH + 3 * LoRaStreamSegment.NEIGHBOURS_ENTRY_LENGTH];
+        advert[0] = LoRaStreamSegment.TYPE_NEIGHBOURS;
+        LoRaStreamSegment.writeShort(advert, 1, 42);
+        //us, carol and a node already at the hop limit
+        int[][] entries = {{0x1000, relay.getNodeId(), 1}, {0x1003, 43, 1}, {0x1004, 44, LoRaRelay.MAX_HOPS}};
+        for (int i = 0; i < entries.length; i++) {
+            int off = LoRaStreamSegment.NEIGHBOURS_HEADER_LENGTH + i * LoRaStreamSegment.NEIGHBOURS_ENTRY_LENGTH;
+            LoRaStreamSegment.writeShort(advert, off, entries[i][0]);
+            LoRaStreamSegment.writeShort(advert, off + 2, entries[i][1]);
+            advert[off + 4] = (byte) entries[i][2];
+        }
+        this.ioStream.receiveSegment(RELAY, advert, advert.length);
+
+        LoRaNeighbourTable table = relay.getNeighbourTable();
+        assertEquals(ALICE, table.getOwnAddress());
+        assertNull(table.nextHop(ALICE));
+        assertEquals(RELAY, table.nextHop(CAROL));
+        assertNull(table.nextHop("1004"));
+        //only nodes whose id we know are advertised, the relay and carol
+        assertEquals(2, table.getAdvertisable(LoRaRelay.MAX_HOPS - 1).size());
+    }
+}
@@ -0,0 +1,223 @@
+package net.sharksystem.asap.android.lora;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Suspends sessions of two simulated phones, as their idle timeout would, and resumes them.
+ */
+public class LoRaSessionResumeTest {
+    private static final long TIMEOUT = 20 * 1000;
+
+    private SimulatedLoRaChannel channel;
+    private SimulatedLoRaBoard aliceBoard;
+    private SimulatedLoRaBoard bobBoard;
+    private LoRaCommunicationManager alice;
+    private LoRaCommunicationManager bob;
+
+    /**
+     * Reads length bytes, or until the EOF
+     */
+    private static class Reader extends Thread {
+        final InputStream is;
+        final byte[] received;
+        volatile int count = 0;
+        volatile boolean eof = false;
+
+        Reader(InputStream is, int length) {
+            this.is = is;
+            this.received = new byte[length];
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (this.count < this.received.length) {
+                    int read = this.is.read(this.received, this.count, this.received.length - this.count);
+                    if (read < 0) {
+                        this.eof = true;
+                        return;
+                    }
+                    this.count += read;
+                }
+            } catch (IOException e) {
+                this.eof = true;
+            }
+        }
+    }
+
+    @Before
+    public void setup() throws IOException {
+        this.channel = new SimulatedLoRaChannel(new Random(3));
+        this.channel.setTimeScale(0.01);
+        this.aliceBoard = new SimulatedLoRaBoard("1000", this.channel);
+        this.bobBoard = new SimulatedLoRaBoard("1001", this.channel);
+        this.alice = LoRaBenchmark.startPhone(this.aliceBoard, this.channel, LoRaTestHelper.IGNORE_DISCOVERIES);
+        this.bob = LoRaBenchmark.startPhone(this.bobBoard, this.channel, LoRaTestHelper.IGNORE_DISCOVERIES);
+    }
+
+    @After
+    public void teardown() throws InterruptedException {
+        LoRaBenchmark.stopPhone(this.alice, this.aliceBoard);
+        LoRaBenchmark.stopPhone(this.bob, this.bobBoard);
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private byte[] send(int length) throws IOException {
+        byte[] data = data(length);
+        this.send(data, 0, length);
+        return data;
+    }
+
+    private void send(byte[] data, int offset, int length) throws IOException {
+        OutputStream os = this.alice.getASAPOutputStream("1001");
+        os.write(data, offset, length);
+        os.flush();
+    }
+
+    /**
+     * Cuts the link in the middle of a transfer until both sides suspended their session. Only
+     * the first kilobyte is sent before, the rest after, so it can't be acknowledged in between.
+     */
+    private Reader partitionAndSuspend(byte[] data) throws Exception {
+        final Reader reader = new Reader(this.bob.getASAPInputStream("1000"), data.length);
+        reader.start();
+        this.send(data, 0, 1024);
+        //acknowledged, or bob could take up the session from scratch even after losing it
+        LoRaTestHelper.await("the first kilobyte", TIMEOUT, new LoRaTestHelper.Condition() {
+            @Override
+            public boolean holds() {
+                return LoRaSessionResumeTest.this.alice.getIOStream().getSessionCheckpoint("1001")
+                        .getBytesAcknowledged() >= 1024;
+            }
+        });
+        this.channel.detach(this.bobBoard);
+        Thread.sleep(50); //let frames on the air land
+
+        this.send(data, 1024, data.length - 1024);
+        LoRaTestHelper.await("segments nobody acknowledges", TIMEOUT, new LoRaTestHelper.Condition() {
+            @Override
+            public boolean holds() {
+                return !LoRaSessionResumeTest.this.alice.getIOStream().getSessionCheckpoint("1001").isQuiescent();
+            }
+        });
+
+        assertTrue(this.alice.getIOStream().suspendASAPStream("1001"));
+        assertTrue(this.bob.getIOStream().suspendASAPStream("1000"));
+        assertTrue(this.alice.getIOStream().isSuspended("1001"));
+        LoRaSessionCheckpoint checkpoint = this.alice.getIOStream().getSessionCheckpoint("1001");
+        assertTrue(checkpoint.getBytesAcknowledged() < data.length);
+        assertFalse(checkpoint.isQuiescent());
+        return reader;
+    }
+
+    @Test
+    public void testResumeAfterPartition() throws Exception {
+        byte[] data = data(6 * 1024);
+        final Reader reader = this.partitionAndSuspend(data);
+        int receivedWhileSuspended = reader.count;
+        Thread.sleep(100);
+        assertEquals(receivedWhileSuspended, reader.count);
+
+        //beacons bring them together again
+        this.channel.attach(this.bobBoard);
+        reader.join(TIMEOUT);
+        assertFalse(reader.eof);
+        assertArrayEquals(data, reader.received);
+        //data flows as soon as alice resumed, bob may still wait for her RESUMED
+        LoRaTestHelper.await("both to resume", TIMEOUT, new LoRaTestHelper.Condition() {
+            @Override
+            public boolean holds() {
+                return !LoRaSessionResumeTest.this.alice.getIOStream().isSuspended("1001")
+                        && !LoRaSessionResumeTest.this.bob.getIOStream().isSuspended("1000");
+            }
+        });
+        assertEquals(data.length, this.bob.getIOStream().getSessionCheckpoint("1000").getBytesDelivered());
+    }
+
+    @Test
+    public void testStartOverWhenPeerLostSession() throws Exception {
+        byte[] data = data(6 * 1024);
+        Reader bobReader = this.partitionAndSuspend(data);
+        final Reader aliceReader = new Reader(this.alice.getASAPInputStream("1001"), 1);
+        aliceReader.start();
+
+        //bob restarts without his sessions
+        LoRaBenchmark.stopPhone(this.bob, this.bobBoard);
+        bobReader.join(TIMEOUT);
+        this.bobBoard = new SimulatedLoRaBoard("1001", this.channel);
+        this.bob = LoRaBenchmark.startPhone(this.bobBoard, this.channel, LoRaTestHelper.IGNORE_DISCOVERIES);
+
+        aliceReader.join(TIMEOUT);
+        assertTrue(aliceReader.eof);
+        LoRaTestHelper.await("alice to drop the session", TIMEOUT, new LoRaTestHelper.Condition() {
+            @Override
+            public boolean holds() {
+                return LoRaSessionResumeTest.this.alice.getIOStream().getSessionCheckpoint("1001") == null;
+            }
+        });
+    }
+
+    @Test
+    public void testStartOverWhenNothingToResume() throws Exception {
+        final byte[] data = this.send(1024);
+        final Reader reader = new Reader(this.bob.getASAPInputStream("1000"), data.length);
+        reader.start();
+        reader.join(TIMEOUT);
+        assertArrayEquals(data, reader.received);
+        LoRaTestHelper.await("the last ack", TIMEOUT, new LoRaTestHelper.Condition() {
+            @Override
+            public boolean holds() {
+                return LoRaSessionResumeTest.this.alice.getIOStream().getSessionCheckpoint("1001")
+                        .getBytesAcknowledged() == data.length;
+            }
+        });
+
+        assertTrue(this.alice.getIOStream().suspendASAPStream("1001"));
+        assertTrue(this.bob.getIOStream().suspendASAPStream("1000"));
+        LoRaTestHelper.await("both to drop the session", TIMEOUT, new LoRaTestHelper.Condition() {
+            @Override
+            public boolean holds() {
+                return LoRaSessionResumeTest.this.alice.getIOStream().getSessionCheckpoint("1001") == null
+                        && LoRaSessionResumeTest.this.bob.getIOStream().getSessionCheckpoint("1000") == null;
+            }
+        });
+    }
+
+    @Test
+    public void testCheckpointsMatch() {
+        byte[] segment = new byte[LoRaStreamSegment.RESUME_LENGTH];
+        LoRaSessionCheckpoint ours = new LoRaSessionCheckpoint("1001", 10, 20, 7, 0, 0, -1);
+        ours.write(LoRaStreamSegment.TYPE_RESUME, segment);
+        LoRaSessionCheckpoint read = LoRaSessionCheckpoint.read("1000", segment);
+        assertEquals(10, read.getSendBase());
+        assertEquals(20, read.getNextSeq());
+        assertEquals(7, read.getRcvBase());
+
+        //peer received 15 of our segments and sent us 7 of 9
+        assertTrue(ours.matches(new LoRaSessionCheckpoint("1000", 5, 9, 15, -1, -1, -1)));
+        //peer received nothing at all - it lost its session
+        assertFalse(ours.matches(new LoRaSessionCheckpoint("1000", 0, 0, 0, -1, -1, -1)));
+        //peer received more than we sent
+        assertFalse(ours.matches(new LoRaSessionCheckpoint("1000", 5, 9, 21, -1, -1, -1)));
+        //across the wrap around of the sequence numbers
+        LoRaSessionCheckpoint wrapped = new LoRaSessionCheckpoint("1001", 0xFFF0, 0x0005, 0, 0, 0, -1);
+        assertTrue(wrapped.matches(new LoRaSessionCheckpoint("1000", 0, 0, 0x0002, -1, -1, -1)));
+    }
+}
@@ -0,0 +1,103 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaBinaryFrame;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the LoRa stack of two phones against {@link SimulatedLoRaBoard}s on the JVM,
+ * the counterpart of the BasicCommunicationTest on real boards.
+ */
+public class LoRaSimulatorTest {
+    private SimulatedLoRaChannel channel;
+    private SimulatedLoRaBoard aliceBoard;
+    private SimulatedLoRaBoard bobBoard;
+    private LoRaCommunicationManager alice;
+    private LoRaCommunicationManager bob;
+    private final Set<String> discoveredByBob = Collections.synchronizedSet(new HashSet<String>());
+
+    @Before
+    public void setup() throws IOException {
+        this.channel = new SimulatedLoRaChannel(new Random(1));
+        this.channel.setTimeScale(0.01);
+        this.aliceBoard = new SimulatedLoRaBoard("1000", this.channel);
+        this.bobBoard = new SimulatedLoRaBoard("1001", this.channel);
+
+        this.alice = LoRaBenchmark.startPhone(this.aliceBoard, this.channel, LoRaTestHelper.IGNORE_DISCOVERIES);
+        this.bob = LoRaBenchmark.startPhone(this.bobBoard, this.channel, new LoRaCommunicationManager.PeerDiscoveryListener() {
+            @Override
+            public void onPeerDiscovered(String address) {
+                LoRaSimulatorTest.this.discoveredByBob.add(address);
+            }
+        });
+    }
+
+    @After
+    public void teardown() throws InterruptedException {
+        LoRaBenchmark.stopPhone(this.alice, this.aliceBoard);
+        LoRaBenchmark.stopPhone(this.bob, this.bobBoard);
+    }
+
+    private void transfer(int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        OutputStream os = this.alice.getASAPOutputStream("1001");
+        os.write(data);
+        os.flush();
+
+        byte[] received = new byte[length];
+        InputStream is = this.bob.getASAPInputStream("1000");
+        int off = 0;
+        while (off < length) {
+            int read = is.read(received, off, length - off);
+            assertTrue(read > 0);
+            off += read;
+        }
+        assertArrayEquals(data, received);
+    }
+
+    @Test(timeout = 10000)
+    public void testDiscovery() throws InterruptedException {
+        //alice sends a discover beacon right after start
+        while (!this.discoveredByBob.contains("1000"))
+            Thread.sleep(10);
+        assertEquals(Collections.singleton("1000"), this.discoveredByBob);
+    }
+
+    @Test(timeout = 10000)
+    public void testTransfer() throws IOException {
+        this.transfer(10 * 1024);
+    }
+
+    @Test(timeout = 60000)
+    public void testTransferOverLossyChannel() throws IOException {
+        this.channel.setLossRate(0.2);
+        this.transfer(4 * 1024);
+        assertTrue(this.channel.getFramesLost() > 0);
+    }
+
+    @Test(timeout = 10000)
+    public void testHalfDuplexBoardMissesFramesWhileSending() throws InterruptedException {
+        this.channel.setTimeScale(1.0);
+        SimulatedLoRaBoard carol = new SimulatedLoRaBoard("1002", this.channel);
+        carol.setTransmitting(System.nanoTime(), System.nanoTime() + 5000L * 1000000);
+        long missed = this.channel.getFramesMissed();
+        this.channel.transmit(this.aliceBoard, "1002", ASAPLoRaBinaryFrame.TYPE_MSSGE, new byte[]{1});
+        assertEquals(missed + 1, this.channel.getFramesMissed());
+        carol.close();
+    }
+}
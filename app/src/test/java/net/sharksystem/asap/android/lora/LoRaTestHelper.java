@@ -0,0 +1,64 @@
+package net.sharksystem.asap.android.lora;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * What the tests on {@link SimulatedLoRaBoard}s share: waiting for a condition, reading a stream
+ * in the background and a listener for phones that connect on their own.
+ */
+class LoRaTestHelper {
+    /**
+     * For phones whose sessions the test opens itself
+     */
+    static final LoRaCommunicationManager.PeerDiscoveryListener IGNORE_DISCOVERIES = new LoRaCommunicationManager.PeerDiscoveryListener() {
+        @Override
+        public void onPeerDiscovered(String address) {}
+    };
+
+    interface Condition {
+        boolean holds();
+    }
+
+    private LoRaTestHelper() {}
+
+    /**
+     * Polls condition until it holds
+     *
+     * @param what    for the message if it doesn't
+     * @param timeout in ms
+     * @throws AssertionError if condition doesn't hold within timeout
+     */
+    static void await(String what, long timeout, Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline)
+                throw new AssertionError("Timed out waiting for " + what);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Reads into received until it is full or the EOF
+     */
+    static Thread reader(final InputStream is, final byte[] received) {
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    int count = 0;
+                    while (count < received.length) {
+                        int read = is.read(received, count, received.length - count);
+                        if (read < 0)
+                            return;
+                        count += read;
+                    }
+                } catch (IOException e) {
+                    //the arrays differ then
+                }
+            }
+        };
+        reader.start();
+        return reader;
+    }
+}
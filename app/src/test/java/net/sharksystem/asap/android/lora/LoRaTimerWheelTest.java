@@ -0,0 +1,139 @@
+package net.sharksystem.asap.android.lora;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fires, cancels and drops timers of a wheel with short ticks, and lets a simulated phone close
+ * the streams of a peer that went away once it was idle for the timeout.
+ */
+public class LoRaTimerWheelTest {
+    private static final long TICK = 5;
+    private static final long TIMEOUT = 10 * 1000;
+
+    private ScheduledExecutorService executor;
+    private LoRaTimerWheel timerWheel;
+
+    @Before
+    public void setup() {
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+        this.timerWheel = new LoRaTimerWheel(this.executor, TICK);
+    }
+
+    @After
+    public void teardown() {
+        this.timerWheel.stop();
+        this.executor.shutdownNow();
+    }
+
+    private Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void testFiresWithinTwoTicks() throws InterruptedException {
+        //beyond one turn of the wheel as well
+        long[] delays = {0, 1, 3 * TICK, LoRaTimerWheel.WHEEL_SIZE * TICK + 2 * TICK};
+        for (long delay : delays) {
+            CountDownLatch fired = new CountDownLatch(1);
+            long start = System.currentTimeMillis();
+            this.timerWheel.schedule(this.countDown(fired), delay);
+            assertTrue(fired.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("fired after " + elapsed + " ms instead of " + delay, elapsed >= delay);
+            //two ticks late at most, with room for a busy machine
+            assertTrue("fired after " + elapsed + " ms instead of " + delay, elapsed <= delay + 20 * TICK);
+        }
+    }
+
+    @Test
+    public void testCancelledTimersDontFire() throws InterruptedException {
+        final AtomicInteger fired = new AtomicInteger();
+        Runnable count = new Runnable() {
+            @Override
+            public void run() {
+                fired.incrementAndGet();
+            }
+        };
+        //hundreds of neighbours come and go
+        Random random = new Random(1);
+        LoRaTimerWheel.Timeout[] timeouts = new LoRaTimerWheel.Timeout[1000];
+        for (int i = 0; i < timeouts.length; i++)
+            timeouts[i] = this.timerWheel.schedule(count, random.nextInt(20) * TICK);
+        for (int i = 0; i < timeouts.length; i += 2)
+            timeouts[i].cancel();
+        assertEquals(timeouts.length / 2, this.timerWheel.getPending());
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (this.timerWheel.getPending() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(TICK);
+        Thread.sleep(5 * TICK);
+        assertEquals(timeouts.length / 2, fired.get());
+        //fired timers can't be cancelled anymore
+        timeouts[1].cancel();
+        assertEquals(0, this.timerWheel.getPending());
+    }
+
+    @Test
+    public void testStopDropsTimers() {
+        this.timerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {}
+        }, TIMEOUT);
+        this.timerWheel.stop();
+        assertEquals(0, this.timerWheel.getPending());
+        assertNull(this.timerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {}
+        }, 0));
+    }
+
+    @Test
+    public void testClosesIdlePeer() throws Exception {
+        SimulatedLoRaChannel channel = new SimulatedLoRaChannel(new Random(3));
+        channel.setTimeScale(0.01);
+        SimulatedLoRaBoard aliceBoard = new SimulatedLoRaBoard("1000", channel);
+        SimulatedLoRaBoard bobBoard = new SimulatedLoRaBoard("1001", channel);
+        LoRaCommunicationManager alice = LoRaBenchmark.startPhone(aliceBoard, channel, LoRaTestHelper.IGNORE_DISCOVERIES);
+        long idleTimeout = 300;
+        alice.setConnectionActiveTimeout(idleTimeout);
+        alice.setSessionResumeTimeout(0);
+        LoRaCommunicationManager bob = LoRaBenchmark.startPhone(bobBoard, channel, LoRaTestHelper.IGNORE_DISCOVERIES);
+        try {
+            alice.getASAPOutputStream("1001").write(1);
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (alice.getWatchedPeers() == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+            assertEquals(1, alice.getWatchedPeers());
+
+            channel.detach(bobBoard);
+            long detachedAt = System.currentTimeMillis();
+            while (alice.getWatchedPeers() > 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+            assertEquals(0, alice.getWatchedPeers());
+            assertNull(alice.getIOStream().getSessionCheckpoint("1001"));
+            //a tick of simulated time is less than a ms, leave room for a busy machine
+            assertTrue(System.currentTimeMillis() - detachedAt <= idleTimeout + 1000);
+        } finally {
+            LoRaBenchmark.stopPhone(alice, aliceBoard);
+            LoRaBenchmark.stopPhone(bob, bobBoard);
+        }
+    }
+}
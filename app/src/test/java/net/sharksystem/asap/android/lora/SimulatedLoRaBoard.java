@@ -0,0 +1,334 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.exceptions.ASAPLoRaMessageException;
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaBinaryFrame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * An ASAP-LoRa board in the JVM. Speaks the protocol of the ASAPLoRaBTModule to a
+ * {@link LoRaBTInputOutputStream} over in-memory pipes instead of a BluetoothSocket, and sends
+ * over a {@link SimulatedLoRaChannel} instead of the air:
+ * <ul>
+ *     <li>DSCVR: beacons to all boards, they report DVDCR:&lt;our address&gt; to their phones</li>
+ *     <li>MSSGE: sends the payload to the addressed board, which reports MSSGE:&lt;our address&gt;</li>
+ *     <li>FRMOD:BIN: confirms and switches to binary frames, if enabled</li>
+ *     <li>anything else is answered with an ERROR</li>
+ * </ul>
+ * With {@link #setBusyErrors(boolean)}, the board listens before it talks: a frame the phone
+ * passes while another board's frame is on the air is dropped and answered with an ERROR.
+ */
+class SimulatedLoRaBoard extends Thread {
+    static final int PIPE_CAPACITY = 64 * 1024;
+
+    private final String address;
+    private final SimulatedLoRaChannel channel;
+    private final boolean binaryFramesSupported;
+    private final Pipe fromPhone = new Pipe(PIPE_CAPACITY);
+    private final Pipe toPhone = new Pipe(PIPE_CAPACITY);
+    private final byte[] frameBuffer = new byte[ASAPLoRaBinaryFrame.MAX_FRAME_LENGTH];
+    private final byte[] phoneFrameBuffer = new byte[ASAPLoRaBinaryFrame.MAX_FRAME_LENGTH];
+    private volatile boolean binaryMode = false;
+    private volatile boolean busyErrors = false;
+    private volatile long transmitStart = 0;
+    private volatile long transmitEnd = 0;
+
+    SimulatedLoRaBoard(String address, SimulatedLoRaChannel channel) {
+        this(address, channel, true);
+    }
+
+    /**
+     * @param address
+     * @param channel
+     * @param binaryFramesSupported false behaves like a board with older firmware
+     */
+    SimulatedLoRaBoard(String address, SimulatedLoRaChannel channel, boolean binaryFramesSupported) {
+        this.address = address;
+        this.channel = channel;
+        this.binaryFramesSupported = binaryFramesSupported;
+        this.setName("SimulatedLoRaBoard-" + address);
+        this.setDaemon(true);
+        channel.attach(this);
+    }
+
+    String getAddress() {
+        return this.address;
+    }
+
+    /**
+     * @return what the phone reads from the board
+     */
+    InputStream getPhoneInputStream() {
+        return this.toPhone.inputStream;
+    }
+
+    /**
+     * @return where the phone writes to the board
+     */
+    OutputStream getPhoneOutputStream() {
+        return this.fromPhone.outputStream;
+    }
+
+    /**
+     * @param busyErrors answer frames with an ERROR instead of sending them while the channel is busy
+     */
+    void setBusyErrors(boolean busyErrors) {
+        this.busyErrors = busyErrors;
+    }
+
+    void setTransmitting(long start, long end) {
+        this.transmitStart = start;
+        this.transmitEnd = end;
+    }
+
+    boolean wasTransmitting(long start, long end) {
+        return this.transmitStart < end && this.transmitEnd > start;
+    }
+
+    /**
+     * Disconnects the board from channel and phone, the phone reads EOF.
+     */
+    void close() {
+        this.channel.detach(this);
+        this.interrupt();
+        this.fromPhone.close();
+        this.toPhone.close();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!this.isInterrupted()) {
+                if (this.binaryMode)
+                    this.handleFrame();
+                else
+                    this.handleLine(this.readLine());
+            }
+        } catch (IOException | InterruptedException e) {
+            //closed
+        }
+    }
+
+    private void handleLine(String line) throws IOException, InterruptedException {
+        if (line.isEmpty())
+            return;
+        if (line.equals("DSCVR")) {
+            this.channel.transmit(this, SimulatedLoRaChannel.BROADCAST_ADDRESS, ASAPLoRaBinaryFrame.TYPE_DSCVR, new byte[0]);
+        } else if (line.startsWith("MSSGE:") && line.length() > 11) {
+            this.channel.transmit(this, line.substring(6, 10), ASAPLoRaBinaryFrame.TYPE_MSSGE,
+                    Base64.getDecoder().decode(line.substring(11)));
+        } else if (line.equals("FRMOD:BIN") && this.binaryFramesSupported) {
+            this.writeLine("FRMOD:BIN");
+            this.binaryMode = true;
+        } else {
+            this.writeLine("ERROR:Unknown command " + line);
+        }
+    }
+
+    private void handleFrame() throws IOException, InterruptedException {
+        //hunt for the start of a frame
+        int b;
+        do {
+            b = this.fromPhone.inputStream.read();
+            if (b < 0)
+                throw new EOFException();
+        } while (b != ASAPLoRaBinaryFrame.SYNC);
+
+        this.readFully(this.frameBuffer, 1, ASAPLoRaBinaryFrame.HEADER_LENGTH - 1);
+        int len = this.frameBuffer[4] & 0xFF;
+        this.readFully(this.frameBuffer, ASAPLoRaBinaryFrame.HEADER_LENGTH, len + ASAPLoRaBinaryFrame.CRC_LENGTH);
+        int crc = ((this.frameBuffer[ASAPLoRaBinaryFrame.HEADER_LENGTH + len] & 0xFF) << 8)
+                | (this.frameBuffer[ASAPLoRaBinaryFrame.HEADER_LENGTH + len + 1] & 0xFF);
+        if (crc != ASAPLoRaBinaryFrame.crc16(this.frameBuffer, 1, ASAPLoRaBinaryFrame.HEADER_LENGTH - 1 + len)) {
+            this.writeError("CRC mismatch");
+            return;
+        }
+
+        byte[] payload = new byte[len];
+        System.arraycopy(this.frameBuffer, ASAPLoRaBinaryFrame.HEADER_LENGTH, payload, 0, len);
+        String to = ASAPLoRaBinaryFrame.intToAddress(((this.frameBuffer[2] & 0xFF) << 8) | (this.frameBuffer[3] & 0xFF));
+        if (this.busyErrors && this.channel.isReceiving(this)) {
+            this.writeError("Channel busy");
+            return;
+        }
+        switch (this.frameBuffer[1]) {
+            case ASAPLoRaBinaryFrame.TYPE_DSCVR:
+                this.channel.transmit(this, SimulatedLoRaChannel.BROADCAST_ADDRESS, ASAPLoRaBinaryFrame.TYPE_DSCVR, payload);
+                break;
+            case ASAPLoRaBinaryFrame.TYPE_MSSGE:
+                this.channel.transmit(this, to, ASAPLoRaBinaryFrame.TYPE_MSSGE, payload);
+                break;
+            default:
+                this.writeError("Unknown frame type " + this.frameBuffer[1]);
+        }
+    }
+
+    /**
+     * Called by the channel when a frame for us arrived.
+     */
+    void receive(byte type, String from, byte[] payload) {
+        try {
+            if (type == ASAPLoRaBinaryFrame.TYPE_DSCVR)
+                this.writeToPhone(ASAPLoRaBinaryFrame.TYPE_DVDCR, from, new byte[0], "DVDCR:" + from);
+            else
+                this.writeToPhone(ASAPLoRaBinaryFrame.TYPE_MSSGE, from, payload,
+                        "MSSGE:" + from + ":" + Base64.getEncoder().encodeToString(payload));
+        } catch (IOException e) {
+            //phone is gone
+        }
+    }
+
+    private void writeError(String message) throws IOException {
+        this.writeToPhone(ASAPLoRaBinaryFrame.TYPE_ERROR, SimulatedLoRaChannel.BROADCAST_ADDRESS,
+                message.getBytes(StandardCharsets.UTF_8), "ERROR:" + message);
+    }
+
+    private synchronized void writeToPhone(byte type, String address, byte[] payload, String line) throws IOException {
+        if (!this.binaryMode) {
+            this.writeLine(line);
+            return;
+        }
+        try {
+            int length = ASAPLoRaBinaryFrame.encode(type, address, payload, 0, payload.length, this.phoneFrameBuffer, 0);
+            this.toPhone.outputStream.write(this.phoneFrameBuffer, 0, length);
+        } catch (ASAPLoRaMessageException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private synchronized void writeLine(String line) throws IOException {
+        this.toPhone.outputStream.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = this.fromPhone.inputStream.read()) != '\n') {
+            if (b < 0)
+                throw new EOFException();
+            if (b != '\r')
+                line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int read = this.fromPhone.inputStream.read(b, off, len);
+            if (read < 0)
+                throw new EOFException();
+            off += read;
+            len -= read;
+        }
+    }
+
+    /**
+     * A bounded in-memory byte pipe. Unlike the java.io.Piped streams, any thread may read and
+     * write, which suits the changing threads on the phone side.
+     */
+    static class Pipe {
+        private final byte[] buffer;
+        private int readPosition = 0;
+        private int count = 0;
+        private boolean closed = false;
+
+        final InputStream inputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return Pipe.this.count;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (this.count == 0) {
+                if (this.closed)
+                    return -1;
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            int n = Math.min(len, Math.min(this.count, this.buffer.length - this.readPosition));
+            System.arraycopy(this.buffer, this.readPosition, b, off, n);
+            this.readPosition = (this.readPosition + n) % this.buffer.length;
+            this.count -= n;
+            this.notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (this.count == this.buffer.length && !this.closed) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (this.closed)
+                    throw new IOException("Pipe closed");
+                int writePosition = (this.readPosition + this.count) % this.buffer.length;
+                int n = Math.min(len, Math.min(this.buffer.length - this.count, this.buffer.length - writePosition));
+                System.arraycopy(b, off, this.buffer, writePosition, n);
+                this.count += n;
+                off += n;
+                len -= n;
+                this.notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            this.closed = true;
+            this.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package net.sharksystem.asap.android.lora;
+
+import net.sharksystem.asap.android.lora.messages.ASAPLoRaBinaryFrame;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The air between {@link SimulatedLoRaBoard}s.
+ *
+ * A transmission keeps the sending board busy for the time on air of the frame, scaled by
+ * {@link #setTimeScale(double)}, then reaches every other board it is addressed to. On the way
+ * a frame can be lost at random, and with half-duplex boards, it is missed by a receiver that
+ * transmitted itself at the same time. With collisions on, frames of two boards that overlap
+ * in time destroy each other at every receiver. Boards hear each other unless they are put out
+ * of range with {@link #setInRange(String, String, boolean)}.
+ */
+class SimulatedLoRaChannel {
+    static final String BROADCAST_ADDRESS = "FFFF";
+    private static final long TRANSMISSION_MEMORY = 5L * 1000 * 1000 * 1000; //5 s in ns, longer than any frame
+
+    private final List<SimulatedLoRaBoard> boards = new CopyOnWriteArrayList<>();
+    private final Random random;
+    private volatile int spreadingFactor = LoRaTransmitScheduler.DEFAULT_SPREADING_FACTOR;
+    private volatile long bandwidth = LoRaTransmitScheduler.DEFAULT_BANDWIDTH;
+    private volatile double lossRate = 0;
+    private volatile double timeScale = 1.0;
+    private volatile boolean halfDuplex = true;
+    private volatile boolean collisions = false;
+    //frames on the air, and for a while after, to find the frames they collided with
+    private final List<Transmission> transmissions = new CopyOnWriteArrayList<>();
+    //pairs of board addresses that don't hear each other
+    private final Set<String> outOfRange = ConcurrentHashMap.newKeySet();
+
+    private static class Transmission {
+        final SimulatedLoRaBoard from;
+        final long start;
+        final long end;
+
+        Transmission(SimulatedLoRaBoard from, long start, long end) {
+            this.from = from;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean overlaps(Transmission other) {
+            return this.from != other.from && this.start < other.end && this.end > other.start;
+        }
+    }
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesLost = new AtomicLong();
+    private final AtomicLong framesMissed = new AtomicLong();
+    private final AtomicLong framesCollided = new AtomicLong();
+    private final AtomicLong airtime = new AtomicLong();
+    //by their type, see LoRaStreamSegment
+    private final AtomicLongArray segmentsSent = new AtomicLongArray(256);
+
+    SimulatedLoRaChannel() {
+        this(new Random());
+    }
+
+    SimulatedLoRaChannel(Random random) {
+        this.random = random;
+    }
+
+    void attach(SimulatedLoRaBoard board) {
+        this.boards.add(board);
+    }
+
+    void detach(SimulatedLoRaBoard board) {
+        this.boards.remove(board);
+    }
+
+    void setModulation(int spreadingFactor, long bandwidth) {
+        this.spreadingFactor = spreadingFactor;
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * @param lossRate probability of a frame not reaching a receiver
+     */
+    void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * @param timeScale real time per simulated time, 0.01 runs the air a hundred times faster
+     */
+    void setTimeScale(double timeScale) {
+        this.timeScale = timeScale;
+    }
+
+    double getTimeScale() {
+        return this.timeScale;
+    }
+
+    /**
+     * @param halfDuplex boards can't receive while they transmit
+     */
+    void setHalfDuplex(boolean halfDuplex) {
+        this.halfDuplex = halfDuplex;
+    }
+
+    /**
+     * @param collisions frames of two boards on the air at the same time reach no one
+     */
+    void setCollisions(boolean collisions) {
+        this.collisions = collisions;
+    }
+
+    /**
+     * @param inRange the boards with the addresses a and b hear each other, the default
+     */
+    void setInRange(String a, String b, boolean inRange) {
+        if (inRange) {
+            this.outOfRange.remove(a + b);
+            this.outOfRange.remove(b + a);
+        } else {
+            this.outOfRange.add(a + b);
+            this.outOfRange.add(b + a);
+        }
+    }
+
+    private boolean inRange(SimulatedLoRaBoard a, SimulatedLoRaBoard b) {
+        return !this.outOfRange.contains(a.getAddress() + b.getAddress());
+    }
+
+    /**
+     * @return true if a frame of another board in range is on the air right now
+     */
+    boolean isReceiving(SimulatedLoRaBoard board) {
+        long now = System.nanoTime();
+        for (Transmission transmission : this.transmissions) {
+            if (transmission.from != board && transmission.start <= now && transmission.end > now
+                    && this.inRange(transmission.from, board))
+                return true;
+        }
+        return false;
+    }
+
+    long timeOnAir(int payloadLength) {
+        return LoRaTransmitScheduler.timeOnAir(payloadLength + LoRaTransmitScheduler.LORA_FRAME_OVERHEAD,
+                this.spreadingFactor, this.bandwidth);
+    }
+
+    /**
+     * Sends a frame from a board, blocking it for the scaled time on air.
+     *
+     * @param from
+     * @param to      address of the receiver or {@link #BROADCAST_ADDRESS}
+     * @param type    frame type, see {@link net.sharksystem.asap.android.lora.messages.ASAPLoRaBinaryFrame}
+     * @param payload
+     * @throws InterruptedException
+     */
+    void transmit(SimulatedLoRaBoard from, String to, byte type, byte[] payload) throws InterruptedException {
+        long timeOnAir = this.timeOnAir(payload.length);
+        long start = System.nanoTime();
+        long end = start + (long) (timeOnAir * this.timeScale * 1000000);
+        from.setTransmitting(start, end);
+        Transmission transmission = new Transmission(from, start, end);
+        this.transmissions.add(transmission);
+        //also for frames shorter than a ms once scaled, or a reply could start before they ended
+        for (long left = end - start; left > 0; left = end - System.nanoTime())
+            Thread.sleep(left / 1000000, (int) (left % 1000000));
+
+        boolean collided = false;
+        for (Transmission other : this.transmissions) {
+            if (other.end < start - TRANSMISSION_MEMORY)
+                this.transmissions.remove(other);
+            else if (this.collisions && other.overlaps(transmission))
+                collided = true;
+        }
+
+        this.framesSent.incrementAndGet();
+        this.airtime.addAndGet(timeOnAir);
+        if (type == ASAPLoRaBinaryFrame.TYPE_MSSGE && payload.length > 0)
+            this.segmentsSent.incrementAndGet(LoRaStreamSegment.typeOf(payload[0]) & 0xFF);
+        for (SimulatedLoRaBoard board : this.boards) {
+            if (board == from || !(to.equals(BROADCAST_ADDRESS) || to.equals(board.getAddress()))
+                    || !this.inRange(from, board))
+                continue;
+            if (this.lossRate > 0 && this.random.nextDouble() < this.lossRate) {
+                this.framesLost.incrementAndGet();
+                continue;
+            }
+            if (this.halfDuplex && board.wasTransmitting(start, end)) {
+                this.framesMissed.incrementAndGet();
+                continue;
+            }
+            if (collided) {
+                this.framesCollided.incrementAndGet();
+                continue;
+            }
+            board.receive(type, from.getAddress(), payload);
+        }
+    }
+
+    long getFramesSent() {
+        return this.framesSent.get();
+    }
+
+    long getFramesLost() {
+        return this.framesLost.get();
+    }
+
+    /**
+     * @return frames half-duplex receivers missed while transmitting
+     */
+    long getFramesMissed() {
+        return this.framesMissed.get();
+    }
+
+    /**
+     * @return frames receivers lost to a frame of another board, see {@link #setCollisions(boolean)}
+     */
+    long getFramesCollided() {
+        return this.framesCollided.get();
+    }
+
+    /**
+     * @return simulated time on air of all frames in ms
+     */
+    long getAirtime() {
+        return this.airtime.get();
+    }
+
+    /**
+     * @param segmentType see {@link LoRaStreamSegment}
+     * @return segments of segmentType sent in stream frames
+     */
+    long getSegmentsSent(byte segmentType) {
+        return this.segmentsSent.get(segmentType & 0xFF);
+    }
+}
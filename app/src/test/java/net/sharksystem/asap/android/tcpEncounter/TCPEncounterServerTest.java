@@ -0,0 +1,225 @@
+package net.sharksystem.asap.android.tcpEncounter;
+
+import net.sharksystem.asap.ASAPEncounterConnectionType;
+import net.sharksystem.asap.ASAPEncounterManager;
+import net.sharksystem.utils.streams.StreamPair;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * More peers than workers and queue can take connect to a server whose encounter manager is busy,
+ * the surplus is refused and all others get their encounter.
+ */
+public class TCPEncounterServerTest {
+    private static final long TIMEOUT = 10 * 1000;
+    private static final int WORKERS = 2;
+    private static final int QUEUED = 3;
+    private static final int PEERS = 8;
+
+    private TCPEncounterServer server = null;
+    private final List<Socket> peers = new ArrayList<>();
+
+    @After
+    public void teardown() throws IOException {
+        for (Socket peer : this.peers)
+            peer.close();
+        if (this.server != null)
+            this.server.stop();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    /**
+     * Holds every encounter until released, the session ends then
+     */
+    private static class BusyEncounterManager implements ASAPEncounterManager {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger started = new AtomicInteger();
+
+        @Override
+        public boolean shouldCreateConnectionToPeer(CharSequence peerID, ASAPEncounterConnectionType type) {
+            return true;
+        }
+
+        @Override
+        public void forgetPreviousEncounter() {}
+
+        @Override
+        public void handleEncounter(StreamPair streamPair, ASAPEncounterConnectionType type) throws IOException {
+            this.started.incrementAndGet();
+            try {
+                this.release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            streamPair.close();
+        }
+
+        @Override
+        public void handleEncounter(StreamPair streamPair, ASAPEncounterConnectionType type, boolean b) throws IOException {
+            this.handleEncounter(streamPair, type);
+        }
+    }
+
+    @Test
+    public void testRefusesPeersBeyondWorkersAndQueue() throws Exception {
+        int port = freePort();
+        BusyEncounterManager encounterManager = new BusyEncounterManager();
+        final CountDownLatch encounters = new CountDownLatch(WORKERS + QUEUED);
+        this.server = new TCPEncounterServer(encounterManager, port, WORKERS, QUEUED);
+        this.server.setListener(new TCPEncounterListener() {
+            @Override
+            public void onEncounterSuccess() {
+                encounters.countDown();
+            }
+        });
+        this.server.start();
+
+        for (int i = 0; i < PEERS; i++) {
+            Socket peer = null;
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (peer == null) {
+                try {
+                    peer = new Socket("localhost", port);
+                } catch (IOException e) {
+                    //server not listening yet
+                    assertTrue(System.currentTimeMillis() < deadline);
+                    Thread.sleep(10);
+                }
+            }
+            this.peers.add(peer);
+        }
+
+        //refused peers get closed right away
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((this.server.getRejected() < PEERS - WORKERS - QUEUED || encounterManager.started.get() < WORKERS)
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(PEERS - WORKERS - QUEUED, this.server.getRejected());
+        assertEquals(WORKERS, encounterManager.started.get());
+        int closed = 0;
+        for (Socket peer : this.peers) {
+            peer.setSoTimeout(100);
+            try {
+                if (peer.getInputStream().read() < 0)
+                    closed++;
+            } catch (IOException e) {
+                //still open, nothing to read
+            }
+        }
+        assertEquals(PEERS - WORKERS - QUEUED, closed);
+
+        encounterManager.release.countDown();
+        assertTrue(encounters.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(WORKERS + QUEUED, encounterManager.started.get());
+    }
+
+    private Socket connect(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (true) {
+            try {
+                Socket peer = new Socket("localhost", port);
+                this.peers.add(peer);
+                return peer;
+            } catch (IOException e) {
+                //server not listening yet
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Test
+    public void testStopLetsEncountersFinishAndRestarts() throws Exception {
+        int port = freePort();
+        BusyEncounterManager encounterManager = new BusyEncounterManager();
+        final AtomicInteger encounters = new AtomicInteger();
+        this.server = new TCPEncounterServer(encounterManager, port, WORKERS, QUEUED);
+        this.server.setListener(new TCPEncounterListener() {
+            @Override
+            public void onEncounterSuccess() {
+                encounters.incrementAndGet();
+            }
+        });
+        this.server.start();
+        this.connect(port);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (encounterManager.started.get() < 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, encounterManager.started.get());
+
+        //the running encounter is not interrupted
+        this.server.stop();
+        encounterManager.release.countDown();
+        deadline = System.currentTimeMillis() + TIMEOUT;
+        while (encounters.get() < 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, encounters.get());
+
+        this.server.start();
+        this.connect(port);
+        deadline = System.currentTimeMillis() + TIMEOUT;
+        while (encounters.get() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(2, encounters.get());
+    }
+
+    /**
+     * Returns right away like the ASAP engine, the session goes on until its streams are closed
+     */
+    private static class SessionEncounterManager extends BusyEncounterManager {
+        final List<StreamPair> sessions = new ArrayList<>();
+
+        @Override
+        public void handleEncounter(StreamPair streamPair, ASAPEncounterConnectionType type) {
+            synchronized (this.sessions) {
+                this.sessions.add(streamPair);
+            }
+            this.started.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testWorkerStaysUntilSessionEnds() throws Exception {
+        int port = freePort();
+        SessionEncounterManager encounterManager = new SessionEncounterManager();
+        this.server = new TCPEncounterServer(encounterManager, port, 1, QUEUED);
+        this.server.start();
+        this.connect(port);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (encounterManager.started.get() < 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, encounterManager.started.get());
+
+        //the only worker still runs the first session
+        this.connect(port);
+        Thread.sleep(500);
+        assertEquals(1, encounterManager.started.get());
+
+        synchronized (encounterManager.sessions) {
+            encounterManager.sessions.get(0).close();
+        }
+        deadline = System.currentTimeMillis() + TIMEOUT;
+        while (encounterManager.started.get() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(2, encounterManager.started.get());
+    }
+}
@@ -0,0 +1,215 @@
+package net.sharksystem.asap.android.tcpEncounter;
+
+import net.sharksystem.asap.ASAPEncounterConnectionType;
+import net.sharksystem.asap.ASAPEncounterManager;
+import net.sharksystem.utils.streams.StreamPair;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A sweep over peers that answer, one nobody listens on, one that never answers and a malformed
+ * endpoint: one report with each outcome, never more encounters at once than allowed.
+ */
+public class TCPEncounterSweepTest {
+    private static final long TIMEOUT = 10 * 1000;
+    private static final long HOST_DEADLINE = 1000;
+    private static final int PARALLEL = 2;
+    private static final int ANSWERING = 4;
+
+    private final List<ServerSocket> servers = new ArrayList<>();
+    private final List<Socket> accepted = new ArrayList<>();
+
+    @After
+    public void teardown() throws IOException {
+        synchronized (this.accepted) {
+            for (Socket socket : this.accepted)
+                socket.close();
+        }
+        for (ServerSocket server : this.servers)
+            server.close();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    /**
+     * Accepts one peer and sends it a byte, or nothing
+     */
+    private String peer(final boolean answer) throws IOException {
+        final ServerSocket server = new ServerSocket(0);
+        this.servers.add(server);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    synchronized (TCPEncounterSweepTest.this.accepted) {
+                        TCPEncounterSweepTest.this.accepted.add(socket);
+                    }
+                    if (answer)
+                        socket.getOutputStream().write(1);
+                } catch (IOException e) {
+                    //closed by teardown
+                }
+            }
+        }.start();
+        return "localhost:" + server.getLocalPort();
+    }
+
+    /**
+     * Reads a byte from each peer, fails if there is none
+     */
+    private static class ReadingEncounterManager implements ASAPEncounterManager {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        @Override
+        public boolean shouldCreateConnectionToPeer(CharSequence peerID, ASAPEncounterConnectionType type) {
+            return true;
+        }
+
+        @Override
+        public void forgetPreviousEncounter() {}
+
+        @Override
+        public void handleEncounter(StreamPair streamPair, ASAPEncounterConnectionType type) throws IOException {
+            int now = this.running.incrementAndGet();
+            synchronized (this.maxRunning) {
+                this.maxRunning.set(Math.max(now, this.maxRunning.get()));
+            }
+            try {
+                //give the others a chance to run alongside
+                Thread.sleep(100);
+                if (streamPair.getInputStream().read() < 0)
+                    throw new IOException("closed");
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                this.running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void handleEncounter(StreamPair streamPair, ASAPEncounterConnectionType type, boolean b) throws IOException {
+            this.handleEncounter(streamPair, type);
+        }
+    }
+
+    @Test
+    public void testReportsEachHostOnce() throws Exception {
+        String[] endpoints = new String[ANSWERING + 3];
+        for (int i = 0; i < ANSWERING; i++)
+            endpoints[i] = this.peer(true);
+        String dead = "localhost:" + freePort();
+        String silent = this.peer(false);
+        endpoints[ANSWERING] = dead;
+        endpoints[ANSWERING + 1] = silent;
+        endpoints[ANSWERING + 2] = "nocolon";
+
+        ReadingEncounterManager encounterManager = new ReadingEncounterManager();
+        final AtomicInteger reports = new AtomicInteger();
+        final AtomicReference<List<TCPEncounterSweep.Result>> results = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        TCPEncounterSweep sweep = new TCPEncounterSweep(encounterManager, endpoints, PARALLEL, HOST_DEADLINE);
+        sweep.setListener(new TCPEncounterSweep.Listener() {
+            @Override
+            public void onSweepDone(List<TCPEncounterSweep.Result> sweepResults) {
+                reports.incrementAndGet();
+                results.set(sweepResults);
+                done.countDown();
+            }
+        });
+        sweep.start();
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        //a late second report would show up here
+        Thread.sleep(200);
+        assertEquals(1, reports.get());
+        assertTrue(encounterManager.maxRunning.get() <= PARALLEL);
+
+        List<TCPEncounterSweep.Result> sweepResults = results.get();
+        assertNotNull(sweepResults);
+        assertEquals(endpoints.length, sweepResults.size());
+        for (int i = 0; i < endpoints.length; i++) {
+            TCPEncounterSweep.Result result = sweepResults.get(i);
+            assertEquals(endpoints[i], result.getEndpoint());
+            assertEquals(result.toString(), i < ANSWERING, result.isSuccess());
+        }
+
+        //the silent peer was given up on at its deadline, not at the test timeout
+        long silentDuration = sweepResults.get(ANSWERING + 1).getDuration();
+        assertTrue("silent peer took " + silentDuration + " ms",
+                silentDuration >= HOST_DEADLINE && silentDuration < HOST_DEADLINE + 1000);
+        assertTrue(sweepResults.get(ANSWERING).getDuration() < HOST_DEADLINE + 1000);
+    }
+
+    @Test
+    public void testEmptySweepReportsRightAway() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        TCPEncounterSweep sweep = new TCPEncounterSweep(new ReadingEncounterManager(), new String[0]);
+        sweep.setListener(new TCPEncounterSweep.Listener() {
+            @Override
+            public void onSweepDone(List<TCPEncounterSweep.Result> results) {
+                assertTrue(results.isEmpty());
+                done.countDown();
+            }
+        });
+        sweep.start();
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testStopClosesHostsWithoutReport() throws Exception {
+        String[] endpoints = new String[PARALLEL + 2];
+        for (int i = 0; i < endpoints.length; i++)
+            endpoints[i] = this.peer(false);
+
+        ReadingEncounterManager encounterManager = new ReadingEncounterManager();
+        final CountDownLatch done = new CountDownLatch(1);
+        TCPEncounterSweep sweep = new TCPEncounterSweep(encounterManager, endpoints, PARALLEL, TIMEOUT);
+        sweep.setListener(new TCPEncounterSweep.Listener() {
+            @Override
+            public void onSweepDone(List<TCPEncounterSweep.Result> sweepResults) {
+                done.countDown();
+            }
+        });
+        sweep.start();
+
+        //running hosts wait for peers that never answer, the others are queued
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (encounterManager.running.get() < PARALLEL && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(PARALLEL, encounterManager.running.get());
+
+        long stopped = System.currentTimeMillis();
+        sweep.stop();
+        deadline = System.currentTimeMillis() + TIMEOUT;
+        while (encounterManager.running.get() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        //closed right away, not at their deadline
+        assertEquals(0, encounterManager.running.get());
+        assertTrue(System.currentTimeMillis() - stopped < TIMEOUT / 2);
+
+        assertFalse(done.await(500, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,118 @@
+package net.sharksystem.util.tcp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams of an accepted socket channel don't need its blocking lock, which a reader of the
+ * socket's own streams holds on Android and older JDKs.
+ */
+public class SocketChannelStreamsTest {
+    private static final long TIMEOUT = 10 * 1000;
+
+    private ServerSocketChannel server = null;
+    private SocketChannel accepted = null;
+    private Socket client = null;
+
+    @After
+    public void teardown() throws IOException {
+        if (this.client != null)
+            this.client.close();
+        if (this.accepted != null)
+            this.accepted.close();
+        if (this.server != null)
+            this.server.close();
+    }
+
+    @Test
+    public void testWritesWhileBlockingLockIsHeld() throws Exception {
+        this.server = ServerSocketChannel.open();
+        this.server.socket().bind(new InetSocketAddress(0));
+        this.client = new Socket("localhost", this.server.socket().getLocalPort());
+        this.accepted = this.server.accept();
+        final Socket socket = this.accepted.socket();
+
+        //as a reader in the socket's own input stream would
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                synchronized (socket.getChannel().blockingLock()) {
+                    locked.countDown();
+                    try {
+                        release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        //leave
+                    }
+                }
+            }
+        };
+        reader.start();
+        assertTrue(locked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        final CountDownLatch written = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    SocketChannelStreams.getOutputStream(socket).write(7);
+                    written.countDown();
+                } catch (IOException e) {
+                    //test fails
+                }
+            }
+        };
+        writer.start();
+        boolean done = written.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        release.countDown();
+        assertTrue("write stalled by the blocking lock", done);
+
+        this.client.setSoTimeout((int) TIMEOUT);
+        assertEquals(7, this.client.getInputStream().read());
+        this.client.getOutputStream().write(new byte[] {1, 2, 3});
+        InputStream is = SocketChannelStreams.getInputStream(socket);
+        byte[] buffer = new byte[3];
+        int read = 0;
+        while (read < 3)
+            read += is.read(buffer, read, 3 - read);
+        assertEquals(3, buffer[2]);
+    }
+
+    @Test
+    public void testSingleBytes() throws Exception {
+        this.server = ServerSocketChannel.open();
+        this.server.socket().bind(new InetSocketAddress(0));
+        this.client = new Socket("localhost", this.server.socket().getLocalPort());
+        this.accepted = this.server.accept();
+        Socket socket = this.accepted.socket();
+
+        //one buffer per stream, reused for each byte
+        OutputStream os = SocketChannelStreams.getOutputStream(socket);
+        for (int i = 0; i < 256; i++)
+            os.write(i);
+        this.client.setSoTimeout((int) TIMEOUT);
+        for (int i = 0; i < 256; i++)
+            assertEquals(i, this.client.getInputStream().read());
+
+        this.client.getOutputStream().write(new byte[] {(byte) 200, 1});
+        this.client.shutdownOutput();
+        InputStream is = SocketChannelStreams.getInputStream(socket);
+        assertEquals(200, is.read());
+        assertEquals(1, is.read());
+        assertEquals(-1, is.read());
+    }
+}
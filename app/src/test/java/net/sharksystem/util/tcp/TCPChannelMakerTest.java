@@ -0,0 +1,109 @@
+package net.sharksystem.util.tcp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A client and a server channel maker on a free local port, listeners learn about the
+ * connection the moment it is established instead of after a polling period.
+ */
+public class TCPChannelMakerTest {
+    private static final long TIMEOUT = 10 * 1000;
+
+    private TCPChannelMaker server = null;
+    private TCPChannelMaker client = null;
+
+    @After
+    public void teardown() throws IOException {
+        TCPChannelMaker.max_connection_loops = TCPChannelMaker.MAX_CONNECTION_LOOPS_DEFAULT;
+        if (this.client != null)
+            this.client.close();
+        if (this.server != null)
+            this.server.close();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    @Test
+    public void testListenersCalledOnConnect() throws Exception {
+        int port = freePort();
+        this.server = TCPChannelMaker.getTCPServerCreator(port);
+        this.client = TCPChannelMaker.getTCPClientCreator("localhost", port);
+        final CountDownLatch connected = new CountDownLatch(2);
+        final AtomicReference<InputStream> serverIn = new AtomicReference<>();
+        this.server.getConnectionFuture().addListener(new TCPConnectionFuture.Listener() {
+            @Override
+            public void onConnectionEstablished(InputStream is, OutputStream os) {
+                serverIn.set(is);
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectionEstablishmentFailed(String reason) {}
+        });
+        this.client.notifyWhenConnectionEstablishmened(new TCPChannelMakerListener() {
+            @Override
+            public void onConnectionEstablished(TCPChannel channel) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectionEstablishmentFailed(TCPChannel channel, String reason) {}
+        });
+
+        long start = System.currentTimeMillis();
+        this.server.start();
+        this.client.start();
+        assertTrue(connected.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        this.client.waitUntilConnectionEstablished();
+        assertTrue(System.currentTimeMillis() - start < TCPChannelMaker.WAIT_FOR_NEXT_CONNECTION_TRY_DEFAULT);
+
+        this.client.getConnectionFuture().getOutputStream().write(42);
+        assertEquals(42, serverIn.get().read());
+    }
+
+    @Test
+    public void testFailureCompletesFuture() throws Exception {
+        TCPChannelMaker.max_connection_loops = 1;
+        this.client = TCPChannelMaker.getTCPClientCreator("localhost", freePort());
+        final CountDownLatch failed = new CountDownLatch(1);
+        this.client.getConnectionFuture().addListener(new TCPConnectionFuture.Listener() {
+            @Override
+            public void onConnectionEstablished(InputStream is, OutputStream os) {}
+
+            @Override
+            public void onConnectionEstablishmentFailed(String reason) {
+                failed.countDown();
+            }
+        });
+        this.client.start();
+        assertTrue(failed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(this.client.getConnectionFuture().isDone());
+        assertFalse(this.client.getConnectionFuture().isConnected());
+
+        try {
+            this.client.waitUntilConnectionEstablished();
+            fail("no connection was established");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.sharksystem.util.tcp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Delays, jitter, attempts and the deadline of reconnecting, against a free local port.
+ */
+public class TCPReconnectPolicyTest {
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    @Test
+    public void testDelaysDoubleUpToCap() {
+        TCPReconnectPolicy policy = new TCPReconnectPolicy(100, 100, 1000, 0, 1000, 60 * 1000);
+        long[] delays = {100, 200, 400, 800, 1000, 1000};
+        for (int i = 0; i < delays.length; i++)
+            assertEquals(delays[i], policy.getDelay(i + 1));
+        assertEquals(1000, policy.getDelay(100));
+    }
+
+    @Test
+    public void testJitterSpreadsDelays() {
+        TCPReconnectPolicy policy = new TCPReconnectPolicy(100, 1000, 1000, 0.5, 1000, 60 * 1000);
+        Set<Long> delays = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getDelay(1);
+            assertTrue(delay >= 500 && delay <= 1000);
+            delays.add(delay);
+        }
+        //clients failing together don't retry together
+        assertTrue(delays.size() > 10);
+    }
+
+    @Test
+    public void testGivesUpAfterAttempts() throws IOException {
+        TCPReconnectPolicy policy = new TCPReconnectPolicy(3, 50, 1000, 0, 1000, 60 * 1000);
+        long start = System.currentTimeMillis();
+        try {
+            policy.connect("localhost", freePort());
+            fail("nobody listens");
+        } catch (IOException e) {
+            //expected
+        }
+        //no delay after the last attempt
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("gave up after " + elapsed + " ms", elapsed >= 150 && elapsed < 1000);
+    }
+
+    @Test
+    public void testGivesUpAtDeadline() throws IOException {
+        TCPReconnectPolicy policy = new TCPReconnectPolicy(100, 100, 100, 0, 1000, 500);
+        long start = System.currentTimeMillis();
+        try {
+            policy.connect("localhost", freePort());
+            fail("nobody listens");
+        } catch (IOException e) {
+            //expected
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("gave up after " + elapsed + " ms", elapsed >= 300 && elapsed < 1000);
+    }
+
+    @Test
+    public void testConnectsOnceServerIsUp() throws Exception {
+        final int port = freePort();
+        final ServerSocket[] server = new ServerSocket[1];
+        Thread starter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(300);
+                    server[0] = new ServerSocket(port);
+                } catch (Exception e) {
+                    //the client gives up then
+                }
+            }
+        };
+        starter.start();
+        Socket socket = new TCPReconnectPolicy(10, 50, 200, 0.5, 1000, 10 * 1000).connect("localhost", port);
+        assertTrue(socket.isConnected());
+        socket.close();
+        starter.join();
+        server[0].close();
+    }
+}
@@ -0,0 +1,169 @@
+package net.sharksystem.util.tcp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Many clients connect to a server on a free local port, each of them gets served without the
+ * server waiting a polling period in between.
+ */
+public class TCPServerTest {
+    private static final int CLIENTS = 20;
+    private static final long TIMEOUT = 10 * 1000;
+
+    private TCPServer server = null;
+    private ExecutorService sessionExecutor = null;
+    private final List<Socket> clients = new ArrayList<>();
+
+    @After
+    public void teardown() throws IOException {
+        for (Socket client : this.clients)
+            client.close();
+        if (this.server != null)
+            this.server.close();
+        if (this.sessionExecutor != null)
+            this.sessionExecutor.shutdownNow();
+    }
+
+    private void connectClients() throws IOException {
+        for (int i = 0; i < CLIENTS; i++) {
+            Socket client = new Socket("localhost", this.server.getLocalPort());
+            client.getOutputStream().write(i);
+            this.clients.add(client);
+        }
+    }
+
+    @Test
+    public void testHandsEachClientToSessionExecutor() throws Exception {
+        final AtomicInteger sum = new AtomicInteger();
+        final CountDownLatch served = new CountDownLatch(CLIENTS);
+        this.sessionExecutor = Executors.newFixedThreadPool(2);
+        this.server = new TCPServer(0, new TCPConnectionHandler() {
+            @Override
+            public void handleConnection(InputStream is, OutputStream os) throws IOException {
+                sum.addAndGet(is.read());
+                served.countDown();
+            }
+        }, this.sessionExecutor);
+        this.server.createSocket();
+
+        long start = System.currentTimeMillis();
+        this.connectClients();
+        assertTrue(served.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(CLIENTS * (CLIENTS - 1) / 2, sum.get());
+        assertTrue(System.currentTimeMillis() - start < TCPChannel.WAIT_LOOP_IN_MILLIS);
+        assertFalse(this.server.isConnected());
+    }
+
+    @Test
+    public void testWritesWhileReaderIsBlocked() throws Exception {
+        final CountDownLatch received = new CountDownLatch(1);
+        this.sessionExecutor = Executors.newFixedThreadPool(2);
+        this.server = new TCPServer(0, new TCPConnectionHandler() {
+            @Override
+            public void handleConnection(final InputStream is, OutputStream os) throws IOException {
+                Thread reader = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (is.read() == 42)
+                                received.countDown();
+                        } catch (IOException e) {
+                            //test fails
+                        }
+                    }
+                };
+                reader.start();
+                try {
+                    //reader waits for the client now
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                os.write(7);
+                os.flush();
+            }
+        }, this.sessionExecutor);
+        this.server.createSocket();
+
+        Socket client = new Socket("localhost", this.server.getLocalPort());
+        this.clients.add(client);
+        client.setSoTimeout((int) TIMEOUT);
+        //a write stalled by the reader never gets here
+        assertEquals(7, client.getInputStream().read());
+        client.getOutputStream().write(42);
+        assertTrue(received.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testNextConnectionTakesQueuedClients() throws Exception {
+        this.server = new TCPServer(0, true);
+        long start = System.currentTimeMillis();
+        Thread connector = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    TCPServerTest.this.connectClients();
+                } catch (IOException e) {
+                    //the server misses clients then
+                }
+            }
+        };
+        connector.start();
+
+        int sum = 0;
+        this.server.createSocket();
+        sum += this.server.getInputStream().read();
+        for (int i = 1; i < CLIENTS; i++) {
+            this.server.nextConnection();
+            sum += this.server.getInputStream().read();
+        }
+        connector.join(TIMEOUT);
+        assertEquals(CLIENTS * (CLIENTS - 1) / 2, sum);
+        assertTrue(System.currentTimeMillis() - start < TCPChannel.WAIT_LOOP_IN_MILLIS);
+    }
+
+    @Test
+    public void testCloseReleasesWaitingCaller() throws Exception {
+        this.server = new TCPServer(0, true);
+        final CountDownLatch failed = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    TCPServerTest.this.server.createSocket();
+                } catch (IOException e) {
+                    failed.countDown();
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(50);
+        this.server.close();
+        assertTrue(failed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        try {
+            this.server.nextConnection();
+            fail("closed server gave another connection");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+}